@@ -0,0 +1,53 @@
+package com.ervacon.springframework.web.servlet.mvc.webflow;
+
+/*
+ * (c) Copyright Ervacon 2004-2005.
+ * All Rights Reserved.
+ */
+
+/**
+ * <p>Base class for web flows defined in Java code using a {@link WebFlowBuilder}
+ * instead of an XML flow definition. Subclasses implement {@link #buildDefinition()}
+ * and are configured in the application context like any other web flow, but
+ * without a "webFlowResource":
+ * <pre>
+ * public class SearchFlow extends AbstractBuilderWebFlow {
+ * 	protected WebFlowDefinition buildDefinition() {
+ * 		return new WebFlowBuilder("Search Flow")
+ * 			.startState("criteria")
+ * 			...
+ * 			.build();
+ * 	}
+ * }
+ * </pre>
+ *
+ * <p>Building a flow involves no parsing, so builder based flows are never
+ * lazy: the "lazy" property is ignored. Calling {@link #load()} builds the
+ * flow definition again.
+ *
+ * @see com.ervacon.springframework.web.servlet.mvc.webflow.WebFlowBuilder
+ *
+ * @author Erwin Vervaet
+ */
+public abstract class AbstractBuilderWebFlow extends SimpleWebFlow {
+
+	/**
+	 * <p>Builder based flows are never lazy.
+	 */
+	public boolean isLazy() {
+		return false;
+	}
+
+	protected WebFlowDefinition loadDefinition() throws WebFlowException {
+		return buildDefinition();
+	}
+
+	/**
+	 * <p>Build the definition of this flow, typically using a {@link WebFlowBuilder}.
+	 *
+	 * @return the flow definition
+	 * @throws WebFlowException when the flow definition is invalid
+	 */
+	protected abstract WebFlowDefinition buildDefinition() throws WebFlowException;
+
+}
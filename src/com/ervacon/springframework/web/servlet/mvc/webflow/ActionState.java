@@ -0,0 +1,96 @@
+package com.ervacon.springframework.web.servlet.mvc.webflow;
+
+/*
+ * (c) Copyright Ervacon 2004-2005.
+ * All Rights Reserved.
+ */
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>An action state: a state where one or more actions are executed.
+ * Transitions triggered by the actions lead on to other states. The
+ * transition triggered by event "event" of the action named "actionName"
+ * is called "actionName.event".
+ * 
+ * <p>When the state is constructed, the transitions are split up per action
+ * into a lookup table keyed by the plain event, so finding the transition
+ * triggered by an action does not require building the "actionName.event"
+ * name at execution time.
+ *
+ * @author Erwin Vervaet
+ */
+public class ActionState extends State {
+
+	private final String[] actionNames;
+	private final String[] actionBeanNames;
+	private final Map[] actionTransitions;
+
+	/**
+	 * <p>Create a new action state.
+	 *
+	 * @param id unique id of the state in its flow
+	 * @param actionNames names of the actions, in execution order
+	 * @param actionBeanNames bean names of the actions, in execution order
+	 * @param transitions transitions leaving the state
+	 */
+	public ActionState(String id, String[] actionNames, String[] actionBeanNames, Transition[] transitions) {
+		super(id, transitions);
+		if (actionNames.length!=actionBeanNames.length) {
+			throw new IllegalArgumentException("each action of action state '" + id + "' needs both a name and a bean name");
+		}
+		this.actionNames=(String[])actionNames.clone();
+		this.actionBeanNames=(String[])actionBeanNames.clone();
+		
+		//index the transitions by action and event
+		this.actionTransitions=new Map[actionNames.length];
+		List allTransitions=getTransitions();
+		for (int i=0; i<actionNames.length; i++) {
+			String prefix=actionNames[i] + '.';
+			actionTransitions[i]=new HashMap();
+			for (int j=0; j<allTransitions.size(); j++) {
+				Transition transition=(Transition)allTransitions.get(j);
+				if (transition.getName().startsWith(prefix)) {
+					String event=transition.getName().substring(prefix.length());
+					//the first transition with a particular name wins
+					if (!actionTransitions[i].containsKey(event)) {
+						actionTransitions[i].put(event, transition);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * <p>Returns the number of actions executed by this state.
+	 */
+	public int getActionCount() {
+		return actionNames.length;
+	}
+
+	/**
+	 * <p>Returns the name of the action at given index.
+	 */
+	public String getActionName(int index) {
+		return actionNames[index];
+	}
+
+	/**
+	 * <p>Returns the bean name of the action at given index.
+	 */
+	public String getActionBeanName(int index) {
+		return actionBeanNames[index];
+	}
+	
+	/**
+	 * <p>Find the transition triggered when the action at given index signals
+	 * given event, that is the transition named "actionName.event". Returns
+	 * null if there is no such transition.
+	 */
+	public Transition getActionTransition(int index, String event) {
+		return (Transition)actionTransitions[index].get(event);
+	}
+
+}
@@ -0,0 +1,272 @@
+package com.ervacon.springframework.web.servlet.mvc.webflow;
+
+/*
+ * (c) Copyright Ervacon 2004-2005.
+ * All Rights Reserved.
+ */
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * <p>Compact binary representation of a compiled web flow definition. Reading
+ * a flow definition in this format requires no XML parsing and no DTD validation,
+ * which makes loading large numbers of flows a lot faster. Binary definitions
+ * are typically generated at build time using the {@link WebFlowCompilerTask}.
+ *
+ * <p>A binary definition records the CRC32 checksum and the length of the XML
+ * document it was compiled from. When the XML document changes, the binary
+ * definition becomes <i>stale</i> and is no longer used.
+ *
+ * <p>Format: a magic number, a format version, the source checksum and length,
+ * the flow name, the start state id, the list of states and the list of global
+ * transitions. Each state starts
+ * with its type, followed by its id, its type specific data and its transitions.
+ *
+ * <p>Objects of this class are stateless and thread safe.
+ *
+ * @see com.ervacon.springframework.web.servlet.mvc.webflow.WebFlowCompilerTask
+ *
+ * @author Erwin Vervaet
+ */
+public class BinaryWebFlowDefinitionFormat {
+
+	/**
+	 * <p>File extension of binary flow definitions: ".wfc".
+	 */
+	public static final String FILE_EXTENSION=".wfc";
+
+	/**
+	 * <p>Magic number identifying a binary flow definition.
+	 */
+	private static final int MAGIC=0x57464C57; //"WFLW"
+
+	/**
+	 * <p>Version of the binary format. Binary definitions using another
+	 * version are considered stale.
+	 */
+	private static final short VERSION=3;
+
+	private static final byte VIEW_STATE=1;
+	private static final byte ACTION_STATE=2;
+	private static final byte FLOW_STATE=3;
+	private static final byte END_STATE=4;
+	private static final byte DECISION_STATE=5;
+
+	/**
+	 * <p>Calculate the checksum of given flow definition source document.
+	 */
+	public static long checksum(byte[] source) {
+		CRC32 crc=new CRC32();
+		crc.update(source);
+		return crc.getValue();
+	}
+
+	/**
+	 * <p>Returns the name of the binary definition compiled from named XML
+	 * definition: "search-flow.xml" becomes "search-flow.wfc".
+	 */
+	public static String getBinaryFileName(String xmlFileName) {
+		int idx=xmlFileName.lastIndexOf('.');
+		return (idx==-1 ? xmlFileName : xmlFileName.substring(0, idx)) + FILE_EXTENSION;
+	}
+
+	/**
+	 * <p>Write given flow definition in binary format.
+	 *
+	 * @param definition the flow definition to write
+	 * @param source the XML document the definition was compiled from
+	 * @param out the stream to write to, will not be closed
+	 * @throws IOException when the definition cannot be written
+	 */
+	public void write(WebFlowDefinition definition, byte[] source, OutputStream out) throws IOException {
+		DataOutputStream dout=new DataOutputStream(out);
+		dout.writeInt(MAGIC);
+		dout.writeShort(VERSION);
+		dout.writeLong(checksum(source));
+		dout.writeInt(source.length);
+
+		dout.writeUTF(definition.getName());
+		dout.writeUTF(definition.getStartState().getId());
+		List states=definition.getStates();
+		dout.writeInt(states.size());
+		for (int i=0; i<states.size(); i++) {
+			writeState((State)states.get(i), dout);
+		}
+		writeTransitions(definition.getGlobalTransitions(), dout);
+		dout.flush();
+	}
+
+	private void writeState(State state, DataOutputStream out) throws IOException {
+		if (state instanceof ViewState) {
+			out.writeByte(VIEW_STATE);
+			out.writeUTF(state.getId());
+			writeNullableString(((ViewState)state).getView(), out);
+		}
+		else if (state instanceof ActionState) {
+			ActionState actionState=(ActionState)state;
+			out.writeByte(ACTION_STATE);
+			out.writeUTF(state.getId());
+			out.writeInt(actionState.getActionCount());
+			for (int i=0; i<actionState.getActionCount(); i++) {
+				out.writeUTF(actionState.getActionName(i));
+				out.writeUTF(actionState.getActionBeanName(i));
+			}
+		}
+		else if (state instanceof DecisionState) {
+			DecisionState decisionState=(DecisionState)state;
+			out.writeByte(DECISION_STATE);
+			out.writeUTF(state.getId());
+			out.writeInt(decisionState.getConditionCount());
+			for (int i=0; i<decisionState.getConditionCount(); i++) {
+				out.writeUTF(decisionState.getCondition(i).getExpression());
+				out.writeUTF(decisionState.getThenTransition(i).getTargetStateId());
+			}
+			Transition elseTransition=decisionState.getElseTransition();
+			writeNullableString(elseTransition==null ? null : elseTransition.getTargetStateId(), out);
+		}
+		else if (state instanceof FlowState) {
+			out.writeByte(FLOW_STATE);
+			out.writeUTF(state.getId());
+			out.writeUTF(((FlowState)state).getSubFlowName());
+			writeNullableString(((FlowState)state).getModelMapperName(), out);
+		}
+		else if (state instanceof EndState) {
+			out.writeByte(END_STATE);
+			out.writeUTF(state.getId());
+			writeNullableString(((EndState)state).getView(), out);
+		}
+		else {
+			throw new WebFlowException("cannot write states of type '" + state.getClass().getName() + "' in binary format");
+		}
+
+		writeTransitions(state.getTransitions(), out);
+	}
+
+	private void writeTransitions(List transitions, DataOutputStream out) throws IOException {
+		out.writeInt(transitions.size());
+		for (int i=0; i<transitions.size(); i++) {
+			Transition transition=(Transition)transitions.get(i);
+			out.writeUTF(transition.getName());
+			out.writeUTF(transition.getTargetStateId());
+		}
+	}
+
+	private void writeNullableString(String value, DataOutputStream out) throws IOException {
+		out.writeBoolean(value!=null);
+		if (value!=null) {
+			out.writeUTF(value);
+		}
+	}
+
+	/**
+	 * <p>Check whether given binary definition uses the current version of the
+	 * binary format. A binary definition using another version is stale,
+	 * whatever source document it was compiled from.
+	 *
+	 * @param in the stream to read from, will not be closed
+	 * @return true if the stream starts with the header of the current version
+	 * @throws IOException when the definition cannot be read
+	 */
+	public boolean isCurrentVersion(InputStream in) throws IOException {
+		DataInputStream din=new DataInputStream(in);
+		try {
+			return din.readInt()==MAGIC && din.readShort()==VERSION;
+		}
+		catch (EOFException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * <p>Read a flow definition in binary format. Returns null if the binary
+	 * definition is stale: it was not compiled from given source document or
+	 * it uses another version of the binary format.
+	 *
+	 * @param in the stream to read from, will not be closed
+	 * @param source the XML document the definition should be compiled from
+	 * @return the flow definition or null if the binary definition is stale
+	 * @throws IOException when the definition cannot be read
+	 * @throws WebFlowException when the definition is not a valid flow
+	 */
+	public WebFlowDefinition read(InputStream in, byte[] source) throws IOException, WebFlowException {
+		DataInputStream din=new DataInputStream(in);
+		if (din.readInt()!=MAGIC) {
+			throw new WebFlowException("not a binary web flow definition");
+		}
+		if (din.readShort()!=VERSION || din.readLong()!=checksum(source) || din.readInt()!=source.length) {
+			return null;
+		}
+
+		String name=din.readUTF();
+		String startStateId=din.readUTF();
+		State[] states=new State[din.readInt()];
+		for (int i=0; i<states.length; i++) {
+			states[i]=readState(din);
+		}
+		return new WebFlowDefinition(name, startStateId, states, readTransitions(din));
+	}
+
+	private State readState(DataInputStream in) throws IOException {
+		byte type=in.readByte();
+		String id=in.readUTF();
+		switch (type) {
+			case VIEW_STATE: {
+				String view=readNullableString(in);
+				return new ViewState(id, view, readTransitions(in));
+			}
+			case ACTION_STATE: {
+				String[] actionNames=new String[in.readInt()];
+				String[] actionBeanNames=new String[actionNames.length];
+				for (int i=0; i<actionNames.length; i++) {
+					actionNames[i]=in.readUTF();
+					actionBeanNames[i]=in.readUTF();
+				}
+				return new ActionState(id, actionNames, actionBeanNames, readTransitions(in));
+			}
+			case DECISION_STATE: {
+				String[] tests=new String[in.readInt()];
+				String[] thenStateIds=new String[tests.length];
+				for (int i=0; i<tests.length; i++) {
+					tests[i]=in.readUTF();
+					thenStateIds[i]=in.readUTF();
+				}
+				String elseStateId=readNullableString(in);
+				readTransitions(in);
+				return new DecisionState(id, tests, thenStateIds, elseStateId);
+			}
+			case FLOW_STATE: {
+				String subFlowName=in.readUTF();
+				String modelMapperName=readNullableString(in);
+				return new FlowState(id, subFlowName, modelMapperName, readTransitions(in));
+			}
+			case END_STATE: {
+				String view=readNullableString(in);
+				readTransitions(in);
+				return new EndState(id, view);
+			}
+			default:
+				throw new WebFlowException("unknown state type " + type + " in binary web flow definition");
+		}
+	}
+
+	private Transition[] readTransitions(DataInputStream in) throws IOException {
+		Transition[] transitions=new Transition[in.readInt()];
+		for (int i=0; i<transitions.length; i++) {
+			String name=in.readUTF();
+			transitions[i]=new Transition(name, in.readUTF());
+		}
+		return transitions;
+	}
+
+	private String readNullableString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+}
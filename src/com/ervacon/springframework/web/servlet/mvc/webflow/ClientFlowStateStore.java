@@ -0,0 +1,527 @@
+package com.ervacon.springframework.web.servlet.mvc.webflow;
+
+/*
+ * (c) Copyright Ervacon 2004-2005.
+ * All Rights Reserved.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * <p>Flow state store that keeps flow state on the client. At the end of each
+ * request, the web flow controller exposes an opaque <i>continuation token</i>
+ * instead of the flow id: the memento stack of the flow, serialized, compressed
+ * and signed using HMAC-SHA1. The token is submitted as the value of the
+ * {@link WebFlowController#PARAM_FLOW_ID} parameter, using any
+ * {@link ParameterExtractor}, and the memento stack is rebuilt from it. No
+ * memory is held on the server between requests and no HTTP session is needed.
+ *
+ * <p>The signature prevents clients from tampering with the flow state, but
+ * the flow state is not encrypted: don't put confidential data in the model
+ * of a flow using this store. Also note that a client can submit an old token
+ * again, which continues the flow from that point. Tokens are rejected once
+ * they are older than the timeout.
+ *
+ * <p>Tokens are signed with the first of the configured secret keys and
+ * verified with any of them. To rotate keys, add a new key in front of the
+ * list and remove the old key once the tokens it signed have expired.
+ *
+ * <p>When the token of a flow would be larger than the maximum token size, or
+ * its model is not serializable, the flow state is saved in the fallback
+ * store and the flow id is exposed instead. The flow switches back to a token
+ * when its state becomes small enough again.
+ *
+ * <p><b>Exposed configuration properties</b><br>
+ * <table border="1">
+ *  <tr>
+ *      <td><b>name</b></td>
+ *      <td><b>default</b></td>
+ *      <td><b>description</b></td>
+ *  </tr>
+ *  <tr>
+ *      <td>secretKeys</td>
+ *      <td>null</td>
+ *      <td>
+ *          The keys used to sign tokens, required. The first key signs new
+ *          tokens, all keys are accepted when verifying a token.
+ *      </td>
+ *  </tr>
+ *  <tr>
+ *      <td>maxTokenSize</td>
+ *      <td>2000</td>
+ *      <td>
+ *          The maximum number of characters in a token. Larger flow states are
+ *          kept in the fallback store and longer tokens are rejected.
+ *      </td>
+ *  </tr>
+ *  <tr>
+ *      <td>fallbackStore</td>
+ *      <td>{@link InMemoryFlowStateStore}</td>
+ *      <td>Store used for flow state that does not fit in a token.</td>
+ *  </tr>
+ *  <tr>
+ *      <td>timeout</td>
+ *      <td>10</td>
+ *      <td>
+ *          The flow timeout in <b>minutes</b>. Tokens of flows that were
+ *          inactive for longer are rejected.
+ *      </td>
+ *  </tr>
+ * </table>
+ *
+ * @author Erwin Vervaet
+ */
+public class ClientFlowStateStore implements FlowStateStore, InitializingBean {
+
+	/**
+	 * <p>Prefix of continuation tokens, distinguishing them from flow ids.
+	 */
+	public static final String TOKEN_PREFIX="ct.";
+
+	/**
+	 * <p>Default maximum token size: 2000 characters, which keeps URLs
+	 * containing a token within the limits of common browsers.
+	 */
+	public static final int DEFAULT_MAX_TOKEN_SIZE=2000;
+
+	/**
+	 * <p>Default flow timeout: 10 minutes.
+	 */
+	public static final int DEFAULT_TIMEOUT=10;
+
+	private static final String MAC_ALGORITHM="HmacSHA1";
+
+	/**
+	 * <p>Request attribute mapping the tokens loaded during a request to
+	 * the ids of their flows.
+	 */
+	private static final String TOKENS_ATTRIBUTE=ClientFlowStateStore.class.getName() + ".tokens";
+
+	private static final char[] BASE64_CHARS="ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+	protected final Log log=LogFactory.getLog(ClientFlowStateStore.class);
+
+	private String[] secretKeys=null;
+	private int maxTokenSize=DEFAULT_MAX_TOKEN_SIZE;
+	private FlowStateStore fallbackStore=new InMemoryFlowStateStore();
+	private int timeout=DEFAULT_TIMEOUT;
+
+	private SecretKeySpec[] keys=null;
+	private String[] keyIds=null;
+
+	/**
+	 * <p>Returns the secret keys used to sign and verify tokens.
+	 */
+	public String[] getSecretKeys() {
+		return secretKeys;
+	}
+
+	/**
+	 * <p>Set the secret keys used to sign and verify tokens. New tokens are
+	 * signed with the first key.
+	 */
+	public void setSecretKeys(String[] secretKeys) {
+		this.secretKeys=secretKeys;
+	}
+
+	/**
+	 * <p>Returns the maximum number of characters in a token.
+	 */
+	public int getMaxTokenSize() {
+		return maxTokenSize;
+	}
+
+	/**
+	 * <p>Set the maximum number of characters in a token. Defaults to 2000.
+	 */
+	public void setMaxTokenSize(int maxTokenSize) {
+		this.maxTokenSize=maxTokenSize;
+	}
+
+	/**
+	 * <p>Returns the store used for flow state that does not fit in a token.
+	 */
+	public FlowStateStore getFallbackStore() {
+		return fallbackStore;
+	}
+
+	/**
+	 * <p>Set the store used for flow state that does not fit in a token.
+	 * Defaults to an {@link InMemoryFlowStateStore}.
+	 */
+	public void setFallbackStore(FlowStateStore fallbackStore) {
+		this.fallbackStore=fallbackStore;
+	}
+
+	/**
+	 * <p>Get the flow timeout, expressed in minutes.
+	 */
+	public int getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * <p>Set the flow timeout, expressed in minutes. Defaults to 10.
+	 */
+	public void setTimeout(int timeout) {
+		this.timeout=timeout;
+	}
+
+	public void afterPropertiesSet() throws Exception {
+		if (secretKeys==null || secretKeys.length==0) {
+			throw new IllegalArgumentException("at least one secret key is required to sign continuation tokens");
+		}
+		SecretKeySpec[] newKeys=new SecretKeySpec[secretKeys.length];
+		String[] newKeyIds=new String[secretKeys.length];
+		for (int i=0; i<secretKeys.length; i++) {
+			byte[] secret=secretKeys[i].getBytes("UTF-8");
+			newKeys[i]=new SecretKeySpec(secret, MAC_ALGORITHM);
+			//identify keys by a short digest, so rotating keys does not change key ids
+			byte[] digest=MessageDigest.getInstance("SHA-1").digest(secret);
+			newKeyIds[i]=encode(digest, 0, 6);
+		}
+		keys=newKeys;
+		keyIds=newKeyIds;
+	}
+
+	/**
+	 * <p>Returns whether or not given flow id parameter value is a
+	 * continuation token.
+	 */
+	public static boolean isToken(String flowId) {
+		return flowId!=null && flowId.startsWith(TOKEN_PREFIX);
+	}
+
+	/**
+	 * <p>Load the memento stack identified by given flow id, which is either a
+	 * continuation token, or the id of a flow saved during the current request
+	 * or kept in the fallback store. A token that is invalid, has been tampered
+	 * with or has expired results in a null return value.
+	 */
+	public WebFlowMementoStack load(HttpServletRequest request, String flowId) {
+		if (isToken(flowId)) {
+			FlowStateHolder holder=decodeToken(flowId);
+			if (holder==null) {
+				return null;
+			}
+			//make the flow available by its id for the rest of the request
+			request.setAttribute(getRequestAttributeName(holder.flowId), holder.mementos);
+			Map tokens=(Map)request.getAttribute(TOKENS_ATTRIBUTE);
+			if (tokens==null) {
+				tokens=new HashMap(4);
+				request.setAttribute(TOKENS_ATTRIBUTE, tokens);
+			}
+			tokens.put(flowId, holder.flowId);
+			return holder.mementos;
+		}
+		WebFlowMementoStack mementos=(WebFlowMementoStack)request.getAttribute(getRequestAttributeName(flowId));
+		if (mementos==null) {
+			mementos=getFallbackStore().load(request, flowId);
+		}
+		return mementos;
+	}
+
+	/**
+	 * <p>Save given memento stack for the rest of the current request. The
+	 * memento stack only leaves the request in the token created by
+	 * {@link #createToken(HttpServletRequest, String, WebFlowMementoStack)}.
+	 */
+	public void save(HttpServletRequest request, String flowId, WebFlowMementoStack mementos) {
+		flowId=resolveFlowId(request, flowId);
+		request.setAttribute(getRequestAttributeName(flowId), mementos);
+	}
+
+	public void delete(HttpServletRequest request, String flowId) {
+		flowId=resolveFlowId(request, flowId);
+		request.removeAttribute(getRequestAttributeName(flowId));
+		getFallbackStore().delete(request, flowId);
+	}
+
+	/**
+	 * <p>Returns the ids of the flows kept in the fallback store: the flow
+	 * state in tokens is not stored anywhere on the server.
+	 */
+	public Set getFlowIds(HttpServletRequest request) {
+		return getFallbackStore().getFlowIds(request);
+	}
+
+	/**
+	 * <p>Returns false: flow state is kept on the client. Flows kept in the
+	 * fallback store use the session if there is one.
+	 */
+	public boolean requiresSession() {
+		return false;
+	}
+
+	/**
+	 * <p>Returns whether or not the fallback store removes expired flows by
+	 * itself: expired tokens are rejected anyway.
+	 */
+	public boolean expiresFlows() {
+		return getFallbackStore().expiresFlows();
+	}
+
+	/**
+	 * <p>Returns the continuation token of given memento stack.
+	 *
+	 * @see #createToken(HttpServletRequest, String, WebFlowMementoStack)
+	 */
+	public String getExposedFlowId(HttpServletRequest request, String flowId, WebFlowMementoStack mementos) {
+		return createToken(request, flowId, mementos);
+	}
+
+	/**
+	 * <p>Create the continuation token for given memento stack, to be exposed
+	 * to the client instead of the flow id. When the token would be too large,
+	 * or the memento stack cannot be serialized, the memento stack is saved in
+	 * the fallback store and the flow id is returned.
+	 *
+	 * @param request current HTTP request
+	 * @param flowId id of the flow, or the token it was loaded from
+	 * @param mementos the memento stack of the flow
+	 * @return a continuation token, or the flow id
+	 */
+	public String createToken(HttpServletRequest request, String flowId, WebFlowMementoStack mementos) {
+		flowId=resolveFlowId(request, flowId);
+		String token=null;
+		try {
+			token=encodeToken(flowId, mementos);
+		}
+		catch (NotSerializableException e) {
+			if (log.isInfoEnabled()) {
+				log.info("Flow '" + flowId + "' is kept in the fallback store: its state is not serializable (" + e.getMessage() + ")");
+			}
+		}
+		catch (IOException e) {
+			throw new WebFlowException("cannot create continuation token for flow '" + flowId + "'", e);
+		}
+
+		if (token==null || token.length()>getMaxTokenSize()) {
+			if (token!=null && log.isDebugEnabled()) {
+				log.debug("Flow '" + flowId + "' is kept in the fallback store: its token would have " + token.length() + " characters");
+			}
+			getFallbackStore().save(request, flowId, mementos);
+			return flowId;
+		}
+		//the flow may have been kept in the fallback store until now
+		getFallbackStore().delete(request, flowId);
+		return token;
+	}
+
+	/**
+	 * <p>Serialize, compress and sign given flow state. Tokens look like
+	 * <code>ct.&lt;key id&gt;.&lt;payload&gt;.&lt;signature&gt;</code>, with the
+	 * binary parts in URL safe base 64 encoding.
+	 */
+	private String encodeToken(String flowId, WebFlowMementoStack mementos) throws IOException {
+		ByteArrayOutputStream bytes=new ByteArrayOutputStream(512);
+		ObjectOutputStream out=new ObjectOutputStream(new DeflaterOutputStream(bytes));
+		out.writeUTF(flowId);
+		out.writeObject(mementos);
+		out.close();
+
+		byte[] payload=bytes.toByteArray();
+		StringBuffer token=new StringBuffer(TOKEN_PREFIX.length()+(payload.length*4/3)+50);
+		token.append(TOKEN_PREFIX).append(getKeyIds()[0]).append('.').append(encode(payload, 0, payload.length));
+		byte[] signature=sign(getKeys()[0], token.toString());
+		token.append('.').append(encode(signature, 0, signature.length));
+		return token.toString();
+	}
+
+	/**
+	 * <p>Verify and decode given token. Returns null when the token is invalid.
+	 */
+	private FlowStateHolder decodeToken(String token) {
+		if (token.length()>getMaxTokenSize()) {
+			log.warn("Rejected continuation token: it is longer than the maximum token size");
+			return null;
+		}
+		int keyEnd=token.indexOf('.', TOKEN_PREFIX.length());
+		int payloadEnd=token.lastIndexOf('.');
+		if (keyEnd==-1 || payloadEnd<=keyEnd) {
+			log.warn("Rejected continuation token: it is malformed");
+			return null;
+		}
+
+		//find the key that signed the token and check the signature
+		String keyId=token.substring(TOKEN_PREFIX.length(), keyEnd);
+		SecretKeySpec key=null;
+		for (int i=0; i<getKeyIds().length && key==null; i++) {
+			if (getKeyIds()[i].equals(keyId)) {
+				key=getKeys()[i];
+			}
+		}
+		byte[] signature=decode(token.substring(payloadEnd+1));
+		if (key==null || signature==null || !isEqual(sign(key, token.substring(0, payloadEnd)), signature)) {
+			log.warn("Rejected continuation token: unknown key or invalid signature");
+			return null;
+		}
+
+		//the token was created by us, so it is safe to deserialize
+		try {
+			byte[] payload=decode(token.substring(keyEnd+1, payloadEnd));
+			ObjectInputStream in=new ObjectInputStream(new InflaterInputStream(new ByteArrayInputStream(payload)));
+			FlowStateHolder holder=new FlowStateHolder(in.readUTF(), (WebFlowMementoStack)in.readObject());
+			in.close();
+			if (System.currentTimeMillis()-holder.mementos.getLastAccessedTime() > getTimeout()*60000L) {
+				if (log.isInfoEnabled()) {
+					log.info("Rejected continuation token of flow '" + holder.flowId + "': it has expired");
+				}
+				return null;
+			}
+			return holder;
+		}
+		catch (IOException e) {
+			throw new WebFlowException("cannot read continuation token", e);
+		}
+		catch (ClassNotFoundException e) {
+			throw new WebFlowException("cannot read continuation token", e);
+		}
+	}
+
+	private SecretKeySpec[] getKeys() {
+		if (keys==null) {
+			throw new IllegalStateException("the client flow state store has not been initialized");
+		}
+		return keys;
+	}
+
+	private String[] getKeyIds() {
+		getKeys();
+		return keyIds;
+	}
+
+	private byte[] sign(SecretKeySpec key, String data) {
+		try {
+			Mac mac=Mac.getInstance(MAC_ALGORITHM);
+			mac.init(key);
+			return mac.doFinal(data.getBytes("US-ASCII"));
+		}
+		catch (GeneralSecurityException e) {
+			throw new WebFlowException("cannot sign continuation token", e);
+		}
+		catch (IOException e) {
+			throw new WebFlowException("cannot sign continuation token", e);
+		}
+	}
+
+	/**
+	 * <p>Compare given signatures in time that does not depend on where they
+	 * differ, so it does not leak how much of a forged signature is correct.
+	 */
+	private static boolean isEqual(byte[] a, byte[] b) {
+		if (a.length!=b.length) {
+			return false;
+		}
+		int diff=0;
+		for (int i=0; i<a.length; i++) {
+			diff|=a[i]^b[i];
+		}
+		return diff==0;
+	}
+
+	/**
+	 * <p>Returns the id of the flow loaded from given token during the current
+	 * request, or given flow id if it is not such a token.
+	 */
+	private String resolveFlowId(HttpServletRequest request, String flowId) {
+		if (isToken(flowId)) {
+			Map tokens=(Map)request.getAttribute(TOKENS_ATTRIBUTE);
+			if (tokens!=null && tokens.containsKey(flowId)) {
+				return (String)tokens.get(flowId);
+			}
+		}
+		return flowId;
+	}
+
+	private String getRequestAttributeName(String flowId) {
+		return ClientFlowStateStore.class.getName() + "." + flowId;
+	}
+
+	//URL safe base 64 encoding, without padding
+
+	private static String encode(byte[] data, int offset, int length) {
+		StringBuffer result=new StringBuffer((length*4+2)/3);
+		int end=offset+length;
+		for (int i=offset; i<end; i+=3) {
+			int b=(data[i] & 0xff)<<16;
+			if (i+1<end) b|=(data[i+1] & 0xff)<<8;
+			if (i+2<end) b|=(data[i+2] & 0xff);
+			result.append(BASE64_CHARS[(b>>18) & 0x3f]);
+			result.append(BASE64_CHARS[(b>>12) & 0x3f]);
+			if (i+1<end) result.append(BASE64_CHARS[(b>>6) & 0x3f]);
+			if (i+2<end) result.append(BASE64_CHARS[b & 0x3f]);
+		}
+		return result.toString();
+	}
+
+	/**
+	 * <p>Decode given URL safe base 64 text, returning null if it is invalid.
+	 */
+	private static byte[] decode(String text) {
+		if (text.length()%4==1) {
+			return null;
+		}
+		byte[] result=new byte[text.length()*3/4];
+		int bits=0;
+		int bitCount=0;
+		int pos=0;
+		for (int i=0; i<text.length(); i++) {
+			int value=decode(text.charAt(i));
+			if (value==-1) {
+				return null;
+			}
+			bits=(bits<<6) | value;
+			bitCount+=6;
+			if (bitCount>=8) {
+				bitCount-=8;
+				result[pos++]=(byte)(bits>>bitCount);
+			}
+		}
+		return result;
+	}
+
+	private static int decode(char c) {
+		if (c>='A' && c<='Z') return c-'A';
+		if (c>='a' && c<='z') return c-'a'+26;
+		if (c>='0' && c<='9') return c-'0'+52;
+		if (c=='-') return 62;
+		if (c=='_') return 63;
+		return -1;
+	}
+
+	/**
+	 * <p>The flow state in a continuation token.
+	 */
+	private static class FlowStateHolder {
+		private final String flowId;
+		private final WebFlowMementoStack mementos;
+
+		public FlowStateHolder(String flowId, WebFlowMementoStack mementos) {
+			this.flowId=flowId;
+			this.mementos=mementos;
+		}
+	}
+
+}
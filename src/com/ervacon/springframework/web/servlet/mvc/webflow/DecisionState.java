@@ -0,0 +1,102 @@
+package com.ervacon.springframework.web.servlet.mvc.webflow;
+
+/*
+ * (c) Copyright Ervacon 2004-2005.
+ * All Rights Reserved.
+ */
+
+/**
+ * <p>A decision state: a state that decides which state comes next by
+ * evaluating conditions over the flow model. The conditions are evaluated in
+ * order and the first one that holds triggers its "then" transition. When
+ * none holds, the "else" transition is triggered.
+ *
+ * <p>The condition expressions are compiled into {@link ModelCondition} objects
+ * when the state is constructed, so a decision involves no bean lookup, no
+ * action invocation and no parsing at execution time.
+ *
+ * <p>The transitions of a decision state are named after their condition
+ * expression; the else transition is named "else".
+ *
+ * @see com.ervacon.springframework.web.servlet.mvc.webflow.ModelCondition
+ *
+ * @author Erwin Vervaet
+ */
+public class DecisionState extends State {
+
+	/**
+	 * <p>Name of the transition taken when no condition holds: "else".
+	 */
+	public static final String ELSE_TRANSITION_NAME="else";
+
+	private final ModelCondition[] conditions;
+	private final Transition[] thenTransitions;
+	private final Transition elseTransition;
+
+	/**
+	 * <p>Create a new decision state.
+	 *
+	 * @param id unique id of the state in its flow
+	 * @param tests condition expressions, in evaluation order
+	 * @param thenStateIds ids of the states to go to when the corresponding
+	 *        condition holds
+	 * @param elseStateId id of the state to go to when no condition holds, can
+	 *        be null
+	 * @throws WebFlowException when a condition expression is invalid
+	 */
+	public DecisionState(String id, String[] tests, String[] thenStateIds, String elseStateId) throws WebFlowException {
+		super(id, createTransitions(id, tests, thenStateIds, elseStateId));
+		this.conditions=new ModelCondition[tests.length];
+		this.thenTransitions=new Transition[tests.length];
+		for (int i=0; i<tests.length; i++) {
+			conditions[i]=ModelCondition.compile(tests[i]);
+			thenTransitions[i]=(Transition)getTransitions().get(i);
+		}
+		this.elseTransition=elseStateId==null ? null : (Transition)getTransitions().get(tests.length);
+	}
+
+	private static Transition[] createTransitions(String id, String[] tests, String[] thenStateIds, String elseStateId) {
+		if (tests.length!=thenStateIds.length) {
+			throw new IllegalArgumentException("each condition of decision state '" + id + "' needs a target state");
+		}
+		Transition[] transitions=new Transition[elseStateId==null ? tests.length : tests.length+1];
+		for (int i=0; i<tests.length; i++) {
+			transitions[i]=new Transition(tests[i], thenStateIds[i]);
+		}
+		if (elseStateId!=null) {
+			transitions[tests.length]=new Transition(ELSE_TRANSITION_NAME, elseStateId);
+		}
+		return transitions;
+	}
+
+	/**
+	 * <p>Returns the number of conditions of this state.
+	 */
+	public int getConditionCount() {
+		return conditions.length;
+	}
+
+	/**
+	 * <p>Returns the compiled condition at given index.
+	 */
+	public ModelCondition getCondition(int index) {
+		return conditions[index];
+	}
+
+	/**
+	 * <p>Returns the transition triggered when the condition at given
+	 * index holds.
+	 */
+	public Transition getThenTransition(int index) {
+		return thenTransitions[index];
+	}
+
+	/**
+	 * <p>Returns the transition triggered when no condition holds. This is
+	 * optional, so it can be null.
+	 */
+	public Transition getElseTransition() {
+		return elseTransition;
+	}
+
+}
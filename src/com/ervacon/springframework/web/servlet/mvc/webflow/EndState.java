@@ -0,0 +1,37 @@
+package com.ervacon.springframework.web.servlet.mvc.webflow;
+
+/*
+ * (c) Copyright Ervacon 2004-2005.
+ * All Rights Reserved.
+ */
+
+/**
+ * <p>An end state: a state that terminates the flow. End states have
+ * no transitions.
+ *
+ * @author Erwin Vervaet
+ */
+public class EndState extends State {
+
+	private final String view;
+
+	/**
+	 * <p>Create a new end state.
+	 *
+	 * @param id unique id of the state in its flow
+	 * @param view name of the view to render, can be null
+	 */
+	public EndState(String id, String view) {
+		super(id, null);
+		this.view=view;
+	}
+
+	/**
+	 * <p>Returns the name of the view that will be rendered. This is
+	 * optional, so it can be null.
+	 */
+	public String getView() {
+		return view;
+	}
+
+}
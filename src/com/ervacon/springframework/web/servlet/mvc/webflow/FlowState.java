@@ -0,0 +1,49 @@
+package com.ervacon.springframework.web.servlet.mvc.webflow;
+
+/*
+ * (c) Copyright Ervacon 2004-2005.
+ * All Rights Reserved.
+ */
+
+/**
+ * <p>A flow state: a state where another flow is executed as a sub flow.
+ * When the sub flow reaches an end state, the transition of this state
+ * named after that end state is triggered to continue the flow.
+ *
+ * @author Erwin Vervaet
+ */
+public class FlowState extends State {
+
+	private final String subFlowName;
+	private final String modelMapperName;
+
+	/**
+	 * <p>Create a new flow state.
+	 *
+	 * @param id unique id of the state in its flow
+	 * @param subFlowName bean name of the sub flow
+	 * @param modelMapperName bean name of the model mapper, can be null
+	 * @param transitions transitions leaving the state, can be null
+	 */
+	public FlowState(String id, String subFlowName, String modelMapperName, Transition[] transitions) {
+		super(id, transitions);
+		this.subFlowName=subFlowName;
+		this.modelMapperName=modelMapperName;
+	}
+
+	/**
+	 * <p>Returns the name of the sub flow bean.
+	 */
+	public String getSubFlowName() {
+		return subFlowName;
+	}
+
+	/**
+	 * <p>Returns the name of the model mapper bean. This is optional,
+	 * so it can be null.
+	 */
+	public String getModelMapperName() {
+		return modelMapperName;
+	}
+
+}
@@ -0,0 +1,175 @@
+package com.ervacon.springframework.web.servlet.mvc.webflow;
+
+/*
+ * (c) Copyright Ervacon 2004-2005.
+ * All Rights Reserved.
+ */
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>Container holding the memento stacks of all flows of an HTTP session,
+ * indexed by flow id. The {@link HttpSessionFlowStateStore} keeps a single
+ * container in the session, so flow state does not mix with other session
+ * attributes and is replicated as a single attribute.
+ * 
+ * <p>The container remembers the order in which memento stacks were saved.
+ * Since the web flow controller saves the memento stack of a flow each time
+ * the flow handled a request, this is the order of last access: the least
+ * recently used flow comes first.
+ * 
+ * <p>Objects of this class are serializable and thread safe. When the container
+ * is serialized, e.g. when the session is replicated or passivated, its memento
+ * stacks are serialized using a {@link FlowStateSerializer}, so large memento
+ * stacks are compressed.
+ * 
+ * @author Erwin Vervaet
+ */
+public class FlowStateContainer implements Serializable {
+	
+	private transient LinkedHashMap flows=new LinkedHashMap(); //flow id -> memento stack, least recently saved first
+	private transient FlowStateSerializer serializer=null;
+	
+	/**
+	 * <p>Returns the serializer used when this container is serialized,
+	 * possibly null.
+	 */
+	public FlowStateSerializer getSerializer() {
+		return serializer;
+	}
+	
+	/**
+	 * <p>Set the serializer used when this container is serialized. If there
+	 * is none, a {@link FlowStateSerializer} with default settings is used.
+	 * The serializer is not serialized with the container.
+	 */
+	public void setSerializer(FlowStateSerializer serializer) {
+		this.serializer=serializer;
+	}
+	
+	/**
+	 * <p>Returns the memento stack of the flow with given id, or null if
+	 * there is no such flow.
+	 */
+	public synchronized WebFlowMementoStack get(String flowId) {
+		return (WebFlowMementoStack)flows.get(flowId);
+	}
+	
+	/**
+	 * <p>Save the memento stack of the flow with given id, making it the
+	 * most recently used flow.
+	 */
+	public synchronized void put(String flowId, WebFlowMementoStack mementos) {
+		flows.remove(flowId);
+		flows.put(flowId, mementos);
+	}
+	
+	/**
+	 * <p>Remove the memento stack of the flow with given id.
+	 * 
+	 * @return the removed memento stack, or null if there was none
+	 */
+	public synchronized WebFlowMementoStack remove(String flowId) {
+		return (WebFlowMementoStack)flows.remove(flowId);
+	}
+	
+	/**
+	 * <p>Returns the number of flows in this container.
+	 */
+	public synchronized int size() {
+		return flows.size();
+	}
+	
+	/**
+	 * <p>Returns whether or not this container holds no flows.
+	 */
+	public synchronized boolean isEmpty() {
+		return flows.isEmpty();
+	}
+	
+	/**
+	 * <p>Returns a snapshot of the ids of the flows in this container.
+	 */
+	public synchronized Set getFlowIds() {
+		return new HashSet(flows.keySet());
+	}
+	
+	/**
+	 * <p>Returns a snapshot of the flow ids in this container, ordered from
+	 * least to most recently used.
+	 */
+	public synchronized List getFlowIdsByLastAccess() {
+		return new ArrayList(flows.keySet());
+	}
+	
+	/**
+	 * <p>Returns a snapshot of the memento stacks in this container, ordered
+	 * from least to most recently used.
+	 */
+	public synchronized List getMementoStacks() {
+		return new ArrayList(flows.values());
+	}
+	
+	/**
+	 * <p>Returns a snapshot of this container as a map from flow id to memento
+	 * stack, iterating from least to most recently used.
+	 */
+	public synchronized Map asMap() {
+		return new LinkedHashMap(flows);
+	}
+	
+	//serialization
+	
+	private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		FlowStateSerializer serializer=this.serializer!=null ? this.serializer : new FlowStateSerializer();
+		out.writeInt(flows.size());
+		for (Iterator it=flows.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry entry=(Map.Entry)it.next();
+			byte[] data;
+			try {
+				data=serializer.serialize((WebFlowMementoStack)entry.getValue());
+			}
+			catch (WebFlowException e) {
+				IOException ioe=new IOException(e.getMessage());
+				ioe.initCause(e);
+				throw ioe;
+			}
+			out.writeUTF((String)entry.getKey());
+			out.writeInt(data.length);
+			out.write(data);
+		}
+	}
+	
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		//reading does not depend on the serializer settings
+		FlowStateSerializer serializer=new FlowStateSerializer();
+		int size=in.readInt();
+		flows=new LinkedHashMap(Math.max(16, size*4/3+1));
+		for (int i=0; i<size; i++) {
+			String flowId=in.readUTF();
+			byte[] data=new byte[in.readInt()];
+			in.readFully(data);
+			try {
+				flows.put(flowId, serializer.deserialize(data));
+			}
+			catch (WebFlowException e) {
+				IOException ioe=new IOException(e.getMessage());
+				ioe.initCause(e);
+				throw ioe;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,350 @@
+package com.ervacon.springframework.web.servlet.mvc.webflow;
+
+/*
+ * (c) Copyright Ervacon 2004-2005.
+ * All Rights Reserved.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * <p>Serializes memento stacks to byte arrays for flow state stores that keep
+ * or ship flow state in serialized form, compressing large payloads. Flows
+ * that keep large objects, e.g. search results, in their model produce
+ * serialized memento stacks of hundreds of kilobytes, which compress well.
+ * Small memento stacks are not worth the CPU time and are left uncompressed.
+ *
+ * <p>The size of the serialized memento stack, known without any extra work
+ * once it has been serialized, decides whether or not it is compressed. A
+ * compressed payload that turns out not to be smaller is discarded. Each
+ * payload starts with a byte identifying its codec, so payloads written
+ * using other settings can always be read.
+ *
+ * <p>The serializer keeps statistics on the payloads it compressed: their
+ * size before and after compression and the time spent compressing and
+ * decompressing them.
+ *
+ * <p>Objects of this class are thread safe.
+ *
+ * <p><b>Exposed configuration properties</b><br>
+ * <table border="1">
+ *  <tr>
+ *      <td><b>name</b></td>
+ *      <td><b>default</b></td>
+ *      <td><b>description</b></td>
+ *  </tr>
+ *  <tr>
+ *      <td>threshold</td>
+ *      <td>4096</td>
+ *      <td>
+ *          The size, in bytes, from which serialized memento stacks are
+ *          compressed.
+ *      </td>
+ *  </tr>
+ *  <tr>
+ *      <td>codec</td>
+ *      <td>deflate</td>
+ *      <td>
+ *          The codec used to compress memento stacks: "deflate" (the zlib format)
+ *          or "none" to never compress.
+ *      </td>
+ *  </tr>
+ *  <tr>
+ *      <td>compressionLevel</td>
+ *      <td>1</td>
+ *      <td>
+ *          The deflate compression level, from 1 (fastest) to 9 (smallest).
+ *      </td>
+ *  </tr>
+ * </table>
+ *
+ * @see com.ervacon.springframework.web.servlet.mvc.webflow.MappedFileFlowStateStore
+ * @see com.ervacon.springframework.web.servlet.mvc.webflow.FlowStateContainer
+ *
+ * @author Erwin Vervaet
+ */
+public class FlowStateSerializer {
+
+	/**
+	 * <p>Codec that does not compress.
+	 */
+	public static final String CODEC_NONE="none";
+
+	/**
+	 * <p>Codec that compresses using the deflate algorithm, in the zlib format.
+	 */
+	public static final String CODEC_DEFLATE="deflate";
+
+	/**
+	 * <p>Default compression threshold: 4 KB.
+	 */
+	public static final int DEFAULT_THRESHOLD=4096;
+
+	//payload header
+	private static final byte UNCOMPRESSED=0;
+	private static final byte DEFLATED=1;
+
+	protected final Log log=LogFactory.getLog(FlowStateSerializer.class);
+
+	private volatile int threshold=DEFAULT_THRESHOLD;
+	private volatile String codec=CODEC_DEFLATE;
+	private volatile int compressionLevel=Deflater.BEST_SPEED;
+
+	//statistics
+	private final Object statisticsMonitor=new Object();
+	private long serializedCount=0;
+	private long compressedCount=0;
+	private long uncompressedBytes=0;
+	private long compressedBytes=0;
+	private long compressionTime=0;
+	private long decompressionTime=0;
+
+	/**
+	 * <p>Returns the size, in bytes, from which serialized memento stacks are
+	 * compressed.
+	 */
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * <p>Set the size, in bytes, from which serialized memento stacks are
+	 * compressed. Defaults to 4096.
+	 */
+	public void setThreshold(int threshold) {
+		this.threshold=threshold;
+	}
+
+	/**
+	 * <p>Returns the codec used to compress memento stacks.
+	 */
+	public String getCodec() {
+		return codec;
+	}
+
+	/**
+	 * <p>Set the codec used to compress memento stacks: {@link #CODEC_DEFLATE},
+	 * the default, or {@link #CODEC_NONE}.
+	 */
+	public void setCodec(String codec) {
+		if (!CODEC_DEFLATE.equals(codec) && !CODEC_NONE.equals(codec)) {
+			throw new IllegalArgumentException("unknown flow state codec '" + codec + "', use '" + CODEC_DEFLATE + "' or '" + CODEC_NONE + "'");
+		}
+		this.codec=codec;
+	}
+
+	/**
+	 * <p>Returns the deflate compression level.
+	 */
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+	/**
+	 * <p>Set the deflate compression level, from 1 (fastest) to 9 (smallest).
+	 * Defaults to 1.
+	 */
+	public void setCompressionLevel(int compressionLevel) {
+		if (compressionLevel<Deflater.BEST_SPEED || compressionLevel>Deflater.BEST_COMPRESSION) {
+			throw new IllegalArgumentException("the compression level should be between " + Deflater.BEST_SPEED + " and " + Deflater.BEST_COMPRESSION);
+		}
+		this.compressionLevel=compressionLevel;
+	}
+
+	/**
+	 * <p>Serialize given memento stack, compressing it if its serialized form
+	 * reaches the threshold.
+	 *
+	 * @throws WebFlowException when the memento stack cannot be serialized
+	 */
+	public byte[] serialize(WebFlowMementoStack mementos) throws WebFlowException {
+		byte[] data;
+		try {
+			ByteArrayOutputStream bytes=new ByteArrayOutputStream(512);
+			bytes.write(UNCOMPRESSED);
+			ObjectOutputStream out=new ObjectOutputStream(bytes);
+			out.writeObject(mementos);
+			out.close();
+			data=bytes.toByteArray();
+		}
+		catch (IOException e) {
+			throw new WebFlowException("cannot serialize flow state: " + e.getMessage(), e);
+		}
+
+		int size=data.length-1;
+		if (size<threshold || CODEC_NONE.equals(codec)) {
+			recordSerialization(size, size, 0, false);
+			return data;
+		}
+
+		long start=System.currentTimeMillis();
+		byte[] compressed=deflate(data);
+		long time=System.currentTimeMillis()-start;
+		if (compressed.length>=data.length) {
+			//incompressible, e.g. because the model holds compressed data
+			recordSerialization(size, size, time, false);
+			return data;
+		}
+		recordSerialization(size, compressed.length-1, time, true);
+		if (log.isDebugEnabled()) {
+			log.debug("Compressed memento stack of flow '" + mementos.getFlowName() + "' from " + size + " to " + (compressed.length-1) + " bytes in " + time + " ms");
+		}
+		return compressed;
+	}
+
+	/**
+	 * <p>Deserialize a memento stack serialized by a flow state serializer.
+	 *
+	 * @throws WebFlowException when the memento stack cannot be deserialized
+	 */
+	public WebFlowMementoStack deserialize(byte[] data) throws WebFlowException {
+		if (data.length==0) {
+			throw new WebFlowException("cannot deserialize flow state: no data");
+		}
+		long start=System.currentTimeMillis();
+		Inflater inflater=null;
+		try {
+			InputStream in=new ByteArrayInputStream(data, 1, data.length-1);
+			if (data[0]==DEFLATED) {
+				inflater=new Inflater();
+				in=new InflaterInputStream(in, inflater);
+			}
+			else if (data[0]!=UNCOMPRESSED) {
+				throw new WebFlowException("cannot deserialize flow state: unknown codec " + data[0]);
+			}
+			ObjectInputStream objectIn=new ObjectInputStream(in);
+			WebFlowMementoStack mementos=(WebFlowMementoStack)objectIn.readObject();
+			objectIn.close();
+			return mementos;
+		}
+		catch (IOException e) {
+			throw new WebFlowException("cannot deserialize flow state: " + e.getMessage(), e);
+		}
+		catch (ClassNotFoundException e) {
+			throw new WebFlowException("cannot deserialize flow state: " + e.getMessage(), e);
+		}
+		finally {
+			if (inflater!=null) {
+				inflater.end();
+				synchronized (statisticsMonitor) {
+					decompressionTime+=System.currentTimeMillis()-start;
+				}
+			}
+		}
+	}
+
+	/**
+	 * <p>Compress the serialized memento stack following the header byte.
+	 */
+	private byte[] deflate(byte[] data) {
+		Deflater deflater=new Deflater(compressionLevel);
+		try {
+			ByteArrayOutputStream bytes=new ByteArrayOutputStream(data.length/4);
+			bytes.write(DEFLATED);
+			DeflaterOutputStream out=new DeflaterOutputStream(bytes, deflater);
+			out.write(data, 1, data.length-1);
+			out.close();
+			return bytes.toByteArray();
+		}
+		catch (IOException e) {
+			//cannot happen with a byte array
+			throw new WebFlowException("cannot compress flow state: " + e.getMessage(), e);
+		}
+		finally {
+			deflater.end();
+		}
+	}
+
+	private void recordSerialization(int size, int storedSize, long time, boolean compressed) {
+		synchronized (statisticsMonitor) {
+			serializedCount++;
+			compressionTime+=time;
+			if (compressed) {
+				compressedCount++;
+				uncompressedBytes+=size;
+				compressedBytes+=storedSize;
+			}
+		}
+	}
+
+	/**
+	 * <p>Returns the number of memento stacks serialized.
+	 */
+	public long getSerializedCount() {
+		synchronized (statisticsMonitor) {
+			return serializedCount;
+		}
+	}
+
+	/**
+	 * <p>Returns the number of serialized memento stacks that were compressed.
+	 */
+	public long getCompressedCount() {
+		synchronized (statisticsMonitor) {
+			return compressedCount;
+		}
+	}
+
+	/**
+	 * <p>Returns the total size, in bytes, of the compressed memento stacks
+	 * before compression.
+	 */
+	public long getUncompressedBytes() {
+		synchronized (statisticsMonitor) {
+			return uncompressedBytes;
+		}
+	}
+
+	/**
+	 * <p>Returns the total size, in bytes, of the compressed memento stacks
+	 * after compression.
+	 */
+	public long getCompressedBytes() {
+		synchronized (statisticsMonitor) {
+			return compressedBytes;
+		}
+	}
+
+	/**
+	 * <p>Returns the average compression ratio of the compressed memento stacks:
+	 * their size after compression divided by their size before compression.
+	 */
+	public double getCompressionRatio() {
+		synchronized (statisticsMonitor) {
+			return uncompressedBytes==0 ? 1d : ((double)compressedBytes) / uncompressedBytes;
+		}
+	}
+
+	/**
+	 * <p>Returns the total time spent compressing memento stacks, in
+	 * milliseconds, including compressions that were discarded.
+	 */
+	public long getCompressionTime() {
+		synchronized (statisticsMonitor) {
+			return compressionTime;
+		}
+	}
+
+	/**
+	 * <p>Returns the total time spent deserializing compressed memento stacks,
+	 * in milliseconds.
+	 */
+	public long getDecompressionTime() {
+		synchronized (statisticsMonitor) {
+			return decompressionTime;
+		}
+	}
+
+}
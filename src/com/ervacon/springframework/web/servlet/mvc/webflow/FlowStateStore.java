@@ -0,0 +1,97 @@
+package com.ervacon.springframework.web.servlet.mvc.webflow;
+
+/*
+ * (c) Copyright Ervacon 2004-2005.
+ * All Rights Reserved.
+ */
+
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * <p>Interface for strategy objects that store the state of active web flows,
+ * that is their web flow memento stacks, on behalf of the web flow controller.
+ * A store keeps the flows of each client apart: a flow id only identifies a
+ * flow together with the client sending the request.
+ * 
+ * <p>Implementations should be thread safe, since a single store is used to
+ * handle all requests.
+ * 
+ * @see com.ervacon.springframework.web.servlet.mvc.webflow.WebFlowController
+ * @see com.ervacon.springframework.web.servlet.mvc.webflow.InMemoryFlowStateStore
+ * @see com.ervacon.springframework.web.servlet.mvc.webflow.HttpSessionFlowStateStore
+ * 
+ * @author Erwin Vervaet
+ */
+public interface FlowStateStore {
+	
+	/**
+	 * <p>Load the memento stack of the flow with given id, started by the client
+	 * sending given request.
+	 * 
+	 * @param request current HTTP request
+	 * @param flowId id of the flow
+	 * @return the memento stack or null if there is no such flow
+	 */
+	public WebFlowMementoStack load(HttpServletRequest request, String flowId);
+	
+	/**
+	 * <p>Save the memento stack of the flow with given id on behalf of the client
+	 * sending given request.
+	 * 
+	 * @param request current HTTP request
+	 * @param flowId id of the flow
+	 * @param mementos the memento stack to save
+	 */
+	public void save(HttpServletRequest request, String flowId, WebFlowMementoStack mementos);
+	
+	/**
+	 * <p>Delete the memento stack of the flow with given id, started by the client
+	 * sending given request.
+	 * 
+	 * @param request current HTTP request
+	 * @param flowId id of the flow
+	 */
+	public void delete(HttpServletRequest request, String flowId);
+	
+	/**
+	 * <p>Returns the ids of the flows stored on behalf of the client sending
+	 * given request. The returned set is a snapshot: it is not affected by
+	 * later changes to the store.
+	 * 
+	 * @param request current HTTP request
+	 * @return a set of flow ids, possibly empty
+	 */
+	public Set getFlowIds(HttpServletRequest request);
+	
+	/**
+	 * <p>Returns whether or not this store needs an HTTP session to keep flow
+	 * state on behalf of a client. The web flow controller only requires a
+	 * session when it does.
+	 */
+	public boolean requiresSession();
+	
+	/**
+	 * <p>Returns whether or not this store removes expired flows by itself.
+	 * The {@link WebFlowCleanupFilter} leaves such a store alone, since it
+	 * would have to load each flow of the client to check whether or not it
+	 * expired.
+	 */
+	public boolean expiresFlows();
+	
+	/**
+	 * <p>Returns the value identifying the flow with given id exposed to the
+	 * client, which the client submits in its next request to the flow and
+	 * which is then passed to the other methods of this store as flow id.
+	 * Stores that keep flow state on the server typically return the flow id
+	 * itself.
+	 * 
+	 * @param request current HTTP request
+	 * @param flowId id of the flow
+	 * @param mementos the memento stack of the flow, as it was last saved
+	 * @return the value exposed to the client
+	 */
+	public String getExposedFlowId(HttpServletRequest request, String flowId, WebFlowMementoStack mementos);
+
+}
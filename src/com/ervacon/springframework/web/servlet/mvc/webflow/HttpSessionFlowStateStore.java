@@ -0,0 +1,135 @@
+package com.ervacon.springframework.web.servlet.mvc.webflow;
+
+/*
+ * (c) Copyright Ervacon 2004-2005.
+ * All Rights Reserved.
+ */
+
+import java.util.Collections;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+/**
+ * <p>Flow state store that keeps memento stacks in the HTTP session. All flows
+ * of a session are held by a single {@link FlowStateContainer}, stored in the
+ * {@link #CONTAINER_ATTRIBUTE} session attribute, so they don't mix with other
+ * session attributes. Use this store when flow state should be replicated
+ * together with the HTTP session: the container is set again each time a flow
+ * is saved, so the servlet container notices the change. When the session is
+ * serialized, large memento stacks are compressed by the configured
+ * {@link FlowStateSerializer}.
+ * 
+ * <p>Expired flows are not removed by this store: use the
+ * {@link WebFlowCleanupFilter} to do that.
+ * 
+ * <p><b>Exposed configuration properties</b><br>
+ * <table border="1">
+ *  <tr>
+ *      <td><b>name</b></td>
+ *      <td><b>default</b></td>
+ *      <td><b>description</b></td>
+ *  </tr>
+ *  <tr>
+ *      <td>serializer</td>
+ *      <td>a default {@link FlowStateSerializer}</td>
+ *      <td>
+ *          Serializes the memento stacks when the session is serialized,
+ *          compressing large ones.
+ *      </td>
+ *  </tr>
+ * </table>
+ * 
+ * @author Erwin Vervaet
+ */
+public class HttpSessionFlowStateStore implements FlowStateStore {
+	
+	/**
+	 * <p>Name of the session attribute holding the flow state container.
+	 */
+	public static final String CONTAINER_ATTRIBUTE=HttpSessionFlowStateStore.class.getName() + ".flows";
+	
+	private FlowStateSerializer serializer=new FlowStateSerializer();
+	
+	/**
+	 * <p>Returns the serializer of the memento stacks.
+	 */
+	public FlowStateSerializer getSerializer() {
+		return serializer;
+	}
+	
+	/**
+	 * <p>Set the serializer of the memento stacks, used when the session is
+	 * serialized. Defaults to a {@link FlowStateSerializer} using its default
+	 * settings.
+	 */
+	public void setSerializer(FlowStateSerializer serializer) {
+		this.serializer=serializer;
+	}
+
+	public WebFlowMementoStack load(HttpServletRequest request, String flowId) {
+		FlowStateContainer container=getContainer(request.getSession(false), false);
+		return container==null ? null : container.get(flowId);
+	}
+
+	public void save(HttpServletRequest request, String flowId, WebFlowMementoStack mementos) {
+		HttpSession session=request.getSession();
+		FlowStateContainer container=getContainer(session, true);
+		container.put(flowId, mementos);
+		container.setSerializer(serializer);
+		//signal the change, e.g. to replicate the session
+		session.setAttribute(CONTAINER_ATTRIBUTE, container);
+	}
+
+	public void delete(HttpServletRequest request, String flowId) {
+		HttpSession session=request.getSession(false);
+		FlowStateContainer container=getContainer(session, false);
+		if (container!=null && container.remove(flowId)!=null) {
+			container.setSerializer(serializer);
+			session.setAttribute(CONTAINER_ATTRIBUTE, container);
+		}
+	}
+
+	public Set getFlowIds(HttpServletRequest request) {
+		FlowStateContainer container=getContainer(request.getSession(false), false);
+		return container==null ? Collections.EMPTY_SET : container.getFlowIds();
+	}
+
+	public boolean requiresSession() {
+		return true;
+	}
+
+	public boolean expiresFlows() {
+		return false;
+	}
+
+	public String getExposedFlowId(HttpServletRequest request, String flowId, WebFlowMementoStack mementos) {
+		return flowId;
+	}
+	
+	/**
+	 * <p>Returns the flow state container of given session.
+	 * 
+	 * @param session the HTTP session, possibly null
+	 * @param create whether or not to create the container if there is none
+	 * @return the container, or null if there is none and create is false
+	 */
+	public static FlowStateContainer getContainer(HttpSession session, boolean create) {
+		if (session==null) {
+			return null;
+		}
+		FlowStateContainer container=(FlowStateContainer)session.getAttribute(CONTAINER_ATTRIBUTE);
+		if (container==null && create) {
+			synchronized (session) {
+				container=(FlowStateContainer)session.getAttribute(CONTAINER_ATTRIBUTE);
+				if (container==null) {
+					container=new FlowStateContainer();
+					session.setAttribute(CONTAINER_ATTRIBUTE, container);
+				}
+			}
+		}
+		return container;
+	}
+
+}
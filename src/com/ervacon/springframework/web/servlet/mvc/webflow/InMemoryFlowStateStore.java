@@ -0,0 +1,263 @@
+package com.ervacon.springframework.web.servlet.mvc.webflow;
+
+/*
+ * (c) Copyright Ervacon 2004-2005.
+ * All Rights Reserved.
+ */
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * <p>Flow state store that keeps memento stacks in memory, keyed by HTTP
+ * session id and flow id. Flow state does not depend on the session
+ * implementation of the servlet container: storing flow state involves no
+ * session attribute updates, session locking or session replication.
+ * 
+ * <p>This store is opt-in: the web flow controller uses a
+ * {@link HttpSessionFlowStateStore} by default. Define this store as a bean
+ * and set it as the "flowStateStore" of the controllers that should use it.
+ * Controllers sharing the bean share their flows.
+ * 
+ * <p>The store is divided in a number of <i>stripes</i>, each guarded by its
+ * own lock. All flows of a session live in the same stripe, which is chosen
+ * using the hash code of the session id, so requests of different clients
+ * rarely contend for the same lock.
+ * 
+ * <p>Flows that have not handled a request for longer than the timeout expire.
+ * Expired flows are no longer returned and are removed from a stripe when it
+ * is accessed and its expired flows have not been removed for a while, so no
+ * cleanup filter or background thread is needed. Flows of invalidated sessions
+ * expire like any other flow.
+ * 
+ * <p>Since flow state is kept in memory, it is lost when the application is
+ * restarted and it is not replicated in a cluster. Use the
+ * {@link HttpSessionFlowStateStore} if that is a problem.
+ * 
+ * <p><b>Exposed configuration properties</b><br>
+ * <table border="1">
+ *  <tr>
+ *      <td><b>name</b></td>
+ *      <td><b>default</b></td>
+ *      <td><b>description</b></td>
+ *  </tr>
+ *  <tr>
+ *      <td>timeout</td>
+ *      <td>10</td>
+ *      <td>
+ *          The flow timeout in <b>minutes</b>. If a flow is inactive for more
+ *          than this period of time it will expire and be removed from the store.
+ *      </td>
+ *  </tr>
+ * </table>
+ * 
+ * @author Erwin Vervaet
+ */
+public class InMemoryFlowStateStore implements FlowStateStore {
+	
+	/**
+	 * <p>Default flow timeout: 10 minutes.
+	 */
+	public static final int DEFAULT_TIMEOUT=10;
+	
+	/**
+	 * <p>Default number of stripes: 16.
+	 */
+	public static final int DEFAULT_STRIPE_COUNT=16;
+	
+	protected final Log log=LogFactory.getLog(InMemoryFlowStateStore.class);
+	
+	private final Stripe[] stripes;
+	private volatile int timeout=DEFAULT_TIMEOUT;
+	
+	/**
+	 * <p>Create a new store with the default number of stripes.
+	 */
+	public InMemoryFlowStateStore() {
+		this(DEFAULT_STRIPE_COUNT);
+	}
+	
+	/**
+	 * <p>Create a new store with given number of stripes. More stripes
+	 * mean less lock contention between concurrent requests.
+	 */
+	public InMemoryFlowStateStore(int stripeCount) {
+		if (stripeCount<1) {
+			throw new IllegalArgumentException("a flow state store needs at least one stripe");
+		}
+		stripes=new Stripe[stripeCount];
+		for (int i=0; i<stripes.length; i++) {
+			stripes[i]=new Stripe();
+		}
+	}
+	
+	/**
+	 * <p>Get the flow timeout, expressed in minutes.
+	 */
+	public int getTimeout() {
+		return timeout;
+	}
+	
+	/**
+	 * <p>Set the flow timeout, expressed in minutes. Defaults to 10.
+	 */
+	public void setTimeout(int timeout) {
+		this.timeout=timeout;
+	}
+	
+	public WebFlowMementoStack load(HttpServletRequest request, String flowId) {
+		HttpSession session=request.getSession(false);
+		if (session==null) {
+			return null;
+		}
+		long now=System.currentTimeMillis();
+		Stripe stripe=getStripe(session.getId());
+		synchronized (stripe) {
+			removeExpiredIfDue(stripe, now);
+			Map flows=(Map)stripe.sessions.get(session.getId());
+			if (flows==null) {
+				return null;
+			}
+			WebFlowMementoStack mementos=(WebFlowMementoStack)flows.get(flowId);
+			if (mementos!=null && hasExpired(mementos, now)) {
+				remove(stripe, session.getId(), flows, flowId);
+				return null;
+			}
+			return mementos;
+		}
+	}
+	
+	public void save(HttpServletRequest request, String flowId, WebFlowMementoStack mementos) {
+		String sessionId=request.getSession().getId();
+		Stripe stripe=getStripe(sessionId);
+		synchronized (stripe) {
+			removeExpiredIfDue(stripe, System.currentTimeMillis());
+			Map flows=(Map)stripe.sessions.get(sessionId);
+			if (flows==null) {
+				flows=new HashMap();
+				stripe.sessions.put(sessionId, flows);
+			}
+			flows.put(flowId, mementos);
+		}
+	}
+	
+	public void delete(HttpServletRequest request, String flowId) {
+		HttpSession session=request.getSession(false);
+		if (session==null) {
+			return;
+		}
+		Stripe stripe=getStripe(session.getId());
+		synchronized (stripe) {
+			Map flows=(Map)stripe.sessions.get(session.getId());
+			if (flows!=null) {
+				remove(stripe, session.getId(), flows, flowId);
+			}
+		}
+	}
+	
+	public Set getFlowIds(HttpServletRequest request) {
+		HttpSession session=request.getSession(false);
+		if (session==null) {
+			return Collections.EMPTY_SET;
+		}
+		Stripe stripe=getStripe(session.getId());
+		synchronized (stripe) {
+			Map flows=(Map)stripe.sessions.get(session.getId());
+			return flows==null ? Collections.EMPTY_SET : new HashSet(flows.keySet());
+		}
+	}
+
+	public boolean requiresSession() {
+		return true;
+	}
+
+	public boolean expiresFlows() {
+		return true;
+	}
+
+	public String getExposedFlowId(HttpServletRequest request, String flowId, WebFlowMementoStack mementos) {
+		return flowId;
+	}
+	
+	/**
+	 * <p>Returns the number of flows in this store, including expired flows
+	 * that have not yet been removed.
+	 */
+	public int size() {
+		int size=0;
+		for (int i=0; i<stripes.length; i++) {
+			synchronized (stripes[i]) {
+				for (Iterator it=stripes[i].sessions.values().iterator(); it.hasNext(); ) {
+					size+=((Map)it.next()).size();
+				}
+			}
+		}
+		return size;
+	}
+	
+	private Stripe getStripe(String sessionId) {
+		//spread the hash bits, session ids often share a long prefix
+		int hash=sessionId.hashCode();
+		hash^=(hash>>>20)^(hash>>>12);
+		hash^=(hash>>>7)^(hash>>>4);
+		return stripes[(hash & 0x7fffffff)%stripes.length];
+	}
+	
+	private void remove(Stripe stripe, String sessionId, Map flows, String flowId) {
+		flows.remove(flowId);
+		if (flows.isEmpty()) {
+			stripe.sessions.remove(sessionId);
+		}
+	}
+	
+	private boolean hasExpired(WebFlowMementoStack mementos, long now) {
+		return (now-mementos.getLastAccessedTime()) > (timeout*60000L);
+	}
+	
+	/**
+	 * <p>Remove the expired flows of given stripe, if that has not been done
+	 * during the last quarter of the timeout period. Call with the stripe lock
+	 * held.
+	 */
+	private void removeExpiredIfDue(Stripe stripe, long now) {
+		if (now-stripe.lastExpiryCheck < timeout*15000L) {
+			return;
+		}
+		stripe.lastExpiryCheck=now;
+		for (Iterator sessions=stripe.sessions.values().iterator(); sessions.hasNext(); ) {
+			Map flows=(Map)sessions.next();
+			for (Iterator it=flows.entrySet().iterator(); it.hasNext(); ) {
+				Map.Entry entry=(Map.Entry)it.next();
+				if (hasExpired((WebFlowMementoStack)entry.getValue(), now)) {
+					if (log.isInfoEnabled()) {
+						log.info("Flow '" + ((WebFlowMementoStack)entry.getValue()).getFlowName() + "' with id '" + entry.getKey() + "' has expired and will be removed");
+					}
+					it.remove();
+				}
+			}
+			if (flows.isEmpty()) {
+				sessions.remove();
+			}
+		}
+	}
+	
+	/**
+	 * <p>A part of the store: maps session ids to maps of flow ids and
+	 * memento stacks. Guarded by its own monitor.
+	 */
+	private static class Stripe {
+		private final Map sessions=new HashMap();
+		private long lastExpiryCheck=System.currentTimeMillis();
+	}
+
+}
@@ -0,0 +1,340 @@
+package com.ervacon.springframework.web.servlet.mvc.webflow;
+
+/*
+ * (c) Copyright Ervacon 2004-2005.
+ * All Rights Reserved.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.jdom.Document;
+import org.jdom.Element;
+import org.jdom.JDOMException;
+import org.jdom.Text;
+import org.jdom.input.SAXBuilder;
+
+/**
+ * <p>Flow definition reader that uses JDOM to parse the XML flow definition,
+ * optionally validating it against the web flow DTD, and then compiles the
+ * resulting document. This is the way flow definitions were read before the
+ * {@link SaxWebFlowDefinitionReader} was introduced. It builds a complete JDOM
+ * tree for each definition, so it is slower and uses more memory.
+ *
+ * <p>When validation is switched off, the structural rules of the DTD are
+ * checked in code instead, just like the {@link SaxWebFlowDefinitionReader}
+ * does, so invalid definitions are still rejected with a WebFlowException.
+ *
+ * <p>The JDOM builders, and the parsers they hold on to, are pooled and reused.
+ * Share a single reader between flows to share its builders.
+ *
+ * <p><b>Exposed configuration properties</b><br>
+ * <table border="1">
+ *  <tr>
+ *      <td><b>name</b></td>
+ *      <td><b>default</b></td>
+ *      <td><b>description</b></td>
+ *  </tr>
+ *  <tr>
+ *      <td>validating</td>
+ *      <td>true</td>
+ *      <td>Whether or not to validate flow definitions against the web flow DTD.</td>
+ *  </tr>
+ * </table>
+ *
+ * @author Erwin Vervaet
+ */
+public class JdomWebFlowDefinitionReader implements WebFlowDefinitionReader {
+
+	/**
+	 * <p>Maximum number of idle builders kept for reuse.
+	 */
+	private static final int MAX_POOLED_BUILDERS=Runtime.getRuntime().availableProcessors();
+
+	private boolean validating=true;
+	private final LinkedList builderPool=new LinkedList();
+
+	/**
+	 * <p>Returns whether or not flow definitions are validated against the
+	 * web flow DTD.
+	 */
+	public boolean isValidating() {
+		return validating;
+	}
+
+	/**
+	 * <p>Set whether or not flow definitions are validated against the
+	 * web flow DTD. Defaults to true.
+	 */
+	public void setValidating(boolean validating) {
+		this.validating=validating;
+	}
+
+	public WebFlowDefinition read(InputStream source) throws IOException, WebFlowException {
+		try {
+			SAXBuilder builder=obtainBuilder();
+			Document webFlowDoc=builder.build(source);
+			releaseBuilder(builder); //only builders that completed successfully are reused
+			if (!isValidating()) {
+				checkStructure(webFlowDoc.getRootElement());
+			}
+			return compile(webFlowDoc);
+		}
+		catch (JDOMException e) {
+			throw new WebFlowException("problem parsing web flow definition: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * <p>Take a builder from the pool, or create a new one if none is available.
+	 */
+	private SAXBuilder obtainBuilder() {
+		SAXBuilder builder=null;
+		synchronized (builderPool) {
+			if (!builderPool.isEmpty()) {
+				builder=(SAXBuilder)builderPool.removeFirst();
+			}
+		}
+		if (builder==null) {
+			builder=new SAXBuilder();
+			builder.setReuseParser(true);
+			builder.setEntityResolver(new WebFlowDtdResolver());
+		}
+		builder.setValidation(isValidating());
+		return builder;
+	}
+
+	/**
+	 * <p>Return given builder to the pool, unless the pool is full.
+	 */
+	private void releaseBuilder(SAXBuilder builder) {
+		synchronized (builderPool) {
+			if (builderPool.size()<MAX_POOLED_BUILDERS) {
+				builderPool.addFirst(builder);
+			}
+		}
+	}
+
+	/**
+	 * <p>Check the structure defined by the web flow DTD, which is not checked
+	 * by the XML parser when validation is switched off.
+	 *
+	 * @param root the root element of the definition document
+	 * @throws WebFlowException when the document does not conform to the DTD
+	 */
+	protected void checkStructure(Element root) throws WebFlowException {
+		if (!"web-flow".equals(root.getName())) {
+			throw new WebFlowException("root element should be 'web-flow', not '" + root.getName() + "'");
+		}
+		String name=required(root, "name");
+		checkNoText(root);
+		List defs=root.getChildren();
+		if (defs.isEmpty() || !"start-state".equals(((Element)defs.get(0)).getName())) {
+			throw new WebFlowException("'start-state' should be the first element of web flow '" + name + "'");
+		}
+		Element startStateDef=(Element)defs.get(0);
+		required(startStateDef, "state");
+		checkChildren(startStateDef, new String[0]);
+		int i=1;
+		if (i<defs.size() && "global-transitions".equals(((Element)defs.get(i)).getName())) {
+			Element globalTransitionsDef=(Element)defs.get(i++);
+			if (globalTransitionsDef.getChildren().isEmpty()) {
+				throw new WebFlowException("'global-transitions' should contain at least one transition");
+			}
+			checkChildren(globalTransitionsDef, new String[] { "transition" });
+		}
+		if (i==defs.size()) {
+			throw new WebFlowException("web flow '" + name + "' should have at least one state besides its start state");
+		}
+		for (; i<defs.size(); i++) {
+			checkState((Element)defs.get(i));
+		}
+	}
+
+	/**
+	 * <p>Check the structure of given state definition element.
+	 */
+	private void checkState(Element stateDef) throws WebFlowException {
+		String type=stateDef.getName();
+		if ("start-state".equals(type)) {
+			throw new WebFlowException("'start-state' should be the first and only start state of the flow");
+		}
+		else if ("global-transitions".equals(type)) {
+			throw new WebFlowException("'global-transitions' should directly follow the start state and appear only once");
+		}
+		String id=null;
+		if ("view-state".equals(type) || "action-state".equals(type) || "decision-state".equals(type) || "flow-state".equals(type) || "end-state".equals(type)) {
+			id=required(stateDef, "id");
+		}
+		if ("view-state".equals(type)) {
+			checkChildren(stateDef, new String[] { "transition" });
+		}
+		else if ("action-state".equals(type)) {
+			checkChildren(stateDef, new String[] { "action", "transition" });
+			if (stateDef.getChildren("action").isEmpty() || stateDef.getChildren("transition").isEmpty()) {
+				throw new WebFlowException("action state '" + id + "' should have at least one action and one transition");
+			}
+		}
+		else if ("decision-state".equals(type)) {
+			if (stateDef.getChildren().isEmpty()) {
+				throw new WebFlowException("decision state '" + id + "' should have at least one 'if' element");
+			}
+			checkChildren(stateDef, new String[] { "if" });
+		}
+		else if ("flow-state".equals(type)) {
+			required(stateDef, "flow");
+			checkChildren(stateDef, new String[] { "transition" });
+		}
+		else if ("end-state".equals(type)) {
+			checkChildren(stateDef, new String[0]);
+		}
+		else {
+			throw new WebFlowException("unknown element '" + type + "'");
+		}
+	}
+
+	/**
+	 * <p>Check that the child elements of given element are of the allowed
+	 * types, in the given order, and have their required attributes.
+	 */
+	private void checkChildren(Element element, String[] allowedNames) throws WebFlowException {
+		List children=element.getChildren();
+		int allowed=0;
+		for (int i=0; i<children.size(); i++) {
+			Element child=(Element)children.get(i);
+			while (allowed<allowedNames.length && !allowedNames[allowed].equals(child.getName())) {
+				allowed++;
+			}
+			if (allowed==allowedNames.length) {
+				throw new WebFlowException("element '" + child.getName() + "' is not allowed here, in element '" + element.getName() + "'");
+			}
+			if ("transition".equals(child.getName())) {
+				required(child, "name");
+				required(child, "to");
+			}
+			else if ("action".equals(child.getName())) {
+				required(child, "name");
+				required(child, "bean");
+			}
+			else if ("if".equals(child.getName())) {
+				required(child, "test");
+				required(child, "then");
+			}
+			checkChildren(child, new String[0]);
+		}
+	}
+
+	/**
+	 * <p>Check that given element and its descendants contain no text.
+	 */
+	private void checkNoText(Element element) throws WebFlowException {
+		List content=element.getContent();
+		for (int i=0; i<content.size(); i++) {
+			Object node=content.get(i);
+			if (node instanceof Text && ((Text)node).getTextTrim().length()>0) {
+				throw new WebFlowException("text is not allowed in web flow definitions");
+			}
+			else if (node instanceof Element) {
+				checkNoText((Element)node);
+			}
+		}
+	}
+
+	private String required(Element element, String attribute) throws WebFlowException {
+		String value=element.getAttributeValue(attribute);
+		if (value==null) {
+			throw new WebFlowException("element '" + element.getName() + "' should have a '" + attribute + "' attribute");
+		}
+		return value;
+	}
+
+	/**
+	 * <p>Compile given web flow definition document into an executable flow
+	 * definition. The document is no longer needed once this method returns.
+	 *
+	 * @param webFlowDoc the definition document, conforming to the web flow DTD
+	 * @return the compiled flow definition
+	 * @throws WebFlowException when the document does not describe a valid flow
+	 */
+	protected WebFlowDefinition compile(Document webFlowDoc) throws WebFlowException {
+		Element root=webFlowDoc.getRootElement();
+		List stateDefs=root.getChildren();
+		List states=new ArrayList(stateDefs.size());
+		for (int i=0; i<stateDefs.size(); i++) {
+			Element stateDef=(Element)stateDefs.get(i);
+			if (!"start-state".equals(stateDef.getName()) && !"global-transitions".equals(stateDef.getName())) {
+				states.add(compileState(stateDef));
+			}
+		}
+		Element globalTransitionsDef=root.getChild("global-transitions");
+		return new WebFlowDefinition(
+				root.getAttributeValue("name"),
+				root.getChild("start-state").getAttributeValue("state"),
+				(State[])states.toArray(new State[states.size()]),
+				globalTransitionsDef==null ? null : compileTransitions(globalTransitionsDef));
+	}
+
+	/**
+	 * <p>Compile given state definition element into a state object.
+	 */
+	protected State compileState(Element stateDef) throws WebFlowException {
+		String id=stateDef.getAttributeValue("id");
+		if ("view-state".equals(stateDef.getName())) {
+			return new ViewState(id, stateDef.getAttributeValue("view"), compileTransitions(stateDef));
+		}
+		else if ("action-state".equals(stateDef.getName())) {
+			List actionDefs=stateDef.getChildren("action");
+			String[] actionNames=new String[actionDefs.size()];
+			String[] actionBeanNames=new String[actionDefs.size()];
+			for (int i=0; i<actionDefs.size(); i++) {
+				Element actionDef=(Element)actionDefs.get(i);
+				actionNames[i]=actionDef.getAttributeValue("name");
+				actionBeanNames[i]=actionDef.getAttributeValue("bean");
+			}
+			return new ActionState(id, actionNames, actionBeanNames, compileTransitions(stateDef));
+		}
+		else if ("decision-state".equals(stateDef.getName())) {
+			List ifDefs=stateDef.getChildren("if");
+			String[] tests=new String[ifDefs.size()];
+			String[] thenStateIds=new String[ifDefs.size()];
+			String elseStateId=null;
+			for (int i=0; i<ifDefs.size(); i++) {
+				Element ifDef=(Element)ifDefs.get(i);
+				if (elseStateId!=null) {
+					throw new WebFlowException("only the last 'if' element of decision state '" + id + "' can have an 'else' attribute");
+				}
+				tests[i]=ifDef.getAttributeValue("test");
+				thenStateIds[i]=ifDef.getAttributeValue("then");
+				elseStateId=ifDef.getAttributeValue("else");
+			}
+			return new DecisionState(id, tests, thenStateIds, elseStateId);
+		}
+		else if ("flow-state".equals(stateDef.getName())) {
+			return new FlowState(id, stateDef.getAttributeValue("flow"), stateDef.getAttributeValue("model-mapper"), compileTransitions(stateDef));
+		}
+		else if ("end-state".equals(stateDef.getName())) {
+			return new EndState(id, stateDef.getAttributeValue("view"));
+		}
+		else {
+			throw new WebFlowException("unknown state type: " + stateDef.getName());
+		}
+	}
+
+	/**
+	 * <p>Compile the transition definitions of given state definition element,
+	 * or of the global transitions element.
+	 */
+	protected Transition[] compileTransitions(Element stateDef) {
+		List transitionDefs=stateDef.getChildren("transition");
+		Transition[] transitions=new Transition[transitionDefs.size()];
+		for (int i=0; i<transitions.length; i++) {
+			Element transitionDef=(Element)transitionDefs.get(i);
+			transitions[i]=new Transition(transitionDef.getAttributeValue("name"), transitionDef.getAttributeValue("to"));
+		}
+		return transitions;
+	}
+
+}
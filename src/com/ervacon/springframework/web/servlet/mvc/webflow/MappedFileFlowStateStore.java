@@ -0,0 +1,516 @@
+package com.ervacon.springframework.web.servlet.mvc.webflow;
+
+/*
+ * (c) Copyright Ervacon 2004-2005.
+ * All Rights Reserved.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * <p>Flow state store that keeps serialized memento stacks outside the Java
+ * heap, in a memory-mapped file. Only a small index entry per flow, mapping
+ * its session id and flow id to its location in the file, stays on the heap,
+ * so the number of active flows hardly affects garbage collection.
+ *
+ * <p>The file is divided in fixed-size slots. A memento stack is stored in a
+ * chain of slots, taken from a free list, so the file does not fragment and
+ * never needs to be compacted. Memento stacks are deserialized when a flow
+ * handles a request and written back when the request has been handled. During
+ * the request, the flow is loaded from the request instead of the file, so
+ * actions see the same memento stack as the controller. Large memento stacks
+ * are compressed, taking fewer slots: see {@link FlowStateSerializer}.
+ *
+ * <p>The file is scratch space: its contents are not meaningful after a
+ * restart. Flows that have not handled a request for longer than the timeout
+ * expire and their slots are reused. Live flows are never evicted: when the
+ * file is full, even after removing expired flows, saving a flow fails with a
+ * WebFlowException and the previously saved state of the flow is kept. Size
+ * the file for the expected number of active flows.
+ *
+ * <p>The store has to be initialized using {@link #afterPropertiesSet()},
+ * which Spring does automatically when the store is defined as a bean, and
+ * should be closed using {@link #destroy()}.
+ *
+ * <p><b>Exposed configuration properties</b><br>
+ * <table border="1">
+ *  <tr>
+ *      <td><b>name</b></td>
+ *      <td><b>default</b></td>
+ *      <td><b>description</b></td>
+ *  </tr>
+ *  <tr>
+ *      <td>file</td>
+ *      <td>a temporary file</td>
+ *      <td>The file holding the memento stacks.</td>
+ *  </tr>
+ *  <tr>
+ *      <td>capacity</td>
+ *      <td>64 MB</td>
+ *      <td>The size of the file, in bytes.</td>
+ *  </tr>
+ *  <tr>
+ *      <td>slotSize</td>
+ *      <td>512</td>
+ *      <td>
+ *          The size of a slot, in bytes. Smaller slots waste less space,
+ *          larger slots make memento stacks faster to read and write.
+ *      </td>
+ *  </tr>
+ *  <tr>
+ *      <td>timeout</td>
+ *      <td>10</td>
+ *      <td>
+ *          The flow timeout in <b>minutes</b>. If a flow is inactive for more
+ *          than this period of time it will expire and be removed from the store.
+ *      </td>
+ *  </tr>
+ *  <tr>
+ *      <td>serializer</td>
+ *      <td>a default {@link FlowStateSerializer}</td>
+ *      <td>
+ *          Serializes the memento stacks, compressing large ones.
+ *      </td>
+ *  </tr>
+ * </table>
+ *
+ * @author Erwin Vervaet
+ */
+public class MappedFileFlowStateStore implements FlowStateStore, InitializingBean, DisposableBean {
+
+	/**
+	 * <p>Default file size: 64 MB.
+	 */
+	public static final int DEFAULT_CAPACITY=64*1024*1024;
+
+	/**
+	 * <p>Default slot size: 512 bytes.
+	 */
+	public static final int DEFAULT_SLOT_SIZE=512;
+
+	/**
+	 * <p>Default flow timeout: 10 minutes.
+	 */
+	public static final int DEFAULT_TIMEOUT=10;
+
+	/**
+	 * <p>Each slot starts with the number of the next slot in the chain (or -1)
+	 * and the number of data bytes in the slot.
+	 */
+	private static final int SLOT_HEADER_SIZE=8;
+
+	protected final Log log=LogFactory.getLog(MappedFileFlowStateStore.class);
+
+	private File file=null;
+	private int capacity=DEFAULT_CAPACITY;
+	private int slotSize=DEFAULT_SLOT_SIZE;
+	private volatile int timeout=DEFAULT_TIMEOUT;
+	private FlowStateSerializer serializer=new FlowStateSerializer();
+
+	//guarded by this
+	private RandomAccessFile randomAccessFile=null;
+	private MappedByteBuffer buffer=null;
+	private int[] freeSlots=null;
+	private int freeSlotCount=0;
+	private final Map sessions=new HashMap(); //session id -> flow id -> location
+	private long lastExpiryCheck=System.currentTimeMillis();
+
+	/**
+	 * <p>Returns the file holding the memento stacks.
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * <p>Set the file holding the memento stacks. Its existing contents are
+	 * overwritten. Defaults to a temporary file.
+	 */
+	public void setFile(File file) {
+		this.file=file;
+	}
+
+	/**
+	 * <p>Returns the size of the file, in bytes.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * <p>Set the size of the file, in bytes. Defaults to 64 MB.
+	 */
+	public void setCapacity(int capacity) {
+		this.capacity=capacity;
+	}
+
+	/**
+	 * <p>Returns the size of a slot, in bytes.
+	 */
+	public int getSlotSize() {
+		return slotSize;
+	}
+
+	/**
+	 * <p>Set the size of a slot, in bytes. Defaults to 512.
+	 */
+	public void setSlotSize(int slotSize) {
+		this.slotSize=slotSize;
+	}
+
+	/**
+	 * <p>Get the flow timeout, expressed in minutes.
+	 */
+	public int getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * <p>Set the flow timeout, expressed in minutes. Defaults to 10.
+	 */
+	public void setTimeout(int timeout) {
+		this.timeout=timeout;
+	}
+
+	/**
+	 * <p>Returns the serializer of the memento stacks.
+	 */
+	public FlowStateSerializer getSerializer() {
+		return serializer;
+	}
+
+	/**
+	 * <p>Set the serializer of the memento stacks. Defaults to a
+	 * {@link FlowStateSerializer} using its default settings.
+	 */
+	public void setSerializer(FlowStateSerializer serializer) {
+		this.serializer=serializer;
+	}
+
+	/**
+	 * <p>Map the file and put all its slots on the free list.
+	 */
+	public synchronized void afterPropertiesSet() throws IOException {
+		if (slotSize<=SLOT_HEADER_SIZE || capacity<slotSize) {
+			throw new IllegalArgumentException("the capacity of the store should be at least one slot, and slots should be larger than " + SLOT_HEADER_SIZE + " bytes");
+		}
+		if (file==null) {
+			file=File.createTempFile("webflow", ".state");
+			file.deleteOnExit();
+		}
+		randomAccessFile=new RandomAccessFile(file, "rw");
+		randomAccessFile.setLength(capacity);
+		buffer=randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+		freeSlots=new int[capacity/slotSize];
+		for (int i=0; i<freeSlots.length; i++) {
+			//the lowest slots are used first
+			freeSlots[i]=freeSlots.length-1-i;
+		}
+		freeSlotCount=freeSlots.length;
+		sessions.clear();
+
+		if (log.isInfoEnabled()) {
+			log.info("Mapped " + freeSlots.length + " flow state slots of " + slotSize + " bytes in file '" + file + "'");
+		}
+	}
+
+	/**
+	 * <p>Close the file. The store can no longer be used afterwards.
+	 */
+	public synchronized void destroy() throws IOException {
+		if (randomAccessFile!=null) {
+			randomAccessFile.close();
+			randomAccessFile=null;
+			buffer=null;
+			sessions.clear();
+		}
+	}
+
+	public WebFlowMementoStack load(HttpServletRequest request, String flowId) {
+		WebFlowMementoStack mementos=(WebFlowMementoStack)request.getAttribute(getRequestAttributeName(flowId));
+		if (mementos!=null) {
+			return mementos;
+		}
+		HttpSession session=request.getSession(false);
+		if (session==null) {
+			return null;
+		}
+		mementos=load(session.getId(), flowId);
+		if (mementos!=null) {
+			request.setAttribute(getRequestAttributeName(flowId), mementos);
+		}
+		return mementos;
+	}
+
+	public void save(HttpServletRequest request, String flowId, WebFlowMementoStack mementos) {
+		save(request.getSession().getId(), flowId, mementos);
+		request.setAttribute(getRequestAttributeName(flowId), mementos);
+	}
+
+	public void delete(HttpServletRequest request, String flowId) {
+		request.removeAttribute(getRequestAttributeName(flowId));
+		HttpSession session=request.getSession(false);
+		if (session!=null) {
+			delete(session.getId(), flowId);
+		}
+	}
+
+	/**
+	 * <p>Load the memento stack of the flow with given id of the session with
+	 * given id from the file, bypassing the request.
+	 *
+	 * @return the memento stack, or null if there is no such flow or it expired
+	 */
+	WebFlowMementoStack load(String sessionId, String flowId) {
+		byte[] data;
+		synchronized (this) {
+			long now=System.currentTimeMillis();
+			removeExpiredIfDue(now);
+			Map flows=(Map)sessions.get(sessionId);
+			Location location=flows==null ? null : (Location)flows.get(flowId);
+			if (location==null) {
+				return null;
+			}
+			if (hasExpired(location, now)) {
+				remove(sessionId, flows, flowId);
+				return null;
+			}
+			data=read(location.firstSlot, location.length);
+		}
+		return serializer.deserialize(data);
+	}
+
+	/**
+	 * <p>Write the memento stack of the flow with given id of the session with
+	 * given id to the file, bypassing the request.
+	 */
+	void save(String sessionId, String flowId, WebFlowMementoStack mementos) {
+		byte[] data=serializer.serialize(mementos);
+		synchronized (this) {
+			long now=System.currentTimeMillis();
+			removeExpiredIfDue(now);
+			//write the new chain before touching the index, so a full store
+			//leaves the previously saved state of the flow intact
+			int firstSlot=write(data, now);
+			Map flows=(Map)sessions.get(sessionId);
+			if (flows==null) {
+				flows=new HashMap(4);
+				sessions.put(sessionId, flows);
+			}
+			Location location=(Location)flows.get(flowId);
+			if (location!=null) {
+				free(location.firstSlot);
+			}
+			else {
+				location=new Location();
+				flows.put(flowId, location);
+			}
+			location.firstSlot=firstSlot;
+			location.length=data.length;
+			location.lastAccessedTime=mementos.getLastAccessedTime();
+		}
+	}
+
+	/**
+	 * <p>Remove the flow with given id of the session with given id from the
+	 * file, bypassing the request.
+	 */
+	synchronized void delete(String sessionId, String flowId) {
+		Map flows=(Map)sessions.get(sessionId);
+		if (flows!=null) {
+			remove(sessionId, flows, flowId);
+		}
+	}
+
+	public Set getFlowIds(HttpServletRequest request) {
+		HttpSession session=request.getSession(false);
+		if (session==null) {
+			return Collections.EMPTY_SET;
+		}
+		synchronized (this) {
+			Map flows=(Map)sessions.get(session.getId());
+			return flows==null ? Collections.EMPTY_SET : new HashSet(flows.keySet());
+		}
+	}
+
+	public boolean requiresSession() {
+		return true;
+	}
+
+	public boolean expiresFlows() {
+		return true;
+	}
+
+	public String getExposedFlowId(HttpServletRequest request, String flowId, WebFlowMementoStack mementos) {
+		return flowId;
+	}
+
+	/**
+	 * <p>Returns the number of flows in this store, including expired flows
+	 * that have not yet been removed.
+	 */
+	public synchronized int size() {
+		int size=0;
+		for (Iterator it=sessions.values().iterator(); it.hasNext(); ) {
+			size+=((Map)it.next()).size();
+		}
+		return size;
+	}
+
+	/**
+	 * <p>Returns the number of free slots.
+	 */
+	public synchronized int getFreeSlotCount() {
+		return freeSlotCount;
+	}
+
+	private String getRequestAttributeName(String flowId) {
+		return MappedFileFlowStateStore.class.getName() + "." + flowId;
+	}
+
+	//slot management, call with the lock held
+
+	private MappedByteBuffer getBuffer() {
+		if (buffer==null) {
+			throw new IllegalStateException("the mapped file flow state store is not initialized or has been closed");
+		}
+		return buffer;
+	}
+
+	/**
+	 * <p>Write given data in a chain of free slots, returning the first slot.
+	 */
+	private int write(byte[] data, long now) {
+		MappedByteBuffer buffer=getBuffer();
+		int dataPerSlot=slotSize-SLOT_HEADER_SIZE;
+		int slotCount=Math.max(1, (data.length+dataPerSlot-1)/dataPerSlot);
+		if (slotCount>freeSlotCount) {
+			removeExpired(now);
+			if (slotCount>freeSlotCount) {
+				throw new WebFlowException("the mapped file flow state store is full: increase its capacity or decrease the flow timeout");
+			}
+		}
+		int firstSlot=-1;
+		int previousSlot=-1;
+		for (int i=0; i<slotCount; i++) {
+			int slot=freeSlots[--freeSlotCount];
+			int offset=i*dataPerSlot;
+			int length=Math.min(dataPerSlot, data.length-offset);
+			buffer.putInt(slot*slotSize, -1);
+			buffer.putInt(slot*slotSize+4, length);
+			buffer.position(slot*slotSize+SLOT_HEADER_SIZE);
+			buffer.put(data, offset, length);
+			if (previousSlot==-1) {
+				firstSlot=slot;
+			}
+			else {
+				buffer.putInt(previousSlot*slotSize, slot);
+			}
+			previousSlot=slot;
+		}
+		return firstSlot;
+	}
+
+	/**
+	 * <p>Read the data in the chain of slots starting with given slot.
+	 */
+	private byte[] read(int slot, int length) {
+		MappedByteBuffer buffer=getBuffer();
+		byte[] data=new byte[length];
+		int offset=0;
+		while (slot!=-1) {
+			int slotLength=buffer.getInt(slot*slotSize+4);
+			buffer.position(slot*slotSize+SLOT_HEADER_SIZE);
+			buffer.get(data, offset, slotLength);
+			offset+=slotLength;
+			slot=buffer.getInt(slot*slotSize);
+		}
+		return data;
+	}
+
+	/**
+	 * <p>Put the chain of slots starting with given slot on the free list.
+	 */
+	private void free(int slot) {
+		MappedByteBuffer buffer=getBuffer();
+		while (slot!=-1) {
+			freeSlots[freeSlotCount++]=slot;
+			slot=buffer.getInt(slot*slotSize);
+		}
+	}
+
+	private void remove(String sessionId, Map flows, String flowId) {
+		Location location=(Location)flows.remove(flowId);
+		if (location!=null) {
+			free(location.firstSlot);
+		}
+		if (flows.isEmpty()) {
+			sessions.remove(sessionId);
+		}
+	}
+
+	private boolean hasExpired(Location location, long now) {
+		return (now-location.lastAccessedTime) > (timeout*60000L);
+	}
+
+	/**
+	 * <p>Remove expired flows, if that has not been done during the last
+	 * quarter of the timeout period.
+	 */
+	private void removeExpiredIfDue(long now) {
+		if (now-lastExpiryCheck >= timeout*15000L) {
+			removeExpired(now);
+		}
+	}
+
+	private void removeExpired(long now) {
+		lastExpiryCheck=now;
+		int removed=0;
+		for (Iterator sessionIt=sessions.values().iterator(); sessionIt.hasNext(); ) {
+			Map flows=(Map)sessionIt.next();
+			for (Iterator it=flows.values().iterator(); it.hasNext(); ) {
+				Location location=(Location)it.next();
+				if (hasExpired(location, now)) {
+					free(location.firstSlot);
+					it.remove();
+					removed++;
+				}
+			}
+			if (flows.isEmpty()) {
+				sessionIt.remove();
+			}
+		}
+		if (removed>0 && log.isInfoEnabled()) {
+			log.info("Removed " + removed + " expired flows from the mapped file flow state store");
+		}
+	}
+
+	/**
+	 * <p>The location of a memento stack in the file.
+	 */
+	private static class Location {
+		private int firstSlot;
+		private int length;
+		private long lastAccessedTime;
+	}
+
+}
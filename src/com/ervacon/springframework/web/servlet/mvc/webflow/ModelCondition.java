@@ -0,0 +1,441 @@
+package com.ervacon.springframework.web.servlet.mvc.webflow;
+
+/*
+ * (c) Copyright Ervacon 2004-2005.
+ * All Rights Reserved.
+ */
+
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>A compiled condition over the model of a flow, as used by decision states.
+ * Conditions are parsed once, when the flow definition is loaded, into a tree
+ * that is evaluated directly against the model. The condition language is
+ * deliberately small:
+ * <ul>
+ * 	<li>A <i>path</i> such as <code>order</code> or <code>order.customer.name</code>
+ * 		names a model attribute, optionally followed by bean properties (or keys
+ * 		when a value is a <code>Map</code>). A path on its own is true when its
+ * 		value is <code>Boolean.TRUE</code>, or not null and not a boolean.</li>
+ * 	<li>Literals: <code>'text'</code> or <code>"text"</code>, numbers, <code>true</code>,
+ * 		<code>false</code> and <code>null</code>.</li>
+ * 	<li>Comparisons: <code>a == b</code> and <code>a != b</code>. Numbers are compared
+ * 		by value and a value compared with a text literal is compared using its
+ * 		string representation.</li>
+ * 	<li>Logical operators: <code>not</code> (or <code>!</code>), <code>and</code>
+ * 		(or <code>&amp;&amp;</code>), <code>or</code> (or <code>||</code>) and
+ * 		parentheses. The words are easier to use in XML attributes.</li>
+ * </ul>
+ * For example: <code>order.customer != null and order.status == 'NEW'</code>.
+ *
+ * <p>Bean property read methods are looked up when a path is first evaluated
+ * against an object of a particular class, and reused for later evaluations
+ * against objects of that class. Conditions are immutable otherwise, and can
+ * be evaluated concurrently.
+ *
+ * @see com.ervacon.springframework.web.servlet.mvc.webflow.DecisionState
+ *
+ * @author Erwin Vervaet
+ */
+public abstract class ModelCondition {
+
+	private String expression;
+
+	/**
+	 * <p>Compile given condition expression.
+	 *
+	 * @param expression the condition expression
+	 * @return the compiled condition
+	 * @throws WebFlowException when the expression is not a valid condition
+	 */
+	public static ModelCondition compile(String expression) throws WebFlowException {
+		ModelCondition condition=new Parser(expression).parse();
+		condition.expression=expression;
+		return condition;
+	}
+
+	/**
+	 * <p>Returns the expression this condition was compiled from.
+	 */
+	public String getExpression() {
+		return expression;
+	}
+
+	/**
+	 * <p>Evaluate this condition against given flow model.
+	 *
+	 * @param model the flow model
+	 * @return the result of the evaluation
+	 * @throws WebFlowException when a property in a path cannot be read
+	 */
+	public abstract boolean evaluate(Map model) throws WebFlowException;
+
+	public String toString() {
+		return expression;
+	}
+
+	/**
+	 * <p>Returns whether or not given value counts as true when used as
+	 * a condition on its own.
+	 */
+	private static boolean isTrue(Object value) {
+		return value instanceof Boolean ? ((Boolean)value).booleanValue() : value!=null;
+	}
+
+	private static boolean valuesEqual(Object left, Object right) {
+		if (left==null || right==null) {
+			return left==right;
+		}
+		else if (left instanceof Number && right instanceof Number) {
+			return ((Number)left).doubleValue()==((Number)right).doubleValue();
+		}
+		else if (left instanceof String || right instanceof String) {
+			return left.toString().equals(right.toString());
+		}
+		else {
+			return left.equals(right);
+		}
+	}
+
+	//condition tree
+
+	private static class Truth extends ModelCondition {
+		private final Operand operand;
+
+		public Truth(Operand operand) {
+			this.operand=operand;
+		}
+
+		public boolean evaluate(Map model) {
+			return isTrue(operand.getValue(model));
+		}
+	}
+
+	private static class Equality extends ModelCondition {
+		private final Operand left;
+		private final Operand right;
+		private final boolean equal;
+
+		public Equality(Operand left, Operand right, boolean equal) {
+			this.left=left;
+			this.right=right;
+			this.equal=equal;
+		}
+
+		public boolean evaluate(Map model) {
+			return valuesEqual(left.getValue(model), right.getValue(model))==equal;
+		}
+	}
+
+	private static class Not extends ModelCondition {
+		private final ModelCondition condition;
+
+		public Not(ModelCondition condition) {
+			this.condition=condition;
+		}
+
+		public boolean evaluate(Map model) {
+			return !condition.evaluate(model);
+		}
+	}
+
+	private static class And extends ModelCondition {
+		private final ModelCondition left;
+		private final ModelCondition right;
+
+		public And(ModelCondition left, ModelCondition right) {
+			this.left=left;
+			this.right=right;
+		}
+
+		public boolean evaluate(Map model) {
+			return left.evaluate(model) && right.evaluate(model);
+		}
+	}
+
+	private static class Or extends ModelCondition {
+		private final ModelCondition left;
+		private final ModelCondition right;
+
+		public Or(ModelCondition left, ModelCondition right) {
+			this.left=left;
+			this.right=right;
+		}
+
+		public boolean evaluate(Map model) {
+			return left.evaluate(model) || right.evaluate(model);
+		}
+	}
+
+	//operands
+
+	private static abstract class Operand {
+		public abstract Object getValue(Map model);
+	}
+
+	private static class Literal extends Operand {
+		private final Object value;
+
+		public Literal(Object value) {
+			this.value=value;
+		}
+
+		public Object getValue(Map model) {
+			return value;
+		}
+	}
+
+	private static class Path extends Operand {
+		private final String attributeName;
+		private final Property[] properties;
+
+		public Path(String attributeName, Property[] properties) {
+			this.attributeName=attributeName;
+			this.properties=properties;
+		}
+
+		public Object getValue(Map model) {
+			Object value=model.get(attributeName);
+			for (int i=0; i<properties.length && value!=null; i++) {
+				value=properties[i].getValue(value);
+			}
+			return value;
+		}
+	}
+
+	/**
+	 * <p>A property in a path. Caches the read method for the class of the
+	 * object it was last read from.
+	 */
+	private static class Property {
+		private final String name;
+		private volatile ReadMethod cachedReadMethod=null;
+
+		public Property(String name) {
+			this.name=name;
+		}
+
+		public Object getValue(Object bean) throws WebFlowException {
+			if (bean instanceof Map) {
+				return ((Map)bean).get(name);
+			}
+			ReadMethod readMethod=cachedReadMethod;
+			if (readMethod==null || readMethod.type!=bean.getClass()) {
+				readMethod=new ReadMethod(bean.getClass(), findReadMethod(bean.getClass()));
+				cachedReadMethod=readMethod;
+			}
+			try {
+				return readMethod.method.invoke(bean, (Object[])null);
+			}
+			catch (IllegalAccessException e) {
+				throw new WebFlowException("cannot read property '" + name + "' of " + bean.getClass().getName(), e);
+			}
+			catch (InvocationTargetException e) {
+				throw new WebFlowException("cannot read property '" + name + "' of " + bean.getClass().getName(), e.getTargetException());
+			}
+		}
+
+		private Method findReadMethod(Class type) throws WebFlowException {
+			try {
+				PropertyDescriptor[] descriptors=Introspector.getBeanInfo(type).getPropertyDescriptors();
+				for (int i=0; i<descriptors.length; i++) {
+					if (name.equals(descriptors[i].getName()) && descriptors[i].getReadMethod()!=null) {
+						return descriptors[i].getReadMethod();
+					}
+				}
+			}
+			catch (IntrospectionException e) {
+				throw new WebFlowException("cannot introspect " + type.getName(), e);
+			}
+			throw new WebFlowException("no readable property '" + name + "' in " + type.getName());
+		}
+	}
+
+	private static class ReadMethod {
+		private final Class type;
+		private final Method method;
+
+		public ReadMethod(Class type, Method method) {
+			this.type=type;
+			this.method=method;
+		}
+	}
+
+	/**
+	 * <p>Recursive descent parser of condition expressions.
+	 */
+	private static class Parser {
+
+		private final String expression;
+		private final List tokens=new ArrayList();
+		private int pos=0;
+
+		public Parser(String expression) throws WebFlowException {
+			if (expression==null) {
+				throw new WebFlowException("condition expression is required");
+			}
+			this.expression=expression;
+			tokenize();
+		}
+
+		private void tokenize() throws WebFlowException {
+			int i=0;
+			while (i<expression.length()) {
+				char c=expression.charAt(i);
+				if (Character.isWhitespace(c)) {
+					i++;
+				}
+				else if (c=='\'' || c=='"') {
+					int end=expression.indexOf(c, i+1);
+					if (end==-1) {
+						throw error("unterminated text literal");
+					}
+					tokens.add(new Literal(expression.substring(i+1, end)));
+					i=end+1;
+				}
+				else if (Character.isDigit(c) || (c=='-' && i+1<expression.length() && Character.isDigit(expression.charAt(i+1)))) {
+					int start=i++;
+					while (i<expression.length() && (Character.isDigit(expression.charAt(i)) || expression.charAt(i)=='.')) {
+						i++;
+					}
+					String number=expression.substring(start, i);
+					try {
+						tokens.add(new Literal(number.indexOf('.')==-1 ? (Number)new Long(number) : (Number)new Double(number)));
+					}
+					catch (NumberFormatException e) {
+						throw error("invalid number '" + number + "'");
+					}
+				}
+				else if (Character.isJavaIdentifierStart(c)) {
+					int start=i++;
+					while (i<expression.length() && (Character.isJavaIdentifierPart(expression.charAt(i)) || expression.charAt(i)=='.')) {
+						i++;
+					}
+					tokens.add(expression.substring(start, i));
+				}
+				else if (expression.startsWith("==", i) || expression.startsWith("!=", i) || expression.startsWith("&&", i) || expression.startsWith("||", i)) {
+					tokens.add(expression.substring(i, i+2));
+					i+=2;
+				}
+				else if (c=='!' || c=='(' || c==')') {
+					tokens.add(String.valueOf(c));
+					i++;
+				}
+				else {
+					throw error("unexpected character '" + c + "'");
+				}
+			}
+		}
+
+		public ModelCondition parse() throws WebFlowException {
+			ModelCondition condition=parseOr();
+			if (pos<tokens.size()) {
+				throw error("unexpected '" + describe(tokens.get(pos)) + "'");
+			}
+			return condition;
+		}
+
+		private ModelCondition parseOr() throws WebFlowException {
+			ModelCondition condition=parseAnd();
+			while (accept("or") || accept("||")) {
+				condition=new Or(condition, parseAnd());
+			}
+			return condition;
+		}
+
+		private ModelCondition parseAnd() throws WebFlowException {
+			ModelCondition condition=parseUnary();
+			while (accept("and") || accept("&&")) {
+				condition=new And(condition, parseUnary());
+			}
+			return condition;
+		}
+
+		private ModelCondition parseUnary() throws WebFlowException {
+			if (accept("not") || accept("!")) {
+				return new Not(parseUnary());
+			}
+			else if (accept("(")) {
+				ModelCondition condition=parseOr();
+				if (!accept(")")) {
+					throw error("missing ')'");
+				}
+				return condition;
+			}
+			else {
+				Operand left=parseOperand();
+				if (accept("==")) {
+					return new Equality(left, parseOperand(), true);
+				}
+				else if (accept("!=")) {
+					return new Equality(left, parseOperand(), false);
+				}
+				return new Truth(left);
+			}
+		}
+
+		private Operand parseOperand() throws WebFlowException {
+			if (pos>=tokens.size()) {
+				throw error("unexpected end of expression");
+			}
+			Object token=tokens.get(pos++);
+			if (token instanceof Literal) {
+				return (Literal)token;
+			}
+			else if ("true".equals(token)) {
+				return new Literal(Boolean.TRUE);
+			}
+			else if ("false".equals(token)) {
+				return new Literal(Boolean.FALSE);
+			}
+			else if ("null".equals(token)) {
+				return new Literal(null);
+			}
+			else if (isPath((String)token)) {
+				String[] names=((String)token).split("\\.", -1);
+				for (int i=0; i<names.length; i++) {
+					if (names[i].length()==0) {
+						throw error("invalid path '" + token + "'");
+					}
+				}
+				Property[] properties=new Property[names.length-1];
+				for (int i=0; i<properties.length; i++) {
+					properties[i]=new Property(names[i+1]);
+				}
+				return new Path(names[0], properties);
+			}
+			else {
+				throw error("unexpected '" + token + "'");
+			}
+		}
+
+		private boolean isPath(String token) {
+			return Character.isJavaIdentifierStart(token.charAt(0))
+				&& !"and".equals(token) && !"or".equals(token) && !"not".equals(token);
+		}
+
+		private boolean accept(String token) {
+			if (pos<tokens.size() && token.equals(tokens.get(pos))) {
+				pos++;
+				return true;
+			}
+			return false;
+		}
+
+		private String describe(Object token) {
+			return token instanceof Literal ? String.valueOf(((Literal)token).value) : (String)token;
+		}
+
+		private WebFlowException error(String problem) {
+			return new WebFlowException("invalid condition '" + expression + "': " + problem);
+		}
+	}
+
+}
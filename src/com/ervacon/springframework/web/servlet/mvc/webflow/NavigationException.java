@@ -21,6 +21,7 @@ public class NavigationException extends WebFlowException {
 	private String state;
 	private String event;
 	private WebFlowMementoStack mementos;
+	private String flowId;
 
 	/**
 	 * <p>Create a new navigation exception.
@@ -84,5 +85,21 @@ public class NavigationException extends WebFlowException {
 	public void setMementos(WebFlowMementoStack mementos) {
 		this.mementos=mementos;
 	}
+	
+	/**
+	 * <p>Get the id of the flow the flow memento stack belongs to. This
+	 * property is optional so the value can be null.
+	 */
+	public String getFlowId() {
+		return flowId;
+	}
+	
+	/**
+	 * <p>Set the id of the flow the flow memento stack belongs to. This
+	 * property is optional so the value can be null.
+	 */
+	public void setFlowId(String flowId) {
+		this.flowId=flowId;
+	}
 
 }
@@ -0,0 +1,306 @@
+package com.ervacon.springframework.web.servlet.mvc.webflow;
+
+/*
+ * (c) Copyright Ervacon 2004-2005.
+ * All Rights Reserved.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * <p>Streaming flow definition reader. This reader uses a non-validating SAX
+ * parser and compiles the flow definition while the document is being parsed,
+ * without building a document tree. The web flow DTD is not loaded: instead,
+ * the structural rules of the DTD are checked in code. Problems are reported
+ * with the line number where they were detected.
+ *
+ * <p>This is the default flow definition reader used by the {@link SimpleWebFlow}.
+ * It only needs the XML parser included in the Java runtime. Parsers are pooled
+ * and reused: a single reader can be shared by all flows, and is used that way
+ * by default.
+ *
+ * @see com.ervacon.springframework.web.servlet.mvc.webflow.JdomWebFlowDefinitionReader
+ *
+ * @author Erwin Vervaet
+ */
+public class SaxWebFlowDefinitionReader implements WebFlowDefinitionReader {
+
+	/**
+	 * <p>Maximum number of idle parsers kept for reuse.
+	 */
+	private static final int MAX_POOLED_PARSERS=Runtime.getRuntime().availableProcessors();
+
+	private final SAXParserFactory parserFactory;
+	private final LinkedList parserPool=new LinkedList();
+
+	/**
+	 * <p>Create a new SAX based flow definition reader.
+	 */
+	public SaxWebFlowDefinitionReader() {
+		parserFactory=SAXParserFactory.newInstance();
+		parserFactory.setValidating(false);
+		parserFactory.setNamespaceAware(false);
+	}
+
+	public WebFlowDefinition read(InputStream source) throws IOException, WebFlowException {
+		try {
+			SAXParser parser=obtainParser();
+			Handler handler=new Handler();
+			parser.parse(new InputSource(source), handler);
+			releaseParser(parser); //only parsers that completed successfully are reused
+			return handler.getDefinition();
+		}
+		catch (SAXParseException e) {
+			throw new WebFlowException("problem parsing web flow definition at line " + e.getLineNumber() + ": " + e.getMessage(), e);
+		}
+		catch (SAXException e) {
+			Exception cause=e.getException();
+			if (cause instanceof WebFlowException) {
+				throw (WebFlowException)cause;
+			}
+			throw new WebFlowException("problem parsing web flow definition: " + e.getMessage(), e);
+		}
+		catch (ParserConfigurationException e) {
+			throw new WebFlowException("cannot create XML parser: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * <p>Take a parser from the pool, or create a new one if none is available.
+	 */
+	private SAXParser obtainParser() throws ParserConfigurationException, SAXException {
+		synchronized (parserPool) {
+			if (!parserPool.isEmpty()) {
+				return (SAXParser)parserPool.removeFirst();
+			}
+		}
+		synchronized (parserFactory) {
+			return parserFactory.newSAXParser();
+		}
+	}
+
+	/**
+	 * <p>Return given parser to the pool, unless the pool is full.
+	 */
+	private void releaseParser(SAXParser parser) {
+		synchronized (parserPool) {
+			if (parserPool.size()<MAX_POOLED_PARSERS) {
+				parserPool.addFirst(parser);
+			}
+		}
+	}
+
+	/**
+	 * <p>SAX handler compiling a flow definition. It checks the structure
+	 * defined by the web flow DTD while the document is being parsed.
+	 */
+	private static class Handler extends DefaultHandler {
+
+		private Locator locator=null;
+		private int depth=0;
+
+		private String name=null;
+		private String startStateId=null;
+		private List states=new ArrayList();
+		private List globalTransitions=null;
+		private WebFlowDefinition definition=null;
+
+		//the state being read
+		private String stateType=null;
+		private String stateId=null;
+		private String view=null;
+		private String subFlowName=null;
+		private String modelMapperName=null;
+		private List actionNames=new ArrayList();
+		private List actionBeanNames=new ArrayList();
+		private List transitions=new ArrayList();
+		private List tests=new ArrayList();
+		private List thenStateIds=new ArrayList();
+		private String elseStateId=null;
+
+		public WebFlowDefinition getDefinition() {
+			return definition;
+		}
+
+		public void setDocumentLocator(Locator locator) {
+			this.locator=locator;
+		}
+
+		public InputSource resolveEntity(String publicId, String systemId) {
+			//the DTD is not needed: its rules are checked by this handler
+			return new InputSource(new StringReader(""));
+		}
+
+		public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+			depth++;
+			if (depth==1) {
+				if (!"web-flow".equals(qName)) {
+					error("root element should be 'web-flow', not '" + qName + "'");
+				}
+				name=required(attributes, qName, "name");
+			}
+			else if (depth==2) {
+				if ("start-state".equals(qName)) {
+					if (startStateId!=null || !states.isEmpty()) {
+						error("'start-state' should be the first and only start state of the flow");
+					}
+					startStateId=required(attributes, qName, "state");
+				}
+				else if (startStateId==null) {
+					error("'" + qName + "' found where 'start-state' was expected");
+				}
+				else if ("global-transitions".equals(qName)) {
+					if (globalTransitions!=null || !states.isEmpty()) {
+						error("'global-transitions' should directly follow the start state and appear only once");
+					}
+					globalTransitions=new ArrayList();
+				}
+				else if ("view-state".equals(qName) || "action-state".equals(qName) || "decision-state".equals(qName) || "flow-state".equals(qName) || "end-state".equals(qName)) {
+					stateType=qName;
+					stateId=required(attributes, qName, "id");
+					if ("flow-state".equals(qName)) {
+						subFlowName=required(attributes, qName, "flow");
+						modelMapperName=attributes.getValue("model-mapper");
+					}
+					else if (!"action-state".equals(qName) && !"decision-state".equals(qName)) {
+						view=attributes.getValue("view");
+					}
+				}
+				else {
+					error("unknown element '" + qName + "'");
+				}
+			}
+			else if (depth==3 && "action".equals(qName) && "action-state".equals(stateType)) {
+				if (!transitions.isEmpty()) {
+					error("'action' elements should come before the 'transition' elements of action state '" + stateId + "'");
+				}
+				actionNames.add(required(attributes, qName, "name"));
+				actionBeanNames.add(required(attributes, qName, "bean"));
+			}
+			else if (depth==3 && "if".equals(qName) && "decision-state".equals(stateType)) {
+				if (elseStateId!=null) {
+					error("only the last 'if' element of decision state '" + stateId + "' can have an 'else' attribute");
+				}
+				tests.add(required(attributes, qName, "test"));
+				thenStateIds.add(required(attributes, qName, "then"));
+				elseStateId=attributes.getValue("else");
+			}
+			else if (depth==3 && "transition".equals(qName) && stateType==null && globalTransitions!=null && states.isEmpty()) {
+				globalTransitions.add(new Transition(required(attributes, qName, "name"), required(attributes, qName, "to")));
+			}
+			else if (depth==3 && "transition".equals(qName) && stateType!=null && !"end-state".equals(stateType) && !"decision-state".equals(stateType)) {
+				transitions.add(new Transition(required(attributes, qName, "name"), required(attributes, qName, "to")));
+			}
+			else {
+				error("element '" + qName + "' is not allowed here");
+			}
+		}
+
+		public void endElement(String uri, String localName, String qName) throws SAXException {
+			if (depth==2 && stateType!=null) {
+				states.add(createState());
+				stateType=null;
+				stateId=view=subFlowName=modelMapperName=elseStateId=null;
+				actionNames.clear();
+				actionBeanNames.clear();
+				transitions.clear();
+				tests.clear();
+				thenStateIds.clear();
+			}
+			else if (depth==2 && "global-transitions".equals(qName) && globalTransitions.isEmpty()) {
+				error("'global-transitions' should contain at least one transition");
+			}
+			else if (depth==1) {
+				if (states.isEmpty()) {
+					error("web flow '" + name + "' should have at least one state besides its start state");
+				}
+				try {
+					definition=new WebFlowDefinition(
+							name,
+							startStateId,
+							(State[])states.toArray(new State[states.size()]),
+							globalTransitions==null ? null : (Transition[])globalTransitions.toArray(new Transition[globalTransitions.size()]));
+				}
+				catch (WebFlowException e) {
+					throw new SAXException(e);
+				}
+			}
+			depth--;
+		}
+
+		private State createState() throws SAXException {
+			Transition[] stateTransitions=(Transition[])transitions.toArray(new Transition[transitions.size()]);
+			if ("view-state".equals(stateType)) {
+				return new ViewState(stateId, view, stateTransitions);
+			}
+			else if ("action-state".equals(stateType)) {
+				if (actionNames.isEmpty() || transitions.isEmpty()) {
+					error("action state '" + stateId + "' should have at least one action and one transition");
+				}
+				return new ActionState(
+						stateId,
+						(String[])actionNames.toArray(new String[actionNames.size()]),
+						(String[])actionBeanNames.toArray(new String[actionBeanNames.size()]),
+						stateTransitions);
+			}
+			else if ("decision-state".equals(stateType)) {
+				if (tests.isEmpty()) {
+					error("decision state '" + stateId + "' should have at least one 'if' element");
+				}
+				try {
+					return new DecisionState(
+							stateId,
+							(String[])tests.toArray(new String[tests.size()]),
+							(String[])thenStateIds.toArray(new String[thenStateIds.size()]),
+							elseStateId);
+				}
+				catch (WebFlowException e) {
+					throw new SAXParseException(e.getMessage(), locator);
+				}
+			}
+			else if ("flow-state".equals(stateType)) {
+				return new FlowState(stateId, subFlowName, modelMapperName, stateTransitions);
+			}
+			else {
+				return new EndState(stateId, view);
+			}
+		}
+
+		public void characters(char[] ch, int start, int length) throws SAXException {
+			for (int i=start; i<start+length; i++) {
+				if (!Character.isWhitespace(ch[i])) {
+					error("text is not allowed in web flow definitions");
+				}
+			}
+		}
+
+		private String required(Attributes attributes, String element, String attribute) throws SAXException {
+			String value=attributes.getValue(attribute);
+			if (value==null) {
+				error("element '" + element + "' should have a '" + attribute + "' attribute");
+			}
+			return value;
+		}
+
+		private void error(String message) throws SAXException {
+			throw new SAXParseException(message, locator);
+		}
+	}
+
+}
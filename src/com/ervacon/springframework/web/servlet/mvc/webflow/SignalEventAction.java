@@ -18,6 +18,9 @@ import com.ervacon.springframework.web.servlet.mvc.webflow.Action;
  * implement conditional behaviour in your flow based on the value of
  * a certain "flag" in the flow model.
  * 
+ * <p>Simple conditions on the flow model are better expressed using a
+ * decision state, which needs no action bean.
+ * 
  * <p><b>Exposed configuration properties:</b><br>
  * <table border="1">
  *  <tr>
@@ -5,8 +5,15 @@ package com.ervacon.springframework.web.servlet.mvc.webflow;
  * All Rights Reserved.
  */
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -14,28 +21,59 @@ import javax.servlet.http.HttpServletResponse;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import org.jdom.Document;
-import org.jdom.Element;
-import org.jdom.JDOMException;
-import org.jdom.input.SAXBuilder;
-
 import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
 import org.springframework.core.io.Resource;
+import org.springframework.util.FileCopyUtils;
 import org.springframework.web.servlet.ModelAndView;
 
 /**
  * <p>Simple web flow implementation. This class reads a web flow definition
- * conforming to the web flow DTD from a specified resource. This implementation
- * uses JDOM to access the XML flow definition. Several extension hook methods
- * are provided in case a subclass wants to fine tune the behaviour of this class.
+ * conforming to the web flow DTD from a specified resource. The XML flow
+ * definition is read by a pluggable {@link WebFlowDefinitionReader}, which
+ * compiles it into an immutable {@link WebFlowDefinition}: a graph of typed
+ * states with indexed transitions. Flow execution only uses this compiled graph.
+ * By default, a streaming {@link SaxWebFlowDefinitionReader} is used. Several
+ * extension hook methods are provided in case a subclass wants to fine tune the
+ * behaviour of this class.
+ * 
+ * <p>Action, sub flow and model mapper beans referenced by the flow are resolved
+ * once the containing application context has been refreshed. At that point
+ * all references are verified: a reference to a bean that does not exist makes
+ * the context refresh fail. Singleton beans are cached by the flow, so executing
+ * the flow does not involve a bean factory lookup for them. Prototype beans are
+ * still obtained from the application context each time they are used.
+ * 
+ * <p>States are executed in a loop driven by a {@link WebFlowExecution}, so
+ * chained action states and nested sub flows do not grow the Java stack. The
+ * number of transitions done per request is limited and tracked: see the
+ * "maxTransitions" property and the transition chain statistics.
+ * 
+ * <p>In lazy mode, the flow definition is only loaded when the flow is first
+ * used, which avoids loading flows that are rarely used at application startup.
+ * Concurrent first requests load the definition only once.
+ * 
+ * <p>A flow can reload its definition while the application is running: either
+ * explicitly, using {@link #load()}, or automatically, by periodically checking
+ * the "webFlowResource" for changes (see the "reloadCheckInterval" property).
+ * The new definition is compiled on the calling thread, or on a background
+ * thread when checking automatically, and then replaces the current definition
+ * in a single step. Requests being handled keep using the definition they
+ * started with. When a client signals an event in a state that no longer exists
+ * in the new definition, the "restartOnMissingState" property decides what
+ * happens.
  * 
  * <p>A web flow is configured in the Spring application context as a normal
  * bean. Note that this flow implementation is thread safe: all state is
  * initialized when the bean is created by the Spring application context. Once
- * this is done, all state is read only. The modifiable state associated
+ * this is done, all state is read only, except for the flow definition which
+ * is replaced as a whole when reloaded. The modifiable state associated
  * with a flow is stored in a seperate web flow memento that is associated with
  * each active flow used by a client. The client (e.g. a controller implementation)
  * is responsible for correct management of this memento.
@@ -56,6 +94,108 @@ import org.springframework.web.servlet.ModelAndView;
  *      <td><i>null</i></td>
  *      <td>Specifies the resource from which the flow definition is loaded.</td>
  *  </tr>
+ *  <tr>
+ *      <td>webFlowDefinition</td>
+ *      <td><i>null</i></td>
+ *      <td>
+ *          Specifies an already compiled flow definition, e.g. one loaded by the
+ *          {@link WebFlowPreloader}. When set, the flow definition is not loaded
+ *          from the "webFlowResource".
+ *      </td>
+ *  </tr>
+ *  <tr>
+ *      <td>sourceChecksum</td>
+ *      <td>-1</td>
+ *      <td>
+ *          Checksum of the "webFlowResource" the "webFlowDefinition" was loaded
+ *          from, set by the {@link WebFlowPreloader}. When the definition is
+ *          checked for changes and no checksum is set, the checksum of the
+ *          resource at bean creation time is used.
+ *      </td>
+ *  </tr>
+ *  <tr>
+ *      <td>lazy</td>
+ *      <td>false</td>
+ *      <td>
+ *          Whether or not to load the flow definition when the flow is first
+ *          used instead of when the flow bean is created. In lazy mode, only the
+ *          existence of the "webFlowResource" is checked at bean creation time.
+ *      </td>
+ *  </tr>
+ *  <tr>
+ *      <td>maxTransitions</td>
+ *      <td>100</td>
+ *      <td>
+ *          Maximum number of state transitions done while handling a single
+ *          request, including transitions in sub flows and parent flows. When
+ *          exceeded, e.g. because of a loop of action states, the request fails.
+ *      </td>
+ *  </tr>
+ *  <tr>
+ *      <td>reloadCheckInterval</td>
+ *      <td>0</td>
+ *      <td>
+ *          Interval, in milliseconds, at which the "webFlowResource" is checked
+ *          for changes. When changed, the flow definition is reloaded. Set to 0
+ *          to disable automatic reloading.
+ *      </td>
+ *  </tr>
+ *  <tr>
+ *      <td>restartOnMissingState</td>
+ *      <td>false</td>
+ *      <td>
+ *          What to do when an event is signaled in a state that does not exist
+ *          in the flow definition, typically because the definition was reloaded.
+ *          When false, a <code>NavigationException</code> is thrown. When true,
+ *          the flow is restarted in its start state, keeping its model.
+ *      </td>
+ *  </tr>
+ *  <tr>
+ *      <td>inlineSubFlows</td>
+ *      <td>false</td>
+ *      <td>
+ *          Whether or not to inline sub flows without model mapper into this flow
+ *          once the application context has been refreshed. See {@link SubFlowInliner}
+ *          for the conditions and consequences. Note that an inlined sub flow shares
+ *          the model of this flow.
+ *      </td>
+ *  </tr>
+ *  <tr>
+ *      <td>webFlowRegistry</td>
+ *      <td>{@link WebFlowRegistry#lookup(ApplicationContext) lookup}</td>
+ *      <td>
+ *          Registry used to find the parent flow when this flow is used as a sub
+ *          flow and ends. Defaults to the registry bean defined in the application
+ *          context or, if there is none, a private registry.
+ *      </td>
+ *  </tr>
+ *  <tr>
+ *      <td>analyzer</td>
+ *      <td>{@link WebFlowAnalyzer}</td>
+ *      <td>
+ *          Analyzer used to verify the flow definition when it is loaded:
+ *          bean references, cycles of action states and reachability. Set
+ *          to null to skip verification.
+ *      </td>
+ *  </tr>
+ *  <tr>
+ *      <td>definitionReader</td>
+ *      <td>{@link SaxWebFlowDefinitionReader}</td>
+ *      <td>
+ *          Reader used to read and compile the XML flow definition. Use a
+ *          {@link JdomWebFlowDefinitionReader} to have the definition
+ *          validated against the web flow DTD.
+ *      </td>
+ *  </tr>
+ *  <tr>
+ *      <td>useBinaryDefinition</td>
+ *      <td>true</td>
+ *      <td>
+ *          Whether or not to load a binary flow definition generated by the
+ *          {@link WebFlowCompilerTask} instead of parsing the XML definition.
+ *          The binary definition is only used when it is up to date.
+ *      </td>
+ *  </tr>
  * </table>
  * 
  * @see com.ervacon.springframework.web.servlet.mvc.webflow.WebFlowMemento
@@ -63,7 +203,32 @@ import org.springframework.web.servlet.ModelAndView;
  * 
  * @author Erwin Vervaet
  */
-public class SimpleWebFlow implements WebFlow, InitializingBean, ApplicationContextAware {
+public class SimpleWebFlow implements WebFlow, InitializingBean, DisposableBean, ApplicationContextAware, ApplicationListener {
+    
+    /**
+     * <p>Default maximum number of state transitions done while handling a
+     * single request: 100.
+     */
+    public static final int DEFAULT_MAX_TRANSITIONS=100;
+    
+    /**
+     * <p>Definition reader shared by all flows that do not configure their own
+     * reader, so they share its pooled parsers.
+     */
+    private static final WebFlowDefinitionReader DEFAULT_DEFINITION_READER=new SaxWebFlowDefinitionReader();
+    
+    /**
+     * <p>Timer checking the flow definition sources of all flows for changes,
+     * created when the first flow needs it and cancelled when the last flow
+     * using it is destroyed, so its thread does not outlive the application.
+     * A single background thread serves all flows. Guarded by the class.
+     */
+    private static Timer reloadTimer=null;
+    
+    /**
+     * <p>Number of tasks scheduled on the reload timer. Guarded by the class.
+     */
+    private static int reloadTaskCount=0;
     
     protected final Log log=LogFactory.getLog(SimpleWebFlow.class);
 
@@ -73,15 +238,103 @@ public class SimpleWebFlow implements WebFlow, InitializingBean, ApplicationCont
     private Resource webFlowResource=null;
     
     /**
-     * <p>The actual flow definition: a JDOM tree.
+     * <p>The actual flow definition, compiled into an immutable state graph.
+     * Null as long as a lazy flow has not been loaded.
+     */
+    private volatile WebFlowDefinition webFlowDef=null;
+    
+    /**
+     * <p>The flow definition as loaded, before sub flows were inlined.
+     */
+    private volatile WebFlowDefinition compiledDef=null;
+    
+    /**
+     * <p>Whether or not to inline sub flows without model mapper.
+     */
+    private boolean inlineSubFlows=false;
+    
+    /**
+     * <p>Whether or not the flow definition is loaded when the flow is first used.
+     */
+    private boolean lazy=false;
+    
+    /**
+     * <p>Guards publishing a loaded flow definition and the "contextRefreshed" flag.
+     * Readers of the flow definition never lock.
      */
-    private Document webFlowDef=null;
+    private final Object loadMonitor=new Object();
+    
+    /**
+     * <p>Whether or not the containing application context has been refreshed,
+     * in which case the bean references of a lazily loaded flow are resolved
+     * as soon as it is loaded.
+     */
+    private boolean contextRefreshed=false;
+    
+    /**
+     * <p>Checksum of the flow definition source last loaded, -1 if unknown.
+     */
+    private volatile long sourceChecksum=-1;
+    
+    /**
+     * <p>Interval, in milliseconds, at which the flow definition source is
+     * checked for changes, 0 to disable.
+     */
+    private long reloadCheckInterval=0;
+    
+    /**
+     * <p>Task checking the flow definition source for changes, if any.
+     */
+    private TimerTask reloadTask=null;
+    
+    /**
+     * <p>Whether or not to restart the flow when an event is signaled in a
+     * state that does not exist.
+     */
+    private boolean restartOnMissingState=false;
     
     /**
      * <p>A reference to the application context containing this flow.
      */
     private ApplicationContext appCtx=null;
     
+    /**
+     * <p>Registry used to find parent flows when a sub flow ends.
+     */
+    private WebFlowRegistry webFlowRegistry=null;
+    
+    /**
+     * <p>Singleton beans referenced by the flow definition, keyed by bean name.
+     * Replaced as a whole each time the bean references are resolved.
+     */
+    private volatile Map singletonBeans=Collections.EMPTY_MAP;
+    
+    /**
+     * <p>Maximum number of state transitions done while handling a single request.
+     */
+    private int maxTransitions=DEFAULT_MAX_TRANSITIONS;
+    
+    /**
+     * <p>Analyzer used to verify the flow definition once it is loaded.
+     */
+    private WebFlowAnalyzer analyzer=new WebFlowAnalyzer();
+    
+    /**
+     * <p>Reader used to read and compile the XML flow definition.
+     */
+    private WebFlowDefinitionReader definitionReader=DEFAULT_DEFINITION_READER;
+    
+    /**
+     * <p>Whether or not to load an up to date binary flow definition when available.
+     */
+    private boolean useBinaryDefinition=true;
+    
+    //transition chain statistics, updated without locking so they don't slow
+    //down concurrent requests: an update can be lost, making them approximate
+    private volatile long executionCount=0;
+    private volatile long transitionCount=0;
+    private volatile int maxTransitionChainLength=0;
+    
     /**
      * <p>Get the resource from which the web flow is loaded.
      */
@@ -96,31 +349,451 @@ public class SimpleWebFlow implements WebFlow, InitializingBean, ApplicationCont
         this.webFlowResource=webFlowResource;
     }
     
+    /**
+     * <p>Returns whether or not the flow definition is loaded when the
+     * flow is first used.
+     */
+    public boolean isLazy() {
+        return lazy;
+    }
+    
+    /**
+     * <p>Set whether or not the flow definition is loaded when the flow is
+     * first used instead of when this bean is initialized. Defaults to false.
+     */
+    public void setLazy(boolean lazy) {
+        this.lazy=lazy;
+    }
+    
+    /**
+     * <p>Returns the interval, in milliseconds, at which the flow definition
+     * source is checked for changes.
+     */
+    public long getReloadCheckInterval() {
+        return reloadCheckInterval;
+    }
+    
+    /**
+     * <p>Set the interval, in milliseconds, at which the flow definition source
+     * is checked for changes. Defaults to 0: no automatic reloading.
+     */
+    public void setReloadCheckInterval(long reloadCheckInterval) {
+        this.reloadCheckInterval=reloadCheckInterval;
+    }
+    
+    /**
+     * <p>Returns whether or not the flow is restarted when an event is signaled
+     * in a state that does not exist.
+     */
+    public boolean isRestartOnMissingState() {
+        return restartOnMissingState;
+    }
+    
+    /**
+     * <p>Set whether or not the flow is restarted when an event is signaled in a
+     * state that does not exist, instead of throwing a <code>NavigationException</code>.
+     * Defaults to false.
+     */
+    public void setRestartOnMissingState(boolean restartOnMissingState) {
+        this.restartOnMissingState=restartOnMissingState;
+    }
+    
+    /**
+     * <p>Returns whether or not sub flows without model mapper are inlined
+     * into this flow.
+     */
+    public boolean isInlineSubFlows() {
+        return inlineSubFlows;
+    }
+    
+    /**
+     * <p>Set whether or not sub flows without model mapper are inlined into
+     * this flow once the application context has been refreshed. Defaults
+     * to false.
+     */
+    public void setInlineSubFlows(boolean inlineSubFlows) {
+        this.inlineSubFlows=inlineSubFlows;
+    }
+    
+    /**
+     * <p>Get the maximum number of state transitions done while handling
+     * a single request.
+     */
+    public int getMaxTransitions() {
+        return maxTransitions;
+    }
+    
+    /**
+     * <p>Set the maximum number of state transitions done while handling
+     * a single request. Defaults to {@link #DEFAULT_MAX_TRANSITIONS}.
+     */
+    public void setMaxTransitions(int maxTransitions) {
+        this.maxTransitions=maxTransitions;
+    }
+    
+    /**
+     * <p>Get the analyzer used to verify the flow definition once it is loaded.
+     */
+    public WebFlowAnalyzer getAnalyzer() {
+        return analyzer;
+    }
+    
+    /**
+     * <p>Set the analyzer used to verify the flow definition once it is loaded.
+     * Set to null to skip flow verification.
+     */
+    public void setAnalyzer(WebFlowAnalyzer analyzer) {
+        this.analyzer=analyzer;
+    }
+    
+    /**
+     * <p>Get the reader used to read and compile the XML flow definition.
+     */
+    public WebFlowDefinitionReader getDefinitionReader() {
+        return definitionReader;
+    }
+    
+    /**
+     * <p>Set the reader used to read and compile the XML flow definition.
+     * Defaults to a {@link SaxWebFlowDefinitionReader} shared by all flows.
+     */
+    public void setDefinitionReader(WebFlowDefinitionReader definitionReader) {
+        this.definitionReader=definitionReader;
+    }
+    
+    /**
+     * <p>Returns whether or not an up to date binary flow definition is
+     * loaded instead of the XML definition when available.
+     */
+    public boolean isUseBinaryDefinition() {
+        return useBinaryDefinition;
+    }
+    
+    /**
+     * <p>Set whether or not an up to date binary flow definition is
+     * loaded instead of the XML definition when available. Defaults to true.
+     */
+    public void setUseBinaryDefinition(boolean useBinaryDefinition) {
+        this.useBinaryDefinition=useBinaryDefinition;
+    }
+    
     public void afterPropertiesSet() throws Exception {
-        load();
+        if (webFlowDef!=null) {
+            analyze(webFlowDef);
+        }
+        else if (isLazy()) {
+            if (webFlowResource==null || !webFlowResource.exists()) {
+                throw new WebFlowException("web flow resource " + webFlowResource + " does not exist");
+            }
+        }
+        else {
+            load();
+        }
+        
+        if (reloadCheckInterval>0 && webFlowResource!=null) {
+            if (webFlowDef!=null && sourceChecksum==-1) {
+                //definition set without the checksum of its source, changes are
+                //detected from now on
+                sourceChecksum=BinaryWebFlowDefinitionFormat.checksum(readSource());
+            }
+            reloadTask=new TimerTask() {
+                public void run() {
+                    try {
+                        checkForReload();
+                    }
+                    catch (RuntimeException e) {
+                        //an exception would stop the timer shared by all flows
+                        if (log.isErrorEnabled()) {
+                            log.error("Cannot check web flow resource " + webFlowResource + " for changes", e);
+                        }
+                    }
+                }
+            };
+            scheduleReloadTask(reloadTask, reloadCheckInterval);
+        }
+    }
+    
+    /**
+     * <p>Stop checking the flow definition source for changes.
+     */
+    public void destroy() {
+        if (reloadTask!=null) {
+            cancelReloadTask(reloadTask);
+            reloadTask=null;
+        }
+    }
+    
+    /**
+     * <p>Schedule given task on the reload timer, creating the timer if necessary.
+     */
+    private static synchronized void scheduleReloadTask(TimerTask task, long interval) {
+        if (reloadTimer==null) {
+            reloadTimer=new Timer(true);
+        }
+        reloadTimer.schedule(task, interval, interval);
+        reloadTaskCount++;
+    }
+    
+    /**
+     * <p>Cancel given task, scheduled on the reload timer. The timer is
+     * cancelled together with its last task.
+     */
+    private static synchronized void cancelReloadTask(TimerTask task) {
+        task.cancel();
+        if (--reloadTaskCount==0) {
+            reloadTimer.cancel();
+            reloadTimer=null;
+        }
+    }
+    
+    /**
+     * <p>Returns whether or not the timer checking flow definition sources for
+     * changes is running.
+     */
+    static synchronized boolean isReloadTimerRunning() {
+        return reloadTimer!=null;
+    }
+    
+    /**
+     * <p>Verify given flow definition using the configured analyzer, if any.
+     * 
+     * @throws WebFlowException when the flow definition contains errors
+     */
+    protected void analyze(WebFlowDefinition def) throws WebFlowException {
+        if (analyzer!=null) {
+            analyzer.analyze(def, appCtx);
+        }
+    }
+    
+    /**
+     * <p>Load and verify the web flow definition from the resource specified
+     * by the "webFlowResource" property. This can also be used to reload the
+     * flow definition at any time: the new definition replaces the current one
+     * once it has been loaded and verified. When loading fails, the current
+     * definition remains in use.
+     */
+    public void load() throws WebFlowException {
+        WebFlowDefinition def=loadDefinition();
+        analyze(def);
+        publish(def);
+    }
+    
+    /**
+     * <p>Make given verified flow definition the current definition of this flow.
+     */
+    private void publish(WebFlowDefinition def) throws WebFlowException {
+        synchronized (loadMonitor) {
+            webFlowDef=contextRefreshed ? link(def) : def;
+            compiledDef=def;
+        }
+    }
+    
+    /**
+     * <p>Link given flow definition with the beans it references, inlining sub
+     * flows if necessary. Returns the definition to execute.
+     */
+    private WebFlowDefinition link(WebFlowDefinition def) throws WebFlowException {
+        if (isInlineSubFlows()) {
+            def=new SubFlowInliner().inline(def, this, appCtx);
+        }
+        resolveBeans(def);
+        return def;
+    }
+    
+    /**
+     * <p>Reload the flow definition if its source changed since it was last
+     * loaded. Called periodically when the "reloadCheckInterval" is set. Problems
+     * are logged: the current definition then remains in use.
+     */
+    protected void checkForReload() {
+        if (webFlowDef==null) {
+            return; //lazy flow that has not been loaded yet
+        }
+        try {
+            byte[] source=readSource();
+            if (BinaryWebFlowDefinitionFormat.checksum(source)!=sourceChecksum) {
+                WebFlowDefinition def=loadDefinition(source);
+                analyze(def);
+                publish(def);
+                
+                if (log.isInfoEnabled()) {
+                    log.info("Reloaded web flow '" + def.getName() + "' from " + webFlowResource);
+                }
+            }
+        }
+        catch (WebFlowException e) {
+            if (log.isErrorEnabled()) {
+                log.error("Cannot reload web flow from " + webFlowResource + ", current definition remains in use", e);
+            }
+        }
     }
     
     /**
      * <p>Load the web flow definition from the resource specified by
      * the "webFlowResource" property.
+     * 
+     * @return the loaded flow definition
+     * @throws WebFlowException when the flow definition cannot be loaded
      */
-    public void load() throws WebFlowException {
+    protected WebFlowDefinition loadDefinition() throws WebFlowException {
+        return loadDefinition(readSource());
+    }
+    
+    /**
+     * <p>Read the flow definition source from the "webFlowResource".
+     */
+    private byte[] readSource() throws WebFlowException {
+        try {
+            return FileCopyUtils.copyToByteArray(webFlowResource.getInputStream());
+        }
+        catch (IOException e) {
+        	throw new WebFlowException("cannot load web flow: " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * <p>Load the web flow definition from given source, read from the
+     * "webFlowResource".
+     */
+    private WebFlowDefinition loadDefinition(byte[] source) throws WebFlowException {
         try {
             if (log.isInfoEnabled()) {
                 log.info("Loading web flow from " + webFlowResource);
             }
             
-            SAXBuilder builder=new SAXBuilder();
-            builder.setValidation(true);
-            builder.setEntityResolver(new WebFlowDtdResolver());
-            webFlowDef=builder.build(webFlowResource.getInputStream());
+            WebFlowDefinition def=null;
+            if (isUseBinaryDefinition()) {
+                def=loadBinaryDefinition(source);
+            }
+            if (def==null) {
+                def=parse(source);
+            }
+            sourceChecksum=BinaryWebFlowDefinitionFormat.checksum(source);
+            return def;
+        }
+        catch (IOException e) {
+        	throw new WebFlowException("cannot load web flow: " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * <p>Load the binary flow definition compiled from given XML flow definition
+     * source. The binary definition is expected next to the XML definition, e.g.
+     * "search-flow.wfc" for "search-flow.xml". Returns null when there is no
+     * such binary definition or when it is stale.
+     * 
+     * @param source the XML flow definition
+     * @return the flow definition or null if no up to date binary definition is available
+     * @throws IOException when the binary definition cannot be read
+     */
+    protected WebFlowDefinition loadBinaryDefinition(byte[] source) throws IOException {
+        Resource binaryResource=null;
+        try {
+            binaryResource=webFlowResource.createRelative(BinaryWebFlowDefinitionFormat.getBinaryFileName(webFlowResource.getFilename()));
+        }
+        catch (IOException e) {
+            //resource does not support relative resources
+        }
+        catch (IllegalStateException e) {
+            //resource does not have a filename
+        }
+        if (binaryResource==null || !binaryResource.exists()) {
+            return null;
+        }
+        
+        InputStream in=binaryResource.getInputStream();
+        try {
+            WebFlowDefinition def=new BinaryWebFlowDefinitionFormat().read(in, source);
+            if (def==null) {
+                if (log.isInfoEnabled()) {
+                    log.info("Binary web flow definition " + binaryResource + " is stale, falling back to XML definition");
+                }
+            }
+            else if (log.isDebugEnabled()) {
+                log.debug("Loaded binary web flow definition from " + binaryResource);
+            }
+            return def;
+        }
+        finally {
+            in.close();
+        }
+    }
+    
+    /**
+     * <p>Read and compile given XML flow definition, which should conform
+     * to the web flow DTD, using the configured definition reader.
+     * 
+     * @param source the XML flow definition
+     * @return the compiled flow definition
+     * @throws WebFlowException when the definition cannot be read or is not a valid flow
+     */
+    protected WebFlowDefinition parse(byte[] source) throws WebFlowException {
+        try {
+            return getDefinitionReader().read(new ByteArrayInputStream(source));
         }
         catch (IOException e) {
         	throw new WebFlowException("cannot load web flow: " + e.getMessage(), e);
         }
-        catch (JDOMException e) {
-        	throw new WebFlowException("problem parsing web flow definition: " + e.getMessage(), e);
+    }
+    
+    /**
+     * <p>Returns the compiled definition of this web flow. A lazy flow loads
+     * its definition the first time this is called.
+     */
+    public WebFlowDefinition getWebFlowDefinition() throws WebFlowException {
+        WebFlowDefinition def=webFlowDef;
+        if (def==null && isLazy()) {
+            synchronized (loadMonitor) {
+                def=webFlowDef;
+                if (def==null) {
+                    def=loadDefinition();
+                    analyze(def);
+                    publish(def);
+                    def=webFlowDef;
+                }
+            }
         }
+        return def;
+    }
+    
+    /**
+     * <p>Set an already compiled definition for this web flow. The flow
+     * will then not load its definition from the "webFlowResource".
+     */
+    public void setWebFlowDefinition(WebFlowDefinition webFlowDef) {
+        this.webFlowDef=webFlowDef;
+        this.compiledDef=webFlowDef;
+    }
+    
+    /**
+     * <p>Returns the checksum of the flow definition source the current
+     * definition was loaded from, or -1 if unknown.
+     * 
+     * @see BinaryWebFlowDefinitionFormat#checksum(byte[])
+     */
+    public long getSourceChecksum() {
+        return sourceChecksum;
+    }
+    
+    /**
+     * <p>Set the checksum of the flow definition source the definition set
+     * using the "webFlowDefinition" property was loaded from. The flow
+     * definition is reloaded when the source no longer matches it. The
+     * {@link WebFlowPreloader} sets this, so changes made after a flow was
+     * preloaded are not missed.
+     * 
+     * @see BinaryWebFlowDefinitionFormat#checksum(byte[])
+     */
+    public void setSourceChecksum(long sourceChecksum) {
+        this.sourceChecksum=sourceChecksum;
+    }
+    
+    /**
+     * <p>Returns the definition of this web flow as it was loaded, before sub flows
+     * were inlined. Returns null as long as a lazy flow has not been loaded.
+     */
+    public WebFlowDefinition getCompiledDefinition() {
+        return compiledDef;
     }
     
     public ApplicationContext getApplicationContext() {
@@ -131,11 +804,118 @@ public class SimpleWebFlow implements WebFlow, InitializingBean, ApplicationCont
         this.appCtx=applicationContext;
     }
     
+    /**
+     * <p>Returns the registry used to find parent flows. Defaults to the registry
+     * bean defined in the application context or, if there is none, a private
+     * registry.
+     */
+    public WebFlowRegistry getWebFlowRegistry() {
+        if (webFlowRegistry==null) {
+            webFlowRegistry=WebFlowRegistry.lookup(getApplicationContext());
+        }
+        return webFlowRegistry;
+    }
+    
+    /**
+     * <p>Set the registry used to find parent flows.
+     */
+    public void setWebFlowRegistry(WebFlowRegistry webFlowRegistry) {
+        this.webFlowRegistry=webFlowRegistry;
+    }
+    
+    /**
+     * <p>Resolve all bean references of the flow when the application context
+     * containing this flow has been refreshed.
+     */
+    public void onApplicationEvent(ApplicationEvent event) {
+        if (event instanceof ContextRefreshedEvent && ((ContextRefreshedEvent)event).getApplicationContext()==appCtx) {
+            synchronized (loadMonitor) {
+                contextRefreshed=true;
+                if (compiledDef!=null) {
+                    //a lazy flow links its definition once it is loaded
+                    webFlowDef=link(compiledDef);
+                }
+            }
+        }
+    }
+    
+    /**
+     * <p>Resolve the action, sub flow and model mapper beans referenced by the
+     * flow definition. This verifies that all referenced beans exist and are of
+     * the correct type, and caches the singleton beans for use during flow
+     * execution. It is called each time the application context containing this
+     * flow is refreshed, but can also be called explicitly, e.g. after the flow
+     * definition changed.
+     * 
+     * @throws WebFlowException when a referenced bean does not exist or has
+     *         an incorrect type
+     */
+    public void resolveBeans() throws WebFlowException {
+        resolveBeans(getWebFlowDefinition());
+    }
+    
+    private void resolveBeans(WebFlowDefinition def) throws WebFlowException {
+        Map beans=new HashMap();
+        List states=def.getStates();
+        for (int i=0; i<states.size(); i++) {
+            State state=(State)states.get(i);
+            if (state instanceof ActionState) {
+                ActionState actionState=(ActionState)state;
+                for (int j=0; j<actionState.getActionCount(); j++) {
+                    resolveBean(def, beans, state, actionState.getActionBeanName(j), Action.class);
+                }
+            }
+            else if (state instanceof FlowState) {
+                FlowState flowState=(FlowState)state;
+                resolveBean(def, beans, state, flowState.getSubFlowName(), SimpleWebFlow.class);
+                if (flowState.getModelMapperName()!=null) {
+                    resolveBean(def, beans, state, flowState.getModelMapperName(), ModelMapper.class);
+                }
+            }
+        }
+        singletonBeans=beans;
+        
+        if (log.isDebugEnabled()) {
+            log.debug("Resolved " + beans.size() + " singleton bean references of web flow '" + def.getName() + "'");
+        }
+    }
+    
+    /**
+     * <p>Verify the bean with given name and add it to given map if it is a singleton.
+     */
+    private void resolveBean(WebFlowDefinition def, Map beans, State state, String beanName, Class requiredType) throws WebFlowException {
+        if (!appCtx.containsBean(beanName)) {
+            throw new WebFlowException("bean '" + beanName + "' referenced by state '" + state.getId() + "' of web flow '" + def.getName() + "' does not exist");
+        }
+        if (appCtx.isSingleton(beanName)) {
+            Object bean=appCtx.getBean(beanName);
+            if (!requiredType.isInstance(bean)) {
+                throw new WebFlowException(
+                        "bean '" + beanName + "' referenced by state '" + state.getId() + "' of web flow '" + def.getName() +
+                        "' should be of type '" + requiredType.getName() + "'");
+            }
+            beans.put(beanName, bean);
+        }
+    }
+    
+    /**
+     * <p>Get the bean with given name, referenced by the flow definition. Singleton
+     * beans are served from the cache built by {@link #resolveBeans()}, all other beans
+     * are obtained from the application context.
+     */
+    protected Object getBean(String beanName) throws BeansException {
+        Object bean=singletonBeans.get(beanName);
+        if (bean==null) {
+            bean=appCtx.getBean(beanName);
+        }
+        return bean;
+    }
+    
     /**
      * <p>Return the name of this web flow. This is configured in the flow definition.
      */
     public String getName() {
-        return webFlowDef.getRootElement().getAttributeValue("name");
+        return getWebFlowDefinition().getName();
     }
     
     public ModelAndView start(HttpServletRequest request, HttpServletResponse response, WebFlowMementoStack mementos) throws WebFlowException {
@@ -143,9 +923,10 @@ public class SimpleWebFlow implements WebFlow, InitializingBean, ApplicationCont
             log.info("Starting web flow '" + getName() + "'");
         }
         
-        //find start-state and execute it
-        Element startState=webFlowDef.getRootElement().getChild("start-state");
-        return executeState(request, response, startState.getAttributeValue("state"), mementos);
+        //execute the start state
+        WebFlowExecution execution=createExecution(request, response, mementos);
+        execution.transitionTo(this, execution.getDefinition(this).getStartState());
+        return run(execution);
     }
     
     public ModelAndView execute(HttpServletRequest request, HttpServletResponse response, String state, String event, WebFlowMementoStack mementos) throws WebFlowException {
@@ -153,157 +934,197 @@ public class SimpleWebFlow implements WebFlow, InitializingBean, ApplicationCont
             log.info("Executing event '" + event + "' in state '" + state + "' of web flow '" + getName() + "'");
         }
         
+        WebFlowExecution execution=createExecution(request, response, mementos);
+        
         //find state
-        Element stateDef=findStateDef(state);
-        if (stateDef==null) {
-            throw new NavigationException("cannot find state '" + state + "' in web flow '" + getName() + "'", state, event, mementos);
+        State currentState=findState(execution, state);
+        if (currentState==null) {
+            handleMissingState(execution, state, event);
         }
-        
-        //trigger event
-        Element triggeredTransitionDef=findTransitionDef(stateDef, event);
-        if (triggeredTransitionDef==null) {
-            throw new NavigationException("cannot find transition for event '" + event + "' in state '" + state + "' of flow '" + getName() + "'", state, event, mementos);
+        else {
+            //trigger event
+            signalEvent(execution, currentState, event);
         }
-        
-        return executeState(request, response, triggeredTransitionDef.getAttributeValue("to"), mementos);
+        return run(execution);
     }
     
     /**
-     * <p>Find the state definition for specified state. Returns null if
-     * the state cannot be found.
+     * <p>Find the state with given id in the flow definition used by given
+     * execution. Returns null if the state cannot be found.
      */
-    protected Element findStateDef(String state) {
-        List stateDefs=webFlowDef.getRootElement().getChildren();
-        for (int i=0; i<stateDefs.size(); i++) {
-            Element stateDef=(Element)stateDefs.get(i);
-            if (state.equals(stateDef.getAttributeValue("id"))) {
-                return stateDef;
-            }
+    protected State findState(WebFlowExecution execution, String state) {
+        return execution.getDefinition(this).getState(state);
+    }
+    
+    /**
+     * <p>Handle an event signaled in a state that does not exist, typically
+     * because the flow definition was reloaded. Depending on the "restartOnMissingState"
+     * property, this either throws a <code>NavigationException</code> or schedules
+     * the start state of the flow.
+     * 
+     * @throws NavigationException when the flow is not restarted
+     */
+    protected void handleMissingState(WebFlowExecution execution, String state, String event) throws WebFlowException {
+        if (!isRestartOnMissingState()) {
+            throw new NavigationException("cannot find state '" + state + "' in web flow '" + getName() + "'", state, event, execution.getMementos());
+        }
+        
+        if (log.isWarnEnabled()) {
+            log.warn("Cannot find state '" + state + "' in web flow '" + getName() + "': restarting the flow");
         }
-        return null;
+        execution.transitionTo(this, execution.getDefinition(this).getStartState());
     }
     
     /**
-     * <p>Find the transition definition linked with specified event in
-     * given state definition. Returns null if there is no such transition.
+     * <p>Create the execution context for a request handled by this flow.
      */
-    protected Element findTransitionDef(Element stateDef, String event) {
-        List transitionDefs=stateDef.getChildren("transition");
-        for (int i=0; i<transitionDefs.size(); i++) {
-            Element transitionDef=(Element)transitionDefs.get(i);
-            if (event.equals(transitionDef.getAttributeValue("name"))) {
-                return transitionDef;
-            }
+    protected WebFlowExecution createExecution(HttpServletRequest request, HttpServletResponse response, WebFlowMementoStack mementos) {
+        return new WebFlowExecution(request, response, mementos, getMaxTransitions());
+    }
+    
+    /**
+     * <p>Returns whether or not this flow can handle given event in the state
+     * with given id: the state exists and the event triggers one of its
+     * transitions or a global transition of the flow. This is a constant time
+     * check that throws no navigation exception, so it can be used to find the
+     * flow on a memento stack that should handle an event.
+     * 
+     * @see WebFlowDefinition#canHandle(String, String)
+     */
+    public boolean canHandle(String state, String event) throws WebFlowException {
+        return getWebFlowDefinition().canHandle(state, event);
+    }
+    
+    /**
+     * <p>Signal given event in given state of this flow: schedule the
+     * target state of the transition triggered by the event, which can
+     * be a global transition.
+     * 
+     * @throws NavigationException when the event does not trigger a transition
+     */
+    protected void signalEvent(WebFlowExecution execution, State state, String event) throws WebFlowException {
+        Transition triggeredTransition=execution.getDefinition(this).getTransition(state, event);
+        if (triggeredTransition==null) {
+            throw new NavigationException("cannot find transition for event '" + event + "' in state '" + state.getId() + "' of flow '" + getName() + "'", state.getId(), event, execution.getMementos());
         }
-        return null;
+        execution.transitionTo(this, triggeredTransition.getTargetState());
     }
-
+    
     /**
-     * <p>Execute specified state.
+     * <p>Run given execution: execute scheduled states, possibly of other flows,
+     * until a state no longer schedules a next state.
      * 
-     * @param request current HTTP request
-     * @param response current HTTP response
-     * @param state the state to execute
-     * @param mementos flow call stack
+     * @param execution the execution context
+     * @return the model and view to render, can be null
      * @throws WebFlowException in case of error
      */
-    protected ModelAndView executeState(HttpServletRequest request, HttpServletResponse response, String state, WebFlowMementoStack mementos) throws WebFlowException {
-        Element stateDef=findStateDef(state);
-        if (stateDef==null) {
-            throw new NavigationException("cannot find state '" + state + "' in web flow '" + getName() + "'", state, null, mementos);
+    protected ModelAndView run(WebFlowExecution execution) throws WebFlowException {
+        try {
+            while (execution.hasNextState()) {
+                SimpleWebFlow flow=execution.getNextFlow();
+                flow.executeState(execution, execution.takeNextState());
+            }
+            return execution.getModelAndView();
+        }
+        finally {
+            recordTransitionChain(execution.getTransitionCount());
         }
-        
-    	return executeState(request, response, stateDef, mementos);
     }
     
+    /**
+     * <p>Update the transition chain statistics of this flow.
+     */
+    private void recordTransitionChain(int length) {
+        executionCount++;
+        transitionCount+=length;
+        if (length>maxTransitionChainLength) {
+            maxTransitionChainLength=length;
+        }
+        
+        if (log.isDebugEnabled()) {
+            log.debug("Request handled by web flow '" + getName() + "' did " + length + " state transitions");
+        }
+    }
+
     /**
      * <p>Execute given state.
      * 
-     * @param request current HTTP request
-     * @param response current HTTP response
-     * @param stateDef definition of the state to execute
-     * @param mementos flow call stack
+     * @param execution the execution context
+     * @param state the state to execute
      * @throws WebFlowException in case of error
      */
-    protected ModelAndView executeState(HttpServletRequest request, HttpServletResponse response, Element stateDef, WebFlowMementoStack mementos) throws WebFlowException {
-    	String state=stateDef.getAttributeValue("id");
-        mementos.setCurrentState(state);
+    protected void executeState(WebFlowExecution execution, State state) throws WebFlowException {
+        execution.getMementos().setCurrentState(state.getId());
 
-        if ("view-state".equals(stateDef.getName())) {
-        	return executeViewState(request, response, stateDef, mementos);
+        if (state instanceof ViewState) {
+        	executeViewState(execution, (ViewState)state);
         }
-        else if ("action-state".equals(stateDef.getName())) {
-        	return executeActionState(request, response, stateDef, mementos);
+        else if (state instanceof ActionState) {
+        	executeActionState(execution, (ActionState)state);
         }
-        else if ("flow-state".equals(stateDef.getName())) {
-        	return executeFlowState(request, response, stateDef, mementos);
+        else if (state instanceof DecisionState) {
+        	executeDecisionState(execution, (DecisionState)state);
         }
-        else if ("end-state".equals(stateDef.getName())) {
-        	return executeEndState(request, response, stateDef, mementos);
+        else if (state instanceof FlowState) {
+        	executeFlowState(execution, (FlowState)state);
+        }
+        else if (state instanceof EndState) {
+        	executeEndState(execution, (EndState)state);
         }
         else {
-            throw new WebFlowException("unknown state type: " + stateDef.getName());
+            throw new WebFlowException("unknown state type: " + state.getClass().getName());
         }
     }
 
     /**
-     * <p>Execute given view state. This will return the model and view to render.
+     * <p>Execute given view state. This will set the model and view to render.
      * 
-     * @param request current HTTP request
-     * @param response current HTTP response
-     * @param stateDef definition of the state to execute
-     * @param mementos flow call stack
+     * @param execution the execution context
+     * @param state the state to execute
      * @throws WebFlowException in case of error
      */
-    protected ModelAndView executeViewState(HttpServletRequest request, HttpServletResponse response, Element stateDef, WebFlowMementoStack mementos) throws WebFlowException {
-        String viewStateView=stateDef.getAttributeValue("view");
+    protected void executeViewState(WebFlowExecution execution, ViewState state) throws WebFlowException {
+        String viewStateView=state.getView();
 
         if (log.isInfoEnabled()) {
-            log.info("Executing view state '" + stateDef.getAttributeValue("id") + "' of flow '" + getName() + "': displaying view '" + viewStateView + "'");
+            log.info("Executing view state '" + state.getId() + "' of flow '" + getName() + "': displaying view '" + viewStateView + "'");
         }
         
         if (viewStateView!=null) {
         	ModelAndView mav=new ModelAndView(viewStateView);
-        	mav.addAllObjects(mementos.getModel());
-        	return mav;
+        	mav.addAllObjects(execution.getMementos().getModel());
+        	execution.setModelAndView(mav);
         }
         else {
-        	return null;
+        	execution.setModelAndView(null);
         }
     }
 
     /**
      * <p>Execute given action state. This will execute all actions defined for
-     * the state untill a transition is triggered. Once that happens, a transition
-     * to the target state is done.
+     * the state untill a transition is triggered. Once that happens, the target
+     * state of the transition is scheduled for execution.
      * 
-     * @param request current HTTP request
-     * @param response current HTTP response
-     * @param stateDef definition of the state to execute
-     * @param mementos flow call stack
+     * @param execution the execution context
+     * @param state the state to execute
      * @throws WebFlowException in case of error
      */
-    protected ModelAndView executeActionState(HttpServletRequest request, HttpServletResponse response, Element stateDef, WebFlowMementoStack mementos) throws WebFlowException {
-        Element triggeredTransitionDef=null;
+    protected void executeActionState(WebFlowExecution execution, ActionState state) throws WebFlowException {
+        Transition triggeredTransition=null;
         
-        String state=stateDef.getAttributeValue("id");
-
         if (log.isInfoEnabled()) {
-            log.info("Executing action state '" + state + "' of flow '" + getName() + "'");
+            log.info("Executing action state '" + state.getId() + "' of flow '" + getName() + "'");
         }
 
         //execute all actions untill a transition is triggered
-        List actionDefs=stateDef.getChildren("action");
-        for (int i=0; i<actionDefs.size(); i++) {
-            Element actionDef=(Element)actionDefs.get(i);
-            String actionName=actionDef.getAttributeValue("name");
-            Action action=(Action)appCtx.getBean(actionDef.getAttributeValue("bean"));
+        for (int i=0; i<state.getActionCount(); i++) {
+            Action action=(Action)getBean(state.getActionBeanName(i));
             
             if (log.isDebugEnabled()) {
                 log.debug("Executing action '" + action + "'");
             }
             
-            String event=action.execute(request, response, mementos.peek().getModel());
+            String event=action.execute(execution.getRequest(), execution.getResponse(), execution.getMementos().peek().getModel());
             
             if (log.isDebugEnabled()) {
                 log.debug("Action '" + action + "' signaled event '" + event + "'");
@@ -313,81 +1134,117 @@ public class SimpleWebFlow implements WebFlow, InitializingBean, ApplicationCont
             	throw new WebFlowException("action '" + action + "' signaled an invalid null event");
             }
             
-            String realEvent=new StringBuffer(actionName).append('.').append(event).toString();
-            triggeredTransitionDef=findTransitionDef(stateDef, realEvent);
-            if (triggeredTransitionDef!=null) {
+            triggeredTransition=state.getActionTransition(i, event);
+            if (triggeredTransition!=null) {
                 if (log.isInfoEnabled()) {
                     log.info(
-                            "Action '" + action + "' triggered transition '" + triggeredTransitionDef.getAttributeValue("name") +
-                            "', switching to state '" + triggeredTransitionDef.getAttributeValue("to") + "'");
+                            "Action '" + action + "' triggered transition '" + triggeredTransition.getName() +
+                            "', switching to state '" + triggeredTransition.getTargetStateId() + "'");
                 }
                 
                 break;
             }
         }
         
-        if (triggeredTransitionDef==null) {
-            throw new WebFlowException("no transition was triggered during execution of action state " + state);
+        if (triggeredTransition==null) {
+            throw new WebFlowException("no transition was triggered during execution of action state " + state.getId());
         }
         
         //transition to the next state
-        return executeState(request, response, triggeredTransitionDef.getAttributeValue("to"), mementos);
+        execution.transitionTo(this, triggeredTransition.getTargetState());
+    }
+
+    /**
+     * <p>Execute given decision state. This evaluates the conditions of the
+     * state against the flow model and schedules the target state of the
+     * transition of the first condition that holds, or of the else transition
+     * when no condition holds.
+     * 
+     * @param execution the execution context
+     * @param state the state to execute
+     * @throws WebFlowException in case of error
+     */
+    protected void executeDecisionState(WebFlowExecution execution, DecisionState state) throws WebFlowException {
+        Transition triggeredTransition=state.getElseTransition();
+        Map model=execution.getMementos().getModel();
+        
+        for (int i=0; i<state.getConditionCount(); i++) {
+            if (state.getCondition(i).evaluate(model)) {
+                triggeredTransition=state.getThenTransition(i);
+                break;
+            }
+        }
+        
+        if (triggeredTransition==null) {
+            throw new WebFlowException("no condition of decision state '" + state.getId() + "' of flow '" + getName() + "' holds and it has no else transition");
+        }
+        
+        if (log.isInfoEnabled()) {
+            log.info(
+                    "Decision state '" + state.getId() + "' of flow '" + getName() + "' triggered transition '" +
+                    triggeredTransition.getName() + "', switching to state '" + triggeredTransition.getTargetStateId() + "'");
+        }
+        
+        execution.transitionTo(this, triggeredTransition.getTargetState());
     }
 
     /**
-     * <p>Execute given flow state. This will load and execute a sub flow and do the
-     * necessary mapping to the sub flow model.
+     * <p>Execute given flow state. This will load a sub flow, do the necessary
+     * mapping to the sub flow model and schedule the start state of the sub flow.
      * 
-     * @param request current HTTP request
-     * @param response current HTTP response
-     * @param stateDef definition of the state to execute
-     * @param mementos flow call stack
+     * @param execution the execution context
+     * @param state the state to execute
      * @throws WebFlowException in case of error
      */
-    protected ModelAndView executeFlowState(HttpServletRequest request, HttpServletResponse response, Element stateDef, WebFlowMementoStack mementos) throws WebFlowException {
+    protected void executeFlowState(WebFlowExecution execution, FlowState state) throws WebFlowException {
+        WebFlowMementoStack mementos=execution.getMementos();
+        
         //get the indicated sub flow
-        String subFlowName=stateDef.getAttributeValue("flow");
-        SimpleWebFlow subFlow=(SimpleWebFlow)appCtx.getBean(subFlowName);
+        String subFlowName=state.getSubFlowName();
+        SimpleWebFlow subFlow=(SimpleWebFlow)getBean(subFlowName);
         
         if (log.isInfoEnabled()) {
-            log.info("Executing flow state '" + stateDef.getAttributeValue("id") + "' of flow '" + getName() + "': starting sub flow '" + subFlow.getName() + "'");
+            log.info("Executing flow state '" + state.getId() + "' of flow '" + getName() + "': starting sub flow '" + subFlow.getName() + "'");
         }
         
         //setup a memento for the subflow & map data (if necessary)
         
         //do the necessary input mapping
         WebFlowMemento subFlowMemento=new WebFlowMemento(subFlowName);
-        if (stateDef.getAttributeValue("model-mapper")!=null) {
-            ModelMapper mapper=(ModelMapper)appCtx.getBean(stateDef.getAttributeValue("model-mapper"));
+        if (state.getModelMapperName()!=null) {
+            ModelMapper mapper=(ModelMapper)getBean(state.getModelMapperName());
             mapper.mapToSubFlow(mementos.getModel(), subFlowMemento.getModel());
         }
 
         //start the subflow
         mementos.push(subFlowMemento);
-        return subFlow.start(request, response, mementos);
+        execution.transitionTo(subFlow, execution.getDefinition(subFlow).getStartState());
     }
 
     /**
      * <p>Execute given end state. This terminates the flow and does the necessary
-     * mapping to the parent flow if there is one.
+     * mapping to the parent flow if there is one. The parent flow then continues
+     * using the id of the end state as event.
      * 
-     * @param request current HTTP request
-     * @param response current HTTP response
-     * @param stateDef definition of the state to execute
-     * @param mementos flow call stack
+     * @param execution the execution context
+     * @param state the state to execute
      * @throws WebFlowException in case of error
      */
-    protected ModelAndView executeEndState(HttpServletRequest request, HttpServletResponse response, Element stateDef, WebFlowMementoStack mementos) throws WebFlowException {
-    	ModelAndView mav=null;
-
+    protected void executeEndState(WebFlowExecution execution, EndState state) throws WebFlowException {
+        WebFlowMementoStack mementos=execution.getMementos();
+        
         if (log.isInfoEnabled()) {
-            log.info("Executing end state '" + stateDef.getAttributeValue("id") + "' of flow '" + getName() + "'");
+            log.info("Executing end state '" + state.getId() + "' of flow '" + getName() + "'");
         }
     	
-        String endStateView=stateDef.getAttributeValue("view");
+        String endStateView=state.getView();
         if (endStateView!=null) {
-            mav=new ModelAndView(endStateView);
+            ModelAndView mav=new ModelAndView(endStateView);
             mav.addAllObjects(mementos.getModel());
+            execution.setModelAndView(mav);
+        }
+        else {
+        	execution.setModelAndView(null);
         }
         
         //this flow is finished, remove its memento
@@ -401,22 +1258,63 @@ public class SimpleWebFlow implements WebFlow, InitializingBean, ApplicationCont
                         "' using event '" + poppedMemento.getCurrentState() + "'");
             }
             
-            //do output mapping if necessary
-            Element parentStateDef=((SimpleWebFlow)mementos.getFlow(getApplicationContext())).findStateDef(mementos.getCurrentState());
-            if (parentStateDef.getAttributeValue("model-mapper")!=null) {
-                ModelMapper mapper=(ModelMapper)appCtx.getBean(parentStateDef.getAttributeValue("model-mapper"));
-                mapper.mapFromSubFlow(mementos.getModel(), poppedMemento.getModel());
+            WebFlow parent=mementos.getFlow(getWebFlowRegistry());
+            if (parent instanceof SimpleWebFlow) {
+                SimpleWebFlow parentFlow=(SimpleWebFlow)parent;
+                State parentState=parentFlow.findState(execution, mementos.getCurrentState());
+                if (!(parentState instanceof FlowState)) {
+                    //the parent flow definition was reloaded and no longer has the flow state
+                    parentFlow.handleMissingState(execution, mementos.getCurrentState(), poppedMemento.getCurrentState());
+                    return;
+                }
+                
+                //do output mapping if necessary
+                String modelMapperName=((FlowState)parentState).getModelMapperName();
+                if (modelMapperName!=null) {
+                    ModelMapper mapper=(ModelMapper)parentFlow.getBean(modelMapperName);
+                    mapper.mapFromSubFlow(mementos.getModel(), poppedMemento.getModel());
+                }
+                
+                parentFlow.signalEvent(execution, parentState, poppedMemento.getCurrentState());
+            }
+            else {
+                //not a flow we can continue in this execution, let it handle the event itself
+                execution.setModelAndView(parent.execute(
+                        execution.getRequest(), execution.getResponse(), mementos.getCurrentState(), poppedMemento.getCurrentState(), mementos));
             }
-            
-            mav=mementos.getFlow(getApplicationContext()).execute(request, response, mementos.getCurrentState(), poppedMemento.getCurrentState(), mementos);
         }
-        
-        return mav;
+    }
+    
+    /**
+     * <p>Returns the number of requests (start or execute calls) handled by this flow.
+     * The transition chain statistics are approximate: they are updated without
+     * locking, so concurrent requests can occasionally lose an update.
+     */
+    public long getExecutionCount() {
+        return executionCount;
+    }
+    
+    /**
+     * <p>Returns the average number of state transitions done by a request
+     * handled by this flow: the average transition chain length.
+     */
+    public double getAverageTransitionChainLength() {
+        long executions=executionCount;
+        return executions==0 ? 0d : ((double)transitionCount) / executions;
+    }
+    
+    /**
+     * <p>Returns the largest number of state transitions done by a single request
+     * handled by this flow: the longest transition chain.
+     */
+    public int getMaxTransitionChainLength() {
+        return maxTransitionChainLength;
     }
 
     public String toString() {
         StringBuffer res=new StringBuffer();
-        res.append("WebFlow '").append(getName()).append("' (").append(getWebFlowResource()).append(")");
+        WebFlowDefinition def=webFlowDef;
+        res.append("WebFlow '").append(def==null ? "<not loaded>" : def.getName()).append("' (").append(getWebFlowResource()).append(")");
         return res.toString();
     }
 
@@ -0,0 +1,90 @@
+package com.ervacon.springframework.web.servlet.mvc.webflow;
+
+/*
+ * (c) Copyright Ervacon 2004-2005.
+ * All Rights Reserved.
+ */
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Base class of all states in a compiled web flow definition. A state
+ * is identified by an id that is unique within its flow and has a number
+ * of transitions, indexed by name, leading on to other states.
+ *
+ * <p>States are immutable once the containing {@link WebFlowDefinition}
+ * has been constructed, so they can be safely shared between threads.
+ *
+ * @see com.ervacon.springframework.web.servlet.mvc.webflow.WebFlowDefinition
+ * @see com.ervacon.springframework.web.servlet.mvc.webflow.Transition
+ *
+ * @author Erwin Vervaet
+ */
+public abstract class State {
+
+	private final String id;
+	private final List transitions;
+	private final Map transitionsByName;
+
+	/**
+	 * <p>Create a new state.
+	 *
+	 * @param id unique id of the state in its flow
+	 * @param transitions transitions leaving the state, can be null
+	 */
+	protected State(String id, Transition[] transitions) {
+		this.id=id;
+		if (transitions==null) {
+			transitions=new Transition[0];
+		}
+		this.transitions=Collections.unmodifiableList(Arrays.asList((Transition[])transitions.clone()));
+		this.transitionsByName=new HashMap();
+		for (int i=0; i<transitions.length; i++) {
+			//the first transition with a particular name wins
+			if (!transitionsByName.containsKey(transitions[i].getName())) {
+				transitionsByName.put(transitions[i].getName(), transitions[i]);
+			}
+		}
+	}
+
+	/**
+	 * <p>Returns the id of this state, unique within its flow.
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * <p>Returns all transitions of this state, in definition order.
+	 */
+	public List getTransitions() {
+		return transitions;
+	}
+
+	/**
+	 * <p>Find the transition with given name. Returns null if there is
+	 * no such transition.
+	 */
+	public Transition getTransition(String name) {
+		return (Transition)transitionsByName.get(name);
+	}
+
+	/**
+	 * <p>Resolve the target states of all transitions of this state.
+	 * Called once while the containing flow definition is constructed.
+	 */
+	void resolve(WebFlowDefinition definition) throws WebFlowException {
+		for (int i=0; i<transitions.size(); i++) {
+			((Transition)transitions.get(i)).resolve(definition);
+		}
+	}
+
+	public String toString() {
+		return getClass().getName().substring(getClass().getName().lastIndexOf('.')+1) + " '" + id + "'";
+	}
+
+}
@@ -24,6 +24,17 @@ import org.springframework.web.servlet.ModelAndView;
  * <p>The strategy employed by this exception resolver is to retry the
  * request after popping the top flow from the flow memento stack. This is
  * not a 100% full proof technique, but it does help in a lot of cases.
+ * Flows that are a {@link SimpleWebFlow} are asked whether they can handle
+ * the event before they are retried, so only the flow that can handle it
+ * is executed. Other flows are simply executed and popped when they fail.
+ * 
+ * <p>When the request is retried successfully, the resulting flow state is
+ * stored in the flow state store of the web flow controller, like the flow
+ * state resulting from any other request.
+ * 
+ * <p>Note that the <code>WebFlowController</code> can also resolve such events
+ * itself, before a navigation exception is generated: see its
+ * "resolveEventsInParentFlows" property.
  * 
  * @see com.ervacon.springframework.web.servlet.mvc.webflow.NavigationException
  * 
@@ -34,10 +45,29 @@ public class SubFlowBackNavigationExceptionResolver implements HandlerExceptionR
 	protected final Log log=LogFactory.getLog(SubFlowBackNavigationExceptionResolver.class);
 	
 	private ApplicationContext appCtx;
+	private WebFlowRegistry webFlowRegistry;
 	
 	public void setApplicationContext(ApplicationContext applicationContext) throws BeansException {
 		this.appCtx=applicationContext;
 	}
+	
+	/**
+	 * <p>Returns the registry used to obtain flows. Defaults to the registry bean
+	 * defined in the application context or, if there is none, a private registry.
+	 */
+	public WebFlowRegistry getWebFlowRegistry() {
+		if (webFlowRegistry==null) {
+			webFlowRegistry=WebFlowRegistry.lookup(appCtx);
+		}
+		return webFlowRegistry;
+	}
+	
+	/**
+	 * <p>Set the registry used to obtain flows.
+	 */
+	public void setWebFlowRegistry(WebFlowRegistry webFlowRegistry) {
+		this.webFlowRegistry=webFlowRegistry;
+	}
 
 	public ModelAndView resolveException(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
 		if (handler instanceof WebFlowController && ex instanceof NavigationException) {
@@ -48,12 +78,27 @@ public class SubFlowBackNavigationExceptionResolver implements HandlerExceptionR
 				}
 
 				while (!nex.getMementos().empty()) {
+					WebFlow flow=nex.getMementos().getFlow(getWebFlowRegistry());
+					if (flow instanceof SimpleWebFlow && !((SimpleWebFlow)flow).canHandle(nex.getState(), nex.getEvent())) {
+						if (log.isDebugEnabled()) {
+							log.debug("Flow '" + nex.getMementos().getFlowName() + "' cannot handle event '" + nex.getEvent() + "' in state '" + nex.getState() + "', popping it and trying parent flow");
+						}
+						
+						nex.getMementos().pop();
+						continue;
+					}
+					
 					try {
 						if (log.isDebugEnabled()) {
 							log.debug("Trying to execute event '" + nex.getEvent() + "' in state '" + nex.getState() + "' of flow '" + nex.getMementos().getFlowName() + "'");
 						}
 						
-						return nex.getMementos().getFlow(appCtx).execute(request, response, nex.getState(), nex.getEvent(), nex.getMementos());
+						ModelAndView mav=flow.execute(request, response, nex.getState(), nex.getEvent(), nex.getMementos());
+						if (nex.getFlowId()==null) {
+							return mav;
+						}
+						//store the resulting flow state, like the controller does
+						return ((WebFlowController)handler).completeRequest(request, nex.getFlowId(), nex.getMementos(), mav);
 					}
 					catch (NavigationException e) {
 						if (log.isDebugEnabled()) {
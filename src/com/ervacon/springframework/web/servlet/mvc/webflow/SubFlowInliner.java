@@ -0,0 +1,241 @@
+package com.ervacon.springframework.web.servlet.mvc.webflow;
+
+/*
+ * (c) Copyright Ervacon 2004-2005.
+ * All Rights Reserved.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.springframework.beans.factory.BeanFactory;
+
+/**
+ * <p>Inlines sub flows into the compiled definition of their parent flow. A flow
+ * state is replaced by the states of its sub flow: transitions to the flow state
+ * go to the start state of the sub flow instead, and transitions to an end state
+ * of the sub flow go directly to the target of the corresponding transition of
+ * the flow state. Executing an inlined sub flow needs no separate memento and no
+ * sub flow bean lookup.
+ *
+ * <p>Inlined states keep their id, so views see the same state names as when
+ * the sub flow is executed normally. A flow state is only inlined when:
+ * <ul>
+ * 	<li>it has no model mapper,</li>
+ * 	<li>its sub flow is a singleton {@link SimpleWebFlow} other than the parent
+ * 		flow, and its definition has been loaded (lazy flows may not be loaded yet),</li>
+ * 	<li>the start state of the sub flow is not an end state and the sub flow
+ * 		has no global transitions,</li>
+ * 	<li>it has a transition for each end state of the sub flow that is the
+ * 		target of a transition, and</li>
+ * 	<li>the ids of the sub flow states do not clash with other state ids.</li>
+ * </ul>
+ * Other flow states are left untouched. Only one level of sub flows is inlined:
+ * flow states of an inlined sub flow remain flow states. The global transitions
+ * of the parent flow also apply to the inlined view and flow states.
+ *
+ * <p>Note that an inlined sub flow shares the model of its parent flow, while
+ * a normally executed sub flow without model mapper starts with an empty model
+ * and discards its model when it ends. Also note that inlined states are a copy:
+ * reloading the sub flow does not affect the parent flow until the parent flow
+ * is reloaded too.
+ *
+ * @see com.ervacon.springframework.web.servlet.mvc.webflow.SimpleWebFlow
+ *
+ * @author Erwin Vervaet
+ */
+public class SubFlowInliner {
+
+	protected final Log log=LogFactory.getLog(SubFlowInliner.class);
+
+	/**
+	 * <p>Inline the sub flows of given flow definition.
+	 *
+	 * @param definition the definition of the parent flow
+	 * @param flow the parent flow itself
+	 * @param beanFactory the bean factory to obtain sub flows from
+	 * @return the definition with sub flows inlined, or the given definition if
+	 *         no sub flow could be inlined
+	 * @throws WebFlowException when the resulting definition is invalid
+	 */
+	public WebFlowDefinition inline(WebFlowDefinition definition, SimpleWebFlow flow, BeanFactory beanFactory) throws WebFlowException {
+		List states=definition.getStates();
+		Set usedIds=new HashSet();
+		for (int i=0; i<states.size(); i++) {
+			usedIds.add(((State)states.get(i)).getId());
+		}
+
+		//decide which flow states to inline
+		Map subFlowDefs=new HashMap(); //flow state -> sub flow definition
+		Map redirects=new HashMap(); //inlined flow state id -> sub flow start state id
+		for (int i=0; i<states.size(); i++) {
+			if (states.get(i) instanceof FlowState) {
+				FlowState flowState=(FlowState)states.get(i);
+				WebFlowDefinition subFlowDef=getInlinableSubFlow(flowState, flow, beanFactory, usedIds);
+				if (subFlowDef!=null) {
+					subFlowDefs.put(flowState, subFlowDef);
+					redirects.put(flowState.getId(), subFlowDef.getStartState().getId());
+				}
+			}
+		}
+		if (subFlowDefs.isEmpty()) {
+			return definition;
+		}
+
+		//rebuild the state graph
+		List inlinedStates=new ArrayList();
+		for (int i=0; i<states.size(); i++) {
+			State state=(State)states.get(i);
+			WebFlowDefinition subFlowDef=(WebFlowDefinition)subFlowDefs.get(state);
+			if (subFlowDef==null) {
+				inlinedStates.add(copy(state, null, null, redirects));
+			}
+			else {
+				List subStates=subFlowDef.getStates();
+				for (int j=0; j<subStates.size(); j++) {
+					State subState=(State)subStates.get(j);
+					if (!(subState instanceof EndState)) {
+						inlinedStates.add(copy(subState, subFlowDef, (FlowState)state, redirects));
+					}
+				}
+				if (log.isInfoEnabled()) {
+					log.info("Inlined sub flow '" + subFlowDef.getName() + "' in flow state '" + state.getId() + "' of web flow '" + definition.getName() + "'");
+				}
+			}
+		}
+
+		List globalTransitions=definition.getGlobalTransitions();
+		Transition[] globalCopies=new Transition[globalTransitions.size()];
+		for (int i=0; i<globalCopies.length; i++) {
+			Transition transition=(Transition)globalTransitions.get(i);
+			globalCopies[i]=new Transition(transition.getName(), redirect(transition.getTargetStateId(), redirects));
+		}
+
+		return new WebFlowDefinition(
+				definition.getName(),
+				redirect(definition.getStartState().getId(), redirects),
+				(State[])inlinedStates.toArray(new State[inlinedStates.size()]),
+				globalCopies);
+	}
+
+	/**
+	 * <p>Returns the definition of the sub flow of given flow state if it can be
+	 * inlined, null otherwise. Adds the ids of the inlined states to given set
+	 * of used ids.
+	 */
+	protected WebFlowDefinition getInlinableSubFlow(FlowState flowState, SimpleWebFlow flow, BeanFactory beanFactory, Set usedIds) {
+		String subFlowName=flowState.getSubFlowName();
+		if (flowState.getModelMapperName()!=null || !beanFactory.containsBean(subFlowName) || !beanFactory.isSingleton(subFlowName)) {
+			return null;
+		}
+		Object subFlow=beanFactory.getBean(subFlowName);
+		if (subFlow==flow || !(subFlow instanceof SimpleWebFlow)) {
+			return null;
+		}
+		WebFlowDefinition subFlowDef=((SimpleWebFlow)subFlow).getCompiledDefinition();
+		if (subFlowDef==null || subFlowDef.getStartState() instanceof EndState) {
+			return null;
+		}
+		if (!subFlowDef.getGlobalTransitions().isEmpty()) {
+			logNotInlined(flowState, "its sub flow has global transitions");
+			return null;
+		}
+
+		List subStates=subFlowDef.getStates();
+		Set targets=new HashSet();
+		for (int i=0; i<subStates.size(); i++) {
+			List transitions=((State)subStates.get(i)).getTransitions();
+			for (int j=0; j<transitions.size(); j++) {
+				targets.add(((Transition)transitions.get(j)).getTargetState());
+			}
+		}
+		Set ids=new HashSet();
+		for (int i=0; i<subStates.size(); i++) {
+			State subState=(State)subStates.get(i);
+			if (subState instanceof EndState) {
+				if (targets.contains(subState) && flowState.getTransition(subState.getId())==null) {
+					logNotInlined(flowState, "it has no transition for end state '" + subState.getId() + "'");
+					return null;
+				}
+			}
+			else if (usedIds.contains(subState.getId()) || !ids.add(subState.getId())) {
+				logNotInlined(flowState, "the id of sub flow state '" + subState.getId() + "' is already used");
+				return null;
+			}
+		}
+		usedIds.addAll(ids);
+		return subFlowDef;
+	}
+
+	private void logNotInlined(FlowState flowState, String reason) {
+		if (log.isInfoEnabled()) {
+			log.info("Sub flow of flow state '" + flowState.getId() + "' is not inlined: " + reason);
+		}
+	}
+
+	/**
+	 * <p>Copy given state, redirecting its transitions. When the state belongs
+	 * to an inlined sub flow, transitions to end states of that sub flow are
+	 * replaced by the corresponding transitions of the flow state.
+	 */
+	private State copy(State state, WebFlowDefinition subFlowDef, FlowState flowState, Map redirects) throws WebFlowException {
+		List transitions=state.getTransitions();
+		Transition[] copies=new Transition[transitions.size()];
+		for (int i=0; i<copies.length; i++) {
+			Transition transition=(Transition)transitions.get(i);
+			String targetStateId=transition.getTargetStateId();
+			if (subFlowDef!=null && subFlowDef.getState(targetStateId) instanceof EndState) {
+				targetStateId=flowState.getTransition(targetStateId).getTargetStateId();
+			}
+			copies[i]=new Transition(transition.getName(), redirect(targetStateId, redirects));
+		}
+
+		if (state instanceof ViewState) {
+			return new ViewState(state.getId(), ((ViewState)state).getView(), copies);
+		}
+		else if (state instanceof ActionState) {
+			ActionState actionState=(ActionState)state;
+			String[] actionNames=new String[actionState.getActionCount()];
+			String[] actionBeanNames=new String[actionState.getActionCount()];
+			for (int i=0; i<actionNames.length; i++) {
+				actionNames[i]=actionState.getActionName(i);
+				actionBeanNames[i]=actionState.getActionBeanName(i);
+			}
+			return new ActionState(state.getId(), actionNames, actionBeanNames, copies);
+		}
+		else if (state instanceof DecisionState) {
+			DecisionState decisionState=(DecisionState)state;
+			String[] tests=new String[decisionState.getConditionCount()];
+			String[] thenStateIds=new String[tests.length];
+			for (int i=0; i<tests.length; i++) {
+				tests[i]=decisionState.getCondition(i).getExpression();
+				thenStateIds[i]=copies[i].getTargetStateId();
+			}
+			String elseStateId=decisionState.getElseTransition()==null ? null : copies[tests.length].getTargetStateId();
+			return new DecisionState(state.getId(), tests, thenStateIds, elseStateId);
+		}
+		else if (state instanceof FlowState) {
+			FlowState subFlowState=(FlowState)state;
+			return new FlowState(state.getId(), subFlowState.getSubFlowName(), subFlowState.getModelMapperName(), copies);
+		}
+		else if (state instanceof EndState) {
+			return new EndState(state.getId(), ((EndState)state).getView());
+		}
+		else {
+			throw new WebFlowException("cannot inline states of type '" + state.getClass().getName() + "'");
+		}
+	}
+
+	private String redirect(String stateId, Map redirects) {
+		String redirected=(String)redirects.get(stateId);
+		return redirected==null ? stateId : redirected;
+	}
+
+}
@@ -0,0 +1,576 @@
+package com.ervacon.springframework.web.servlet.mvc.webflow;
+
+/*
+ * (c) Copyright Ervacon 2004-2005.
+ * All Rights Reserved.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * <p>Flow state store that keeps active flows in memory and idle flows on
+ * local disk. Most open flows are idle, e.g. because the user wandered off
+ * halfway through a wizard, and would otherwise occupy the heap until they
+ * expire.
+ *
+ * <p>Flows live in one of two tiers. The <i>hot</i> tier holds the memento
+ * stacks of recently used flows in memory, like the
+ * {@link InMemoryFlowStateStore}. Flows that have not handled a request for
+ * longer than the passivation threshold are <i>passivated</i>: they move to
+ * the <i>cold</i> tier, a {@link MappedFileFlowStateStore} that keeps them
+ * serialized, and compressed when large, in a file. Loading a passivated flow
+ * transparently reactivates it: it moves back to the hot tier.
+ *
+ * <p>Idle and expired flows are looked for when the store is accessed and
+ * that has not been done during the last half of the passivation threshold,
+ * so no background thread is needed. The request triggering this passivates
+ * the idle flows after it has been served by the store, serializing them
+ * without holding the lock of the store, so other requests do not wait for
+ * it. Loading a flow touches it, so a flow handling a request is never idle.
+ * A flow that is used while it is being passivated stays in memory. So does
+ * a flow that cannot be passivated, e.g. because its model holds objects that
+ * are not serializable: it is not tried again until it has handled a request.
+ * Reactivation happens while holding the lock of the store.
+ *
+ * <p>Don't use the {@link WebFlowCleanupFilter} to remove expired flows from
+ * this store, since checking a flow reactivates it. The filter leaves this
+ * store alone, see {@link #expiresFlows()}.
+ *
+ * <p>The store keeps statistics on the tier that served the flows loaded from
+ * it, see {@link #getHotHitRate()} and {@link #getColdHitRate()}.
+ *
+ * <p>The store has to be initialized using {@link #afterPropertiesSet()},
+ * which Spring does automatically when the store is defined as a bean, and
+ * should be closed using {@link #destroy()}.
+ *
+ * <p><b>Exposed configuration properties</b><br>
+ * <table border="1">
+ *  <tr>
+ *      <td><b>name</b></td>
+ *      <td><b>default</b></td>
+ *      <td><b>description</b></td>
+ *  </tr>
+ *  <tr>
+ *      <td>passivationThreshold</td>
+ *      <td>120</td>
+ *      <td>
+ *          The time in <b>seconds</b> a flow should be inactive before it
+ *          is passivated to the cold tier.
+ *      </td>
+ *  </tr>
+ *  <tr>
+ *      <td>timeout</td>
+ *      <td>10</td>
+ *      <td>
+ *          The flow timeout in <b>minutes</b>. If a flow is inactive for more
+ *          than this period of time it will expire and be removed from the store.
+ *      </td>
+ *  </tr>
+ *  <tr>
+ *      <td>coldStore</td>
+ *      <td>a {@link MappedFileFlowStateStore} using a temporary file</td>
+ *      <td>
+ *          The store holding passivated flows. A store set using this property
+ *          should be initialized and closed by its owner, typically Spring.
+ *      </td>
+ *  </tr>
+ * </table>
+ *
+ * @author Erwin Vervaet
+ */
+public class TieredFlowStateStore implements FlowStateStore, InitializingBean, DisposableBean {
+
+	/**
+	 * <p>Default passivation threshold: 2 minutes.
+	 */
+	public static final int DEFAULT_PASSIVATION_THRESHOLD=120;
+
+	/**
+	 * <p>Default flow timeout: 10 minutes.
+	 */
+	public static final int DEFAULT_TIMEOUT=10;
+
+	protected final Log log=LogFactory.getLog(TieredFlowStateStore.class);
+
+	private volatile int passivationThreshold=DEFAULT_PASSIVATION_THRESHOLD;
+	private volatile int timeout=DEFAULT_TIMEOUT;
+	private MappedFileFlowStateStore coldStore=null;
+	private boolean ownsColdStore=false;
+
+	//guarded by this
+	private final Map hotSessions=new HashMap(); //session id -> flow id -> memento stack
+	private final Map coldSessions=new HashMap(); //session id -> flow id -> last accessed time
+	private int coldSize=0;
+	private long lastSweep=System.currentTimeMillis();
+	private long loadCount=0;
+	private long hotHits=0;
+	private long coldHits=0;
+	private long passivationCount=0;
+	private boolean sweeping=false;
+	private Map failedPassivations=new IdentityHashMap(); //memento stack -> last accessed time
+
+	/**
+	 * <p>Returns the time in seconds a flow should be inactive before it is
+	 * passivated.
+	 */
+	public int getPassivationThreshold() {
+		return passivationThreshold;
+	}
+
+	/**
+	 * <p>Set the time in seconds a flow should be inactive before it is
+	 * passivated. Defaults to 120.
+	 */
+	public void setPassivationThreshold(int passivationThreshold) {
+		this.passivationThreshold=passivationThreshold;
+	}
+
+	/**
+	 * <p>Get the flow timeout, expressed in minutes.
+	 */
+	public int getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * <p>Set the flow timeout, expressed in minutes. Defaults to 10.
+	 */
+	public void setTimeout(int timeout) {
+		this.timeout=timeout;
+	}
+
+	/**
+	 * <p>Returns the store holding passivated flows.
+	 */
+	public MappedFileFlowStateStore getColdStore() {
+		return coldStore;
+	}
+
+	/**
+	 * <p>Set the store holding passivated flows. Defaults to a
+	 * {@link MappedFileFlowStateStore} using a temporary file.
+	 */
+	public void setColdStore(MappedFileFlowStateStore coldStore) {
+		this.coldStore=coldStore;
+	}
+
+	/**
+	 * <p>Create and initialize the default cold store if no cold store was set.
+	 */
+	public void afterPropertiesSet() throws IOException {
+		if (coldStore==null) {
+			MappedFileFlowStateStore store=new MappedFileFlowStateStore();
+			store.setTimeout(timeout);
+			store.afterPropertiesSet();
+			coldStore=store;
+			ownsColdStore=true;
+		}
+	}
+
+	/**
+	 * <p>Close the default cold store, if it is used. The store can no longer
+	 * be used afterwards.
+	 */
+	public synchronized void destroy() throws IOException {
+		if (ownsColdStore) {
+			coldStore.destroy();
+		}
+		hotSessions.clear();
+		coldSessions.clear();
+		coldSize=0;
+		failedPassivations.clear();
+	}
+
+	public WebFlowMementoStack load(HttpServletRequest request, String flowId) {
+		HttpSession session=request.getSession(false);
+		if (session==null) {
+			return null;
+		}
+		List idleFlows;
+		WebFlowMementoStack mementos;
+		synchronized (this) {
+			long now=System.currentTimeMillis();
+			//load, and touch, the flow first so the sweep does not find it idle
+			mementos=load(session.getId(), flowId, now);
+			idleFlows=sweepIfDue(now);
+		}
+		passivate(idleFlows);
+		return mementos;
+	}
+
+	/**
+	 * <p>Load the flow with given id of the session with given id, reactivating
+	 * it if it was passivated. The loaded flow is touched, so it is not
+	 * passivated while it handles the request, which may load it again.
+	 * Call with the lock held.
+	 */
+	private WebFlowMementoStack load(String sessionId, String flowId, long now) {
+		loadCount++;
+
+		Map flows=(Map)hotSessions.get(sessionId);
+		WebFlowMementoStack mementos=flows==null ? null : (WebFlowMementoStack)flows.get(flowId);
+		if (mementos!=null) {
+			if (hasExpired(mementos.getLastAccessedTime(), now)) {
+				remove(hotSessions, sessionId, flows, flowId);
+				return null;
+			}
+			hotHits++;
+			mementos.touch();
+			return mementos;
+		}
+
+		flows=(Map)coldSessions.get(sessionId);
+		if (flows==null || !flows.containsKey(flowId)) {
+			return null;
+		}
+		removeCold(sessionId, flows, flowId);
+		mementos=coldStore.load(sessionId, flowId);
+		coldStore.delete(sessionId, flowId);
+		if (mementos==null || hasExpired(mementos.getLastAccessedTime(), now)) {
+			return null;
+		}
+		coldHits++;
+		mementos.touch();
+		putHot(sessionId, flowId, mementos);
+		if (log.isDebugEnabled()) {
+			log.debug("Reactivated flow '" + mementos.getFlowName() + "' with id '" + flowId + "'");
+		}
+		return mementos;
+	}
+
+	public void save(HttpServletRequest request, String flowId, WebFlowMementoStack mementos) {
+		String sessionId=request.getSession().getId();
+		List idleFlows;
+		synchronized (this) {
+			idleFlows=sweepIfDue(System.currentTimeMillis());
+			putHot(sessionId, flowId, mementos);
+			Map flows=(Map)coldSessions.get(sessionId);
+			if (flows!=null && flows.containsKey(flowId)) {
+				//the flow was passivated while handling the request
+				removeCold(sessionId, flows, flowId);
+				coldStore.delete(sessionId, flowId);
+			}
+		}
+		passivate(idleFlows);
+	}
+
+	public synchronized void delete(HttpServletRequest request, String flowId) {
+		HttpSession session=request.getSession(false);
+		if (session==null) {
+			return;
+		}
+		String sessionId=session.getId();
+		Map flows=(Map)hotSessions.get(sessionId);
+		if (flows!=null) {
+			remove(hotSessions, sessionId, flows, flowId);
+		}
+		flows=(Map)coldSessions.get(sessionId);
+		if (flows!=null && flows.containsKey(flowId)) {
+			removeCold(sessionId, flows, flowId);
+			coldStore.delete(sessionId, flowId);
+		}
+	}
+
+	public synchronized Set getFlowIds(HttpServletRequest request) {
+		HttpSession session=request.getSession(false);
+		if (session==null) {
+			return Collections.EMPTY_SET;
+		}
+		Set flowIds=new HashSet();
+		Map flows=(Map)hotSessions.get(session.getId());
+		if (flows!=null) {
+			flowIds.addAll(flows.keySet());
+		}
+		flows=(Map)coldSessions.get(session.getId());
+		if (flows!=null) {
+			flowIds.addAll(flows.keySet());
+		}
+		return flowIds;
+	}
+
+	public boolean requiresSession() {
+		return true;
+	}
+
+	public boolean expiresFlows() {
+		return true;
+	}
+
+	public String getExposedFlowId(HttpServletRequest request, String flowId, WebFlowMementoStack mementos) {
+		return flowId;
+	}
+
+	/**
+	 * <p>Passivate all flows that have been idle for longer than the passivation
+	 * threshold and remove expired flows now, instead of waiting for the next
+	 * periodic check.
+	 */
+	public void passivateIdleFlows() {
+		List idleFlows;
+		synchronized (this) {
+			long now=System.currentTimeMillis();
+			lastSweep=now;
+			idleFlows=sweep(now);
+		}
+		passivate(idleFlows);
+	}
+
+	//statistics
+
+	/**
+	 * <p>Returns the number of flows in the hot tier, including expired flows
+	 * that have not yet been removed.
+	 */
+	public synchronized int getHotSize() {
+		int size=0;
+		for (Iterator it=hotSessions.values().iterator(); it.hasNext(); ) {
+			size+=((Map)it.next()).size();
+		}
+		return size;
+	}
+
+	/**
+	 * <p>Returns the number of passivated flows, including expired flows that
+	 * have not yet been removed.
+	 */
+	public synchronized int getColdSize() {
+		return coldSize;
+	}
+
+	/**
+	 * <p>Returns the number of flows passivated to the cold tier.
+	 */
+	public synchronized long getPassivationCount() {
+		return passivationCount;
+	}
+
+	/**
+	 * <p>Returns the number of flows reactivated from the cold tier.
+	 */
+	public synchronized long getReactivationCount() {
+		return coldHits;
+	}
+
+	/**
+	 * <p>Returns the number of flows loaded, or looked for, in this store.
+	 */
+	public synchronized long getLoadCount() {
+		return loadCount;
+	}
+
+	/**
+	 * <p>Returns the fraction of the loaded flows that were found in the hot
+	 * tier.
+	 */
+	public synchronized double getHotHitRate() {
+		return loadCount==0 ? 0d : ((double)hotHits) / loadCount;
+	}
+
+	/**
+	 * <p>Returns the fraction of the loaded flows not found in the hot tier
+	 * that were found in the cold tier.
+	 */
+	public synchronized double getColdHitRate() {
+		long coldLoadCount=loadCount-hotHits;
+		return coldLoadCount==0 ? 0d : ((double)coldHits) / coldLoadCount;
+	}
+
+	//tier management, call with the lock held
+
+	private void putHot(String sessionId, String flowId, WebFlowMementoStack mementos) {
+		Map flows=(Map)hotSessions.get(sessionId);
+		if (flows==null) {
+			flows=new HashMap(4);
+			hotSessions.put(sessionId, flows);
+		}
+		flows.put(flowId, mementos);
+	}
+
+	private void removeCold(String sessionId, Map flows, String flowId) {
+		remove(coldSessions, sessionId, flows, flowId);
+		coldSize--;
+	}
+
+	private void remove(Map sessions, String sessionId, Map flows, String flowId) {
+		flows.remove(flowId);
+		if (flows.isEmpty()) {
+			sessions.remove(sessionId);
+		}
+	}
+
+	private boolean hasExpired(long lastAccessedTime, long now) {
+		return (now-lastAccessedTime) > (timeout*60000L);
+	}
+
+	/**
+	 * <p>Remove expired flows and collect the idle flows to passivate, if that
+	 * has not been done during the last half of the passivation threshold.
+	 *
+	 * @return the idle flows, or null if there are none
+	 */
+	private List sweepIfDue(long now) {
+		if (now-lastSweep < passivationThreshold*500L) {
+			return null;
+		}
+		lastSweep=now;
+		return sweep(now);
+	}
+
+	/**
+	 * <p>Remove expired flows and collect the idle flows to passivate. Flows
+	 * that could not be passivated are only collected again once they have
+	 * been accessed.
+	 *
+	 * @return the idle flows, or null if there are none or another thread is
+	 *         still passivating flows
+	 */
+	private List sweep(long now) {
+		List idleFlows=new ArrayList();
+		Map stillFailed=new IdentityHashMap();
+		for (Iterator sessions=hotSessions.entrySet().iterator(); sessions.hasNext(); ) {
+			Map.Entry session=(Map.Entry)sessions.next();
+			Map flows=(Map)session.getValue();
+			for (Iterator it=flows.entrySet().iterator(); it.hasNext(); ) {
+				Map.Entry entry=(Map.Entry)it.next();
+				WebFlowMementoStack mementos=(WebFlowMementoStack)entry.getValue();
+				long lastAccessedTime=mementos.getLastAccessedTime();
+				if (hasExpired(lastAccessedTime, now)) {
+					if (log.isInfoEnabled()) {
+						log.info("Flow '" + mementos.getFlowName() + "' with id '" + entry.getKey() + "' has expired and will be removed");
+					}
+					it.remove();
+				}
+				else if (now-lastAccessedTime > passivationThreshold*1000L) {
+					Long failedTime=(Long)failedPassivations.get(mementos);
+					if (failedTime!=null && failedTime.longValue()==lastAccessedTime) {
+						stillFailed.put(mementos, failedTime);
+					}
+					else {
+						idleFlows.add(new IdleFlow((String)session.getKey(), (String)entry.getKey(), mementos, lastAccessedTime));
+					}
+				}
+			}
+			if (flows.isEmpty()) {
+				sessions.remove();
+			}
+		}
+		failedPassivations=stillFailed;
+
+		for (Iterator sessions=coldSessions.entrySet().iterator(); sessions.hasNext(); ) {
+			Map.Entry session=(Map.Entry)sessions.next();
+			Map flows=(Map)session.getValue();
+			for (Iterator it=flows.entrySet().iterator(); it.hasNext(); ) {
+				Map.Entry entry=(Map.Entry)it.next();
+				if (hasExpired(((Long)entry.getValue()).longValue(), now)) {
+					coldStore.delete((String)session.getKey(), (String)entry.getKey());
+					it.remove();
+					coldSize--;
+				}
+			}
+			if (flows.isEmpty()) {
+				sessions.remove();
+			}
+		}
+
+		if (idleFlows.isEmpty() || sweeping) {
+			return null;
+		}
+		sweeping=true;
+		return idleFlows;
+	}
+
+	/**
+	 * <p>Move given idle flows to the cold tier. Call without holding the lock:
+	 * the flows are serialized without it.
+	 *
+	 * @param idleFlows the flows to passivate, can be null
+	 */
+	private void passivate(List idleFlows) {
+		if (idleFlows==null) {
+			return;
+		}
+		try {
+			for (Iterator it=idleFlows.iterator(); it.hasNext(); ) {
+				passivate((IdleFlow)it.next());
+			}
+		}
+		finally {
+			synchronized (this) {
+				sweeping=false;
+			}
+		}
+	}
+
+	private void passivate(IdleFlow idleFlow) {
+		try {
+			coldStore.save(idleFlow.sessionId, idleFlow.flowId, idleFlow.mementos);
+		}
+		catch (RuntimeException e) {
+			//e.g. not serializable, concurrently modified or a full cold store
+			if (log.isWarnEnabled()) {
+				log.warn("Cannot passivate flow '" + idleFlow.mementos.getFlowName() + "' with id '" + idleFlow.flowId + "', keeping it in memory: " + e);
+			}
+			synchronized (this) {
+				failedPassivations.put(idleFlow.mementos, new Long(idleFlow.lastAccessedTime));
+			}
+			return;
+		}
+
+		synchronized (this) {
+			Map flows=(Map)hotSessions.get(idleFlow.sessionId);
+			if (flows==null || flows.get(idleFlow.flowId)!=idleFlow.mementos || idleFlow.mementos.getLastAccessedTime()!=idleFlow.lastAccessedTime) {
+				//the flow was used, saved or deleted in the meantime
+				coldStore.delete(idleFlow.sessionId, idleFlow.flowId);
+				return;
+			}
+			remove(hotSessions, idleFlow.sessionId, flows, idleFlow.flowId);
+			flows=(Map)coldSessions.get(idleFlow.sessionId);
+			if (flows==null) {
+				flows=new HashMap(4);
+				coldSessions.put(idleFlow.sessionId, flows);
+			}
+			flows.put(idleFlow.flowId, new Long(idleFlow.lastAccessedTime));
+			coldSize++;
+			passivationCount++;
+		}
+		if (log.isDebugEnabled()) {
+			log.debug("Passivated flow '" + idleFlow.mementos.getFlowName() + "' with id '" + idleFlow.flowId + "'");
+		}
+	}
+
+	/**
+	 * <p>A flow found idle by a sweep.
+	 */
+	private static class IdleFlow {
+		private final String sessionId;
+		private final String flowId;
+		private final WebFlowMementoStack mementos;
+		private final long lastAccessedTime;
+
+		public IdleFlow(String sessionId, String flowId, WebFlowMementoStack mementos, long lastAccessedTime) {
+			this.sessionId=sessionId;
+			this.flowId=flowId;
+			this.mementos=mementos;
+			this.lastAccessedTime=lastAccessedTime;
+		}
+	}
+
+}
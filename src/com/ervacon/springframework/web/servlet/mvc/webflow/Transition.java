@@ -0,0 +1,76 @@
+package com.ervacon.springframework.web.servlet.mvc.webflow;
+
+/*
+ * (c) Copyright Ervacon 2004-2005.
+ * All Rights Reserved.
+ */
+
+/**
+ * <p>A transition from one state of a web flow to another state. A transition
+ * is identified by its name, which is the event that triggers it.
+ *
+ * <p>The target state of a transition is resolved once, when the containing
+ * {@link WebFlowDefinition} is constructed. After that, objects of this class
+ * are immutable and can be safely shared between threads.
+ *
+ * @see com.ervacon.springframework.web.servlet.mvc.webflow.WebFlowDefinition
+ *
+ * @author Erwin Vervaet
+ */
+public class Transition {
+
+	private final String name;
+	private final String targetStateId;
+	private State targetState=null;
+
+	/**
+	 * <p>Create a new transition.
+	 *
+	 * @param name name of the transition, the event that triggers it
+	 * @param targetStateId id of the target state of the transition
+	 */
+	public Transition(String name, String targetStateId) {
+		this.name=name;
+		this.targetStateId=targetStateId;
+	}
+
+	/**
+	 * <p>Returns the name of this transition: the event that triggers it.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * <p>Returns the id of the state this transition leads to.
+	 */
+	public String getTargetStateId() {
+		return targetStateId;
+	}
+
+	/**
+	 * <p>Returns the state this transition leads to.
+	 */
+	public State getTargetState() {
+		return targetState;
+	}
+
+	/**
+	 * <p>Resolve the target state of this transition in given flow definition.
+	 * Called once while the flow definition is constructed.
+	 */
+	void resolve(WebFlowDefinition definition) throws WebFlowException {
+		if (targetState!=null) {
+			throw new WebFlowException("transition '" + name + "' is already part of another web flow definition");
+		}
+		targetState=definition.getState(targetStateId);
+		if (targetState==null) {
+			throw new WebFlowException("transition '" + name + "' leads to unknown state '" + targetStateId + "' in web flow '" + definition.getName() + "'");
+		}
+	}
+
+	public String toString() {
+		return "Transition '" + name + "' to '" + targetStateId + "'";
+	}
+
+}
@@ -0,0 +1,38 @@
+package com.ervacon.springframework.web.servlet.mvc.webflow;
+
+/*
+ * (c) Copyright Ervacon 2004-2005.
+ * All Rights Reserved.
+ */
+
+/**
+ * <p>A view state: a state where a view will be rendered. Transitions
+ * triggered by the view lead on to other states.
+ *
+ * @author Erwin Vervaet
+ */
+public class ViewState extends State {
+
+	private final String view;
+
+	/**
+	 * <p>Create a new view state.
+	 *
+	 * @param id unique id of the state in its flow
+	 * @param view name of the view to render, can be null
+	 * @param transitions transitions leaving the state, can be null
+	 */
+	public ViewState(String id, String view, Transition[] transitions) {
+		super(id, transitions);
+		this.view=view;
+	}
+
+	/**
+	 * <p>Returns the name of the view that will be rendered. This is
+	 * optional, so it can be null.
+	 */
+	public String getView() {
+		return view;
+	}
+
+}
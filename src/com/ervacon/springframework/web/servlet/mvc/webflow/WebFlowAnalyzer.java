@@ -0,0 +1,258 @@
+package com.ervacon.springframework.web.servlet.mvc.webflow;
+
+/*
+ * (c) Copyright Ervacon 2004-2005.
+ * All Rights Reserved.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.springframework.beans.factory.BeanFactory;
+
+/**
+ * <p>Static analyzer for compiled web flow definitions. The analyzer verifies
+ * a flow when it is loaded, so problems surface at application startup instead
+ * of as navigation exceptions at runtime. The following is checked:
+ * <ul>
+ * 	<li>
+ * 		Every action bean, sub flow bean and model mapper bean referenced by
+ * 		the flow exists in the bean factory and has the correct type. These are
+ * 		<b>errors</b>.
+ * 	</li>
+ * 	<li>
+ * 		Cycles made only of action and decision states, which are executed
+ * 		without user interaction. When no transition leaves such a
+ * 		cycle, the flow can never get out of it once entered: this is an
+ * 		<b>error</b>. Otherwise it is reported as a <b>warning</b> since the
+ * 		cycle might be intentional, e.g. a retry loop.
+ * 	</li>
+ * 	<li>
+ * 		States that cannot be reached from the start state are reported as
+ * 		<b>warnings</b>. States from which no end state can be reached are only
+ * 		reported at info level, since many flows are never meant to end.
+ * 	</li>
+ * </ul>
+ * Transition targets need no checking here: they are already resolved when
+ * the {@link WebFlowDefinition} is constructed.
+ *
+ * <p>Warnings are logged, errors are collected and reported together in
+ * a single <code>WebFlowException</code>.
+ *
+ * @see com.ervacon.springframework.web.servlet.mvc.webflow.WebFlowDefinition
+ *
+ * @author Erwin Vervaet
+ */
+public class WebFlowAnalyzer {
+
+	protected final Log log=LogFactory.getLog(WebFlowAnalyzer.class);
+
+	/**
+	 * <p>Analyze given web flow definition.
+	 *
+	 * @param definition the flow definition to analyze
+	 * @param beanFactory the bean factory the flow obtains its beans from,
+	 *        can be null in which case bean references are not verified
+	 * @throws WebFlowException when the flow definition contains errors
+	 */
+	public void analyze(WebFlowDefinition definition, BeanFactory beanFactory) throws WebFlowException {
+		List errors=new ArrayList();
+
+		if (beanFactory!=null) {
+			verifyBeanReferences(definition, beanFactory, errors);
+		}
+		verifyActionStateCycles(definition, errors);
+		verifyReachability(definition);
+
+		if (!errors.isEmpty()) {
+			StringBuffer msg=new StringBuffer("web flow '").append(definition.getName()).append("' is invalid:");
+			for (int i=0; i<errors.size(); i++) {
+				msg.append(' ').append(errors.get(i));
+				if (i<errors.size()-1) {
+					msg.append(';');
+				}
+			}
+			throw new WebFlowException(msg.toString());
+		}
+	}
+
+	/**
+	 * <p>Verify that all beans referenced by the states of given flow exist.
+	 */
+	protected void verifyBeanReferences(WebFlowDefinition definition, BeanFactory beanFactory, List errors) {
+		List states=definition.getStates();
+		for (int i=0; i<states.size(); i++) {
+			State state=(State)states.get(i);
+			if (state instanceof ActionState) {
+				ActionState actionState=(ActionState)state;
+				for (int j=0; j<actionState.getActionCount(); j++) {
+					verifyBeanReference(beanFactory, state, actionState.getActionBeanName(j), Action.class, errors);
+				}
+			}
+			else if (state instanceof FlowState) {
+				FlowState flowState=(FlowState)state;
+				verifyBeanReference(beanFactory, state, flowState.getSubFlowName(), SimpleWebFlow.class, errors);
+				if (flowState.getModelMapperName()!=null) {
+					verifyBeanReference(beanFactory, state, flowState.getModelMapperName(), ModelMapper.class, errors);
+				}
+			}
+		}
+	}
+
+	/**
+	 * <p>Verify that the named bean exists and, if its type can be determined
+	 * without instantiating it, that it has the required type.
+	 */
+	private void verifyBeanReference(BeanFactory beanFactory, State state, String beanName, Class requiredType, List errors) {
+		if (!beanFactory.containsBean(beanName)) {
+			errors.add("bean '" + beanName + "' referenced by state '" + state.getId() + "' does not exist");
+		}
+		else {
+			Class type=beanFactory.getType(beanName);
+			if (type!=null && !requiredType.isAssignableFrom(type)) {
+				errors.add("bean '" + beanName + "' referenced by state '" + state.getId() + "' should be of type '" + requiredType.getName() + "'");
+			}
+		}
+	}
+
+	/**
+	 * <p>Find the cycles made only of action and decision states: the strongly
+	 * connected components of the graph of those states and the transitions
+	 * between them.
+	 * This uses Tarjan's algorithm.
+	 */
+	protected void verifyActionStateCycles(WebFlowDefinition definition, List errors) {
+		List states=definition.getStates();
+		Map indexes=new HashMap();
+		Map lowLinks=new HashMap();
+		Stack stack=new Stack();
+		List components=new ArrayList();
+		for (int i=0; i<states.size(); i++) {
+			State state=(State)states.get(i);
+			if (isAutomatic(state) && !indexes.containsKey(state)) {
+				findComponents(state, indexes, lowLinks, stack, components);
+			}
+		}
+
+		for (int i=0; i<components.size(); i++) {
+			List component=(List)components.get(i);
+			if (component.size()==1 && !transitionsTo((State)component.get(0), (State)component.get(0))) {
+				continue; //a single state that does not loop back to itself
+			}
+
+			boolean hasExit=false;
+			for (int j=0; j<component.size() && !hasExit; j++) {
+				List transitions=((State)component.get(j)).getTransitions();
+				for (int k=0; k<transitions.size() && !hasExit; k++) {
+					hasExit=!component.contains(((Transition)transitions.get(k)).getTargetState());
+				}
+			}
+
+			if (hasExit) {
+				if (log.isWarnEnabled()) {
+					log.warn("Web flow '" + definition.getName() + "' contains a cycle of action or decision states " + ids(component) + ": make sure it terminates");
+				}
+			}
+			else {
+				errors.add("action or decision states " + ids(component) + " form a cycle that cannot be left");
+			}
+		}
+	}
+
+	/**
+	 * <p>Recursive step of Tarjan's strongly connected components algorithm.
+	 * The recursion depth is bounded by the number of action and decision states
+	 * in the flow.
+	 */
+	private void findComponents(State state, Map indexes, Map lowLinks, Stack stack, List components) {
+		Integer index=new Integer(indexes.size());
+		indexes.put(state, index);
+		lowLinks.put(state, index);
+		stack.push(state);
+
+		List transitions=state.getTransitions();
+		for (int i=0; i<transitions.size(); i++) {
+			State target=((Transition)transitions.get(i)).getTargetState();
+			if (isAutomatic(target)) {
+				if (!indexes.containsKey(target)) {
+					findComponents(target, indexes, lowLinks, stack, components);
+					lowLinks.put(state, min((Integer)lowLinks.get(state), (Integer)lowLinks.get(target)));
+				}
+				else if (stack.contains(target)) {
+					lowLinks.put(state, min((Integer)lowLinks.get(state), (Integer)indexes.get(target)));
+				}
+			}
+		}
+
+		if (lowLinks.get(state).equals(index)) {
+			List component=new ArrayList();
+			State member;
+			do {
+				member=(State)stack.pop();
+				component.add(0, member);
+			}
+			while (member!=state);
+			components.add(component);
+		}
+	}
+
+	/**
+	 * <p>Returns whether or not given state is executed without user interaction
+	 * and transitions on by itself.
+	 */
+	private boolean isAutomatic(State state) {
+		return state instanceof ActionState || state instanceof DecisionState;
+	}
+
+	private Integer min(Integer a, Integer b) {
+		return a.intValue()<=b.intValue() ? a : b;
+	}
+
+	private boolean transitionsTo(State source, State target) {
+		List transitions=source.getTransitions();
+		for (int i=0; i<transitions.size(); i++) {
+			if (((Transition)transitions.get(i)).getTargetState()==target) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private String ids(List states) {
+		StringBuffer res=new StringBuffer("[");
+		for (Iterator it=states.iterator(); it.hasNext(); ) {
+			res.append(((State)it.next()).getId());
+			if (it.hasNext()) {
+				res.append(", ");
+			}
+		}
+		return res.append("]").toString();
+	}
+
+	/**
+	 * <p>Report unreachable states and states from which the flow cannot end,
+	 * using the reachability information precomputed by the flow definition.
+	 */
+	protected void verifyReachability(WebFlowDefinition definition) {
+		List states=definition.getStates();
+		for (int i=0; i<states.size(); i++) {
+			State state=(State)states.get(i);
+			if (!definition.isReachable(state)) {
+				if (log.isWarnEnabled()) {
+					log.warn("State '" + state.getId() + "' of web flow '" + definition.getName() + "' cannot be reached from the start state");
+				}
+			}
+			else if (!definition.canReachEnd(state) && log.isInfoEnabled()) {
+				log.info("No end state of web flow '" + definition.getName() + "' can be reached from state '" + state.getId() + "'");
+			}
+		}
+	}
+
+}
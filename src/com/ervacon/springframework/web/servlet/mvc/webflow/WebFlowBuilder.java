@@ -0,0 +1,275 @@
+package com.ervacon.springframework.web.servlet.mvc.webflow;
+
+/*
+ * (c) Copyright Ervacon 2004-2005.
+ * All Rights Reserved.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>Builder of web flow definitions in Java code, as an alternative to
+ * XML flow definitions. The builder offers the same constructs as the web
+ * flow DTD and produces the same compiled {@link WebFlowDefinition}, without
+ * any parsing. Each state method starts a new state: the actions and
+ * transitions that follow are added to that state. For example:
+ * <pre>
+ * WebFlowDefinition def=new WebFlowBuilder("Search Flow")
+ * 	.startState("criteria")
+ * 	.viewState("criteria", "criteria")
+ * 		.transition("search", "search")
+ * 	.actionState("search")
+ * 		.action("searchAct", "searchAction")
+ * 		.transition("searchAct.ok", "results")
+ * 	.viewState("results", "results")
+ * 		.transition("newSearch", "criteria")
+ * 	.build();
+ * </pre>
+ *
+ * <p>A builder can build several definitions, each call to {@link #build()}
+ * returns a new definition. Builders are not thread safe.
+ *
+ * @see com.ervacon.springframework.web.servlet.mvc.webflow.AbstractBuilderWebFlow
+ *
+ * @author Erwin Vervaet
+ */
+public class WebFlowBuilder {
+
+	private static final int VIEW_STATE=1;
+	private static final int ACTION_STATE=2;
+	private static final int FLOW_STATE=3;
+	private static final int END_STATE=4;
+	private static final int DECISION_STATE=5;
+
+	private final String name;
+	private String startStateId=null;
+	private List states=new ArrayList();
+	private List globalTransitions=new ArrayList();
+	private StateSpec currentState=null;
+
+	/**
+	 * <p>Create a new builder for a flow with given name.
+	 */
+	public WebFlowBuilder(String name) {
+		this.name=name;
+	}
+
+	/**
+	 * <p>Set the id of the state where flow execution begins.
+	 */
+	public WebFlowBuilder startState(String stateId) {
+		this.startStateId=stateId;
+		return this;
+	}
+
+	/**
+	 * <p>Add a global transition: a transition that applies to all view and
+	 * flow states of the flow that do not handle its event themselves.
+	 */
+	public WebFlowBuilder globalTransition(String transitionName, String targetStateId) {
+		globalTransitions.add(new String[] { transitionName, targetStateId });
+		return this;
+	}
+
+	/**
+	 * <p>Add a view state rendering given view, which can be null.
+	 */
+	public WebFlowBuilder viewState(String id, String view) {
+		return addState(new StateSpec(VIEW_STATE, id, view, null));
+	}
+
+	/**
+	 * <p>Add an action state. Add its actions using {@link #action(String, String)}.
+	 */
+	public WebFlowBuilder actionState(String id) {
+		return addState(new StateSpec(ACTION_STATE, id, null, null));
+	}
+
+	/**
+	 * <p>Add a decision state. Add its conditions using {@link #ifThen(String, String)}
+	 * and {@link #ifThenElse(String, String, String)}.
+	 */
+	public WebFlowBuilder decisionState(String id) {
+		return addState(new StateSpec(DECISION_STATE, id, null, null));
+	}
+
+	/**
+	 * <p>Add a flow state executing the sub flow with given bean name.
+	 */
+	public WebFlowBuilder flowState(String id, String subFlowName) {
+		return flowState(id, subFlowName, null);
+	}
+
+	/**
+	 * <p>Add a flow state executing the sub flow with given bean name, using
+	 * the model mapper with given bean name, which can be null.
+	 */
+	public WebFlowBuilder flowState(String id, String subFlowName, String modelMapperName) {
+		return addState(new StateSpec(FLOW_STATE, id, subFlowName, modelMapperName));
+	}
+
+	/**
+	 * <p>Add an end state that does not render a view.
+	 */
+	public WebFlowBuilder endState(String id) {
+		return endState(id, null);
+	}
+
+	/**
+	 * <p>Add an end state rendering given view, which can be null.
+	 */
+	public WebFlowBuilder endState(String id, String view) {
+		return addState(new StateSpec(END_STATE, id, view, null));
+	}
+
+	private WebFlowBuilder addState(StateSpec state) {
+		if (state.id==null) {
+			throw new WebFlowException("states of web flow '" + name + "' should have an id");
+		}
+		states.add(state);
+		currentState=state;
+		return this;
+	}
+
+	/**
+	 * <p>Add an action, executed by the bean with given name, to the current
+	 * action state.
+	 */
+	public WebFlowBuilder action(String actionName, String beanName) throws WebFlowException {
+		if (currentState==null || currentState.type!=ACTION_STATE) {
+			throw new WebFlowException("actions can only be added to action states, not to " + describeCurrentState());
+		}
+		currentState.actionNames.add(actionName);
+		currentState.actionBeanNames.add(beanName);
+		return this;
+	}
+
+	/**
+	 * <p>Add a condition to the current decision state: when given test holds,
+	 * the flow continues in the state with given id.
+	 *
+	 * @see ModelCondition
+	 */
+	public WebFlowBuilder ifThen(String test, String thenStateId) throws WebFlowException {
+		if (currentState==null || currentState.type!=DECISION_STATE) {
+			throw new WebFlowException("conditions can only be added to decision states, not to " + describeCurrentState());
+		}
+		if (currentState.elseStateId!=null) {
+			throw new WebFlowException("no conditions can be added to decision state '" + currentState.id + "' after its else state");
+		}
+		currentState.transitionNames.add(test);
+		currentState.transitionTargets.add(thenStateId);
+		return this;
+	}
+
+	/**
+	 * <p>Add the last condition to the current decision state: when given test
+	 * holds, the flow continues in the state with the "then" id, and when no
+	 * condition of the state holds, in the state with the "else" id.
+	 *
+	 * @see ModelCondition
+	 */
+	public WebFlowBuilder ifThenElse(String test, String thenStateId, String elseStateId) throws WebFlowException {
+		ifThen(test, thenStateId);
+		currentState.elseStateId=elseStateId;
+		return this;
+	}
+
+	/**
+	 * <p>Add a transition to the current state. The name of a transition of
+	 * an action state is of the form "actionName.event".
+	 */
+	public WebFlowBuilder transition(String transitionName, String targetStateId) throws WebFlowException {
+		if (currentState==null || currentState.type==END_STATE || currentState.type==DECISION_STATE) {
+			throw new WebFlowException("transitions cannot be added to " + describeCurrentState());
+		}
+		currentState.transitionNames.add(transitionName);
+		currentState.transitionTargets.add(targetStateId);
+		return this;
+	}
+
+	private String describeCurrentState() {
+		return currentState==null ? "web flow '" + name + "' before a state was added" : "state '" + currentState.id + "'";
+	}
+
+	/**
+	 * <p>Build the flow definition.
+	 *
+	 * @return the compiled flow definition
+	 * @throws WebFlowException when the states do not form a valid flow
+	 */
+	public WebFlowDefinition build() throws WebFlowException {
+		if (startStateId==null) {
+			throw new WebFlowException("web flow '" + name + "' has no start state");
+		}
+		State[] builtStates=new State[states.size()];
+		for (int i=0; i<builtStates.length; i++) {
+			builtStates[i]=((StateSpec)states.get(i)).build();
+		}
+		Transition[] builtGlobalTransitions=new Transition[globalTransitions.size()];
+		for (int i=0; i<builtGlobalTransitions.length; i++) {
+			String[] globalTransition=(String[])globalTransitions.get(i);
+			builtGlobalTransitions[i]=new Transition(globalTransition[0], globalTransition[1]);
+		}
+		return new WebFlowDefinition(name, startStateId, builtStates, builtGlobalTransitions);
+	}
+
+	/**
+	 * <p>Specification of a state being built.
+	 */
+	private static class StateSpec {
+
+		private final int type;
+		private final String id;
+		private final String value; //view or sub flow name
+		private final String modelMapperName;
+		private final List actionNames=new ArrayList();
+		private final List actionBeanNames=new ArrayList();
+		private final List transitionNames=new ArrayList(); //or conditions of a decision state
+		private final List transitionTargets=new ArrayList();
+		private String elseStateId=null;
+
+		public StateSpec(int type, String id, String value, String modelMapperName) {
+			this.type=type;
+			this.id=id;
+			this.value=value;
+			this.modelMapperName=modelMapperName;
+		}
+
+		public State build() throws WebFlowException {
+			if (type==DECISION_STATE) {
+				if (transitionNames.isEmpty()) {
+					throw new WebFlowException("decision state '" + id + "' should have at least one condition");
+				}
+				return new DecisionState(
+						id,
+						(String[])transitionNames.toArray(new String[transitionNames.size()]),
+						(String[])transitionTargets.toArray(new String[transitionTargets.size()]),
+						elseStateId);
+			}
+			Transition[] transitions=new Transition[transitionNames.size()];
+			for (int i=0; i<transitions.length; i++) {
+				transitions[i]=new Transition((String)transitionNames.get(i), (String)transitionTargets.get(i));
+			}
+			switch (type) {
+				case VIEW_STATE:
+					return new ViewState(id, value, transitions);
+				case ACTION_STATE:
+					if (actionNames.isEmpty() || transitions.length==0) {
+						throw new WebFlowException("action state '" + id + "' should have at least one action and one transition");
+					}
+					return new ActionState(
+							id,
+							(String[])actionNames.toArray(new String[actionNames.size()]),
+							(String[])actionBeanNames.toArray(new String[actionBeanNames.size()]),
+							transitions);
+				case FLOW_STATE:
+					return new FlowState(id, value, modelMapperName, transitions);
+				default:
+					return new EndState(id, value);
+			}
+		}
+	}
+
+}
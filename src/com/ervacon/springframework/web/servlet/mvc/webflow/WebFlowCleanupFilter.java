@@ -6,24 +6,30 @@ package com.ervacon.springframework.web.servlet.mvc.webflow;
  */
 
 import java.io.IOException;
-import java.util.Enumeration;
-import java.util.HashSet;
 import java.util.Iterator;
-import java.util.Set;
 
 import javax.servlet.FilterChain;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.servlet.http.HttpSession;
 
+import org.springframework.web.context.support.WebApplicationContextUtils;
 import org.springframework.web.filter.OncePerRequestFilter;
 
 /**
- * <p>Servlet 2.3 filter that cleans up expired web flows in the HTTP
- * session associated with the request being filtered. A flow has expired
- * when it has not handled any requests for more that a specified timeout
- * period.
+ * <p>Servlet 2.3 filter that cleans up the expired web flows of the client
+ * sending the request being filtered. A flow has expired when it has not
+ * handled any requests for more that a specified timeout period.
+ * 
+ * <p>By default, this filter cleans up flows stored in the HTTP session by a
+ * {@link HttpSessionFlowStateStore}. To clean up another store, define it as a
+ * bean in the root web application context and configure its name using the
+ * "flowStateStoreBeanName" property. Stores that remove expired flows by
+ * themselves, like the {@link InMemoryFlowStateStore} and the
+ * {@link TieredFlowStateStore}, don't need this filter and are left alone by
+ * it: see {@link FlowStateStore#expiresFlows()}. Checking the flows of a
+ * tiered store would reactivate all passivated flows of the client on each
+ * request.
  * 
  * <p>This filter can be configured in the <tt>web.xml</tt> deployment
  * descriptor of your web application. Here's an example:
@@ -56,7 +62,15 @@ import org.springframework.web.filter.OncePerRequestFilter;
  *      <td>
  * 			Specifies the flow timeout in <b>minutes</b>. If the flow
  * 			is inactive for more that this period of time it will expire
- * 			and be removed from the HTTP session.
+ * 			and be removed from the flow state store.
+ *		</td>
+ *  </tr>
+ *  <tr>
+ *      <td>flowStateStoreBeanName</td>
+ *      <td>null</td>
+ *      <td>
+ * 			Name of the flow state store bean in the root web application
+ * 			context. When not set, flows are cleaned up in the HTTP session.
  *		</td>
  *  </tr>
  * </table>
@@ -73,6 +87,8 @@ public class WebFlowCleanupFilter extends OncePerRequestFilter {
 	public static final int DEFAULT_TIMEOUT=10;
 	
 	private int timeout=DEFAULT_TIMEOUT; //in minutes
+	private String flowStateStoreBeanName=null;
+	private volatile FlowStateStore flowStateStore=null;
 	
 	/**
 	 * <p>Get the flow timout (expiry), expressed in minutes.
@@ -88,48 +104,71 @@ public class WebFlowCleanupFilter extends OncePerRequestFilter {
 		this.timeout=timeout;
 	}
 	
+	/**
+	 * <p>Get the name of the flow state store bean in the root web application
+	 * context.
+	 */
+	public String getFlowStateStoreBeanName() {
+		return flowStateStoreBeanName;
+	}
+
+	/**
+	 * <p>Set the name of the flow state store bean in the root web application
+	 * context. When not set, flows are cleaned up in the HTTP session.
+	 */
+	public void setFlowStateStoreBeanName(String flowStateStoreBeanName) {
+		this.flowStateStoreBeanName=flowStateStoreBeanName;
+	}
+	
+	/**
+	 * <p>Returns the flow state store cleaned up by this filter. The store bean
+	 * is obtained from the root web application context when first needed.
+	 */
+	protected FlowStateStore getFlowStateStore() {
+		if (flowStateStore==null) {
+			if (getFlowStateStoreBeanName()==null) {
+				flowStateStore=new HttpSessionFlowStateStore();
+			}
+			else {
+				flowStateStore=(FlowStateStore)WebApplicationContextUtils.getRequiredWebApplicationContext(
+						getFilterConfig().getServletContext()).getBean(getFlowStateStoreBeanName(), FlowStateStore.class);
+			}
+		}
+		return flowStateStore;
+	}
+	
 	protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain) throws ServletException, IOException {
 		doCleanup(request);
 		filterChain.doFilter(request, response);
 	}
 	
 	/**
-	 * <p>Remove expired flows from the HTTP session associated with given request.
+	 * <p>Remove the expired flows of the client sending given request from the
+	 * flow state store, unless the store removes expired flows by itself.
 	 */
 	protected void doCleanup(HttpServletRequest request) {
-		//get the session if there is one
-		HttpSession session=request.getSession(false);
-		if (session==null) {
+		FlowStateStore store=getFlowStateStore();
+		if (store.expiresFlows()) {
 			return;
 		}
 		
-		//execute the cleanup process
-		Set namesToBeDeleted=new HashSet();
-		
-		Enumeration names=session.getAttributeNames();
-		while (names.hasMoreElements()) {
-			String name=(String)names.nextElement();
-			Object value=session.getAttribute(name);
-			if (value instanceof WebFlowMementoStack) {
-				WebFlowMementoStack mementos=(WebFlowMementoStack)value;
-				if (hasExpired(request, mementos)) {
-					namesToBeDeleted.add(name);
-					if (logger.isInfoEnabled()) {
-						logger.info("Flow '" + mementos.getFlowName() + "' with id '" + name + "' has expired and will be removed from the HTTP session '" + session.getId() + "'");
-					}
+		//getFlowIds() returns a copy, so we can delete while iterating
+		Iterator it=store.getFlowIds(request).iterator();
+		while (it.hasNext()) {
+			String flowId=(String)it.next();
+			WebFlowMementoStack mementos=store.load(request, flowId);
+			if (mementos!=null && hasExpired(request, mementos)) {
+				if (logger.isInfoEnabled()) {
+					logger.info("Flow '" + mementos.getFlowName() + "' with id '" + flowId + "' has expired and will be removed from the flow state store");
 				}
+				store.delete(request, flowId);
 			}
 		}
-		
-		Iterator it=namesToBeDeleted.iterator();
-		while (it.hasNext()) {
-			session.removeAttribute((String)it.next());
-		}
 	}
 	
 	/**
-	 * <p>Check if given web flow memento stack, found in the session associated with
-	 * given request, has expired.
+	 * <p>Check if given web flow memento stack, stored on behalf of the client
+	 * sending given request, has expired.
 	 * 
 	 * <p>Subclasses can override this method if they want to change the expiry logic,
 	 * e.g. to keep flows alive in certain situations.
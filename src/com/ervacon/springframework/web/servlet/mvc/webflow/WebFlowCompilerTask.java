@@ -0,0 +1,159 @@
+package com.ervacon.springframework.web.servlet.mvc.webflow;
+
+/*
+ * (c) Copyright Ervacon 2004-2005.
+ * All Rights Reserved.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.types.FileSet;
+
+import org.springframework.util.FileCopyUtils;
+
+/**
+ * <p>Ant task that compiles XML web flow definitions into the binary format
+ * defined by {@link BinaryWebFlowDefinitionFormat}. The <code>SimpleWebFlow</code>
+ * loads such a binary definition instead of parsing the XML definition when it
+ * finds an up to date binary definition next to the XML definition.
+ *
+ * <p>A binary definition is recompiled when its XML definition was modified
+ * after it, or when it was written using another version of the binary format,
+ * e.g. by an older version of this task.
+ *
+ * <p>Usage example:
+ * <pre>
+ * &lt;taskdef name="compileflows" classname="com.ervacon.springframework.web.servlet.mvc.webflow.WebFlowCompilerTask"&gt;
+ * 	&lt;classpath refid="webFlowClassPath"/&gt;
+ * &lt;/taskdef&gt;
+ *
+ * &lt;compileflows&gt;
+ * 	&lt;fileset dir="WEB-INF"&gt;
+ * 		&lt;include name="**&#47;*-flow.xml"/&gt;
+ * 	&lt;/fileset&gt;
+ * &lt;/compileflows&gt;
+ * </pre>
+ *
+ * <p><b>Supported attributes and nested elements:</b><br>
+ * <table border="1">
+ *  <tr>
+ *      <td><b>name</b></td>
+ *      <td><b>default</b></td>
+ *      <td><b>description</b></td>
+ *  </tr>
+ *  <tr>
+ *      <td>destdir</td>
+ *      <td><i>null</i></td>
+ *      <td>
+ *          Directory where the binary definitions are generated, using the same
+ *          relative path as the XML definition in its file set. When not set,
+ *          each binary definition is generated next to its XML definition.
+ *      </td>
+ *  </tr>
+ *  <tr>
+ *      <td>fileset</td>
+ *      <td><i>none</i></td>
+ *      <td>Nested file sets selecting the XML definitions to compile.</td>
+ *  </tr>
+ * </table>
+ *
+ * @see com.ervacon.springframework.web.servlet.mvc.webflow.BinaryWebFlowDefinitionFormat
+ *
+ * @author Erwin Vervaet
+ */
+public class WebFlowCompilerTask extends Task {
+
+	private File destDir=null;
+	private List fileSets=new ArrayList();
+
+	/**
+	 * <p>Set the directory where the binary definitions are generated.
+	 */
+	public void setDestdir(File destDir) {
+		this.destDir=destDir;
+	}
+
+	/**
+	 * <p>Add a file set selecting XML definitions to compile.
+	 */
+	public void addFileset(FileSet fileSet) {
+		fileSets.add(fileSet);
+	}
+
+	public void execute() throws BuildException {
+		int count=0;
+		for (int i=0; i<fileSets.size(); i++) {
+			FileSet fileSet=(FileSet)fileSets.get(i);
+			DirectoryScanner scanner=fileSet.getDirectoryScanner(getProject());
+			File baseDir=fileSet.getDir(getProject());
+			String[] files=scanner.getIncludedFiles();
+			for (int j=0; j<files.length; j++) {
+				File source=new File(baseDir, files[j]);
+				File target=new File(destDir==null ? baseDir : destDir, BinaryWebFlowDefinitionFormat.getBinaryFileName(files[j]));
+				if (target.lastModified()<source.lastModified() || !isCurrentVersion(target)) {
+					compile(source, target);
+					count++;
+				}
+			}
+		}
+		log("Compiled " + count + " web flow definition(s)");
+	}
+
+	/**
+	 * <p>Check whether given binary definition was written using the current
+	 * version of the binary format.
+	 */
+	protected boolean isCurrentVersion(File target) throws BuildException {
+		try {
+			InputStream in=new FileInputStream(target);
+			try {
+				return new BinaryWebFlowDefinitionFormat().isCurrentVersion(in);
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (IOException e) {
+			throw new BuildException("cannot read binary web flow definition " + target + ": " + e.getMessage(), e, getLocation());
+		}
+	}
+
+	/**
+	 * <p>Compile given XML definition into given binary definition.
+	 */
+	protected void compile(File source, File target) throws BuildException {
+		log("Compiling " + source, Project.MSG_VERBOSE);
+		try {
+			byte[] xml=FileCopyUtils.copyToByteArray(source);
+			WebFlowDefinition definition=new SimpleWebFlow().parse(xml);
+
+			target.getParentFile().mkdirs();
+			OutputStream out=new BufferedOutputStream(new FileOutputStream(target));
+			try {
+				new BinaryWebFlowDefinitionFormat().write(definition, xml, out);
+			}
+			finally {
+				out.close();
+			}
+		}
+		catch (IOException e) {
+			throw new BuildException("cannot compile web flow definition " + source + ": " + e.getMessage(), e, getLocation());
+		}
+		catch (WebFlowException e) {
+			throw new BuildException("invalid web flow definition " + source + ": " + e.getMessage(), e, getLocation());
+		}
+	}
+
+}
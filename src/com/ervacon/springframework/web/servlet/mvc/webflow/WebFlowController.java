@@ -6,6 +6,7 @@ package com.ervacon.springframework.web.servlet.mvc.webflow;
  */
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
@@ -22,7 +23,11 @@ import org.springframework.web.servlet.mvc.AbstractController;
  * 
  * <p>This controller requires an HTTP session to keep track of flow state. So it will
  * force the "requireSession" attribute defined by the <code>AbstractController</code>
- * to true.
+ * to true, unless its flow state store does not need a session (see
+ * {@link FlowStateStore#requiresSession()}). The flow state itself is kept by a
+ * {@link FlowStateStore}, by default a {@link HttpSessionFlowStateStore} keeping it
+ * in the HTTP session, like previous versions did. When flow state is kept on the
+ * client using a {@link ClientFlowStateStore}, no session is required.
  * 
  * <p>This controller recognizes the following request parameters:
  * <table border="1">
@@ -65,6 +70,16 @@ import org.springframework.web.servlet.mvc.AbstractController;
  * 			new flow.
  * 		</td>
  * 	</tr>
+ * 	<tr>
+ *      <td>_snapshot</th>
+ *      <td>
+ * 			Key of the snapshot of the flow the event applies to. This is optional
+ * 			and only used when the flow keeps a history (see the "historySize"
+ * 			property). When it is the key of an older snapshot, e.g. because the
+ * 			user used the browser <i>Back</i> button, the flow resumes from that
+ * 			snapshot.
+ * 		</td>
+ * 	</tr>
  * </table>
  * 
  * <p>The following values will be exposed to the view via the model:
@@ -91,9 +106,16 @@ import org.springframework.web.servlet.mvc.AbstractController;
  *      <td>currentState</th>
  *      <td>The current state of the flow.</td>
  * 	</tr>
+ * 	<tr>
+ *      <td>snapshot</th>
+ *      <td>
+ * 			The key of the snapshot of the flow displayed by the view. Only exposed
+ * 			when the flow keeps a history.
+ *		</td>
+ * 	</tr>
  * </table>
- * Note that the keys used in the model can be configured using the "flowIdModelName" and
- * "currentStateModelName" properties.
+ * Note that the keys used in the model can be configured using the "flowIdModelName",
+ * "currentStateModelName" and "snapshotModelName" properties.
  * 
  * <p><b>Workflow:</b><br>
  * <ol>
@@ -109,7 +131,7 @@ import org.springframework.web.servlet.mvc.AbstractController;
  * 	</li>
  * 	<li>
  * 		If a flow id is found, the controller aquires the state (memento) of that
- * 		flow from the HTTP session. It then continues this flow from its current state
+ * 		flow from the flow state store. It then continues this flow from its current state
  * 		(or the state specified in the "_currentState" request parameter) using the
  * 		event specified in the "_event" request parameter. This results in a model and
  * 		view to display.
@@ -158,6 +180,54 @@ import org.springframework.web.servlet.mvc.AbstractController;
  *      <td>currentState</td>
  *      <td>The current state will be exposed to the view using this key in the model.</td>
  *  </tr>
+ *  <tr>
+ *      <td>snapshotModelName</td>
+ *      <td>snapshot</td>
+ *      <td>The snapshot key will be exposed to the view using this key in the model.</td>
+ *  </tr>
+ *  <tr>
+ *      <td>historySize</td>
+ *      <td>0</td>
+ *      <td>
+ * 			The number of snapshots kept in the {@link WebFlowHistory} of each flow
+ * 			started by this controller, allowing users to resume a flow from an earlier
+ * 			page. Each snapshot costs only the changes made during one request. Use 0,
+ * 			the default, to keep no history.
+ *		</td>
+ *  </tr>
+ *  <tr>
+ *      <td>webFlowRegistry</td>
+ *      <td>{@link WebFlowRegistry#lookup(org.springframework.context.ApplicationContext) lookup}</td>
+ *      <td>
+ * 			Registry used to obtain flows. Defaults to the registry bean defined in
+ * 			the application context or, if there is none, a private registry.
+ *		</td>
+ *  </tr>
+ *  <tr>
+ *      <td>flowStateStore</td>
+ *      <td>{@link HttpSessionFlowStateStore}</td>
+ *      <td>
+ * 			Store used to keep the state of active flows. Defaults to a store
+ * 			keeping flow state in the HTTP session, as previous versions did.
+ * 			Use an {@link InMemoryFlowStateStore} to keep flow state out of the
+ * 			session, or a {@link ClientFlowStateStore} to keep it on the client.
+ * 			The latter does not require an HTTP session. Define the store as a
+ * 			bean to share it between controllers.
+ *		</td>
+ *  </tr>
+ *  <tr>
+ *      <td>resolveEventsInParentFlows</td>
+ *      <td>false</td>
+ *      <td>
+ * 			Whether or not to resolve events that the current flow cannot handle in
+ * 			its parent flows, typically when the user used the browser <i>Back</i>
+ * 			button to return to a page of a parent flow. When true, sub flows are
+ * 			ended until a flow is found that can handle the event in the current state,
+ * 			like the {@link SubFlowBackNavigationExceptionResolver} does, but without
+ * 			generating navigation exceptions. When no flow can handle the event, nothing
+ * 			is ended.
+ *		</td>
+ *  </tr>
  * </table>
  * 
  * <p>This class provides several extension hook methods to fine tune its
@@ -198,6 +268,12 @@ public class WebFlowController extends AbstractController implements Initializin
      */
     public static final String PARAM_EVENT="_event";
     
+    /**
+     * <p>Name of the request parameter that holds the key of the snapshot
+     * of the flow the event applies to. This is optional.
+     */
+    public static final String PARAM_SNAPSHOT="_snapshot";
+    
     
     //model keys
     
@@ -211,11 +287,31 @@ public class WebFlowController extends AbstractController implements Initializin
      */
     public static final String CURRENT_STATE_MODEL_NAME="currentState";
     
+    /**
+     * <p>Key of the snapshot key in the model exposed to the view.
+     */
+    public static final String SNAPSHOT_MODEL_NAME="snapshot";
+    
+    
+    //request attributes
+    
+    /**
+     * <p>Name of the request attribute exposing the flow state store used by
+     * the controller handling the request, e.g. to
+     * {@link WebFlowUtils#getWebFlowMementoStack(HttpServletRequest, Map)}.
+     */
+    public static final String FLOW_STATE_STORE_ATTRIBUTE=WebFlowController.class.getName() + ".flowStateStore";
+    
     
     private String webFlowName=null;
     private ParameterExtractor parameterExtractor=new RequestParameterValueParameterExtractor();
     private String flowIdModelName=FLOW_ID_MODEL_NAME;
     private String currentStateModelName=CURRENT_STATE_MODEL_NAME;
+    private String snapshotModelName=SNAPSHOT_MODEL_NAME;
+    private int historySize=0;
+    private boolean resolveEventsInParentFlows=false;
+    private WebFlowRegistry webFlowRegistry=null;
+    private FlowStateStore flowStateStore=new HttpSessionFlowStateStore();
     
     /**
      * Create a new web flow controller.
@@ -294,10 +390,89 @@ public class WebFlowController extends AbstractController implements Initializin
 	public void setCurrentStateModelName(String currentStateModelName) {
 		this.currentStateModelName=currentStateModelName;
 	}
+
+	/**
+	 * <p>Get the key of the snapshot key value in the model. Defaults to
+	 * "snapshot".
+	 */
+	public String getSnapshotModelName() {
+		return snapshotModelName;
+	}
+
+	/**
+	 * <p>Set the key of the snapshot key value in the model. Defaults to
+	 * "snapshot".
+	 */
+	public void setSnapshotModelName(String snapshotModelName) {
+		this.snapshotModelName=snapshotModelName;
+	}
+
+	/**
+	 * <p>Returns the number of snapshots kept in the history of each flow
+	 * started by this controller.
+	 */
+	public int getHistorySize() {
+		return historySize;
+	}
+
+	/**
+	 * <p>Set the number of snapshots kept in the history of each flow started
+	 * by this controller. Defaults to 0: no history is kept.
+	 */
+	public void setHistorySize(int historySize) {
+		this.historySize=historySize;
+	}
+
+	/**
+	 * <p>Returns the registry used to obtain flows.
+	 */
+	public WebFlowRegistry getWebFlowRegistry() {
+		return webFlowRegistry;
+	}
+
+	/**
+	 * <p>Set the registry used to obtain flows. Defaults to the registry bean
+	 * defined in the application context or, if there is none, a private
+	 * registry.
+	 */
+	public void setWebFlowRegistry(WebFlowRegistry webFlowRegistry) {
+		this.webFlowRegistry=webFlowRegistry;
+	}
+
+	/**
+	 * <p>Returns the store used to keep the state of active flows.
+	 */
+	public FlowStateStore getFlowStateStore() {
+		return flowStateStore;
+	}
+
+	/**
+	 * <p>Set the store used to keep the state of active flows. Defaults to
+	 * a {@link HttpSessionFlowStateStore}.
+	 */
+	public void setFlowStateStore(FlowStateStore flowStateStore) {
+		this.flowStateStore=flowStateStore;
+	}
+
+	/**
+	 * <p>Returns whether or not events the current flow cannot handle are
+	 * resolved in its parent flows.
+	 */
+	public boolean isResolveEventsInParentFlows() {
+		return resolveEventsInParentFlows;
+	}
+
+	/**
+	 * <p>Set whether or not events the current flow cannot handle are resolved
+	 * in its parent flows. Defaults to false.
+	 */
+	public void setResolveEventsInParentFlows(boolean resolveEventsInParentFlows) {
+		this.resolveEventsInParentFlows=resolveEventsInParentFlows;
+	}
         
     public void afterPropertiesSet() throws Exception {
-    	//we need a session to keep track of flow state
-    	setRequireSession(true);
+    	//we need a session to keep track of flow state, unless the store does not
+    	setRequireSession(getFlowStateStore().requiresSession());
     	
     	//verify that our flow actually exists in the application context,
     	//if it's specified
@@ -307,6 +482,10 @@ public class WebFlowController extends AbstractController implements Initializin
     			throw new IllegalArgumentException("webFlowName cannot be '" + getWebFlowName() + "', this is not the id of a web flow bean in the application context");
     		}
     	}
+    	
+    	if (getWebFlowRegistry()==null) {
+    		setWebFlowRegistry(WebFlowRegistry.lookup(getApplicationContext()));
+    	}
     }
     
     protected ModelAndView handleRequestInternal(HttpServletRequest request, HttpServletResponse response) throws Exception {
@@ -317,6 +496,9 @@ public class WebFlowController extends AbstractController implements Initializin
         String event=null;
         WebFlowMementoStack mementos=null;
         
+        //make the flow state store available to actions
+        request.setAttribute(FLOW_STATE_STORE_ATTRIBUTE, getFlowStateStore());
+        
         try {
 	        if (flowId==null) {
 	            //start a new web flow
@@ -334,9 +516,12 @@ public class WebFlowController extends AbstractController implements Initializin
 	            			"either set the 'webFlowName' property of the controller or specify a '_flowName' request parameter");
 	            }
 	            
-	            //create a flow memento stack and save it in the session
+	            //create a flow memento stack and save it in the store
 	            mementos=createMementos(flowName, flowId);
 	            mementos.getModel().putAll(getModelInputData(request));
+	            if (getHistorySize()>0) {
+	            	mementos.setHistory(new WebFlowHistory(getHistorySize()));
+	            }
 	            saveMementos(request, flowId, mementos);
 	            
 	            mav=getWebFlow(flowName).start(request, response, mementos);
@@ -348,6 +533,11 @@ public class WebFlowController extends AbstractController implements Initializin
 	            if (mementos==null) {
 	            	throw new IllegalArgumentException("unable to recover web flow memento for flow '" + flowId + "'");
 	            }
+	            
+	            String snapshot=getParameter(request, PARAM_SNAPSHOT);
+	            if (snapshot!=null && mementos.getHistory()!=null) {
+	            	mementos=restoreSnapshot(mementos, snapshot);
+	            }
 	
 	            currentState=getParameter(request, PARAM_CURRENT_STATE);
 	            if (currentState==null) {
@@ -359,7 +549,11 @@ public class WebFlowController extends AbstractController implements Initializin
 	                throw new IllegalArgumentException("make sure you provide a valid '" + PARAM_EVENT + "' parameter when submiting a request to an existing flow");
 	            }
 	            
-	            mav=getWebFlow(mementos.getFlowName()).execute(request, response, currentState, event, mementos);
+	            if (isResolveEventsInParentFlows()) {
+	            	resolveEventInParentFlows(currentState, event, mementos);
+	            }
+	            
+	            mav=getWebFlow(mementos).execute(request, response, currentState, event, mementos);
 	        }
         }
         catch (NavigationException e) {
@@ -367,6 +561,7 @@ public class WebFlowController extends AbstractController implements Initializin
         	if (currentState!=null) e.setState(currentState);
         	if (event!=null) e.setEvent(event);
         	if (mementos!=null) e.setMementos(mementos);
+        	e.setFlowId(flowId);
         	
         	throw e;
         }
@@ -377,25 +572,125 @@ public class WebFlowController extends AbstractController implements Initializin
         	}
         }
         
+        return completeRequest(request, flowId, mementos, mav);
+    }
+    
+    /**
+     * <p>Store the flow state resulting from handling a request and expose the
+     * flow id and current state to the view. Also used by the
+     * {@link SubFlowBackNavigationExceptionResolver} after it handled a request
+     * that caused a navigation exception.
+     * 
+     * @param request the current HTTP request
+     * @param flowId the id of the flow
+     * @param mementos the flow memento stack after handling the request
+     * @param mav the model and view selected by the flow, can be null
+     * @return the model and view to render
+     */
+    protected ModelAndView completeRequest(HttpServletRequest request, String flowId, WebFlowMementoStack mementos, ModelAndView mav) {
         if (mementos.empty()) {
         	//the flow ended, clean up its state
             deleteMementos(request, flowId);
         }
+        else {
+        	if (mementos.getHistory()!=null) {
+        		mementos.getHistory().record(mementos);
+        	}
+        	//store the updated flow state, stores that copy the state need this
+        	saveMementos(request, flowId, mementos);
+        }
                 
         if (mav!=null && !mementos.empty()) {
         	//expose flow id and current state to the view
-            mav.addObject(getFlowIdModelName(), flowId);
+            mav.addObject(getFlowIdModelName(), getExposedFlowId(request, flowId, mementos));
             mav.addObject(getCurrentStateModelName(), mementos.getCurrentState());
+            if (mementos.getHistory()!=null) {
+            	mav.addObject(getSnapshotModelName(), String.valueOf(mementos.getHistory().getCurrentKey()));
+            }
         }
         
         return mav;
     }
     
     /**
-     * <p>Helper method to get an actual web flow object using a name.
+     * <p>Find the flow on given memento stack that can handle given event in
+     * given state, starting with the current flow, and end all sub flows of that
+     * flow by popping their mementos. When no flow can handle the event, or
+     * when a flow on the stack is not a {@link SimpleWebFlow} and so cannot
+     * tell whether it can handle the event, the stack is left as it is.
+     * 
+     * @see SimpleWebFlow#canHandle(String, String)
+     */
+    protected void resolveEventInParentFlows(String state, String event, WebFlowMementoStack mementos) {
+    	List stack=mementos.asList();
+    	for (int i=stack.size()-1; i>=0; i--) {
+    		WebFlow flow=getWebFlow((WebFlowMemento)stack.get(i));
+    		if (!(flow instanceof SimpleWebFlow)) {
+    			return;
+    		}
+    		if (((SimpleWebFlow)flow).canHandle(state, event)) {
+    			if (i<stack.size()-1 && logger.isInfoEnabled()) {
+    				logger.info("Ending " + (stack.size()-1-i) + " sub flows to handle event '" + event + "' in state '" + state + "' of flow '" + ((SimpleWebFlow)flow).getName() + "'");
+    			}
+    			while (mementos.size()>i+1) {
+    				mementos.pop();
+    			}
+    			return;
+    		}
+    	}
+    }
+    
+    /**
+     * <p>Returns the memento stack of the snapshot with given key from the
+     * history of given memento stack. When the key is that of the current
+     * snapshot, the memento stack itself is returned.
+     * 
+     * @throws IllegalArgumentException when the snapshot is no longer available
+     */
+    protected WebFlowMementoStack restoreSnapshot(WebFlowMementoStack mementos, String snapshot) {
+    	int key;
+    	try {
+    		key=Integer.parseInt(snapshot);
+    	}
+    	catch (NumberFormatException e) {
+    		throw new IllegalArgumentException("invalid '" + PARAM_SNAPSHOT + "' parameter: " + snapshot);
+    	}
+    	WebFlowHistory history=mementos.getHistory();
+    	if (key==history.getCurrentKey()) {
+    		return mementos;
+    	}
+    	WebFlowMementoStack restored=history.restore(key);
+    	if (restored==null) {
+    		throw new IllegalArgumentException("snapshot " + key + " of flow '" + mementos.getFlowName() + "' is no longer available");
+    	}
+    	if (logger.isDebugEnabled()) {
+    		logger.debug("Resuming flow '" + restored.getFlowName() + "' from snapshot " + key + ", the current snapshot is " + history.getCurrentKey());
+    	}
+    	return restored;
+    }
+    
+    /**
+     * <p>Helper method to get an actual web flow object using a name. The
+     * flow is obtained from the web flow registry.
      */
     protected WebFlow getWebFlow(String flowName) {
-    	return (WebFlow)getWebApplicationContext().getBean(flowName);
+    	return getWebFlowRegistry().getFlow(flowName);
+    }
+    
+    /**
+     * <p>Helper method to get the web flow object of the flow at the top of
+     * given memento stack.
+     */
+    protected WebFlow getWebFlow(WebFlowMementoStack mementos) {
+    	return getWebFlow(mementos.peek());
+    }
+    
+    /**
+     * <p>Helper method to get the web flow object associated with given memento,
+     * which caches the flow obtained from the web flow registry.
+     */
+    protected WebFlow getWebFlow(WebFlowMemento memento) {
+    	return memento.getFlow(getWebFlowRegistry());
     }
     
     /**
@@ -408,13 +703,23 @@ public class WebFlowController extends AbstractController implements Initializin
     
     /**
      * <p>Generate a pseudo unique id for a flow. This id will be used to store
-     * flow state in the HTTP session, so the generated id should be unique for
-     * an entire HTTP session.
+     * flow state on behalf of the client, so the generated id should be unique
+     * for an entire HTTP session.
      */
     protected String generateId() {
     	return WebFlowUtils.generateUniqueId();
     }
     
+    /**
+     * <p>Returns the value of the flow id exposed to the view, which the client
+     * submits in the next request to the flow. Delegates to the flow state
+     * store: this is the flow id itself, or a continuation token when using
+     * a {@link ClientFlowStateStore}.
+     */
+    protected String getExposedFlowId(HttpServletRequest request, String flowId, WebFlowMementoStack mementos) {
+    	return getFlowStateStore().getExposedFlowId(request, flowId, mementos);
+    }
+    
     /**
      * <p>Create a new memento stack for given web flow with given id.
      */
@@ -442,27 +747,27 @@ public class WebFlowController extends AbstractController implements Initializin
 	}
     
     /**
-     * <p>Load the mementos stored in the HTTP session associated with given request
-     * using given id.
+     * <p>Load the mementos stored using given id on behalf of the client sending
+     * given request. Delegates to the flow state store.
      */
     protected WebFlowMementoStack loadMementos(HttpServletRequest request, String id) {
-        return (WebFlowMementoStack)request.getSession().getAttribute(id);
+        return getFlowStateStore().load(request, id);
     }
 
 	/**
-	 * <p>Save given web flow mementos in the HTTP session associated with
-	 * given request using given id.
+	 * <p>Save given web flow mementos using given id on behalf of the client
+	 * sending given request. Delegates to the flow state store.
 	 */
     protected void saveMementos(HttpServletRequest request, String id, WebFlowMementoStack mementos) {
-        request.getSession().setAttribute(id, mementos);
+        getFlowStateStore().save(request, id, mementos);
     }
     
     /**
-     * <p>Delete the web flow mementos stored in the HTTP session associated
-     * with given request using given id.
+     * <p>Delete the web flow mementos stored using given id on behalf of the
+     * client sending given request. Delegates to the flow state store.
      */
     protected void deleteMementos(HttpServletRequest request, String id) {
-        request.getSession().removeAttribute(id);
+        getFlowStateStore().delete(request, id);
     }
 
 }
@@ -0,0 +1,275 @@
+package com.ervacon.springframework.web.servlet.mvc.webflow;
+
+/*
+ * (c) Copyright Ervacon 2004-2005.
+ * All Rights Reserved.
+ */
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>Compiled, immutable web flow definition. This is the object graph
+ * a web flow definition document is compiled into: typed state objects,
+ * indexed by id, with transitions that directly reference their target
+ * states. Executing a flow only needs hash lookups and object references,
+ * the original definition document is no longer needed.
+ *
+ * <p>All transitions are resolved when the definition is constructed, so
+ * an instance of this class is always a consistent graph. Objects of this
+ * class are immutable and can be safely shared between threads.
+ * 
+ * <p>Reachability information is precomputed when the definition is constructed:
+ * which states can be reached from the start state and from which states an end
+ * state can be reached. The {@link WebFlowAnalyzer} uses this to verify a flow.
+ * 
+ * <p>A flow can have <i>global transitions</i>: transitions that apply to every
+ * view state and flow state of the flow that has no transition for the signaled
+ * event itself. Both the transitions of each state and the global transitions
+ * are indexed by name, so deciding whether a state of the flow can handle an
+ * event is a constant time lookup, see {@link #canHandle(String, String)}.
+ *
+ * @see com.ervacon.springframework.web.servlet.mvc.webflow.SimpleWebFlow
+ *
+ * @author Erwin Vervaet
+ */
+public class WebFlowDefinition {
+
+	private final String name;
+	private final List states;
+	private final Map statesById;
+	private final State startState;
+	private final List globalTransitions;
+	private final Map globalTransitionsByName;
+	private final Set reachableStates;
+	private final Set endReachingStates;
+
+	/**
+	 * <p>Create a new web flow definition.
+	 *
+	 * @param name name of the web flow
+	 * @param startStateId id of the start state of the flow
+	 * @param states all states of the flow
+	 * @throws WebFlowException when the states do not form a valid graph
+	 */
+	public WebFlowDefinition(String name, String startStateId, State[] states) throws WebFlowException {
+		this(name, startStateId, states, null);
+	}
+
+	/**
+	 * <p>Create a new web flow definition with global transitions.
+	 *
+	 * @param name name of the web flow
+	 * @param startStateId id of the start state of the flow
+	 * @param states all states of the flow
+	 * @param globalTransitions transitions applying to all view and flow states
+	 *        of the flow, can be null
+	 * @throws WebFlowException when the states do not form a valid graph
+	 */
+	public WebFlowDefinition(String name, String startStateId, State[] states, Transition[] globalTransitions) throws WebFlowException {
+		this.name=name;
+		this.states=Collections.unmodifiableList(Arrays.asList((State[])states.clone()));
+		this.statesById=new HashMap();
+		for (int i=0; i<states.length; i++) {
+			if (statesById.put(states[i].getId(), states[i])!=null) {
+				throw new WebFlowException("duplicate state id '" + states[i].getId() + "' in web flow '" + name + "'");
+			}
+		}
+
+		this.startState=getState(startStateId);
+		if (this.startState==null) {
+			throw new WebFlowException("start state '" + startStateId + "' does not exist in web flow '" + name + "'");
+		}
+
+		for (int i=0; i<states.length; i++) {
+			states[i].resolve(this);
+		}
+		
+		if (globalTransitions==null) {
+			globalTransitions=new Transition[0];
+		}
+		this.globalTransitions=Collections.unmodifiableList(Arrays.asList((Transition[])globalTransitions.clone()));
+		this.globalTransitionsByName=new HashMap();
+		for (int i=0; i<globalTransitions.length; i++) {
+			globalTransitions[i].resolve(this);
+			//the first transition with a particular name wins
+			if (!globalTransitionsByName.containsKey(globalTransitions[i].getName())) {
+				globalTransitionsByName.put(globalTransitions[i].getName(), globalTransitions[i]);
+			}
+		}
+		
+		this.reachableStates=computeReachableStates();
+		this.endReachingStates=computeEndReachingStates();
+	}
+	
+	/**
+	 * <p>Compute the set of states reachable from the start state.
+	 */
+	private Set computeReachableStates() {
+		Set reachable=new HashSet();
+		LinkedList todo=new LinkedList();
+		reachable.add(startState);
+		todo.add(startState);
+		while (!todo.isEmpty()) {
+			List targets=getTargetStates((State)todo.removeFirst());
+			for (int i=0; i<targets.size(); i++) {
+				if (reachable.add(targets.get(i))) {
+					todo.add(targets.get(i));
+				}
+			}
+		}
+		return reachable;
+	}
+	
+	/**
+	 * <p>Returns the states given state can transition to, including the
+	 * targets of the global transitions that apply to it.
+	 */
+	private List getTargetStates(State state) {
+		List targets=new LinkedList();
+		List transitions=state.getTransitions();
+		for (int i=0; i<transitions.size(); i++) {
+			targets.add(((Transition)transitions.get(i)).getTargetState());
+		}
+		if (hasGlobalTransitions(state)) {
+			for (int i=0; i<globalTransitions.size(); i++) {
+				targets.add(((Transition)globalTransitions.get(i)).getTargetState());
+			}
+		}
+		return targets;
+	}
+	
+	/**
+	 * <p>Compute the set of states from which an end state can be reached.
+	 */
+	private Set computeEndReachingStates() {
+		//build the reverse graph: target state -> source states
+		Map sources=new HashMap();
+		for (int i=0; i<states.size(); i++) {
+			State state=(State)states.get(i);
+			List targets=getTargetStates(state);
+			for (int j=0; j<targets.size(); j++) {
+				State target=(State)targets.get(j);
+				List targetSources=(List)sources.get(target);
+				if (targetSources==null) {
+					targetSources=new LinkedList();
+					sources.put(target, targetSources);
+				}
+				targetSources.add(state);
+			}
+		}
+		
+		Set endReaching=new HashSet();
+		LinkedList todo=new LinkedList();
+		for (int i=0; i<states.size(); i++) {
+			if (states.get(i) instanceof EndState) {
+				endReaching.add(states.get(i));
+				todo.add(states.get(i));
+			}
+		}
+		while (!todo.isEmpty()) {
+			List stateSources=(List)sources.get(todo.removeFirst());
+			if (stateSources!=null) {
+				for (int i=0; i<stateSources.size(); i++) {
+					if (endReaching.add(stateSources.get(i))) {
+						todo.add(stateSources.get(i));
+					}
+				}
+			}
+		}
+		return endReaching;
+	}
+
+	/**
+	 * <p>Returns the name of the web flow.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * <p>Returns the start state of the web flow.
+	 */
+	public State getStartState() {
+		return startState;
+	}
+
+	/**
+	 * <p>Find the state with given id. Returns null if there is no
+	 * such state.
+	 */
+	public State getState(String id) {
+		return (State)statesById.get(id);
+	}
+
+	/**
+	 * <p>Returns all states of the web flow, in definition order.
+	 */
+	public List getStates() {
+		return states;
+	}
+	
+	/**
+	 * <p>Returns the global transitions of the web flow, in definition order.
+	 */
+	public List getGlobalTransitions() {
+		return globalTransitions;
+	}
+	
+	/**
+	 * <p>Returns whether or not the global transitions of the flow apply to
+	 * given state: view states and flow states, the states that are left
+	 * by signaling an event.
+	 */
+	public boolean hasGlobalTransitions(State state) {
+		return state instanceof ViewState || state instanceof FlowState;
+	}
+	
+	/**
+	 * <p>Find the transition triggered by given event in given state: the
+	 * transition of the state itself or, if there is none, the applicable
+	 * global transition. Returns null if there is no such transition.
+	 */
+	public Transition getTransition(State state, String event) {
+		Transition transition=state.getTransition(event);
+		if (transition==null && hasGlobalTransitions(state)) {
+			transition=(Transition)globalTransitionsByName.get(event);
+		}
+		return transition;
+	}
+	
+	/**
+	 * <p>Returns whether or not the state with given id exists and has a
+	 * transition, possibly a global transition, for given event.
+	 */
+	public boolean canHandle(String stateId, String event) {
+		State state=getState(stateId);
+		return state!=null && getTransition(state, event)!=null;
+	}
+	
+	/**
+	 * <p>Returns whether or not given state can be reached from the start
+	 * state of the flow.
+	 */
+	public boolean isReachable(State state) {
+		return reachableStates.contains(state);
+	}
+	
+	/**
+	 * <p>Returns whether or not an end state can be reached from given state.
+	 */
+	public boolean canReachEnd(State state) {
+		return endReachingStates.contains(state);
+	}
+
+	public String toString() {
+		return "WebFlowDefinition '" + name + "' (" + states.size() + " states)";
+	}
+
+}
@@ -0,0 +1,36 @@
+package com.ervacon.springframework.web.servlet.mvc.webflow;
+
+/*
+ * (c) Copyright Ervacon 2004-2005.
+ * All Rights Reserved.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * <p>Strategy used by the {@link SimpleWebFlow} to read an XML web flow
+ * definition, conforming to the web flow DTD, and compile it into a
+ * {@link WebFlowDefinition}.
+ *
+ * <p>Implementations should be thread safe: a single reader can be used
+ * to read several flow definitions at the same time.
+ *
+ * @see com.ervacon.springframework.web.servlet.mvc.webflow.SaxWebFlowDefinitionReader
+ * @see com.ervacon.springframework.web.servlet.mvc.webflow.JdomWebFlowDefinitionReader
+ *
+ * @author Erwin Vervaet
+ */
+public interface WebFlowDefinitionReader {
+
+	/**
+	 * <p>Read the XML flow definition available from given stream.
+	 *
+	 * @param source the XML flow definition, will not be closed
+	 * @return the compiled flow definition
+	 * @throws IOException when the definition cannot be read
+	 * @throws WebFlowException when the definition is not a valid flow
+	 */
+	public WebFlowDefinition read(InputStream source) throws IOException, WebFlowException;
+
+}
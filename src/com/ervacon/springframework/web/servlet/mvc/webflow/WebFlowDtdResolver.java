@@ -5,10 +5,14 @@ package com.ervacon.springframework.web.servlet.mvc.webflow;
  * All Rights Reserved.
  */
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.core.io.Resource;
+import org.springframework.util.FileCopyUtils;
 import org.xml.sax.EntityResolver;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
@@ -18,16 +22,24 @@ import org.xml.sax.SAXException;
  * from the classpath. The implementation is similar to that of the Spring
  * <code>org.springframework.beans.factory.xml.BeansDtdResolver</code>.
  * 
+ * <p>The DTD is only read from the classpath once: its contents are cached
+ * and shared by all resolvers, so loading many flows or reloading flows
+ * does not read the DTD again.
+ * 
  * @author Erwin Vervaet
  */
 public class WebFlowDtdResolver implements EntityResolver {
+    
+    /**
+     * <p>Contents of the DTD files loaded from the classpath, keyed by file name.
+     */
+    private static final Map dtdCache=new HashMap();
 
     public InputSource resolveEntity(String publicId, String systemId) throws SAXException, IOException {
         if (systemId!=null && systemId.indexOf("web-flow")>systemId.lastIndexOf("/")) {
             String dtdFile = systemId.substring(systemId.indexOf("web-flow"));
             try {
-                Resource resource=new ClassPathResource("/com/ervacon/springframework/web/servlet/mvc/webflow/" + dtdFile, getClass());
-                InputSource source=new InputSource(resource.getInputStream());
+                InputSource source=new InputSource(new ByteArrayInputStream(getDtd(dtdFile)));
                 source.setPublicId(publicId);
                 source.setSystemId(systemId);
                 return source;
@@ -38,5 +50,21 @@ public class WebFlowDtdResolver implements EntityResolver {
         }
         return null; //let the parser handle it
     }
+    
+    /**
+     * <p>Returns the contents of the named DTD file, loading it from the
+     * classpath the first time it is needed.
+     */
+    private byte[] getDtd(String dtdFile) throws IOException {
+        synchronized (dtdCache) {
+            byte[] dtd=(byte[])dtdCache.get(dtdFile);
+            if (dtd==null) {
+                Resource resource=new ClassPathResource("/com/ervacon/springframework/web/servlet/mvc/webflow/" + dtdFile, getClass());
+                dtd=FileCopyUtils.copyToByteArray(resource.getInputStream());
+                dtdCache.put(dtdFile, dtd);
+            }
+            return dtd;
+        }
+    }
 
 }
\ No newline at end of file
@@ -0,0 +1,164 @@
+package com.ervacon.springframework.web.servlet.mvc.webflow;
+
+/*
+ * (c) Copyright Ervacon 2004-2005.
+ * All Rights Reserved.
+ */
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.web.servlet.ModelAndView;
+
+/**
+ * <p>Execution context of a single request handled by a web flow. The
+ * {@link SimpleWebFlow} executes states in a loop: each executed state
+ * either schedules the next state to execute, possibly in another flow
+ * (a sub flow or a parent flow), or stops the loop by providing the model
+ * and view to render. This avoids growing the Java stack for chained action
+ * states and nested sub flows.
+ *
+ * <p>The execution counts the number of state transitions done while handling
+ * the request and fails when the configured maximum is exceeded, e.g. because
+ * of a misconfigured loop of action states.
+ *
+ * <p>The execution also pins the definition of each flow involved in handling
+ * the request: once a flow definition is used by an execution, the execution
+ * keeps using it, even if the flow is reloaded in the mean time.
+ *
+ * <p>Objects of this class are used by a single thread and are not reused
+ * across requests.
+ *
+ * @see com.ervacon.springframework.web.servlet.mvc.webflow.SimpleWebFlow
+ *
+ * @author Erwin Vervaet
+ */
+public class WebFlowExecution {
+
+	private final HttpServletRequest request;
+	private final HttpServletResponse response;
+	private final WebFlowMementoStack mementos;
+	private final int maxTransitions;
+
+	private SimpleWebFlow nextFlow=null;
+	private State nextState=null;
+	private ModelAndView modelAndView=null;
+	private int transitionCount=0;
+	private final Map definitions=new HashMap();
+
+	/**
+	 * <p>Create a new execution context.
+	 *
+	 * @param request current HTTP request
+	 * @param response current HTTP response
+	 * @param mementos flow call stack
+	 * @param maxTransitions maximum number of transitions allowed during this execution
+	 */
+	public WebFlowExecution(HttpServletRequest request, HttpServletResponse response, WebFlowMementoStack mementos, int maxTransitions) {
+		this.request=request;
+		this.response=response;
+		this.mementos=mementos;
+		this.maxTransitions=maxTransitions;
+	}
+
+	/**
+	 * <p>Returns the current HTTP request.
+	 */
+	public HttpServletRequest getRequest() {
+		return request;
+	}
+
+	/**
+	 * <p>Returns the current HTTP response.
+	 */
+	public HttpServletResponse getResponse() {
+		return response;
+	}
+
+	/**
+	 * <p>Returns the flow call stack.
+	 */
+	public WebFlowMementoStack getMementos() {
+		return mementos;
+	}
+
+	/**
+	 * <p>Returns the definition of given flow used by this execution. The first
+	 * call for a flow obtains its current definition, subsequent calls return
+	 * that same definition.
+	 */
+	public WebFlowDefinition getDefinition(SimpleWebFlow flow) throws WebFlowException {
+		WebFlowDefinition definition=(WebFlowDefinition)definitions.get(flow);
+		if (definition==null) {
+			definition=flow.getWebFlowDefinition();
+			definitions.put(flow, definition);
+		}
+		return definition;
+	}
+
+	/**
+	 * <p>Schedule given state of given flow as the next state to execute.
+	 *
+	 * @throws WebFlowException when this exceeds the maximum number of transitions
+	 */
+	public void transitionTo(SimpleWebFlow flow, State state) throws WebFlowException {
+		if (transitionCount>=maxTransitions) {
+			throw new WebFlowException(
+					"maximum number of transitions (" + maxTransitions + ") exceeded while transitioning to state '" + state.getId() +
+					"' of web flow '" + flow.getName() + "': check the flow definition for loops of action states");
+		}
+		transitionCount++;
+		this.nextFlow=flow;
+		this.nextState=state;
+	}
+
+	/**
+	 * <p>Returns whether or not a next state has been scheduled for execution.
+	 */
+	public boolean hasNextState() {
+		return nextState!=null;
+	}
+
+	/**
+	 * <p>Returns the flow owning the next state to execute.
+	 */
+	public SimpleWebFlow getNextFlow() {
+		return nextFlow;
+	}
+
+	/**
+	 * <p>Returns the next state to execute and clears it, so a state
+	 * that does not schedule a new state ends the execution.
+	 */
+	public State takeNextState() {
+		State state=nextState;
+		nextState=null;
+		return state;
+	}
+
+	/**
+	 * <p>Returns the model and view to render, can be null.
+	 */
+	public ModelAndView getModelAndView() {
+		return modelAndView;
+	}
+
+	/**
+	 * <p>Set the model and view to render.
+	 */
+	public void setModelAndView(ModelAndView modelAndView) {
+		this.modelAndView=modelAndView;
+	}
+
+	/**
+	 * <p>Returns the number of state transitions done during this execution:
+	 * the length of the transition chain.
+	 */
+	public int getTransitionCount() {
+		return transitionCount;
+	}
+
+}
@@ -0,0 +1,224 @@
+package com.ervacon.springframework.web.servlet.mvc.webflow;
+
+/*
+ * (c) Copyright Ervacon 2004-2005.
+ * All Rights Reserved.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+
+/**
+ * <p>Bounded history of the snapshots of a flow, supporting the browser
+ * <i>Back</i> button. After each request, the web flow controller records a
+ * snapshot of the memento stack of the flow and exposes its key to the view.
+ * A request carrying the key of an older snapshot resumes the flow from that
+ * snapshot instead of from its latest state.
+ *
+ * <p>Snapshots are not copies of the memento stack. A snapshot holds the
+ * changes made to the memento stack since the snapshot it was resumed from,
+ * as written by {@link WebFlowMementoStack#writeDelta(java.io.ObjectOutput)},
+ * so it only costs what changed during one request. The history tracks these
+ * changes separately from the memento stack's own change tracking, which
+ * stores replicating flow state rely on. A snapshot is restored
+ * by applying the changes of the snapshots it derives from to the oldest of
+ * them, which holds a complete memento stack. Note that, like the deltas,
+ * snapshots do not notice changes inside model values that were not put in
+ * the model again.
+ *
+ * <p>The history keeps a fixed number of snapshots. Recording a snapshot when
+ * the history is full evicts the oldest snapshot; snapshots derived from it
+ * are converted into complete memento stacks first.
+ *
+ * <p>A history belongs to a single memento stack and is serialized with it.
+ * It is not thread safe: the web flow controller only uses it while handling
+ * a request of its flow.
+ *
+ * @see com.ervacon.springframework.web.servlet.mvc.webflow.WebFlowController
+ *
+ * @author Erwin Vervaet
+ */
+public class WebFlowHistory implements Serializable {
+
+	private int size;
+	private int lastKey=0;
+	private int currentKey=0;
+	private LinkedHashMap snapshots=new LinkedHashMap(); //key -> snapshot, oldest first
+
+	/**
+	 * <p>Create a new history keeping given number of snapshots.
+	 */
+	public WebFlowHistory(int size) {
+		if (size<1) {
+			throw new IllegalArgumentException("a web flow history should keep at least one snapshot");
+		}
+		this.size=size;
+	}
+
+	/**
+	 * <p>Returns the maximum number of snapshots kept by this history.
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * <p>Returns the number of snapshots currently kept by this history.
+	 */
+	public int getSnapshotCount() {
+		return snapshots.size();
+	}
+
+	/**
+	 * <p>Returns the key of the snapshot the memento stack of the flow was last
+	 * recorded as or restored from, or 0 if there is none.
+	 */
+	public int getCurrentKey() {
+		return currentKey;
+	}
+
+	/**
+	 * <p>Returns whether or not this history holds the snapshot with given key.
+	 */
+	public boolean contains(int key) {
+		return snapshots.containsKey(new Integer(key));
+	}
+
+	/**
+	 * <p>Record the current state of given memento stack as a new snapshot,
+	 * which becomes the current snapshot. The changes made to the memento
+	 * stack are committed for this history only: {@link WebFlowMementoStack#isDirty()}
+	 * and {@link WebFlowMementoStack#writeDelta(java.io.ObjectOutput)} are not
+	 * affected.
+	 *
+	 * @param mementos the memento stack of the flow, which should be the
+	 *        memento stack last recorded or restored by this history
+	 * @return the key of the new snapshot
+	 */
+	public int record(WebFlowMementoStack mementos) {
+		Snapshot parent=getSnapshot(currentKey);
+		Snapshot snapshot=new Snapshot(++lastKey, parent==null ? 0 : parent.key, parent==null ? serialize(mementos, false) : serialize(mementos, true));
+		snapshots.put(new Integer(snapshot.key), snapshot);
+		mementos.commit(WebFlowMemento.HISTORY_TRACKER);
+		currentKey=snapshot.key;
+
+		while (snapshots.size()>size) {
+			evictOldest();
+		}
+		return snapshot.key;
+	}
+
+	/**
+	 * <p>Restore the snapshot with given key, which becomes the current
+	 * snapshot. The returned memento stack uses this history. It replaces
+	 * the memento stack of the flow, so its next delta contains all of its
+	 * mementos.
+	 *
+	 * @param key the key of the snapshot
+	 * @return the memento stack as it was when the snapshot was recorded,
+	 *         or null if there is no such snapshot
+	 */
+	public WebFlowMementoStack restore(int key) {
+		if (!contains(key)) {
+			return null;
+		}
+		WebFlowMementoStack mementos=rebuild(key);
+		mementos.replaceOnNextDelta();
+		mementos.setHistory(this);
+		currentKey=key;
+		return mementos;
+	}
+
+	private Snapshot getSnapshot(int key) {
+		return (Snapshot)snapshots.get(new Integer(key));
+	}
+
+	/**
+	 * <p>Rebuild the memento stack of the snapshot with given key by applying
+	 * the changes of the snapshots it derives from to a complete snapshot.
+	 */
+	private WebFlowMementoStack rebuild(int key) {
+		LinkedList chain=new LinkedList();
+		Snapshot snapshot=getSnapshot(key);
+		while (snapshot.parentKey!=0) {
+			chain.addFirst(snapshot);
+			snapshot=getSnapshot(snapshot.parentKey);
+		}
+		try {
+			ObjectInputStream in=new ObjectInputStream(new ByteArrayInputStream(snapshot.data));
+			WebFlowMementoStack mementos=new WebFlowMementoStack();
+			mementos.readMementos(in);
+			for (Iterator it=chain.iterator(); it.hasNext(); ) {
+				in=new ObjectInputStream(new ByteArrayInputStream(((Snapshot)it.next()).data));
+				mementos.readDelta(in);
+			}
+			mementos.commit(WebFlowMemento.REPLICATION_TRACKER);
+			mementos.commit(WebFlowMemento.HISTORY_TRACKER);
+			return mementos;
+		}
+		catch (IOException e) {
+			throw new WebFlowException("cannot restore snapshot " + key + " of web flow history", e);
+		}
+		catch (ClassNotFoundException e) {
+			throw new WebFlowException("cannot restore snapshot " + key + " of web flow history", e);
+		}
+	}
+
+	/**
+	 * <p>Remove the oldest snapshot, first turning the snapshots derived from
+	 * it into complete snapshots.
+	 */
+	private void evictOldest() {
+		Snapshot oldest=(Snapshot)snapshots.values().iterator().next();
+		for (Iterator it=snapshots.values().iterator(); it.hasNext(); ) {
+			Snapshot snapshot=(Snapshot)it.next();
+			if (snapshot.parentKey==oldest.key) {
+				snapshot.data=serialize(rebuild(snapshot.key), false);
+				snapshot.parentKey=0;
+			}
+		}
+		snapshots.remove(new Integer(oldest.key));
+	}
+
+	private byte[] serialize(WebFlowMementoStack mementos, boolean delta) {
+		try {
+			ByteArrayOutputStream bytes=new ByteArrayOutputStream(256);
+			ObjectOutputStream out=new ObjectOutputStream(bytes);
+			if (delta) {
+				mementos.writeDelta(out, WebFlowMemento.HISTORY_TRACKER);
+			}
+			else {
+				mementos.writeMementos(out);
+			}
+			out.close();
+			return bytes.toByteArray();
+		}
+		catch (IOException e) {
+			throw new WebFlowException("cannot record snapshot in web flow history", e);
+		}
+	}
+
+	/**
+	 * <p>A recorded snapshot: a complete memento stack when it has no parent,
+	 * the changes made since the parent snapshot otherwise.
+	 */
+	private static class Snapshot implements Serializable {
+		private final int key;
+		private int parentKey;
+		private byte[] data;
+
+		public Snapshot(int key, int parentKey, byte[] data) {
+			this.key=key;
+			this.parentKey=parentKey;
+			this.data=data;
+		}
+	}
+
+}
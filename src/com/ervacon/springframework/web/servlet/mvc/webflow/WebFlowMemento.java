@@ -5,9 +5,19 @@ package com.ervacon.springframework.web.servlet.mvc.webflow;
  * All Rights Reserved.
  */
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.springframework.beans.BeansException;
 import org.springframework.context.ApplicationContext;
@@ -19,7 +29,18 @@ import org.springframework.context.ApplicationContext;
  * and the <b>model data</b> associated with the flow instance.
  * 
  * <p>Objects of this class are serializable, so they can be safely stored
- * in the HTTP session.
+ * in the HTTP session. They use a compact, versioned format: see
+ * {@link WebFlowMementoStack}. The flow object itself is not serialized: it is
+ * cached in a transient field once obtained from a {@link WebFlowRegistry}.
+ * 
+ * <p>A memento tracks the changes made to it since the last {@link #commit()}:
+ * changes of the current state and the model attributes that were put or
+ * removed. Stores that replicate flow state can ship just these changes
+ * using {@link #writeDelta(ObjectOutput)}. Note that changes inside a model
+ * value are not noticed: put the value in the model again to mark it as changed.
+ * Also note that removing model attributes through the key, value or entry
+ * views of the model is not tracked. The {@link WebFlowHistory} tracks
+ * changes separately, so recording snapshots does not commit them.
  * 
  * <p>One way of looking at objects of this class is as <i>activation frames</i>:
  * they hold state associated with a flow invokation.
@@ -29,11 +50,33 @@ import org.springframework.context.ApplicationContext;
  * 
  * @author Erwin Vervaet
  */
-public class WebFlowMemento implements Serializable {
+public class WebFlowMemento implements Externalizable {
+	
+	/**
+	 * <p>Version of the serialized format.
+	 */
+	static final int FORMAT_VERSION=1;
+	
+	//change trackers: one for replicating stores, using the public
+	//change tracking methods, and one for the web flow history
+	static final int REPLICATION_TRACKER=0;
+	static final int HISTORY_TRACKER=1;
+	static final int TRACKER_COUNT=2;
 
 	private String flowName=null;
     private String currentState=null;
-    private Map model=new HashMap();
+    private Model model=new Model();
+    
+    private transient boolean[] currentStateChanged=new boolean[TRACKER_COUNT];
+    private transient WebFlow flow=null;
+    private transient WebFlowRegistry flowRegistry=null;
+    private transient int flowRegistryGeneration=0;
+    
+    /**
+     * <p>Create a new memento without a flow name. For deserialization only.
+     */
+    public WebFlowMemento() {
+    }
     
     /**
      * <p>Create a new memento for named web flow.
@@ -58,6 +101,25 @@ public class WebFlowMemento implements Serializable {
     public WebFlow getFlow(ApplicationContext appCtx) throws BeansException {
     	return (WebFlow)appCtx.getBean(flowName);
     }
+    
+    /**
+     * <p>Get the flow object associated with this memento from given registry.
+     * A registered flow is cached by this memento until the registry is
+     * refreshed.
+     */
+    public WebFlow getFlow(WebFlowRegistry registry) throws BeansException {
+    	if (flow!=null && flowRegistry==registry && flowRegistryGeneration==registry.getGeneration()) {
+    		return flow;
+    	}
+    	int generation=registry.getGeneration();
+    	WebFlow registryFlow=registry.getFlow(flowName);
+    	if (registry.isRegistered(flowName)) {
+    		flow=registryFlow;
+    		flowRegistry=registry;
+    		flowRegistryGeneration=generation;
+    	}
+    	return registryFlow;
+    }
 
 	/**
 	 * <p>Get the current state of the flow associated with this memento.
@@ -70,6 +132,9 @@ public class WebFlowMemento implements Serializable {
      * <p>Set the current state of the flow associated with this memento.
      */
     public void setCurrentState(String state) {
+        if (currentState==null ? state!=null : !currentState.equals(state)) {
+        	Arrays.fill(currentStateChanged, true);
+        }
         this.currentState=state;
     }
     
@@ -79,5 +144,272 @@ public class WebFlowMemento implements Serializable {
     public Map getModel() {
         return this.model;
     }
+    
+    //change tracking
+    
+    /**
+     * <p>Returns whether or not this memento changed since the last commit,
+     * or since it was deserialized.
+     */
+    public boolean isDirty() {
+    	return isDirty(REPLICATION_TRACKER);
+    }
+    
+    boolean isDirty(int tracker) {
+    	return currentStateChanged[tracker] || model.hasChanges(tracker);
+    }
+    
+    /**
+     * <p>Forget the changes made to this memento, typically after they have
+     * been replicated.
+     */
+    public void commit() {
+    	commit(REPLICATION_TRACKER);
+    }
+    
+    void commit(int tracker) {
+    	currentStateChanged[tracker]=false;
+    	model.commit(tracker);
+    }
+    
+    /**
+     * <p>Write the changes made to this memento since the last commit to given
+     * output. The changes can be applied to a copy of this memento as it was at
+     * that time using {@link #readDelta(ObjectInput)}.
+     */
+    public void writeDelta(ObjectOutput out) throws IOException {
+    	writeDelta(out, REPLICATION_TRACKER);
+    }
+    
+    /**
+     * <p>Write the changes seen by given change tracker since it was last
+     * committed.
+     */
+    void writeDelta(ObjectOutput out, int tracker) throws IOException {
+    	out.writeBoolean(currentStateChanged[tracker]);
+    	if (currentStateChanged[tracker]) {
+    		out.writeObject(currentState);
+    	}
+    	Set changedKeys=model.getChangedKeys(tracker);
+    	out.writeInt(changedKeys.size());
+    	for (Iterator it=changedKeys.iterator(); it.hasNext(); ) {
+    		Object key=it.next();
+    		out.writeObject(key);
+    		boolean present=model.containsKey(key);
+    		out.writeBoolean(present);
+    		if (present) {
+    			out.writeObject(model.get(key));
+    		}
+    	}
+    }
+    
+    /**
+     * <p>Apply the changes written by {@link #writeDelta(ObjectOutput)} to this
+     * memento. The applied changes are tracked like any other change.
+     */
+    public void readDelta(ObjectInput in) throws IOException, ClassNotFoundException {
+    	if (in.readBoolean()) {
+    		setCurrentState((String)in.readObject());
+    	}
+    	int changeCount=in.readInt();
+    	for (int i=0; i<changeCount; i++) {
+    		Object key=in.readObject();
+    		if (in.readBoolean()) {
+    			model.put(key, in.readObject());
+    		}
+    		else {
+    			model.remove(key);
+    		}
+    	}
+    }
+    
+    //serialization
+    
+    public void writeExternal(ObjectOutput out) throws IOException {
+    	out.writeByte(FORMAT_VERSION);
+    	writeTo(out, new StringTable());
+    }
+    
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+    	checkFormatVersion(in.readByte());
+    	readFrom(in, new StringTable());
+    }
+    
+    /**
+     * <p>Write this memento to given output, using given table for strings
+     * that are typically repeated.
+     */
+    void writeTo(ObjectOutput out, StringTable strings) throws IOException {
+    	strings.write(out, flowName);
+    	strings.write(out, currentState);
+    	StringTable.writeCount(out, model.size());
+    	for (Iterator it=model.entrySet().iterator(); it.hasNext(); ) {
+    		Map.Entry entry=(Map.Entry)it.next();
+    		if (entry.getKey() instanceof String) {
+    			out.writeBoolean(true);
+    			strings.write(out, (String)entry.getKey());
+    		}
+    		else {
+    			out.writeBoolean(false);
+    			out.writeObject(entry.getKey());
+    		}
+    		out.writeObject(entry.getValue());
+    	}
+    }
+    
+    /**
+     * <p>Read the contents of this memento written by
+     * {@link #writeTo(ObjectOutput, StringTable)}.
+     */
+    void readFrom(ObjectInput in, StringTable strings) throws IOException, ClassNotFoundException {
+    	flowName=strings.read(in);
+    	currentState=strings.read(in);
+    	int size=StringTable.readCount(in);
+    	model=new Model(size);
+    	for (int i=0; i<size; i++) {
+    		Object key=in.readBoolean() ? strings.read(in) : in.readObject();
+    		model.put(key, in.readObject());
+    	}
+    	for (int i=0; i<TRACKER_COUNT; i++) {
+    		commit(i);
+    	}
+    }
+    
+    static void checkFormatVersion(int version) throws InvalidObjectException {
+    	if (version!=FORMAT_VERSION) {
+    		throw new InvalidObjectException("unsupported web flow memento format version " + version + ", expected " + FORMAT_VERSION);
+    	}
+    }
+    
+    /**
+     * <p>Table of the strings written to or read from a stream. A string is
+     * written once, after which it is referred to by its index in the table.
+     * Numbers are written using a variable length encoding: small numbers,
+     * the most common by far, take a single byte.
+     */
+    static class StringTable {
+    	
+    	private final Map indexes=new HashMap(); //written string -> index
+    	private final List strings=new ArrayList(); //read strings
+    	
+    	//0 means null, 1 a new string and n>1 the string with index n-2
+    	
+    	public void write(ObjectOutput out, String string) throws IOException {
+    		if (string==null) {
+    			writeCount(out, 0);
+    			return;
+    		}
+    		Integer index=(Integer)indexes.get(string);
+    		if (index==null) {
+    			indexes.put(string, new Integer(indexes.size()));
+    			writeCount(out, 1);
+    			out.writeUTF(string);
+    		}
+    		else {
+    			writeCount(out, index.intValue()+2);
+    		}
+    	}
+    	
+    	public String read(ObjectInput in) throws IOException {
+    		int code=readCount(in);
+    		if (code==0) {
+    			return null;
+    		}
+    		else if (code==1) {
+    			String string=in.readUTF();
+    			strings.add(string);
+    			return string;
+    		}
+    		else if (code-2<strings.size()) {
+    			return (String)strings.get(code-2);
+    		}
+    		else {
+    			throw new InvalidObjectException("invalid string table index " + (code-2));
+    		}
+    	}
+    	
+    	public static void writeCount(ObjectOutput out, int count) throws IOException {
+    		while ((count & ~0x7f)!=0) {
+    			out.writeByte((count & 0x7f) | 0x80);
+    			count>>>=7;
+    		}
+    		out.writeByte(count);
+    	}
+    	
+    	public static int readCount(ObjectInput in) throws IOException {
+    		int count=0;
+    		for (int shift=0; shift<32; shift+=7) {
+    			int b=in.readUnsignedByte();
+    			count|=(b & 0x7f)<<shift;
+    			if ((b & 0x80)==0) {
+    				return count;
+    			}
+    		}
+    		throw new InvalidObjectException("invalid number");
+    	}
+    }
+    
+    /**
+     * <p>Model map that tracks the keys of the attributes put or removed since
+     * the last commit of each change tracker.
+     */
+    private static class Model extends HashMap {
+    	
+    	private transient Set[] changedKeys=new Set[TRACKER_COUNT];
+    	
+    	public Model() {
+    	}
+    	
+    	public Model(int size) {
+    		super(Math.max(16, size*4/3+1));
+    	}
+    	
+    	public Object put(Object key, Object value) {
+    		changed(key);
+    		return super.put(key, value);
+    	}
+    	
+    	public void putAll(Map map) {
+    		for (Iterator it=map.entrySet().iterator(); it.hasNext(); ) {
+    			Map.Entry entry=(Map.Entry)it.next();
+    			put(entry.getKey(), entry.getValue());
+    		}
+    	}
+    	
+    	public Object remove(Object key) {
+    		if (containsKey(key)) {
+    			changed(key);
+    		}
+    		return super.remove(key);
+    	}
+    	
+    	public void clear() {
+    		for (int i=0; i<TRACKER_COUNT; i++) {
+    			getChangedKeys(i).addAll(keySet());
+    		}
+    		super.clear();
+    	}
+    	
+    	private void changed(Object key) {
+    		for (int i=0; i<TRACKER_COUNT; i++) {
+    			getChangedKeys(i).add(key);
+    		}
+    	}
+    	
+    	public boolean hasChanges(int tracker) {
+    		return changedKeys[tracker]!=null && !changedKeys[tracker].isEmpty();
+    	}
+    	
+    	public Set getChangedKeys(int tracker) {
+    		if (changedKeys[tracker]==null) {
+    			changedKeys[tracker]=new HashSet();
+    		}
+    		return changedKeys[tracker];
+    	}
+    	
+    	public void commit(int tracker) {
+    		changedKeys[tracker]=null;
+    	}
+    }
 
 }
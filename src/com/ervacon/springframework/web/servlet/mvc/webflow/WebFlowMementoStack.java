@@ -5,7 +5,11 @@ package com.ervacon.springframework.web.servlet.mvc.webflow;
  * All Rights Reserved.
  */
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.EmptyStackException;
 import java.util.List;
@@ -21,7 +25,18 @@ import org.springframework.context.ApplicationContext;
  * flow mementos: one for each nested flow invokation.
  * 
  * <p>Objects of this class are serializable, so they can be safely stored
- * in the HTTP session.
+ * in the HTTP session. Serializing a memento stack produces a full snapshot.
+ * Memento stacks are externalizable, using a compact format that starts with
+ * a version number and writes each flow and state name only once.
+ * 
+ * <p>A memento stack also tracks the changes made to it since the last
+ * {@link #commit()}: mementos pushed and popped, and the changes made to the
+ * mementos themselves (see {@link WebFlowMemento}). Stores that replicate flow
+ * state can use {@link #writeDelta(ObjectOutput)} to ship only these changes
+ * to a copy of the memento stack as it was when last committed, which applies
+ * them using {@link #readDelta(ObjectInput)}. A memento stack that was just
+ * deserialized has no changes. The {@link WebFlowHistory} of the flow tracks
+ * the changes separately: recording snapshots does not commit them.
  * 
  * <p>One way of looking at an object of this class is as a <i>call stack</i>:
  * a stack of <i>activation records</i> build up when one flow calls another.
@@ -35,10 +50,15 @@ import org.springframework.context.ApplicationContext;
  * @author Erwin Vervaet
  * @author Steven Bazyl
  */
-public class WebFlowMementoStack implements Serializable {
+public class WebFlowMementoStack implements Externalizable {
     
     private Stack mementos=new Stack();
     private long lastAccessedTime=System.currentTimeMillis();
+    private WebFlowHistory history=null;
+    
+    //per change tracker, see WebFlowMemento
+    private transient int[] committedDepth=new int[WebFlowMemento.TRACKER_COUNT]; //size of the stack when last committed
+    private transient int[] unchangedDepth=new int[WebFlowMemento.TRACKER_COUNT]; //number of bottom mementos not pushed or popped since the last commit
     
     /**
      * <p>Returns whether or not the stack is empty.
@@ -77,7 +97,11 @@ public class WebFlowMementoStack implements Serializable {
      */
     public WebFlowMemento pop() {
         try {
-            return (WebFlowMemento)mementos.pop();
+            WebFlowMemento memento=(WebFlowMemento)mementos.pop();
+            for (int i=0; i<unchangedDepth.length; i++) {
+            	unchangedDepth[i]=Math.min(unchangedDepth[i], mementos.size());
+            }
+            return memento;
         }
         catch (EmptyStackException e) {
             return null;
@@ -99,6 +123,21 @@ public class WebFlowMementoStack implements Serializable {
 		lastAccessedTime=System.currentTimeMillis();
 	}
     
+    /**
+     * <p>Returns the snapshot history of the flow, or null if the flow
+     * keeps no history.
+     */
+    public WebFlowHistory getHistory() {
+    	return history;
+    }
+    
+    /**
+     * <p>Set the snapshot history of the flow.
+     */
+    public void setHistory(WebFlowHistory history) {
+    	this.history=history;
+    }
+    
     /**
      * <p>Get the stack of mementos as a list (bottom of stack is at index 0),
      * suitable for export to the page model for use in breadcrumbs or other devices.
@@ -124,6 +163,14 @@ public class WebFlowMementoStack implements Serializable {
     	return peek().getFlow(appCtx);
     }
     
+	/**
+	 * <p>Get the flow object of the memento at the top of the stack
+	 * from given flow registry.
+	 */
+    public WebFlow getFlow(WebFlowRegistry registry) throws BeansException {
+    	return peek().getFlow(registry);
+    }
+    
     /**
      * <p>Get the current state of the memento at the top of the stack.
      */
@@ -144,5 +191,144 @@ public class WebFlowMementoStack implements Serializable {
     public Map getModel() {
         return peek().getModel();
     }
+    
+    //change tracking
+    
+    /**
+     * <p>Returns whether or not mementos were pushed, popped or changed since
+     * the last commit. A changed last accessed time does not count.
+     */
+    public boolean isDirty() {
+    	return isDirty(WebFlowMemento.REPLICATION_TRACKER);
+    }
+    
+    boolean isDirty(int tracker) {
+    	if (unchangedDepth[tracker]<committedDepth[tracker] || unchangedDepth[tracker]<mementos.size()) {
+    		return true;
+    	}
+    	for (int i=0; i<mementos.size(); i++) {
+    		if (((WebFlowMemento)mementos.get(i)).isDirty(tracker)) {
+    			return true;
+    		}
+    	}
+    	return false;
+    }
+    
+    /**
+     * <p>Forget the changes made to this memento stack and its mementos,
+     * typically after they have been replicated.
+     */
+    public void commit() {
+    	commit(WebFlowMemento.REPLICATION_TRACKER);
+    }
+    
+    void commit(int tracker) {
+    	committedDepth[tracker]=mementos.size();
+    	unchangedDepth[tracker]=committedDepth[tracker];
+    	for (int i=0; i<mementos.size(); i++) {
+    		((WebFlowMemento)mementos.get(i)).commit(tracker);
+    	}
+    }
+    
+    /**
+     * <p>Consider all mementos pushed since the last commit, so the next delta
+     * replaces all mementos of the copy it is applied to. Used when this memento
+     * stack replaces another one, e.g. when restored from the history.
+     */
+    void replaceOnNextDelta() {
+    	unchangedDepth[WebFlowMemento.REPLICATION_TRACKER]=0;
+    }
+    
+    /**
+     * <p>Write the changes made to this memento stack since the last commit
+     * to given output: the last accessed time, the changes of the mementos
+     * that remained on the stack and the mementos pushed since.
+     */
+    public void writeDelta(ObjectOutput out) throws IOException {
+    	writeDelta(out, WebFlowMemento.REPLICATION_TRACKER);
+    }
+    
+    /**
+     * <p>Write the changes seen by given change tracker since it was last
+     * committed.
+     */
+    void writeDelta(ObjectOutput out, int tracker) throws IOException {
+    	out.writeLong(lastAccessedTime);
+    	out.writeInt(unchangedDepth[tracker]);
+    	for (int i=0; i<unchangedDepth[tracker]; i++) {
+    		((WebFlowMemento)mementos.get(i)).writeDelta(out, tracker);
+    	}
+    	out.writeInt(mementos.size()-unchangedDepth[tracker]);
+    	for (int i=unchangedDepth[tracker]; i<mementos.size(); i++) {
+    		out.writeObject(mementos.get(i));
+    	}
+    }
+    
+    /**
+     * <p>Apply the changes written by {@link #writeDelta(ObjectOutput)} to this
+     * memento stack, which should be a copy of the written memento stack as it
+     * was when last committed. The applied changes are tracked like any other
+     * change.
+     */
+    public void readDelta(ObjectInput in) throws IOException, ClassNotFoundException {
+    	lastAccessedTime=in.readLong();
+    	int depth=in.readInt();
+    	if (depth>mementos.size()) {
+    		throw new IOException("delta does not match memento stack: it expects at least " + depth + " mementos, found " + mementos.size());
+    	}
+    	while (mementos.size()>depth) {
+    		pop();
+    	}
+    	for (int i=0; i<depth; i++) {
+    		((WebFlowMemento)mementos.get(i)).readDelta(in);
+    	}
+    	int pushCount=in.readInt();
+    	for (int i=0; i<pushCount; i++) {
+    		push((WebFlowMemento)in.readObject());
+    	}
+    }
+    
+    //serialization
+    
+    public void writeExternal(ObjectOutput out) throws IOException {
+    	writeMementos(out);
+    	out.writeObject(history);
+    }
+    
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+    	readMementos(in);
+    	history=(WebFlowHistory)in.readObject();
+    }
+    
+    /**
+     * <p>Write this memento stack to given output, without its history.
+     */
+    void writeMementos(ObjectOutput out) throws IOException {
+    	out.writeByte(WebFlowMemento.FORMAT_VERSION);
+    	out.writeLong(lastAccessedTime);
+    	WebFlowMemento.StringTable strings=new WebFlowMemento.StringTable();
+    	WebFlowMemento.StringTable.writeCount(out, mementos.size());
+    	for (int i=0; i<mementos.size(); i++) {
+    		((WebFlowMemento)mementos.get(i)).writeTo(out, strings);
+    	}
+    }
+    
+    /**
+     * <p>Read the memento stack written by {@link #writeMementos(ObjectOutput)}.
+     */
+    void readMementos(ObjectInput in) throws IOException, ClassNotFoundException {
+    	WebFlowMemento.checkFormatVersion(in.readByte());
+    	lastAccessedTime=in.readLong();
+    	WebFlowMemento.StringTable strings=new WebFlowMemento.StringTable();
+    	int size=WebFlowMemento.StringTable.readCount(in);
+    	mementos=new Stack();
+    	for (int i=0; i<size; i++) {
+    		WebFlowMemento memento=new WebFlowMemento();
+    		memento.readFrom(in, strings);
+    		mementos.push(memento);
+    	}
+    	Arrays.fill(committedDepth, size);
+    	Arrays.fill(unchangedDepth, size);
+    }
 
 }
@@ -0,0 +1,281 @@
+package com.ervacon.springframework.web.servlet.mvc.webflow;
+
+/*
+ * (c) Copyright Ervacon 2004-2005.
+ * All Rights Reserved.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.springframework.beans.BeanUtils;
+import org.springframework.beans.BeanWrapper;
+import org.springframework.beans.BeanWrapperImpl;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.FatalBeanException;
+import org.springframework.beans.PropertyValue;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.beans.factory.config.BeanFactoryPostProcessor;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.context.ResourceLoaderAware;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.ResourceLoader;
+
+/**
+ * <p>Bean factory post processor that loads the flow definitions of all
+ * {@link SimpleWebFlow} beans in an application context in parallel, before
+ * any of those beans is created. Without it, each flow loads its definition
+ * in its <code>afterPropertiesSet()</code> method, one after another on the
+ * thread starting the application context.
+ *
+ * <p>The preloader finds the web flow bean definitions, obtains their
+ * "webFlowResource" property value and loads the flow definitions using
+ * a bounded number of worker threads. Each loaded definition is injected
+ * into its bean definition as the "webFlowDefinition" property, so the flow
+ * bean no longer loads it itself, together with the checksum of its source as
+ * the "sourceChecksum" property, so a flow checking its source for changes
+ * also reloads changes made after preloading. Flows are loaded using their own bean class,
+ * so subclasses customizing flow loading are honored. Lazy flows and flows
+ * configured with a specific definition reader are not preloaded.
+ *
+ * <p>An invalid flow definition still makes application context startup fail:
+ * once all flows have been processed, the first failure is rethrown. The time
+ * needed to load each flow is logged and available using {@link #getLoadTimes()}.
+ *
+ * <p>To use the preloader, just define it as a bean in the application context:
+ * <pre>
+ * &lt;bean id="webFlowPreloader" class="com.ervacon.springframework.web.servlet.mvc.webflow.WebFlowPreloader"/&gt;
+ * </pre>
+ *
+ * <p><b>Exposed configuration properties</b><br>
+ * <table border="1">
+ *  <tr>
+ *      <td><b>name</b></td>
+ *      <td><b>default</b></td>
+ *      <td><b>description</b></td>
+ *  </tr>
+ *  <tr>
+ *      <td>poolSize</td>
+ *      <td><i>number of available processors</i></td>
+ *      <td>Maximum number of threads used to load flow definitions.</td>
+ *  </tr>
+ * </table>
+ *
+ * @see com.ervacon.springframework.web.servlet.mvc.webflow.SimpleWebFlow
+ *
+ * @author Erwin Vervaet
+ */
+public class WebFlowPreloader implements BeanFactoryPostProcessor, ResourceLoaderAware {
+
+	protected final Log log=LogFactory.getLog(WebFlowPreloader.class);
+
+	private int poolSize=Runtime.getRuntime().availableProcessors();
+	private ResourceLoader resourceLoader=new DefaultResourceLoader();
+	private Map loadTimes=Collections.EMPTY_MAP;
+
+	/**
+	 * <p>Returns the maximum number of threads used to load flow definitions.
+	 */
+	public int getPoolSize() {
+		return poolSize;
+	}
+
+	/**
+	 * <p>Set the maximum number of threads used to load flow definitions.
+	 * Defaults to the number of available processors.
+	 */
+	public void setPoolSize(int poolSize) {
+		this.poolSize=poolSize;
+	}
+
+	public void setResourceLoader(ResourceLoader resourceLoader) {
+		this.resourceLoader=resourceLoader;
+	}
+
+	/**
+	 * <p>Returns the time, in milliseconds, needed to load each flow definition,
+	 * keyed by flow bean name. Flows that failed to load are not included.
+	 */
+	public Map getLoadTimes() {
+		return loadTimes;
+	}
+
+	public void postProcessBeanFactory(ConfigurableListableBeanFactory beanFactory) throws BeansException {
+		List flows=new ArrayList();
+		String[] beanNames=beanFactory.getBeanDefinitionNames(SimpleWebFlow.class);
+		for (int i=0; i<beanNames.length; i++) {
+			PreloadedFlow flow=createPreloadedFlow(beanFactory, beanNames[i]);
+			if (flow!=null) {
+				flows.add(flow);
+			}
+		}
+		if (flows.isEmpty()) {
+			return;
+		}
+
+		long start=System.currentTimeMillis();
+		loadAll(flows);
+
+		Map times=new HashMap();
+		for (int i=0; i<flows.size(); i++) {
+			PreloadedFlow flow=(PreloadedFlow)flows.get(i);
+			if (flow.failure!=null) {
+				throw new FatalBeanException("cannot load web flow '" + flow.beanName + "': " + flow.failure.getMessage(), flow.failure);
+			}
+			flow.beanDefinition.getPropertyValues().addPropertyValue("webFlowDefinition", flow.definition);
+			flow.beanDefinition.getPropertyValues().addPropertyValue("sourceChecksum", new Long(flow.flow.getSourceChecksum()));
+			times.put(flow.beanName, new Long(flow.loadTime));
+		}
+		loadTimes=Collections.unmodifiableMap(times);
+
+		if (log.isInfoEnabled()) {
+			log.info("Preloaded " + flows.size() + " web flow(s) in " + (System.currentTimeMillis()-start) + " ms: " + times);
+		}
+	}
+
+	/**
+	 * <p>Prepare loading the flow definition of the named web flow bean. Returns
+	 * null if the flow definition cannot be preloaded, e.g. because the bean
+	 * definition does not directly specify its web flow resource, because the
+	 * flow is lazy or because it uses a specific definition reader, which is
+	 * not available before the bean factory has been post processed. Such flows
+	 * load their definition themselves.
+	 */
+	protected PreloadedFlow createPreloadedFlow(ConfigurableListableBeanFactory beanFactory, String beanName) {
+		BeanDefinition beanDefinition=beanFactory.getBeanDefinition(beanName);
+		if (beanDefinition.isAbstract() || beanDefinition.getPropertyValues().getPropertyValue("webFlowDefinition")!=null ||
+				beanDefinition.getPropertyValues().getPropertyValue("definitionReader")!=null) {
+			return null;
+		}
+		PropertyValue lazy=beanDefinition.getPropertyValues().getPropertyValue("lazy");
+		if (lazy!=null && "true".equals(String.valueOf(getValue(lazy.getValue())))) {
+			return null;
+		}
+		Resource resource=getResource(beanDefinition.getPropertyValues().getPropertyValue("webFlowResource"));
+		if (resource==null) {
+			return null;
+		}
+
+		SimpleWebFlow flow=(SimpleWebFlow)BeanUtils.instantiateClass(beanFactory.getType(beanName));
+		flow.setWebFlowResource(resource);
+		PropertyValue useBinaryDefinition=beanDefinition.getPropertyValues().getPropertyValue("useBinaryDefinition");
+		if (useBinaryDefinition!=null) {
+			new BeanWrapperImpl(flow).setPropertyValue("useBinaryDefinition", getValue(useBinaryDefinition.getValue()));
+		}
+		return new PreloadedFlow(beanName, beanDefinition, flow);
+	}
+
+	/**
+	 * <p>Obtain the resource specified by given "webFlowResource" property value.
+	 */
+	private Resource getResource(PropertyValue webFlowResource) {
+		if (webFlowResource==null) {
+			return null;
+		}
+		Object value=getValue(webFlowResource.getValue());
+		if (value instanceof Resource) {
+			return (Resource)value;
+		}
+		else if (value instanceof String) {
+			return resourceLoader.getResource((String)value);
+		}
+		else {
+			return null;
+		}
+	}
+
+	/**
+	 * <p>Unwrap given literal property value if necessary: depending on the
+	 * Spring version, literal values are held in holder objects exposing a
+	 * "value" property.
+	 */
+	private Object getValue(Object value) {
+		if (value==null || value instanceof String || value instanceof Resource || value instanceof Boolean) {
+			return value;
+		}
+		BeanWrapper wrapper=new BeanWrapperImpl(value);
+		return wrapper.isReadableProperty("value") ? wrapper.getPropertyValue("value") : null;
+	}
+
+	/**
+	 * <p>Load the definitions of given flows, using at most "poolSize" threads.
+	 * Returns once all flows have been processed.
+	 */
+	protected void loadAll(final List flows) {
+		final int[] next=new int[] { 0 };
+		Runnable worker=new Runnable() {
+			public void run() {
+				while (true) {
+					PreloadedFlow flow;
+					synchronized (next) {
+						if (next[0]>=flows.size()) {
+							return;
+						}
+						flow=(PreloadedFlow)flows.get(next[0]++);
+					}
+					flow.load();
+				}
+			}
+		};
+
+		int threadCount=Math.max(1, Math.min(poolSize, flows.size()));
+		Thread[] threads=new Thread[threadCount-1];
+		for (int i=0; i<threads.length; i++) {
+			threads[i]=new Thread(worker, "WebFlowPreloader-" + (i+1));
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+		worker.run(); //the current thread takes part in the work
+		for (int i=0; i<threads.length; i++) {
+			try {
+				threads[i].join();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new FatalBeanException("interrupted while preloading web flows", e);
+			}
+		}
+	}
+
+	/**
+	 * <p>A web flow whose definition is being preloaded.
+	 */
+	protected static class PreloadedFlow {
+
+		private final String beanName;
+		private final BeanDefinition beanDefinition;
+		private final SimpleWebFlow flow;
+		private WebFlowDefinition definition=null;
+		private Exception failure=null;
+		private long loadTime=0;
+
+		public PreloadedFlow(String beanName, BeanDefinition beanDefinition, SimpleWebFlow flow) {
+			this.beanName=beanName;
+			this.beanDefinition=beanDefinition;
+			this.flow=flow;
+		}
+
+		/**
+		 * <p>Load the flow definition, remembering a failure instead of
+		 * throwing it.
+		 */
+		public void load() {
+			long start=System.currentTimeMillis();
+			try {
+				definition=flow.loadDefinition();
+				loadTime=System.currentTimeMillis()-start;
+			}
+			catch (Exception e) {
+				failure=e;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,171 @@
+package com.ervacon.springframework.web.servlet.mvc.webflow;
+
+/*
+ * (c) Copyright Ervacon 2004-2005.
+ * All Rights Reserved.
+ */
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.springframework.beans.BeansException;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.ApplicationContextAware;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
+
+/**
+ * <p>Registry of the web flows defined in an application context, mapping flow
+ * names to flow objects. The controller, the mementos and the exception resolver
+ * use it to find flows, so handling a request does not involve a bean factory
+ * lookup for each flow it uses.
+ *
+ * <p>The registry is optimized for reading: lookups read an immutable map
+ * without locking. Registering a flow copies the map, which only happens when
+ * the registry is filled. Singleton flows are registered, prototype flows are
+ * still obtained from the application context each time.
+ *
+ * <p>When defined as a bean in the application context, the registry registers
+ * all singleton web flows once the context has been refreshed, and again after
+ * each refresh. Components that need a registry find it using
+ * {@link #lookup(ApplicationContext)}. When there is no registry bean, they
+ * use a private registry that registers flows when they are first used.
+ *
+ * @see com.ervacon.springframework.web.servlet.mvc.webflow.WebFlowController
+ * @see com.ervacon.springframework.web.servlet.mvc.webflow.WebFlowMemento
+ *
+ * @author Erwin Vervaet
+ */
+public class WebFlowRegistry implements ApplicationContextAware, ApplicationListener {
+
+	protected final Log log=LogFactory.getLog(WebFlowRegistry.class);
+
+	private ApplicationContext appCtx;
+	private volatile Map flows=Collections.EMPTY_MAP;
+	private volatile int generation=0;
+
+	/**
+	 * <p>Create a new registry. The application context needs to be set
+	 * before the registry can be used.
+	 */
+	public WebFlowRegistry() {
+	}
+
+	/**
+	 * <p>Create a new registry for the flows of given application context.
+	 */
+	public WebFlowRegistry(ApplicationContext applicationContext) {
+		this.appCtx=applicationContext;
+	}
+
+	/**
+	 * <p>Find the registry to use for the flows of given application context:
+	 * the registry bean defined in the context, or a new registry if there
+	 * is none. Looking up a registry is relatively expensive, so components
+	 * should do it once and keep the result.
+	 */
+	public static WebFlowRegistry lookup(ApplicationContext applicationContext) throws BeansException {
+		String[] names=applicationContext.getBeanDefinitionNames(WebFlowRegistry.class);
+		if (names.length==1) {
+			return (WebFlowRegistry)applicationContext.getBean(names[0]);
+		}
+		return new WebFlowRegistry(applicationContext);
+	}
+
+	public ApplicationContext getApplicationContext() {
+		return appCtx;
+	}
+
+	public void setApplicationContext(ApplicationContext applicationContext) throws BeansException {
+		this.appCtx=applicationContext;
+	}
+
+	public void onApplicationEvent(ApplicationEvent event) {
+		if (event instanceof ContextRefreshedEvent && ((ContextRefreshedEvent)event).getApplicationContext()==appCtx) {
+			refresh();
+		}
+	}
+
+	/**
+	 * <p>Replace all registered flows with the singleton web flows currently
+	 * defined in the application context.
+	 */
+	public void refresh() throws BeansException {
+		Map newFlows=new HashMap();
+		String[] names=appCtx.getBeanDefinitionNames(WebFlow.class);
+		for (int i=0; i<names.length; i++) {
+			if (appCtx.isSingleton(names[i])) {
+				newFlows.put(names[i], appCtx.getBean(names[i]));
+			}
+		}
+		synchronized (this) {
+			flows=Collections.unmodifiableMap(newFlows);
+			generation++;
+		}
+
+		if (log.isInfoEnabled()) {
+			log.info("Registered " + newFlows.size() + " web flows: " + newFlows.keySet());
+		}
+	}
+
+	/**
+	 * <p>Returns the names of the registered flows.
+	 */
+	public Set getFlowNames() {
+		return flows.keySet();
+	}
+
+	/**
+	 * <p>Returns a number that changes each time a flow is registered or the
+	 * registered flows are replaced, so flows obtained from this registry can be cached and
+	 * invalidated when the registry is refreshed.
+	 */
+	public int getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * <p>Get the flow with given name. Flows that are not yet registered are
+	 * obtained from the application context, and registered if they are
+	 * singletons.
+	 *
+	 * @param flowName the name of the flow bean
+	 * @return the flow
+	 * @throws BeansException when there is no such flow
+	 */
+	public WebFlow getFlow(String flowName) throws BeansException {
+		WebFlow flow=(WebFlow)flows.get(flowName);
+		if (flow==null) {
+			flow=(WebFlow)appCtx.getBean(flowName);
+			if (appCtx.isSingleton(flowName)) {
+				register(flowName, flow);
+			}
+		}
+		return flow;
+	}
+
+	/**
+	 * <p>Returns whether or not a flow is registered under given name.
+	 */
+	public boolean isRegistered(String flowName) {
+		return flows.containsKey(flowName);
+	}
+
+	/**
+	 * <p>Register given flow under given name, replacing the flow registered
+	 * under that name, if any.
+	 */
+	public synchronized void register(String flowName, WebFlow flow) {
+		Map newFlows=new HashMap(flows);
+		newFlows.put(flowName, flow);
+		flows=Collections.unmodifiableMap(newFlows);
+		generation++;
+	}
+
+}
@@ -67,8 +67,8 @@ public class WebFlowUtils {
 	 * <p>Retreive the web flow memento stack for the currently executing flow.
 	 * This method will first obtain the id of the currently executing flow from
 	 * given model using the {@link WebFlowController#FLOW_ID_MODEL_NAME} name.
-	 * With this id, it will get the flow memento stack from the session
-	 * associated with given request.
+	 * With this id, it will get the flow memento stack from the flow state
+	 * store of the controller handling given request.
 	 * 
      * @param request current HTTP request
      * @param model model of the flow
@@ -82,7 +82,10 @@ public class WebFlowUtils {
 	 * <p>Retreive the web flow memento stack for the currently executing flow.
 	 * This method will first obtain the id of the currently executing flow from
 	 * given model using the given name. With this id, it will get the flow memento
-	 * stack from the session associated with given request.
+	 * stack from the flow state store of the controller handling given request,
+	 * exposed using the {@link WebFlowController#FLOW_STATE_STORE_ATTRIBUTE}
+	 * request attribute. Outside a web flow controller, the flow memento stack
+	 * is obtained from the session associated with given request.
 	 * 
 	 * <p>Use this method if you changed the name of the flow id in the model
 	 * using the {@link WebFlowController#setFlowIdModelName(String)} method.
@@ -94,7 +97,13 @@ public class WebFlowUtils {
 	 */
 	public static WebFlowMementoStack getWebFlowMementoStack(HttpServletRequest request, Map model, String flowIdModelName) {
 		String flowId=(String)model.get(flowIdModelName);
-		return (WebFlowMementoStack)request.getSession(false).getAttribute(flowId);
+		FlowStateStore store=(FlowStateStore)request.getAttribute(WebFlowController.FLOW_STATE_STORE_ATTRIBUTE);
+		if (store==null) {
+			//not handled by a web flow controller, look in the HTTP session
+			FlowStateContainer container=HttpSessionFlowStateStore.getContainer(request.getSession(false), false);
+			return container==null ? null : container.get(flowId);
+		}
+		return store.load(request, flowId);
 	}
 	
 	//token related functionality like in Struts
@@ -0,0 +1,144 @@
+package com.ervacon.springframework.web.servlet.mvc.webflow;
+
+/*
+ * (c) Copyright Ervacon 2004-2005.
+ * All Rights Reserved.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.util.FileCopyUtils;
+
+import junit.framework.TestCase;
+
+/**
+ * <p>Test case for the BinaryWebFlowDefinitionFormat class.
+ * 
+ * @see com.ervacon.springframework.web.servlet.mvc.webflow.BinaryWebFlowDefinitionFormat
+ * 
+ * @author Erwin Vervaet
+ */
+public class BinaryWebFlowDefinitionFormatTest extends TestCase {
+	
+	private BinaryWebFlowDefinitionFormat format=new BinaryWebFlowDefinitionFormat();
+	
+	private byte[] load(String name) throws Exception {
+		return FileCopyUtils.copyToByteArray(new ClassPathResource(name, getClass()).getInputStream());
+	}
+	
+	public void testRoundTrip() throws Exception {
+		byte[] xml=load("searchStock-flow.xml");
+		WebFlowDefinition def=new SimpleWebFlow().parse(xml);
+		
+		ByteArrayOutputStream out=new ByteArrayOutputStream();
+		format.write(def, xml, out);
+		assertTrue(out.size()<xml.length);
+		WebFlowDefinition read=format.read(new ByteArrayInputStream(out.toByteArray()), xml);
+		
+		assertEquals(def.getName(), read.getName());
+		assertEquals(def.getStartState().getId(), read.getStartState().getId());
+		assertEquals(def.getStates().size(), read.getStates().size());
+		for (int i=0; i<def.getStates().size(); i++) {
+			State state=(State)def.getStates().get(i);
+			State readState=(State)read.getStates().get(i);
+			assertEquals(state.getClass(), readState.getClass());
+			assertEquals(state.getId(), readState.getId());
+			assertEquals(state.getTransitions().size(), readState.getTransitions().size());
+		}
+		ActionState validateCriteria=(ActionState)read.getState("validateCriteria");
+		assertEquals("validateCriteriaAction", validateCriteria.getActionBeanName(1));
+		assertSame(read.getState("doSearch"), validateCriteria.getActionTransition(1, "ok").getTargetState());
+		assertEquals("stockDetailModelMapper", ((FlowState)read.getState("stockDetail")).getModelMapperName());
+		assertNull(((EndState)read.getState("endOk")).getView());
+		
+		//a binary definition compiled from another source is stale
+		assertNull(format.read(new ByteArrayInputStream(out.toByteArray()), load("stockDetail-flow.xml")));
+	}
+	
+	public void testDecisionState() throws Exception {
+		WebFlowDefinition def=new WebFlowBuilder("Decision Flow")
+			.startState("decide")
+			.decisionState("decide")
+				.ifThen("a", "end")
+				.ifThenElse("b == 'x'", "other", "end")
+			.endState("end")
+			.endState("other")
+			.build();
+		byte[] source=new byte[] { 1, 2, 3 };
+		
+		ByteArrayOutputStream out=new ByteArrayOutputStream();
+		format.write(def, source, out);
+		DecisionState decision=(DecisionState)format.read(new ByteArrayInputStream(out.toByteArray()), source).getState("decide");
+		assertEquals(2, decision.getConditionCount());
+		assertEquals("b == 'x'", decision.getCondition(1).getExpression());
+		assertEquals("other", decision.getThenTransition(1).getTargetStateId());
+		assertEquals("end", decision.getElseTransition().getTargetStateId());
+	}
+	
+	public void testCurrentVersion() throws Exception {
+		byte[] xml=load("stockDetail-flow.xml");
+		ByteArrayOutputStream out=new ByteArrayOutputStream();
+		format.write(new SimpleWebFlow().parse(xml), xml, out);
+		byte[] binary=out.toByteArray();
+		assertTrue(format.isCurrentVersion(new ByteArrayInputStream(binary)));
+		
+		//the version follows the 4 byte magic number
+		binary[5]++;
+		assertFalse(format.isCurrentVersion(new ByteArrayInputStream(binary)));
+		assertNull(format.read(new ByteArrayInputStream(binary), xml));
+		assertFalse(format.isCurrentVersion(new ByteArrayInputStream(new byte[] { 0x57, 0x46 })));
+	}
+	
+	public void testBinaryFileName() {
+		assertEquals("search-flow.wfc", BinaryWebFlowDefinitionFormat.getBinaryFileName("search-flow.xml"));
+		assertEquals("flows/search.wfc", BinaryWebFlowDefinitionFormat.getBinaryFileName("flows/search"));
+	}
+	
+	public void testLoadBinaryDefinition() throws Exception {
+		File dir=new File(System.getProperty("java.io.tmpdir"), "webflow-test-" + WebFlowUtils.generateUniqueId());
+		dir.mkdirs();
+		File xmlFile=new File(dir, "test-flow.xml");
+		File binaryFile=new File(dir, "test-flow.wfc");
+		try {
+			byte[] xml=load("stockDetail-flow.xml");
+			FileCopyUtils.copy(xml, xmlFile);
+			
+			//record the search stock flow as binary definition of the stock detail flow,
+			//so we can tell which definition was loaded
+			OutputStream out=new FileOutputStream(binaryFile);
+			try {
+				format.write(new SimpleWebFlow().parse(load("searchStock-flow.xml")), xml, out);
+			}
+			finally {
+				out.close();
+			}
+			
+			SimpleWebFlow flow=new SimpleWebFlow();
+			flow.setWebFlowResource(new FileSystemResource(xmlFile));
+			flow.load();
+			assertEquals("Search Stock Flow", flow.getName());
+			
+			flow.setUseBinaryDefinition(false);
+			flow.load();
+			assertEquals("Stock Detail Flow", flow.getName());
+			
+			//changing the XML definition makes the binary definition stale
+			flow.setUseBinaryDefinition(true);
+			FileCopyUtils.copy((new String(xml, "UTF-8") + " ").getBytes("UTF-8"), xmlFile);
+			flow.load();
+			assertEquals("Stock Detail Flow", flow.getName());
+		}
+		finally {
+			xmlFile.delete();
+			binaryFile.delete();
+			dir.delete();
+		}
+	}
+
+}
@@ -0,0 +1,116 @@
+package com.ervacon.springframework.web.servlet.mvc.webflow;
+
+/*
+ * (c) Copyright Ervacon 2004-2005.
+ * All Rights Reserved.
+ */
+
+import java.util.Random;
+
+import javax.servlet.http.HttpServletRequest;
+
+import junit.framework.TestCase;
+
+/**
+ * <p>Test case for the ClientFlowStateStore class.
+ * 
+ * @see com.ervacon.springframework.web.servlet.mvc.webflow.ClientFlowStateStore
+ * 
+ * @author Erwin Vervaet
+ */
+public class ClientFlowStateStoreTest extends TestCase {
+	
+	private ClientFlowStateStore store=null;
+	
+	protected void setUp() throws Exception {
+		store=createStore(new String[] { "secret" });
+	}
+	
+	public void testRoundTrip() {
+		HttpServletRequest request=FlowStateStoreTestUtils.createRequest("session");
+		WebFlowMementoStack mementos=FlowStateStoreTestUtils.createMementos("value");
+		store.save(request, "flow1", mementos);
+		assertSame(mementos, store.load(request, "flow1"));
+		
+		String token=store.getExposedFlowId(request, "flow1", mementos);
+		assertTrue(ClientFlowStateStore.isToken(token));
+		assertFalse(store.requiresSession());
+		
+		//the next request rebuilds the memento stack from the token
+		request=FlowStateStoreTestUtils.createRequest("session");
+		WebFlowMementoStack restored=store.load(request, token);
+		assertNotNull(restored);
+		assertNotSame(mementos, restored);
+		assertEquals("testFlow", restored.getFlowName());
+		assertEquals("value", restored.getModel().get("data"));
+		
+		//during the request, the flow can also be loaded using its id
+		assertSame(restored, store.load(request, "flow1"));
+		assertTrue(ClientFlowStateStore.isToken(store.createToken(request, token, restored)));
+		
+		store.delete(request, token);
+		assertNull(store.load(request, "flow1"));
+	}
+	
+	public void testTamperedToken() {
+		String token=store.createToken(FlowStateStoreTestUtils.createRequest("session"), "flow1", FlowStateStoreTestUtils.createMementos("value"));
+		int pos=token.length()/2;
+		String tampered=token.substring(0, pos) + (token.charAt(pos)=='A' ? 'B' : 'A') + token.substring(pos+1);
+		assertNull(store.load(FlowStateStoreTestUtils.createRequest("session"), tampered));
+		assertNull(store.load(FlowStateStoreTestUtils.createRequest("session"), ClientFlowStateStore.TOKEN_PREFIX + "garbage"));
+		
+		//tokens signed with another key are rejected
+		ClientFlowStateStore otherStore=createStore(new String[] { "other" });
+		assertNull(otherStore.load(FlowStateStoreTestUtils.createRequest("session"), token));
+	}
+	
+	public void testKeyRotation() {
+		String token=store.createToken(FlowStateStoreTestUtils.createRequest("session"), "flow1", FlowStateStoreTestUtils.createMementos("value"));
+		ClientFlowStateStore rotatedStore=createStore(new String[] { "newSecret", "secret" });
+		assertNotNull(rotatedStore.load(FlowStateStoreTestUtils.createRequest("session"), token));
+		String newToken=rotatedStore.createToken(FlowStateStoreTestUtils.createRequest("session"), "flow1", FlowStateStoreTestUtils.createMementos("value"));
+		assertNull(store.load(FlowStateStoreTestUtils.createRequest("session"), newToken));
+	}
+	
+	public void testFallback() {
+		//random data does not compress
+		Random random=new Random(0);
+		StringBuffer data=new StringBuffer();
+		while (data.length()<ClientFlowStateStore.DEFAULT_MAX_TOKEN_SIZE) {
+			data.append(Long.toString(random.nextLong(), 36));
+		}
+		HttpServletRequest request=FlowStateStoreTestUtils.createRequest("session");
+		WebFlowMementoStack mementos=FlowStateStoreTestUtils.createMementos(data.toString());
+		assertEquals("flow1", store.createToken(request, "flow1", mementos));
+		
+		//the flow is kept in the fallback store
+		request=FlowStateStoreTestUtils.createRequest("session");
+		assertSame(mementos, store.load(request, "flow1"));
+		assertTrue(store.getFlowIds(request).contains("flow1"));
+		
+		//and switches back to a token when its state has become small enough
+		mementos.getModel().clear();
+		assertTrue(ClientFlowStateStore.isToken(store.createToken(request, "flow1", mementos)));
+		assertNull(store.load(FlowStateStoreTestUtils.createRequest("session"), "flow1"));
+	}
+	
+	public void testExpiry() throws Exception {
+		String token=store.createToken(FlowStateStoreTestUtils.createRequest("session"), "flow1", FlowStateStoreTestUtils.createMementos("value"));
+		store.setTimeout(0);
+		Thread.sleep(20);
+		assertNull(store.load(FlowStateStoreTestUtils.createRequest("session"), token));
+	}
+	
+	private ClientFlowStateStore createStore(String[] secretKeys) {
+		ClientFlowStateStore store=new ClientFlowStateStore();
+		store.setSecretKeys(secretKeys);
+		try {
+			store.afterPropertiesSet();
+		}
+		catch (Exception e) {
+			fail(e.getMessage());
+		}
+		return store;
+	}
+
+}
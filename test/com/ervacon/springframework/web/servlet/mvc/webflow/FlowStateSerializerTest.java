@@ -0,0 +1,92 @@
+package com.ervacon.springframework.web.servlet.mvc.webflow;
+
+/*
+ * (c) Copyright Ervacon 2004-2005.
+ * All Rights Reserved.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * <p>Test case for the FlowStateSerializer class.
+ * 
+ * @see com.ervacon.springframework.web.servlet.mvc.webflow.FlowStateSerializer
+ * 
+ * @author Erwin Vervaet
+ */
+public class FlowStateSerializerTest extends TestCase {
+	
+	private FlowStateSerializer serializer=new FlowStateSerializer();
+	
+	public void testSmallFlowsNotCompressed() {
+		WebFlowMementoStack mementos=createMementos();
+		byte[] data=serializer.serialize(mementos);
+		assertTrue(data.length<FlowStateSerializer.DEFAULT_THRESHOLD);
+		assertEquals("start", serializer.deserialize(data).getCurrentState());
+		assertEquals(1, serializer.getSerializedCount());
+		assertEquals(0, serializer.getCompressedCount());
+		assertEquals(1d, serializer.getCompressionRatio(), 0d);
+	}
+	
+	public void testLargeFlowsCompressed() {
+		WebFlowMementoStack mementos=createMementos();
+		List persons=new ArrayList();
+		for (int i=0; i<1000; i++) {
+			persons.add("Person " + i + ", person" + i + "@example.com, +32 3 555 " + (1000+i));
+		}
+		mementos.getModel().put("persons", persons);
+		byte[] data=serializer.serialize(mementos);
+		assertEquals(1, serializer.getCompressedCount());
+		assertEquals(data.length-1, serializer.getCompressedBytes());
+		assertTrue(serializer.getCompressedBytes()<serializer.getUncompressedBytes()/4);
+		assertTrue(serializer.getCompressionRatio()<0.25d);
+		assertEquals(persons, serializer.deserialize(data).getModel().get("persons"));
+		
+		//payloads can be read whatever the current settings
+		serializer.setCodec(FlowStateSerializer.CODEC_NONE);
+		byte[] uncompressed=serializer.serialize(mementos);
+		assertTrue(uncompressed.length>data.length);
+		assertEquals(1, serializer.getCompressedCount());
+		assertEquals(persons, serializer.deserialize(uncompressed).getModel().get("persons"));
+		assertEquals(persons, serializer.deserialize(data).getModel().get("persons"));
+	}
+	
+	public void testIncompressibleFlowsNotCompressed() {
+		WebFlowMementoStack mementos=createMementos();
+		byte[] random=new byte[FlowStateSerializer.DEFAULT_THRESHOLD*2];
+		new Random(42).nextBytes(random);
+		mementos.getModel().put("random", random);
+		byte[] data=serializer.serialize(mementos);
+		assertEquals(0, serializer.getCompressedCount());
+		assertEquals(random.length, ((byte[])serializer.deserialize(data).getModel().get("random")).length);
+	}
+	
+	public void testInvalidSettings() {
+		try {
+			serializer.setCodec("lzma");
+			fail();
+		}
+		catch (IllegalArgumentException e) {
+			//expected
+		}
+		try {
+			serializer.setCompressionLevel(0);
+			fail();
+		}
+		catch (IllegalArgumentException e) {
+			//expected
+		}
+	}
+	
+	private WebFlowMementoStack createMementos() {
+		WebFlowMementoStack mementos=new WebFlowMementoStack();
+		mementos.push(new WebFlowMemento("testFlow"));
+		mementos.setCurrentState("start");
+		return mementos;
+	}
+
+}
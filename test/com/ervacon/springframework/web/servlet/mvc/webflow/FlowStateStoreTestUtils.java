@@ -0,0 +1,97 @@
+package com.ervacon.springframework.web.servlet.mvc.webflow;
+
+/*
+ * (c) Copyright Ervacon 2004-2005.
+ * All Rights Reserved.
+ */
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+/**
+ * <p>Request stubs and memento stacks used by the flow state store tests.
+ * 
+ * @author Erwin Vervaet
+ */
+abstract class FlowStateStoreTestUtils {
+	
+	/**
+	 * <p>Create a memento stack for a "testFlow" flow, accessed now.
+	 */
+	public static WebFlowMementoStack createMementos() {
+		WebFlowMementoStack mementos=new WebFlowMementoStack();
+		mementos.push(new WebFlowMemento("testFlow"));
+		mementos.touch();
+		return mementos;
+	}
+	
+	/**
+	 * <p>Create a memento stack for a "testFlow" flow, accessed now, with
+	 * given value as "data" in its model.
+	 */
+	public static WebFlowMementoStack createMementos(Object data) {
+		WebFlowMementoStack mementos=createMementos();
+		mementos.getModel().put("data", data);
+		return mementos;
+	}
+	
+	/**
+	 * <p>Create a request stub with attributes, for the session with given id,
+	 * or for a client without a session if the id is null. The session has
+	 * no attributes.
+	 */
+	public static HttpServletRequest createRequest(String sessionId) {
+		return createRequest(sessionId, new HashMap());
+	}
+	
+	/**
+	 * <p>Create a request stub with attributes, for the session with given id
+	 * that has the attributes in given map, or for a client without a session
+	 * if the id is null.
+	 */
+	public static HttpServletRequest createRequest(final String sessionId, final Map sessionAttributes) {
+		final HttpSession session=sessionId==null ? null : (HttpSession)Proxy.newProxyInstance(
+				FlowStateStoreTestUtils.class.getClassLoader(),
+				new Class[] { HttpSession.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if ("getId".equals(method.getName())) {
+							return sessionId;
+						}
+						return invokeAttributeMethod(sessionAttributes, method, args);
+					}
+				});
+		final Map attributes=new HashMap();
+		return (HttpServletRequest)Proxy.newProxyInstance(
+				FlowStateStoreTestUtils.class.getClassLoader(),
+				new Class[] { HttpServletRequest.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if ("getSession".equals(method.getName())) {
+							return session;
+						}
+						return invokeAttributeMethod(attributes, method, args);
+					}
+				});
+	}
+	
+	private static Object invokeAttributeMethod(Map attributes, Method method, Object[] args) {
+		if ("getAttribute".equals(method.getName())) {
+			return attributes.get(args[0]);
+		}
+		else if ("setAttribute".equals(method.getName())) {
+			return attributes.put(args[0], args[1]);
+		}
+		else if ("removeAttribute".equals(method.getName())) {
+			return attributes.remove(args[0]);
+		}
+		throw new UnsupportedOperationException(method.getName());
+	}
+
+}
@@ -0,0 +1,94 @@
+package com.ervacon.springframework.web.servlet.mvc.webflow;
+
+/*
+ * (c) Copyright Ervacon 2004-2005.
+ * All Rights Reserved.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+import junit.framework.TestCase;
+
+/**
+ * <p>Test case for the HttpSessionFlowStateStore and FlowStateContainer classes.
+ * 
+ * @see com.ervacon.springframework.web.servlet.mvc.webflow.HttpSessionFlowStateStore
+ * @see com.ervacon.springframework.web.servlet.mvc.webflow.FlowStateContainer
+ * 
+ * @author Erwin Vervaet
+ */
+public class HttpSessionFlowStateStoreTest extends TestCase {
+	
+	private HttpSessionFlowStateStore store=new HttpSessionFlowStateStore();
+	private Map sessionAttributes=new HashMap();
+	
+	public void testSingleSessionAttribute() {
+		HttpServletRequest request=FlowStateStoreTestUtils.createRequest("session", sessionAttributes);
+		sessionAttributes.put("unrelated", "value");
+		WebFlowMementoStack mementos1=FlowStateStoreTestUtils.createMementos();
+		WebFlowMementoStack mementos2=FlowStateStoreTestUtils.createMementos();
+		store.save(request, "flow1", mementos1);
+		store.save(request, "flow2", mementos2);
+		assertEquals(2, sessionAttributes.size());
+		assertSame(mementos1, store.load(request, "flow1"));
+		assertSame(mementos2, store.load(request, "flow2"));
+		assertEquals(2, store.getFlowIds(request).size());
+		
+		//flows are ordered by last save
+		FlowStateContainer container=(FlowStateContainer)sessionAttributes.get(HttpSessionFlowStateStore.CONTAINER_ATTRIBUTE);
+		assertEquals(Arrays.asList(new String[] { "flow1", "flow2" }), container.getFlowIdsByLastAccess());
+		store.save(request, "flow1", mementos1);
+		assertEquals(Arrays.asList(new String[] { "flow2", "flow1" }), container.getFlowIdsByLastAccess());
+		assertEquals(Arrays.asList(new Object[] { mementos2, mementos1 }), container.getMementoStacks());
+		
+		store.delete(request, "flow1");
+		assertNull(store.load(request, "flow1"));
+		assertEquals(Collections.singleton("flow2"), store.getFlowIds(request));
+	}
+	
+	public void testWebFlowUtils() {
+		HttpServletRequest request=FlowStateStoreTestUtils.createRequest("session", sessionAttributes);
+		WebFlowMementoStack mementos=FlowStateStoreTestUtils.createMementos();
+		store.save(request, "flow1", mementos);
+		Map model=new HashMap();
+		model.put(WebFlowController.FLOW_ID_MODEL_NAME, "flow1");
+		assertSame(mementos, WebFlowUtils.getWebFlowMementoStack(request, model));
+	}
+	
+	public void testSerialization() throws Exception {
+		HttpServletRequest request=FlowStateStoreTestUtils.createRequest("session", sessionAttributes);
+		WebFlowMementoStack small=FlowStateStoreTestUtils.createMementos();
+		WebFlowMementoStack large=FlowStateStoreTestUtils.createMementos();
+		StringBuffer persons=new StringBuffer();
+		for (int i=0; i<1000; i++) {
+			persons.append("person").append(i).append(';');
+		}
+		large.getModel().put("persons", persons.toString());
+		store.save(request, "small", small);
+		store.save(request, "large", large);
+		
+		//replicate the session
+		ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+		ObjectOutputStream out=new ObjectOutputStream(bytes);
+		out.writeObject(sessionAttributes.get(HttpSessionFlowStateStore.CONTAINER_ATTRIBUTE));
+		out.close();
+		assertTrue(bytes.size()<persons.length()/2);
+		assertEquals(2, store.getSerializer().getSerializedCount());
+		assertEquals(1, store.getSerializer().getCompressedCount());
+		
+		FlowStateContainer copy=(FlowStateContainer)new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+		assertEquals(Arrays.asList(new String[] { "small", "large" }), copy.getFlowIdsByLastAccess());
+		assertEquals(persons.toString(), copy.get("large").getModel().get("persons"));
+		assertEquals("testFlow", copy.get("small").getFlowName());
+	}
+
+}
@@ -0,0 +1,77 @@
+package com.ervacon.springframework.web.servlet.mvc.webflow;
+
+/*
+ * (c) Copyright Ervacon 2004-2005.
+ * All Rights Reserved.
+ */
+
+import javax.servlet.http.HttpServletRequest;
+
+import junit.framework.TestCase;
+
+/**
+ * <p>Test case for the InMemoryFlowStateStore class.
+ * 
+ * @see com.ervacon.springframework.web.servlet.mvc.webflow.InMemoryFlowStateStore
+ * 
+ * @author Erwin Vervaet
+ */
+public class InMemoryFlowStateStoreTest extends TestCase {
+	
+	private InMemoryFlowStateStore store=null;
+	
+	protected void setUp() throws Exception {
+		store=new InMemoryFlowStateStore(4);
+	}
+	
+	public void testSaveLoadDelete() {
+		HttpServletRequest request=FlowStateStoreTestUtils.createRequest("session1");
+		assertNull(store.load(request, "flow1"));
+		assertTrue(store.getFlowIds(request).isEmpty());
+		
+		WebFlowMementoStack mementos=FlowStateStoreTestUtils.createMementos();
+		store.save(request, "flow1", mementos);
+		assertSame(mementos, store.load(request, "flow1"));
+		assertNull(store.load(request, "flow2"));
+		assertEquals(1, store.getFlowIds(request).size());
+		assertTrue(store.getFlowIds(request).contains("flow1"));
+		
+		store.delete(request, "flow1");
+		assertNull(store.load(request, "flow1"));
+		assertEquals(0, store.size());
+	}
+	
+	public void testSessionsAreSeparated() {
+		HttpServletRequest request1=FlowStateStoreTestUtils.createRequest("session1");
+		HttpServletRequest request2=FlowStateStoreTestUtils.createRequest("session2");
+		WebFlowMementoStack mementos1=FlowStateStoreTestUtils.createMementos();
+		WebFlowMementoStack mementos2=FlowStateStoreTestUtils.createMementos();
+		store.save(request1, "flow", mementos1);
+		store.save(request2, "flow", mementos2);
+		assertEquals(2, store.size());
+		assertSame(mementos1, store.load(request1, "flow"));
+		assertSame(mementos2, store.load(request2, "flow"));
+		
+		store.delete(request1, "flow");
+		assertNull(store.load(request1, "flow"));
+		assertSame(mementos2, store.load(request2, "flow"));
+		
+		//no session, no flows
+		assertNull(store.load(FlowStateStoreTestUtils.createRequest(null), "flow"));
+		assertTrue(store.getFlowIds(FlowStateStoreTestUtils.createRequest(null)).isEmpty());
+	}
+	
+	public void testExpiry() throws Exception {
+		HttpServletRequest request=FlowStateStoreTestUtils.createRequest("session1");
+		store.save(request, "flow1", FlowStateStoreTestUtils.createMementos());
+		store.save(request, "flow2", FlowStateStoreTestUtils.createMementos());
+		
+		store.setTimeout(0);
+		Thread.sleep(20);
+		assertNull(store.load(request, "flow1"));
+		
+		//the other expired flow was removed as well
+		assertEquals(0, store.size());
+	}
+
+}
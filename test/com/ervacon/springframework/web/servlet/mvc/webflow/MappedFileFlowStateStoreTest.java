@@ -0,0 +1,125 @@
+package com.ervacon.springframework.web.servlet.mvc.webflow;
+
+/*
+ * (c) Copyright Ervacon 2004-2005.
+ * All Rights Reserved.
+ */
+
+import java.util.Random;
+
+import javax.servlet.http.HttpServletRequest;
+
+import junit.framework.TestCase;
+
+/**
+ * <p>Test case for the MappedFileFlowStateStore class.
+ * 
+ * @see com.ervacon.springframework.web.servlet.mvc.webflow.MappedFileFlowStateStore
+ * 
+ * @author Erwin Vervaet
+ */
+public class MappedFileFlowStateStoreTest extends TestCase {
+	
+	private MappedFileFlowStateStore store=null;
+	
+	protected void setUp() throws Exception {
+		store=new MappedFileFlowStateStore();
+		store.setCapacity(64*1024);
+		store.setSlotSize(256);
+		store.afterPropertiesSet();
+	}
+	
+	protected void tearDown() throws Exception {
+		store.destroy();
+		store.getFile().delete();
+	}
+	
+	public void testSaveLoadDelete() {
+		int freeSlotCount=store.getFreeSlotCount();
+		HttpServletRequest request=FlowStateStoreTestUtils.createRequest("session1");
+		WebFlowMementoStack mementos=createMementos(1000);
+		store.save(request, "flow1", mementos);
+		int usedSlotCount=freeSlotCount-store.getFreeSlotCount();
+		assertTrue(usedSlotCount>1);
+		
+		//during the request, the flow is loaded from the request
+		assertSame(mementos, store.load(request, "flow1"));
+		
+		//next requests deserialize the flow from the file
+		request=FlowStateStoreTestUtils.createRequest("session1");
+		WebFlowMementoStack loaded=store.load(request, "flow1");
+		assertNotSame(mementos, loaded);
+		assertEquals(mementos.getModel(), loaded.getModel());
+		assertSame(loaded, store.load(request, "flow1"));
+		assertNull(store.load(FlowStateStoreTestUtils.createRequest("session2"), "flow1"));
+		assertTrue(store.getFlowIds(request).contains("flow1"));
+		
+		//saving again reuses the slots
+		loaded.getModel().clear();
+		store.save(request, "flow1", loaded);
+		assertTrue(freeSlotCount-store.getFreeSlotCount()<usedSlotCount);
+		assertTrue(store.load(FlowStateStoreTestUtils.createRequest("session1"), "flow1").getModel().isEmpty());
+		
+		store.delete(request, "flow1");
+		assertNull(store.load(FlowStateStoreTestUtils.createRequest("session1"), "flow1"));
+		assertEquals(freeSlotCount, store.getFreeSlotCount());
+		assertEquals(0, store.size());
+	}
+	
+	public void testFullStore() throws Exception {
+		HttpServletRequest request=FlowStateStoreTestUtils.createRequest("session1");
+		try {
+			for (int i=0; i<1000; i++) {
+				store.save(request, "flow" + i, createMementos(1000));
+			}
+			fail();
+		}
+		catch (WebFlowException e) {
+			//expected
+		}
+		
+		//expired flows make room
+		store.setTimeout(0);
+		Thread.sleep(20);
+		store.save(request, "flow", createMementos(1000));
+		assertEquals(1, store.size());
+	}
+	
+	public void testResaveInFullStore() {
+		int freeSlotCount=store.getFreeSlotCount();
+		HttpServletRequest request=FlowStateStoreTestUtils.createRequest("session1");
+		store.save(request, "a", createMementos(1000));
+		store.save(request, "b", createMementos(1000));
+		
+		//a payload that does not fit leaves the saved state intact
+		WebFlowMementoStack tooLarge=createMementos(1000);
+		byte[] random=new byte[store.getCapacity()];
+		new Random(42).nextBytes(random);
+		tooLarge.getModel().put("random", random);
+		try {
+			store.save(request, "a", tooLarge);
+			fail();
+		}
+		catch (WebFlowException e) {
+			//expected
+		}
+		store.save(request, "c", createMementos(1000));
+		assertEquals(3, store.size());
+		assertEquals(createMementos(1000).getModel(), store.load(FlowStateStoreTestUtils.createRequest("session1"), "a").getModel());
+		assertEquals(createMementos(1000).getModel(), store.load(FlowStateStoreTestUtils.createRequest("session1"), "c").getModel());
+		
+		store.delete(request, "a");
+		store.delete(request, "b");
+		store.delete(request, "c");
+		assertEquals(freeSlotCount, store.getFreeSlotCount());
+	}
+	
+	private WebFlowMementoStack createMementos(int size) {
+		StringBuffer data=new StringBuffer();
+		for (int i=0; i<size; i++) {
+			data.append((char)('a'+i%26));
+		}
+		return FlowStateStoreTestUtils.createMementos(data.toString());
+	}
+
+}
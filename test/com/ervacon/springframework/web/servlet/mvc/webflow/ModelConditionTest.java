@@ -0,0 +1,95 @@
+package com.ervacon.springframework.web.servlet.mvc.webflow;
+
+/*
+ * (c) Copyright Ervacon 2004-2005.
+ * All Rights Reserved.
+ */
+
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * <p>Test case for the ModelCondition class.
+ * 
+ * @see com.ervacon.springframework.web.servlet.mvc.webflow.ModelCondition
+ * 
+ * @author Erwin Vervaet
+ */
+public class ModelConditionTest extends TestCase {
+	
+	private Map model=new HashMap();
+	
+	protected void setUp() throws Exception {
+		TestBean bean=new TestBean("value");
+		bean.setOtherBean(new TestBean("other"));
+		model.put("bean", bean);
+		model.put("flag", Boolean.TRUE);
+		model.put("off", Boolean.FALSE);
+		model.put("count", new Integer(3));
+		Map map=new HashMap();
+		map.put("key", "mapValue");
+		model.put("map", map);
+	}
+	
+	private boolean evaluate(String expression) {
+		return ModelCondition.compile(expression).evaluate(model);
+	}
+	
+	public void testPaths() {
+		assertTrue(evaluate("flag"));
+		assertFalse(evaluate("off"));
+		assertTrue(evaluate("bean"));
+		assertFalse(evaluate("unknown"));
+		assertTrue(evaluate("bean.otherBean"));
+		assertFalse(evaluate("bean.otherBean.otherBean"));
+		assertFalse(evaluate("unknown.otherBean.prop"));
+		assertTrue(evaluate("map.key == 'mapValue'"));
+		try {
+			evaluate("bean.unknown");
+			fail("unknown property should be reported");
+		}
+		catch (WebFlowException e) {
+			assertTrue(e.getMessage().indexOf("unknown")!=-1);
+		}
+	}
+	
+	public void testComparisons() {
+		assertTrue(evaluate("bean.prop == 'value'"));
+		assertTrue(evaluate("bean.otherBean.prop == \"other\""));
+		assertTrue(evaluate("bean.prop != 'other'"));
+		assertTrue(evaluate("unknown == null"));
+		assertTrue(evaluate("bean != null"));
+		assertTrue(evaluate("count == 3"));
+		assertTrue(evaluate("count == 3.0"));
+		assertTrue(evaluate("count == '3'"));
+		assertTrue(evaluate("flag == true"));
+		assertTrue(evaluate("off != true"));
+	}
+	
+	public void testLogic() {
+		assertTrue(evaluate("flag and bean.prop == 'value'"));
+		assertFalse(evaluate("flag and off"));
+		assertTrue(evaluate("off or flag"));
+		assertTrue(evaluate("not off"));
+		assertTrue(evaluate("!off && (off || count == 3)"));
+		assertFalse(evaluate("not (flag or off)"));
+		//and binds stronger than or
+		assertTrue(evaluate("flag or off and off"));
+	}
+	
+	public void testInvalid() {
+		String[] invalid=new String[] { "", "flag ==", "(flag", "flag)", "'text", "a..b", "flag # off", "flag off" };
+		for (int i=0; i<invalid.length; i++) {
+			try {
+				ModelCondition.compile(invalid[i]);
+				fail("condition should be rejected: " + invalid[i]);
+			}
+			catch (WebFlowException e) {
+				assertTrue(e.getMessage().indexOf("invalid condition")!=-1);
+			}
+		}
+	}
+	
+}
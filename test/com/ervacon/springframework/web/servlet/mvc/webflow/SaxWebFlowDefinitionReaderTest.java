@@ -0,0 +1,208 @@
+package com.ervacon.springframework.web.servlet.mvc.webflow;
+
+/*
+ * (c) Copyright Ervacon 2004-2005.
+ * All Rights Reserved.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import org.springframework.core.io.ClassPathResource;
+
+import junit.framework.TestCase;
+
+/**
+ * <p>Test case for the SaxWebFlowDefinitionReader class.
+ * 
+ * @see com.ervacon.springframework.web.servlet.mvc.webflow.SaxWebFlowDefinitionReader
+ * 
+ * @author Erwin Vervaet
+ */
+public class SaxWebFlowDefinitionReaderTest extends TestCase {
+	
+	private SaxWebFlowDefinitionReader reader=new SaxWebFlowDefinitionReader();
+	private JdomWebFlowDefinitionReader nonValidatingJdomReader=new JdomWebFlowDefinitionReader();
+	
+	protected void setUp() throws Exception {
+		nonValidatingJdomReader.setValidating(false);
+	}
+	
+	private WebFlowDefinition read(WebFlowDefinitionReader reader, String name) throws Exception {
+		InputStream in=new ClassPathResource(name, getClass()).getInputStream();
+		try {
+			return reader.read(in);
+		}
+		finally {
+			in.close();
+		}
+	}
+	
+	private WebFlowDefinition read(String states) throws Exception {
+		return readStates(reader, states);
+	}
+	
+	private WebFlowDefinition readStates(WebFlowDefinitionReader reader, String states) throws Exception {
+		String xml=
+			"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+			"<!DOCTYPE web-flow PUBLIC \"-//ERVACON//DTD SPRING WEB FLOW//EN\" \"http://www.ervacon.com/dtd/web-flow.dtd\">\n" +
+			"<web-flow name=\"test\">" + states + "</web-flow>";
+		return reader.read(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+	}
+	
+	private void assertInvalid(String states) throws Exception {
+		try {
+			read(states);
+			fail("definition should be rejected: " + states);
+		}
+		catch (WebFlowException e) {
+			//expected
+		}
+		//without validation, the JDOM reader should apply the same rules
+		try {
+			readStates(nonValidatingJdomReader, states);
+			fail("definition should be rejected by the non-validating JDOM reader: " + states);
+		}
+		catch (WebFlowException e) {
+			//expected
+		}
+	}
+	
+	public void testSameAsJdom() throws Exception {
+		String[] flows=new String[] { "searchStock-flow.xml", "stockDetail-flow.xml" };
+		for (int i=0; i<flows.length; i++) {
+			WebFlowDefinition def=read(reader, flows[i]);
+			WebFlowDefinition jdomDef=read(new JdomWebFlowDefinitionReader(), flows[i]);
+			assertEquals(jdomDef.getName(), def.getName());
+			assertEquals(jdomDef.getStartState().getId(), def.getStartState().getId());
+			assertEquals(jdomDef.getStates().size(), def.getStates().size());
+			for (int j=0; j<def.getStates().size(); j++) {
+				State state=(State)def.getStates().get(j);
+				State jdomState=(State)jdomDef.getStates().get(j);
+				assertEquals(jdomState.getClass(), state.getClass());
+				assertEquals(jdomState.getId(), state.getId());
+				assertEquals(jdomState.getTransitions().size(), state.getTransitions().size());
+				for (int k=0; k<state.getTransitions().size(); k++) {
+					Transition transition=(Transition)state.getTransitions().get(k);
+					Transition jdomTransition=(Transition)jdomState.getTransitions().get(k);
+					assertEquals(jdomTransition.getName(), transition.getName());
+					assertEquals(jdomTransition.getTargetStateId(), transition.getTargetStateId());
+				}
+			}
+		}
+		
+		WebFlowDefinition def=read(reader, "searchStock-flow.xml");
+		ActionState validateCriteria=(ActionState)def.getState("validateCriteria");
+		assertEquals(2, validateCriteria.getActionCount());
+		assertEquals("validateCriteriaAction", validateCriteria.getActionBeanName(1));
+		assertEquals("stockDetailModelMapper", ((FlowState)def.getState("stockDetail")).getModelMapperName());
+		assertEquals("criteria", ((ViewState)def.getState("criteria")).getView());
+	}
+	
+	public void testParserReuse() throws Exception {
+		final WebFlowDefinitionReader[] readers=new WebFlowDefinitionReader[] { reader, new JdomWebFlowDefinitionReader() };
+		final Throwable[] failures=new Throwable[4];
+		Thread[] threads=new Thread[failures.length];
+		for (int i=0; i<threads.length; i++) {
+			final int idx=i;
+			threads[i]=new Thread() {
+				public void run() {
+					try {
+						for (int j=0; j<10; j++) {
+							WebFlowDefinition def=read(readers[idx%readers.length], "searchStock-flow.xml");
+							assertEquals(8, def.getStates().size());
+							//a failed read should not affect later reads
+							try {
+								readers[idx%readers.length].read(new ByteArrayInputStream("<web-flow".getBytes()));
+								fail("incomplete definition should be rejected");
+							}
+							catch (WebFlowException e) {
+								//expected
+							}
+						}
+					}
+					catch (Throwable t) {
+						failures[idx]=t;
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (int i=0; i<threads.length; i++) {
+			threads[i].join();
+			assertNull(failures[i]);
+		}
+	}
+	
+	public void testStructure() throws Exception {
+		String end="<end-state id=\"end\"/>";
+		assertNotNull(read("<start-state state=\"end\"/>" + end));
+		assertNotNull(readStates(nonValidatingJdomReader, "<start-state state=\"end\"/>" + end));
+		
+		assertInvalid(end);
+		assertInvalid("<start-state state=\"end\"/>");
+		assertInvalid("<start-state state=\"end\"/><start-state state=\"end\"/>" + end);
+		assertInvalid("<start-state/>" + end);
+		assertInvalid("<start-state state=\"end\"/><unknown-state id=\"x\"/>" + end);
+		assertInvalid("<start-state state=\"end\"/><end-state id=\"end\"><transition name=\"a\" to=\"end\"/></end-state>");
+		assertInvalid("<start-state state=\"end\"/><view-state id=\"a\"><transition name=\"a\"/></view-state>" + end);
+		assertInvalid("<start-state state=\"end\"/><view-state id=\"a\"><action name=\"a\" bean=\"b\"/></view-state>" + end);
+		assertInvalid("<start-state state=\"end\"/><flow-state id=\"a\"/>" + end);
+		assertInvalid("<start-state state=\"a\"/><action-state id=\"a\"><transition name=\"x.ok\" to=\"end\"/></action-state>" + end);
+		assertInvalid("<start-state state=\"a\"/><action-state id=\"a\"><action name=\"x\" bean=\"b\"/></action-state>" + end);
+		assertInvalid(
+				"<start-state state=\"a\"/><action-state id=\"a\"><transition name=\"x.ok\" to=\"end\"/>" +
+				"<action name=\"x\" bean=\"b\"/></action-state>" + end);
+		assertInvalid("<start-state state=\"end\"/>text" + end);
+		assertInvalid("<start-state state=\"unknown\"/>" + end);
+		assertInvalid("<start-state state=\"end\"/>" + end + end);
+	}
+	
+	public void testGlobalTransitions() throws Exception {
+		String states=
+			"<start-state state=\"a\"/><global-transitions><transition name=\"cancel\" to=\"end\"/></global-transitions>" +
+			"<view-state id=\"a\"/><end-state id=\"end\"/>";
+		WebFlowDefinition def=read(states);
+		assertEquals(1, def.getGlobalTransitions().size());
+		assertSame(def.getState("end"), def.getTransition(def.getState("a"), "cancel").getTargetState());
+		assertTrue(def.canHandle("a", "cancel"));
+		assertFalse(def.canHandle("end", "cancel"));
+		assertEquals(1, readStates(new JdomWebFlowDefinitionReader(), states).getGlobalTransitions().size());
+		assertEquals(1, readStates(nonValidatingJdomReader, states).getGlobalTransitions().size());
+		
+		String end="<view-state id=\"a\"/><end-state id=\"end\"/>";
+		assertInvalid("<start-state state=\"a\"/><global-transitions/>" + end);
+		assertInvalid("<start-state state=\"a\"/><global-transitions><transition name=\"x\" to=\"unknown\"/></global-transitions>" + end);
+		assertInvalid("<global-transitions><transition name=\"x\" to=\"end\"/></global-transitions><start-state state=\"a\"/>" + end);
+		assertInvalid("<start-state state=\"a\"/>" + end + "<global-transitions><transition name=\"x\" to=\"end\"/></global-transitions>");
+	}
+	
+	public void testDecisionState() throws Exception {
+		String end="<end-state id=\"end\"/><end-state id=\"other\"/>";
+		String states=
+			"<start-state state=\"d\"/><decision-state id=\"d\">" +
+			"<if test=\"a == 'x'\" then=\"end\"/><if test=\"b\" then=\"other\" else=\"end\"/></decision-state>" + end;
+		WebFlowDefinition def=read(states);
+		DecisionState decision=(DecisionState)def.getState("d");
+		assertEquals(2, decision.getConditionCount());
+		assertEquals("a == 'x'", decision.getCondition(0).getExpression());
+		assertSame(def.getState("other"), decision.getThenTransition(1).getTargetState());
+		assertSame(def.getState("end"), decision.getElseTransition().getTargetState());
+		assertEquals(3, decision.getTransitions().size());
+		DecisionState jdomDecision=(DecisionState)readStates(new JdomWebFlowDefinitionReader(), states).getState("d");
+		assertEquals("b", jdomDecision.getCondition(1).getExpression());
+		assertEquals("end", jdomDecision.getElseTransition().getTargetStateId());
+		
+		assertInvalid("<start-state state=\"d\"/><decision-state id=\"d\"/>" + end);
+		assertInvalid("<start-state state=\"d\"/><decision-state id=\"d\"><if test=\"a\"/></decision-state>" + end);
+		assertInvalid("<start-state state=\"d\"/><decision-state id=\"d\"><if test=\"a ==\" then=\"end\"/></decision-state>" + end);
+		assertInvalid("<start-state state=\"d\"/><decision-state id=\"d\"><if test=\"a\" then=\"unknown\"/></decision-state>" + end);
+		assertInvalid(
+				"<start-state state=\"d\"/><decision-state id=\"d\"><if test=\"a\" then=\"end\" else=\"other\"/>" +
+				"<if test=\"b\" then=\"end\"/></decision-state>" + end);
+		assertInvalid(
+				"<start-state state=\"d\"/><decision-state id=\"d\"><if test=\"a\" then=\"end\"/>" +
+				"<transition name=\"a\" to=\"end\"/></decision-state>" + end);
+	}
+	
+}
@@ -5,8 +5,14 @@ package com.ervacon.springframework.web.servlet.mvc.webflow;
  * All Rights Reserved.
  */
 
+import java.io.File;
+
+import org.springframework.beans.BeansException;
 import org.springframework.context.ConfigurableApplicationContext;
 import org.springframework.context.support.ClassPathXmlApplicationContext;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.util.FileCopyUtils;
 import org.springframework.web.servlet.ModelAndView;
 
 import junit.framework.TestCase;
@@ -90,6 +96,341 @@ public class SimpleWebFlowTest extends TestCase {
 
         assertNull(executeFlow("stop", mementos));
         assertEquals(0, mementos.size());
+        
+        assertEquals(6, ((SimpleWebFlow)flow).getExecutionCount());
+        assertEquals(4, ((SimpleWebFlow)flow).getMaxTransitionChainLength());
+    }
+    
+    public void testCompiledDefinition() {
+    	WebFlowDefinition def=((SimpleWebFlow)appCtx.getBean("searchStockFlow")).getWebFlowDefinition();
+    	assertEquals("Search Stock Flow", def.getName());
+    	assertEquals(8, def.getStates().size());
+    	assertSame(def.getState("criteria"), def.getStartState());
+    	assertTrue(def.getState("criteria") instanceof ViewState);
+    	assertTrue(def.getState("validateCriteria") instanceof ActionState);
+    	assertTrue(def.getState("stockDetail") instanceof FlowState);
+    	assertTrue(def.getState("endOk") instanceof EndState);
+    	assertNull(def.getState("unknown"));
+    	
+    	ActionState validateCriteria=(ActionState)def.getState("validateCriteria");
+    	assertEquals(2, validateCriteria.getActionCount());
+    	assertEquals("validateAct", validateCriteria.getActionName(1));
+    	assertEquals("validateCriteriaAction", validateCriteria.getActionBeanName(1));
+    	assertEquals(3, validateCriteria.getTransitions().size());
+    	assertSame(def.getState("doSearch"), validateCriteria.getTransition("validateAct.ok").getTargetState());
+    	assertNull(validateCriteria.getTransition("ok"));
+    	assertSame(validateCriteria.getTransition("bindAct.error"), validateCriteria.getActionTransition(0, "error"));
+    	assertNull(validateCriteria.getActionTransition(0, "ok"));
+    	assertSame(validateCriteria.getTransition("validateAct.ok"), validateCriteria.getActionTransition(1, "ok"));
+    	assertNull(validateCriteria.getActionTransition(1, "validateAct.ok"));
+    	
+    	FlowState stockDetail=(FlowState)def.getState("stockDetail");
+    	assertEquals("stockDetailFlow", stockDetail.getSubFlowName());
+    	assertEquals("stockDetailModelMapper", stockDetail.getModelMapperName());
+    	assertEquals("error", ((EndState)def.getState("endError")).getView());
+    }
+    
+    public void testInvalidDefinition() {
+    	try {
+    		new WebFlowDefinition("test", "start", new State[] {
+    			new ViewState("start", "view", new Transition[] { new Transition("go", "unknown") })
+    		});
+    		fail("transition to unknown state should be rejected");
+    	}
+    	catch (WebFlowException e) {
+    		//expected
+    	}
+    }
+    
+    public void testMissingBean() {
+    	try {
+    		new ClassPathXmlApplicationContext("com/ervacon/springframework/web/servlet/mvc/webflow/missingBean.xml");
+    		fail("flow referencing an unknown action bean should fail context startup");
+    	}
+    	catch (BeansException e) {
+    		//expected
+    	}
+    }
+    
+    public void testMaxTransitions() {
+    	ConfigurableApplicationContext loopCtx=new ClassPathXmlApplicationContext("com/ervacon/springframework/web/servlet/mvc/webflow/loop.xml");
+    	try {
+    		SimpleWebFlow flow=(SimpleWebFlow)loopCtx.getBean("loopFlow");
+    		WebFlowMementoStack mementos=new WebFlowMementoStack();
+    		mementos.push(new WebFlowMemento("loopFlow"));
+    		try {
+    			flow.start(null, null, mementos);
+    			fail("loop of action states should be stopped");
+    		}
+    		catch (WebFlowException e) {
+    			//expected
+    		}
+    		assertEquals(10, ((TestAction)loopCtx.getBean("loopAction")).getCallCount());
+    		assertEquals(10, flow.getMaxTransitionChainLength());
+    	}
+    	finally {
+    		loopCtx.close();
+    	}
+    }
+    
+    public void testLazyLoading() throws Exception {
+    	final int[] loadCount=new int[] { 0 };
+    	final SimpleWebFlow flow=new SimpleWebFlow() {
+    		protected WebFlowDefinition loadDefinition() throws WebFlowException {
+    			synchronized (loadCount) {
+    				loadCount[0]++;
+    			}
+    			try {
+    				Thread.sleep(50);
+    			}
+    			catch (InterruptedException e) {
+    				//ignore
+    			}
+    			return super.loadDefinition();
+    		}
+    	};
+    	flow.setLazy(true);
+    	flow.setWebFlowResource(new ClassPathResource("com/ervacon/springframework/web/servlet/mvc/webflow/stockDetail-flow.xml"));
+    	flow.afterPropertiesSet();
+    	assertEquals(0, loadCount[0]);
+    	
+    	final WebFlowDefinition[] defs=new WebFlowDefinition[4];
+    	Thread[] threads=new Thread[defs.length];
+    	for (int i=0; i<threads.length; i++) {
+    		final int idx=i;
+    		threads[i]=new Thread() {
+    			public void run() {
+    				defs[idx]=flow.getWebFlowDefinition();
+    			}
+    		};
+    		threads[i].start();
+    	}
+    	for (int i=0; i<threads.length; i++) {
+    		threads[i].join();
+    	}
+    	assertEquals(1, loadCount[0]);
+    	for (int i=0; i<defs.length; i++) {
+    		assertNotNull(defs[i]);
+    		assertSame(defs[0], defs[i]);
+    	}
+    }
+    
+    public void testLazyMissingResource() throws Exception {
+    	SimpleWebFlow flow=new SimpleWebFlow();
+    	flow.setLazy(true);
+    	flow.setWebFlowResource(new ClassPathResource("com/ervacon/springframework/web/servlet/mvc/webflow/missing-flow.xml"));
+    	try {
+    		flow.afterPropertiesSet();
+    		fail("lazy flow with a missing resource should fail");
+    	}
+    	catch (WebFlowException e) {
+    		//expected
+    	}
+    }
+    
+    public void testReload() throws Exception {
+    	File file=File.createTempFile("reload-", "-flow.xml");
+    	try {
+    		writeFlow(file, "<view-state id=\"first\" view=\"first\"><transition name=\"next\" to=\"second\"/></view-state>" +
+    				"<view-state id=\"second\" view=\"second\"><transition name=\"next\" to=\"end\"/></view-state>");
+    		SimpleWebFlow flow=new SimpleWebFlow();
+    		flow.setWebFlowResource(new FileSystemResource(file));
+    		flow.afterPropertiesSet();
+    		WebFlowDefinition oldDef=flow.getWebFlowDefinition();
+    		
+    		WebFlowMementoStack mementos=new WebFlowMementoStack();
+    		mementos.push(new WebFlowMemento("reloadFlow"));
+    		assertEquals("first", flow.start(null, null, mementos).getViewName());
+    		assertEquals("second", flow.execute(null, null, "first", "next", mementos).getViewName());
+    		WebFlowExecution execution=new WebFlowExecution(null, null, mementos, 10);
+    		assertSame(oldDef, execution.getDefinition(flow));
+    		
+    		//unchanged source does not trigger a reload
+    		flow.checkForReload();
+    		assertSame(oldDef, flow.getWebFlowDefinition());
+    		
+    		writeFlow(file, "<view-state id=\"first\" view=\"first\"><transition name=\"next\" to=\"third\"/></view-state>" +
+    				"<view-state id=\"third\" view=\"third\"><transition name=\"next\" to=\"end\"/></view-state>");
+    		flow.checkForReload();
+    		WebFlowDefinition newDef=flow.getWebFlowDefinition();
+    		assertNotSame(oldDef, newDef);
+    		assertNull(newDef.getState("second"));
+    		assertSame(oldDef, execution.getDefinition(flow));
+    		assertNotNull(oldDef.getState("second"));
+    		
+    		//the state of the running flow no longer exists
+    		try {
+    			flow.execute(null, null, "second", "next", mementos);
+    			fail("missing state should not be found");
+    		}
+    		catch (NavigationException e) {
+    			//expected
+    		}
+    		flow.setRestartOnMissingState(true);
+    		assertEquals("first", flow.execute(null, null, "second", "next", mementos).getViewName());
+    		
+    		//invalid definitions are not loaded
+    		writeFlow(file, "<view-state id=\"first\" view=\"first\"><transition name=\"next\" to=\"unknown\"/></view-state>");
+    		flow.checkForReload();
+    		assertSame(newDef, flow.getWebFlowDefinition());
+    		flow.destroy();
+    	}
+    	finally {
+    		file.delete();
+    	}
+    }
+    
+    public void testScheduledReload() throws Exception {
+    	File file=File.createTempFile("reload-", "-flow.xml");
+    	try {
+    		writeFlow(file, "<view-state id=\"first\" view=\"first\"><transition name=\"next\" to=\"end\"/></view-state>");
+    		SimpleWebFlow flow=new SimpleWebFlow();
+    		flow.setWebFlowResource(new FileSystemResource(file));
+    		flow.setReloadCheckInterval(10);
+    		flow.afterPropertiesSet();
+    		
+    		writeFlow(file, "<view-state id=\"first\" view=\"first\"><transition name=\"next\" to=\"second\"/></view-state>" +
+    				"<view-state id=\"second\" view=\"second\"><transition name=\"next\" to=\"end\"/></view-state>");
+    		for (int i=0; i<200 && flow.getWebFlowDefinition().getState("second")==null; i++) {
+    			Thread.sleep(10);
+    		}
+    		assertNotNull(flow.getWebFlowDefinition().getState("second"));
+    		
+    		//a destroyed flow is no longer checked, and the timer stops with its last flow
+    		assertTrue(SimpleWebFlow.isReloadTimerRunning());
+    		flow.destroy();
+    		assertFalse(SimpleWebFlow.isReloadTimerRunning());
+    		WebFlowDefinition def=flow.getWebFlowDefinition();
+    		writeFlow(file, "<view-state id=\"first\" view=\"first\"><transition name=\"next\" to=\"end\"/></view-state>");
+    		Thread.sleep(100);
+    		assertSame(def, flow.getWebFlowDefinition());
+    	}
+    	finally {
+    		file.delete();
+    	}
+    }
+    
+    public void testScheduledReloadOfPreloadedFlow() throws Exception {
+    	File file=File.createTempFile("reload-", "-flow.xml");
+    	try {
+    		writeFlow(file, "<view-state id=\"first\" view=\"first\"><transition name=\"next\" to=\"end\"/></view-state>");
+    		SimpleWebFlow preloaded=new SimpleWebFlow();
+    		preloaded.setWebFlowResource(new FileSystemResource(file));
+    		WebFlowDefinition def=preloaded.loadDefinition();
+    		
+    		//changed between preloading and the first check
+    		writeFlow(file, "<view-state id=\"first\" view=\"first\"><transition name=\"next\" to=\"second\"/></view-state>" +
+    				"<view-state id=\"second\" view=\"second\"><transition name=\"next\" to=\"end\"/></view-state>");
+    		SimpleWebFlow flow=new SimpleWebFlow();
+    		flow.setWebFlowResource(new FileSystemResource(file));
+    		flow.setWebFlowDefinition(def);
+    		flow.setSourceChecksum(preloaded.getSourceChecksum());
+    		flow.setReloadCheckInterval(10);
+    		flow.afterPropertiesSet();
+    		try {
+    			for (int i=0; i<200 && flow.getWebFlowDefinition().getState("second")==null; i++) {
+    				Thread.sleep(10);
+    			}
+    			assertNotNull(flow.getWebFlowDefinition().getState("second"));
+    		}
+    		finally {
+    			flow.destroy();
+    		}
+    	}
+    	finally {
+    		file.delete();
+    	}
+    }
+    
+    private void writeFlow(File file, String states) throws Exception {
+    	FileCopyUtils.copy(
+    			("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+    			"<!DOCTYPE web-flow PUBLIC \"-//ERVACON//DTD SPRING WEB FLOW//EN\" \"http://www.ervacon.com/dtd/web-flow.dtd\">\n" +
+    			"<web-flow name=\"Reload Flow\"><start-state state=\"first\"/>" + states + "<end-state id=\"end\"/></web-flow>").getBytes("UTF-8"),
+    			file);
+    }
+    
+    public void testDecisionState() {
+    	SimpleWebFlow flow=new SimpleWebFlow();
+    	flow.setApplicationContext(appCtx);
+    	flow.setWebFlowDefinition(new WebFlowBuilder("Decision Flow")
+    			.startState("decide")
+    			.decisionState("decide")
+    				.ifThen("bean.prop == 'a'", "a")
+    				.ifThenElse("bean != null", "b", "none")
+    			.viewState("a", "a")
+    			.viewState("b", "b")
+    			.viewState("none", "none")
+    				.transition("retry", "decide")
+    			.build());
+    	
+    	WebFlowMementoStack mementos=new WebFlowMementoStack();
+    	mementos.push(new WebFlowMemento("decisionFlow"));
+    	assertEquals("none", flow.start(null, null, mementos).getViewName());
+    	mementos.getModel().put("bean", new TestBean("x"));
+    	assertEquals("b", flow.execute(null, null, "none", "retry", mementos).getViewName());
+    	mementos.getModel().put("bean", new TestBean("a"));
+    	assertEquals("a", flow.start(null, null, mementos).getViewName());
+    	assertEquals("a", mementos.getCurrentState());
+    }
+    
+    public void testGlobalTransitions() {
+    	SimpleWebFlow flow=new SimpleWebFlow();
+    	flow.setApplicationContext(appCtx);
+    	flow.setWebFlowDefinition(new WebFlowBuilder("Global Flow")
+    			.startState("a")
+    			.globalTransition("cancel", "cancelled")
+    			.globalTransition("next", "a")
+    			.viewState("a", "a")
+    				.transition("next", "b")
+    			.viewState("b", "b")
+    			.endState("cancelled", "cancelled")
+    			.build());
+    	
+    	assertTrue(flow.canHandle("b", "cancel"));
+    	assertFalse(flow.canHandle("b", "unknown"));
+    	assertFalse(flow.canHandle("cancelled", "cancel"));
+    	assertFalse(flow.canHandle("unknown", "cancel"));
+    	
+    	WebFlowMementoStack mementos=new WebFlowMementoStack();
+    	mementos.push(new WebFlowMemento("globalFlow"));
+    	assertEquals("a", flow.start(null, null, mementos).getViewName());
+    	//state transitions take precedence over global transitions
+    	assertEquals("b", flow.execute(null, null, "a", "next", mementos).getViewName());
+    	assertEquals("a", flow.execute(null, null, "b", "next", mementos).getViewName());
+    	assertEquals("cancelled", flow.execute(null, null, "a", "cancel", mementos).getViewName());
+    	assertTrue(mementos.empty());
+    }
+    
+    public void testInlineSubFlows() {
+    	ConfigurableApplicationContext inlineCtx=new ClassPathXmlApplicationContext(new String[] {
+    			"com/ervacon/springframework/web/servlet/mvc/webflow/stocks.xml",
+    			"com/ervacon/springframework/web/servlet/mvc/webflow/inline.xml" });
+    	try {
+    		SimpleWebFlow flow=(SimpleWebFlow)inlineCtx.getBean("inlineFlow");
+    		WebFlowDefinition def=flow.getWebFlowDefinition();
+    		assertNotSame(flow.getCompiledDefinition(), def);
+    		assertNull(def.getState("showDetail"));
+    		assertSame(def.getState("doGetDetail"), def.getStartState());
+    		assertTrue(def.getState("detail") instanceof ViewState);
+    		assertSame(def.getState("results"), def.getState("detail").getTransition("back").getTargetState());
+    		assertTrue(def.getState("search") instanceof FlowState);
+    		
+    		WebFlowMementoStack mementos=new WebFlowMementoStack();
+    		mementos.push(new WebFlowMemento("inlineFlow"));
+    		assertEquals("detail", flow.start(null, null, mementos).getViewName());
+    		assertEquals("detail", mementos.getCurrentState());
+    		assertEquals(1, mementos.size());
+    		assertEquals("detailData_value", mementos.getModel().get("detailData"));
+    		assertEquals("results", flow.execute(null, null, "detail", "back", mementos).getViewName());
+    		assertEquals("results", mementos.getCurrentState());
+    		assertEquals(1, mementos.size());
+    		assertEquals("detail", flow.execute(null, null, "results", "detail", mementos).getViewName());
+    		assertEquals(2, ((TestAction)inlineCtx.getBean("getDetailAction")).getCallCount());
+    	}
+    	finally {
+    		inlineCtx.close();
+    	}
     }
     
     private ModelAndView startFlow(WebFlowMementoStack mementos) {
@@ -0,0 +1,174 @@
+package com.ervacon.springframework.web.servlet.mvc.webflow;
+
+/*
+ * (c) Copyright Ervacon 2004-2005.
+ * All Rights Reserved.
+ */
+
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ConcurrentModificationException;
+
+import javax.servlet.http.HttpServletRequest;
+
+import junit.framework.TestCase;
+
+/**
+ * <p>Test case for the TieredFlowStateStore class.
+ * 
+ * @see com.ervacon.springframework.web.servlet.mvc.webflow.TieredFlowStateStore
+ * 
+ * @author Erwin Vervaet
+ */
+public class TieredFlowStateStoreTest extends TestCase {
+	
+	private MappedFileFlowStateStore coldStore=null;
+	private TieredFlowStateStore store=null;
+	
+	protected void setUp() throws Exception {
+		coldStore=new MappedFileFlowStateStore();
+		coldStore.setCapacity(64*1024);
+		coldStore.setSlotSize(256);
+		coldStore.afterPropertiesSet();
+		store=new TieredFlowStateStore();
+		store.setColdStore(coldStore);
+		store.setPassivationThreshold(1);
+		store.afterPropertiesSet();
+		FailingValue.attempts=0;
+	}
+	
+	protected void tearDown() throws Exception {
+		store.destroy();
+		coldStore.destroy();
+		coldStore.getFile().delete();
+	}
+	
+	public void testPassivationAndReactivation() throws Exception {
+		HttpServletRequest request=FlowStateStoreTestUtils.createRequest("session1");
+		WebFlowMementoStack mementos=FlowStateStoreTestUtils.createMementos("value1");
+		store.save(request, "flow1", mementos);
+		store.save(request, "flow2", FlowStateStoreTestUtils.createMementos("value2"));
+		assertSame(mementos, store.load(request, "flow1"));
+		assertEquals(2, store.getHotSize());
+		assertEquals(0, store.getColdSize());
+		
+		Thread.sleep(1100);
+		store.passivateIdleFlows();
+		assertEquals(0, store.getHotSize());
+		assertEquals(2, store.getColdSize());
+		assertEquals(2, store.getPassivationCount());
+		assertEquals(2, coldStore.size());
+		assertEquals(2, store.getFlowIds(request).size());
+		
+		//loading a passivated flow reactivates it
+		WebFlowMementoStack loaded=store.load(request, "flow1");
+		assertNotSame(mementos, loaded);
+		assertEquals("value1", loaded.getModel().get("data"));
+		assertEquals(1, store.getHotSize());
+		assertEquals(1, store.getColdSize());
+		assertEquals(1, store.getReactivationCount());
+		assertEquals(1, coldStore.size());
+		loaded.touch();
+		assertSame(loaded, store.load(request, "flow1"));
+		assertNull(store.load(FlowStateStoreTestUtils.createRequest("session2"), "flow1"));
+		
+		assertEquals(4, store.getLoadCount());
+		assertEquals(0.5d, store.getHotHitRate(), 0.0001d);
+		assertEquals(0.5d, store.getColdHitRate(), 0.0001d);
+		
+		store.delete(request, "flow2");
+		assertEquals(0, store.getColdSize());
+		assertEquals(0, coldStore.size());
+		assertNull(store.load(request, "flow2"));
+	}
+	
+	public void testUnserializableFlowsStayInMemory() throws Exception {
+		HttpServletRequest request=FlowStateStoreTestUtils.createRequest("session1");
+		WebFlowMementoStack mementos=FlowStateStoreTestUtils.createMementos("value");
+		mementos.getModel().put("unserializable", new FailingValue());
+		store.save(request, "flow1", mementos);
+		Thread.sleep(1100);
+		store.passivateIdleFlows();
+		assertEquals(1, store.getHotSize());
+		assertEquals(0, store.getPassivationCount());
+		assertEquals(1, FailingValue.attempts);
+		
+		//not tried again until the flow handled a request
+		store.passivateIdleFlows();
+		assertEquals(1, FailingValue.attempts);
+		assertSame(mementos, store.load(request, "flow1"));
+		Thread.sleep(1100);
+		store.passivateIdleFlows();
+		assertEquals(2, FailingValue.attempts);
+		assertEquals(1, store.getHotSize());
+	}
+	
+	public void testLoadIdleFlowTwiceInRequest() throws Exception {
+		HttpServletRequest request=FlowStateStoreTestUtils.createRequest("session1");
+		WebFlowMementoStack mementos=FlowStateStoreTestUtils.createMementos("value");
+		store.save(request, "flow1", mementos);
+		Thread.sleep(1100);
+		
+		//the sweep triggered by the load should not passivate the loaded flow
+		assertSame(mementos, store.load(request, "flow1"));
+		assertEquals(1, store.getHotSize());
+		assertEquals(0, store.getColdSize());
+		assertEquals(0, coldStore.size());
+		
+		//e.g. an action using WebFlowUtils.getWebFlowMementoStack()
+		mementos.getModel().put("data", "changed");
+		assertSame(mementos, store.load(request, "flow1"));
+		store.save(request, "flow1", mementos);
+		assertEquals("changed", store.load(request, "flow1").getModel().get("data"));
+		assertEquals(0, store.getPassivationCount());
+	}
+	
+	public void testCleanupFilterLeavesStoreAlone() throws Exception {
+		HttpServletRequest request=FlowStateStoreTestUtils.createRequest("session1");
+		store.save(request, "flow1", FlowStateStoreTestUtils.createMementos("value1"));
+		Thread.sleep(1100);
+		store.passivateIdleFlows();
+		assertEquals(1, store.getColdSize());
+		
+		assertTrue(store.expiresFlows());
+		WebFlowCleanupFilter filter=new WebFlowCleanupFilter() {
+			protected FlowStateStore getFlowStateStore() {
+				return store;
+			}
+		};
+		filter.doCleanup(request);
+		assertEquals(1, store.getColdSize());
+		assertEquals(0, store.getReactivationCount());
+	}
+	
+	public void testExpiry() throws Exception {
+		HttpServletRequest request=FlowStateStoreTestUtils.createRequest("session1");
+		store.save(request, "flow1", FlowStateStoreTestUtils.createMementos("value1"));
+		Thread.sleep(1100);
+		store.passivateIdleFlows();
+		store.save(request, "flow2", FlowStateStoreTestUtils.createMementos("value2"));
+		
+		store.setTimeout(0);
+		Thread.sleep(20);
+		assertNull(store.load(request, "flow2"));
+		store.passivateIdleFlows();
+		assertEquals(0, store.getHotSize());
+		assertEquals(0, store.getColdSize());
+		assertEquals(0, coldStore.size());
+		assertTrue(store.getFlowIds(request).isEmpty());
+	}
+	
+	/**
+	 * <p>Model value failing to serialize with a runtime exception, like a
+	 * collection modified by another thread.
+	 */
+	private static class FailingValue implements Serializable {
+		private static int attempts=0;
+		
+		private void writeObject(ObjectOutputStream out) {
+			attempts++;
+			throw new ConcurrentModificationException();
+		}
+	}
+
+}
@@ -0,0 +1,99 @@
+package com.ervacon.springframework.web.servlet.mvc.webflow;
+
+/*
+ * (c) Copyright Ervacon 2004-2005.
+ * All Rights Reserved.
+ */
+
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+
+import junit.framework.TestCase;
+
+/**
+ * <p>Test case for the WebFlowAnalyzer class.
+ * 
+ * @see com.ervacon.springframework.web.servlet.mvc.webflow.WebFlowAnalyzer
+ * 
+ * @author Erwin Vervaet
+ */
+public class WebFlowAnalyzerTest extends TestCase {
+	
+	private WebFlowAnalyzer analyzer=new WebFlowAnalyzer();
+	private StaticListableBeanFactory beanFactory=new StaticListableBeanFactory();
+	
+	protected void setUp() throws Exception {
+		beanFactory.addBean("action", new TestAction());
+		beanFactory.addBean("mapper", new ParameterizableModelMapper());
+	}
+	
+	public void testValidFlow() {
+		WebFlowDefinition def=new WebFlowDefinition("test", "start", new State[] {
+			new ActionState("start", new String[] { "act" }, new String[] { "action" }, new Transition[] {
+				new Transition("act.ok", "view"),
+				new Transition("act.error", "end")
+			}),
+			new ViewState("view", "view", new Transition[] { new Transition("retry", "start") }),
+			new ViewState("unreachable", "view", null),
+			new EndState("end", null)
+		});
+		analyzer.analyze(def, beanFactory);
+		
+		assertTrue(def.isReachable(def.getState("view")));
+		assertTrue(def.isReachable(def.getState("end")));
+		assertFalse(def.isReachable(def.getState("unreachable")));
+		assertTrue(def.canReachEnd(def.getState("view")));
+		assertFalse(def.canReachEnd(def.getState("unreachable")));
+	}
+	
+	public void testUnknownBeans() {
+		WebFlowDefinition def=new WebFlowDefinition("test", "start", new State[] {
+			new ActionState("start", new String[] { "act" }, new String[] { "unknownAction" }, new Transition[] {
+				new Transition("act.ok", "sub")
+			}),
+			new FlowState("sub", "unknownFlow", "action", new Transition[] { new Transition("end", "end") }),
+			new EndState("end", null)
+		});
+		try {
+			analyzer.analyze(def, beanFactory);
+			fail("unknown beans should be reported");
+		}
+		catch (WebFlowException e) {
+			assertTrue(e.getMessage().indexOf("unknownAction")!=-1);
+			assertTrue(e.getMessage().indexOf("unknownFlow")!=-1);
+			assertTrue(e.getMessage().indexOf("should be of type")!=-1);
+		}
+		
+		//without a bean factory, bean references are not verified
+		analyzer.analyze(def, null);
+	}
+	
+	public void testActionStateCycles() {
+		//a cycle that can be left is allowed
+		analyzer.analyze(new WebFlowDefinition("test", "a", new State[] {
+			new ActionState("a", new String[] { "act" }, new String[] { "action" }, new Transition[] {
+				new Transition("act.retry", "a"),
+				new Transition("act.ok", "end")
+			}),
+			new EndState("end", null)
+		}), beanFactory);
+		
+		//a cycle that cannot be left is not
+		try {
+			analyzer.analyze(new WebFlowDefinition("test", "view", new State[] {
+				new ViewState("view", "view", new Transition[] { new Transition("go", "a") }),
+				new ActionState("a", new String[] { "act" }, new String[] { "action" }, new Transition[] {
+					new Transition("act.ok", "b")
+				}),
+				new ActionState("b", new String[] { "act" }, new String[] { "action" }, new Transition[] {
+					new Transition("act.ok", "a"),
+					new Transition("act.error", "b")
+				})
+			}), beanFactory);
+			fail("cycle of action states without exit should be reported");
+		}
+		catch (WebFlowException e) {
+			assertTrue(e.getMessage().indexOf("[a, b]")!=-1);
+		}
+	}
+
+}
@@ -0,0 +1,171 @@
+package com.ervacon.springframework.web.servlet.mvc.webflow;
+
+/*
+ * (c) Copyright Ervacon 2004-2005.
+ * All Rights Reserved.
+ */
+
+import java.io.InputStream;
+
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+import org.springframework.core.io.ClassPathResource;
+
+import junit.framework.TestCase;
+
+/**
+ * <p>Test case for the WebFlowBuilder and AbstractBuilderWebFlow classes.
+ * 
+ * @see com.ervacon.springframework.web.servlet.mvc.webflow.WebFlowBuilder
+ * @see com.ervacon.springframework.web.servlet.mvc.webflow.AbstractBuilderWebFlow
+ * 
+ * @author Erwin Vervaet
+ */
+public class WebFlowBuilderTest extends TestCase {
+	
+	/**
+	 * <p>Builder based equivalent of "searchStock-flow.xml".
+	 */
+	public static class SearchStockFlow extends AbstractBuilderWebFlow {
+		protected WebFlowDefinition buildDefinition() {
+			return new WebFlowBuilder("Search Stock Flow")
+				.startState("criteria")
+				.viewState("criteria", "criteria")
+					.transition("search", "validateCriteria")
+					.transition("stop", "endOk")
+				.actionState("validateCriteria")
+					.action("bindAct", "bindCriteriaAction")
+					.action("validateAct", "validateCriteriaAction")
+					.transition("bindAct.error", "criteria")
+					.transition("validateAct.ok", "doSearch")
+					.transition("validateAct.error", "criteria")
+				.actionState("doSearch")
+					.action("doSearchAct", "searchAction")
+					.transition("doSearchAct.ok", "results")
+					.transition("doSearchAct.error", "endError")
+				.viewState("results", "results")
+					.transition("newSearch", "criteria")
+					.transition("detail", "bindSelection")
+					.transition("stop", "endOk")
+				.actionState("bindSelection")
+					.action("bindAct", "bindSelectionAction")
+					.transition("bindAct.ok", "stockDetail")
+					.transition("bindAct.error", "endError")
+				.flowState("stockDetail", "stockDetailFlow", "stockDetailModelMapper")
+					.transition("endOk", "results")
+					.transition("endError", "endError")
+				.endState("endOk")
+				.endState("endError", "error")
+				.build();
+		}
+	}
+	
+	/**
+	 * <p>Builder based equivalent of "stockDetail-flow.xml".
+	 */
+	public static class StockDetailFlow extends AbstractBuilderWebFlow {
+		protected WebFlowDefinition buildDefinition() {
+			return new WebFlowBuilder("Stock Detail Flow")
+				.startState("doGetDetail")
+				.actionState("doGetDetail")
+					.action("getDetailAct", "getDetailAction")
+					.transition("getDetailAct.ok", "detail")
+					.transition("getDetailAct.error", "endError")
+				.viewState("detail", "detail")
+					.transition("back", "endOk")
+				.endState("endOk")
+				.endState("endError", "error")
+				.build();
+		}
+	}
+	
+	public void testSameAsXml() throws Exception {
+		assertSameDefinition(read("searchStock-flow.xml"), new SearchStockFlow().buildDefinition());
+		assertSameDefinition(read("stockDetail-flow.xml"), new StockDetailFlow().buildDefinition());
+		
+		FlowState stockDetail=(FlowState)new SearchStockFlow().buildDefinition().getState("stockDetail");
+		assertEquals("stockDetailFlow", stockDetail.getSubFlowName());
+		assertEquals("stockDetailModelMapper", stockDetail.getModelMapperName());
+	}
+	
+	private WebFlowDefinition read(String name) throws Exception {
+		InputStream in=new ClassPathResource(name, getClass()).getInputStream();
+		try {
+			return new SaxWebFlowDefinitionReader().read(in);
+		}
+		finally {
+			in.close();
+		}
+	}
+	
+	private void assertSameDefinition(WebFlowDefinition expected, WebFlowDefinition actual) {
+		assertEquals(expected.getName(), actual.getName());
+		assertEquals(expected.getStartState().getId(), actual.getStartState().getId());
+		assertEquals(expected.getStates().size(), actual.getStates().size());
+		for (int i=0; i<expected.getStates().size(); i++) {
+			State expectedState=(State)expected.getStates().get(i);
+			State actualState=(State)actual.getStates().get(i);
+			assertEquals(expectedState.toString(), actualState.toString());
+			assertEquals(expectedState.getTransitions().size(), actualState.getTransitions().size());
+			for (int j=0; j<expectedState.getTransitions().size(); j++) {
+				Transition expectedTransition=(Transition)expectedState.getTransitions().get(j);
+				Transition actualTransition=(Transition)actualState.getTransitions().get(j);
+				assertEquals(expectedTransition.getName(), actualTransition.getName());
+				assertEquals(expectedTransition.getTargetStateId(), actualTransition.getTargetStateId());
+			}
+		}
+	}
+	
+	public void testBuilderWebFlow() {
+		ConfigurableApplicationContext appCtx=new ClassPathXmlApplicationContext(new String[] {
+				"com/ervacon/springframework/web/servlet/mvc/webflow/stocks.xml",
+				"com/ervacon/springframework/web/servlet/mvc/webflow/builder.xml" });
+		try {
+			SimpleWebFlow flow=(SimpleWebFlow)appCtx.getBean("searchStockFlow");
+			assertTrue(flow instanceof SearchStockFlow);
+			WebFlowMementoStack mementos=new WebFlowMementoStack();
+			mementos.push(new WebFlowMemento("searchStockFlow"));
+			assertEquals("criteria", flow.start(null, null, mementos).getViewName());
+			assertEquals("results", flow.execute(null, null, "criteria", "search", mementos).getViewName());
+			assertEquals("detail", flow.execute(null, null, "results", "detail", mementos).getViewName());
+			assertEquals(2, mementos.size());
+			assertEquals("results", mementos.getFlow(appCtx).execute(null, null, "detail", "back", mementos).getViewName());
+			assertEquals(1, mementos.size());
+		}
+		finally {
+			appCtx.close();
+		}
+	}
+	
+	public void testInvalidFlow() {
+		try {
+			new WebFlowBuilder("test").startState("a").viewState("a", "a").action("act", "bean");
+			fail("actions should only be added to action states");
+		}
+		catch (WebFlowException e) {
+			//expected
+		}
+		try {
+			new WebFlowBuilder("test").startState("end").endState("end").transition("a", "end");
+			fail("end states have no transitions");
+		}
+		catch (WebFlowException e) {
+			//expected
+		}
+		try {
+			new WebFlowBuilder("test").startState("a").actionState("a").transition("act.ok", "end").endState("end").build();
+			fail("action states should have an action");
+		}
+		catch (WebFlowException e) {
+			//expected
+		}
+		try {
+			new WebFlowBuilder("test").viewState("a", "a").build();
+			fail("flows should have a start state");
+		}
+		catch (WebFlowException e) {
+			//expected
+		}
+	}
+	
+}
@@ -0,0 +1,82 @@
+package com.ervacon.springframework.web.servlet.mvc.webflow;
+
+/*
+ * (c) Copyright Ervacon 2004-2005.
+ * All Rights Reserved.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.util.FileCopyUtils;
+
+import junit.framework.TestCase;
+
+/**
+ * <p>Test case for the WebFlowCompilerTask class.
+ * 
+ * @see com.ervacon.springframework.web.servlet.mvc.webflow.WebFlowCompilerTask
+ * 
+ * @author Erwin Vervaet
+ */
+public class WebFlowCompilerTaskTest extends TestCase {
+	
+	private File dir;
+	private File xmlFile;
+	private File binaryFile;
+	
+	protected void setUp() throws Exception {
+		dir=new File(System.getProperty("java.io.tmpdir"), "webflow-test-" + WebFlowUtils.generateUniqueId());
+		dir.mkdirs();
+		xmlFile=new File(dir, "test-flow.xml");
+		binaryFile=new File(dir, "test-flow.wfc");
+		FileCopyUtils.copy(FileCopyUtils.copyToByteArray(new ClassPathResource("stockDetail-flow.xml", getClass()).getInputStream()), xmlFile);
+	}
+	
+	protected void tearDown() throws Exception {
+		xmlFile.delete();
+		binaryFile.delete();
+		dir.delete();
+	}
+	
+	private void compile() {
+		Project project=new Project();
+		FileSet fileSet=new FileSet();
+		fileSet.setProject(project);
+		fileSet.setDir(dir);
+		fileSet.setIncludes("*-flow.xml");
+		WebFlowCompilerTask task=new WebFlowCompilerTask();
+		task.setProject(project);
+		task.addFileset(fileSet);
+		task.execute();
+	}
+	
+	private boolean isCurrentVersion() throws Exception {
+		return new BinaryWebFlowDefinitionFormat().isCurrentVersion(new ByteArrayInputStream(FileCopyUtils.copyToByteArray(binaryFile)));
+	}
+	
+	public void testRecompileOtherVersion() throws Exception {
+		compile();
+		assertTrue(isCurrentVersion());
+		
+		//a binary definition written using another version of the format is
+		//recompiled, even when it is newer than its XML definition
+		byte[] binary=FileCopyUtils.copyToByteArray(binaryFile);
+		binary[5]++;
+		FileCopyUtils.copy(binary, binaryFile);
+		binaryFile.setLastModified(xmlFile.lastModified() + 10000);
+		assertFalse(isCurrentVersion());
+		compile();
+		assertTrue(isCurrentVersion());
+		
+		//an up to date binary definition is left alone
+		long lastModified=xmlFile.lastModified() + 20000;
+		binaryFile.setLastModified(lastModified);
+		compile();
+		assertEquals(lastModified, binaryFile.lastModified());
+	}
+
+}
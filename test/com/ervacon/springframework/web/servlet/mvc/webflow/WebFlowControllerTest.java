@@ -0,0 +1,91 @@
+package com.ervacon.springframework.web.servlet.mvc.webflow;
+
+/*
+ * (c) Copyright Ervacon 2004-2005.
+ * All Rights Reserved.
+ */
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+import org.springframework.web.servlet.ModelAndView;
+
+import junit.framework.TestCase;
+
+/**
+ * <p>Test case for the WebFlowController class.
+ * 
+ * @see com.ervacon.springframework.web.servlet.mvc.webflow.WebFlowController
+ * 
+ * @author Erwin Vervaet
+ */
+public class WebFlowControllerTest extends TestCase {
+	
+	private ConfigurableApplicationContext appCtx=null;
+	private WebFlowController controller=null;
+	
+	protected void setUp() throws Exception {
+		appCtx=new ClassPathXmlApplicationContext("com/ervacon/springframework/web/servlet/mvc/webflow/stocks.xml");
+		controller=new WebFlowController();
+		controller.setWebFlowRegistry(new WebFlowRegistry(appCtx));
+	}
+	
+	protected void tearDown() throws Exception {
+		appCtx.close();
+	}
+	
+	public void testResolveEventInParentFlows() {
+		SimpleWebFlow flow=(SimpleWebFlow)appCtx.getBean("searchStockFlow");
+		WebFlowMementoStack mementos=new WebFlowMementoStack();
+		mementos.push(new WebFlowMemento("searchStockFlow"));
+		flow.start(null, null, mementos);
+		flow.execute(null, null, "criteria", "search", mementos);
+		assertEquals("detail", flow.execute(null, null, "results", "detail", mementos).getViewName());
+		assertEquals(2, mementos.size());
+		
+		//events the current flow can handle need no resolution
+		controller.resolveEventInParentFlows("detail", "back", mementos);
+		assertEquals(2, mementos.size());
+		
+		//events nobody can handle leave the flows alone
+		controller.resolveEventInParentFlows("results", "unknown", mementos);
+		assertEquals(2, mementos.size());
+		
+		//the user went back to the results page of the parent flow
+		assertTrue(flow.canHandle("results", "newSearch"));
+		controller.resolveEventInParentFlows("results", "newSearch", mementos);
+		assertEquals(1, mementos.size());
+		assertEquals("criteria", flow.execute(null, null, "results", "newSearch", mementos).getViewName());
+	}
+	
+	public void testNavigationExceptionResolutionSavesFlowState() {
+		final Map saved=new HashMap();
+		controller.setFlowStateStore(new InMemoryFlowStateStore() {
+			public void save(HttpServletRequest request, String flowId, WebFlowMementoStack mementos) {
+				saved.put(flowId, mementos);
+			}
+		});
+		SimpleWebFlow flow=(SimpleWebFlow)appCtx.getBean("searchStockFlow");
+		WebFlowMementoStack mementos=new WebFlowMementoStack();
+		mementos.push(new WebFlowMemento("searchStockFlow"));
+		flow.start(null, null, mementos);
+		flow.execute(null, null, "criteria", "search", mementos);
+		flow.execute(null, null, "results", "detail", mementos);
+		
+		//the user went back to the results page of the parent flow
+		NavigationException nex=new NavigationException("test", "results", "newSearch", mementos);
+		nex.setFlowId("flow1");
+		SubFlowBackNavigationExceptionResolver resolver=new SubFlowBackNavigationExceptionResolver();
+		resolver.setWebFlowRegistry(controller.getWebFlowRegistry());
+		ModelAndView mav=resolver.resolveException(null, null, controller, nex);
+		assertEquals("criteria", mav.getViewName());
+		assertEquals("flow1", mav.getModel().get(WebFlowController.FLOW_ID_MODEL_NAME));
+		assertSame(mementos, saved.get("flow1"));
+		assertEquals(1, mementos.size());
+	}
+	
+}
@@ -0,0 +1,171 @@
+package com.ervacon.springframework.web.servlet.mvc.webflow;
+
+/*
+ * (c) Copyright Ervacon 2004-2005.
+ * All Rights Reserved.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * <p>Test case for the WebFlowHistory class.
+ * 
+ * @see com.ervacon.springframework.web.servlet.mvc.webflow.WebFlowHistory
+ * 
+ * @author Erwin Vervaet
+ */
+public class WebFlowHistoryTest extends TestCase {
+	
+	public void testRecordAndRestore() throws Exception {
+		WebFlowHistory history=new WebFlowHistory(10);
+		WebFlowMementoStack mementos=createMementos(history);
+		int first=history.record(mementos);
+		assertEquals(first, history.getCurrentKey());
+		assertTrue(mementos.isDirty()); //recording does not commit
+		
+		mementos.setCurrentState("second");
+		mementos.getModel().put("key", "value");
+		int second=history.record(mementos);
+		mementos.push(new WebFlowMemento("subFlow"));
+		mementos.setCurrentState("sub");
+		int third=history.record(mementos);
+		assertEquals(3, history.getSnapshotCount());
+		
+		//going back
+		WebFlowMementoStack restored=history.restore(first);
+		assertSame(history, restored.getHistory());
+		assertEquals(first, history.getCurrentKey());
+		assertEquals(1, restored.size());
+		assertEquals("first", restored.getCurrentState());
+		assertFalse(restored.getModel().containsKey("key"));
+		
+		restored=history.restore(third);
+		assertEquals(2, restored.size());
+		assertEquals("sub", restored.getCurrentState());
+		WebFlowMemento parent=(WebFlowMemento)restored.asList().get(0);
+		assertEquals("second", parent.getCurrentState());
+		assertEquals("value", parent.getModel().get("key"));
+		
+		assertEquals("second", history.restore(second).getCurrentState());
+		assertNull(history.restore(42));
+	}
+	
+	public void testBranching() throws Exception {
+		WebFlowHistory history=new WebFlowHistory(10);
+		WebFlowMementoStack mementos=createMementos(history);
+		int first=history.record(mementos);
+		mementos.setCurrentState("second");
+		int second=history.record(mementos);
+		
+		//continue differently from the first snapshot
+		mementos=history.restore(first);
+		mementos.setCurrentState("alternative");
+		mementos.getModel().put("key", "value");
+		int alternative=history.record(mementos);
+		
+		assertEquals("second", history.restore(second).getCurrentState());
+		mementos=history.restore(alternative);
+		assertEquals("alternative", mementos.getCurrentState());
+		assertEquals("value", mementos.getModel().get("key"));
+	}
+	
+	public void testEviction() throws Exception {
+		WebFlowHistory history=new WebFlowHistory(3);
+		WebFlowMementoStack mementos=createMementos(history);
+		int[] keys=new int[5];
+		for (int i=0; i<keys.length; i++) {
+			mementos.setCurrentState("state" + i);
+			mementos.getModel().put("key" + i, "value" + i);
+			keys[i]=history.record(mementos);
+		}
+		assertEquals(3, history.getSnapshotCount());
+		assertFalse(history.contains(keys[0]));
+		assertFalse(history.contains(keys[1]));
+		assertNull(history.restore(keys[1]));
+		
+		//the remaining snapshots are still complete
+		mementos=history.restore(keys[2]);
+		assertEquals("state2", mementos.getCurrentState());
+		assertEquals("value0", mementos.getModel().get("key0"));
+		assertFalse(mementos.getModel().containsKey("key3"));
+		assertEquals("value4", history.restore(keys[4]).getModel().get("key4"));
+	}
+	
+	public void testSerialization() throws Exception {
+		WebFlowHistory history=new WebFlowHistory(5);
+		WebFlowMementoStack mementos=createMementos(history);
+		int first=history.record(mementos);
+		mementos.setCurrentState("second");
+		history.record(mementos);
+		
+		ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+		ObjectOutputStream out=new ObjectOutputStream(bytes);
+		out.writeObject(mementos);
+		out.close();
+		WebFlowMementoStack copy=(WebFlowMementoStack)new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+		assertEquals("second", copy.getCurrentState());
+		assertEquals(2, copy.getHistory().getSnapshotCount());
+		assertEquals("first", copy.getHistory().restore(first).getCurrentState());
+	}
+	
+	public void testRecordingKeepsReplicatedChanges() throws Exception {
+		WebFlowHistory history=new WebFlowHistory(5);
+		WebFlowMementoStack mementos=createMementos(history);
+		mementos.commit();
+		WebFlowMementoStack replica=copy(mementos);
+		int first=history.record(mementos);
+		
+		mementos.setCurrentState("second");
+		mementos.getModel().put("key", "value");
+		history.record(mementos);
+		mementos.push(new WebFlowMemento("subFlow"));
+		history.record(mementos);
+		assertTrue(mementos.isDirty());
+		
+		//the replica gets the changes of all requests since its last update
+		replica.readDelta(delta(mementos));
+		mementos.commit();
+		assertEquals(2, replica.size());
+		WebFlowMemento parent=(WebFlowMemento)replica.asList().get(0);
+		assertEquals("second", parent.getCurrentState());
+		assertEquals("value", parent.getModel().get("key"));
+		
+		//a restored snapshot replaces the memento stack of the replica
+		WebFlowMementoStack restored=history.restore(first);
+		assertTrue(restored.isDirty());
+		replica.readDelta(delta(restored));
+		assertEquals(1, replica.size());
+		assertEquals("first", replica.getCurrentState());
+		assertFalse(replica.getModel().containsKey("key"));
+	}
+	
+	private WebFlowMementoStack copy(WebFlowMementoStack mementos) throws Exception {
+		ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+		ObjectOutputStream out=new ObjectOutputStream(bytes);
+		out.writeObject(mementos);
+		out.close();
+		return (WebFlowMementoStack)new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+	}
+	
+	private ObjectInputStream delta(WebFlowMementoStack mementos) throws Exception {
+		ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+		ObjectOutputStream out=new ObjectOutputStream(bytes);
+		mementos.writeDelta(out);
+		out.close();
+		return new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+	}
+	
+	private WebFlowMementoStack createMementos(WebFlowHistory history) {
+		WebFlowMementoStack mementos=new WebFlowMementoStack();
+		mementos.push(new WebFlowMemento("testFlow"));
+		mementos.setCurrentState("first");
+		mementos.setHistory(history);
+		return mementos;
+	}
+
+}
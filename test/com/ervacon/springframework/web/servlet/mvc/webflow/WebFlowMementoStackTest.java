@@ -0,0 +1,176 @@
+package com.ervacon.springframework.web.servlet.mvc.webflow;
+
+/*
+ * (c) Copyright Ervacon 2004-2005.
+ * All Rights Reserved.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Stack;
+
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+import junit.framework.TestCase;
+
+/**
+ * <p>Test case for the serialization and change tracking of the
+ * WebFlowMementoStack and WebFlowMemento classes.
+ * 
+ * @see com.ervacon.springframework.web.servlet.mvc.webflow.WebFlowMementoStack
+ * @see com.ervacon.springframework.web.servlet.mvc.webflow.WebFlowMemento
+ * 
+ * @author Erwin Vervaet
+ */
+public class WebFlowMementoStackTest extends TestCase {
+	
+	public void testDirtyTracking() throws Exception {
+		WebFlowMementoStack mementos=createMementos();
+		assertTrue(mementos.isDirty());
+		mementos.commit();
+		assertFalse(mementos.isDirty());
+		
+		mementos.touch();
+		mementos.setCurrentState("start");
+		assertFalse(mementos.isDirty());
+		mementos.getModel().remove("unknown");
+		assertFalse(mementos.isDirty());
+		
+		mementos.getModel().put("key", "value");
+		assertTrue(mementos.isDirty());
+		mementos.commit();
+		
+		mementos.push(new WebFlowMemento("subFlow"));
+		assertTrue(mementos.isDirty());
+		mementos.pop();
+		assertFalse(mementos.isDirty()); //back to the committed stack
+		mementos.pop();
+		assertTrue(mementos.isDirty());
+		mementos.push(new WebFlowMemento("testFlow"));
+		mementos.commit();
+		
+		//deserialized memento stacks have no changes
+		mementos.getModel().put("key", "otherValue");
+		assertFalse(copy(mementos).isDirty());
+	}
+	
+	public void testDelta() throws Exception {
+		WebFlowMementoStack mementos=createMementos();
+		mementos.commit();
+		WebFlowMementoStack replica=copy(mementos);
+		
+		//only the changes are shipped
+		StringBuffer large=new StringBuffer();
+		for (int i=0; i<1000; i++) {
+			large.append(i);
+		}
+		mementos.getModel().put("large", large.toString());
+		replica.readDelta(delta(mementos));
+		mementos.commit();
+		mementos.setCurrentState("next");
+		mementos.getModel().put("key", "value");
+		mementos.getModel().remove("removed");
+		mementos.push(new WebFlowMemento("subFlow"));
+		mementos.getModel().put("subKey", "subValue");
+		mementos.touch();
+		ObjectInputStream delta=delta(mementos);
+		assertTrue(delta.available()<large.length());
+		replica.readDelta(delta);
+		
+		assertEquals(2, replica.size());
+		assertEquals("subFlow", replica.getFlowName());
+		assertEquals("subValue", replica.getModel().get("subKey"));
+		assertEquals(mementos.getLastAccessedTime(), replica.getLastAccessedTime());
+		WebFlowMemento parent=(WebFlowMemento)replica.asList().get(0);
+		assertEquals("next", parent.getCurrentState());
+		assertEquals("value", parent.getModel().get("key"));
+		assertEquals(large.toString(), parent.getModel().get("large"));
+		assertFalse(parent.getModel().containsKey("removed"));
+		
+		//ending the sub flow
+		mementos.commit();
+		replica.commit();
+		mementos.pop();
+		replica.readDelta(delta(mementos));
+		assertEquals(1, replica.size());
+		assertEquals("testFlow", replica.getFlowName());
+	}
+	
+	public void testSerialization() throws Exception {
+		ConfigurableApplicationContext appCtx=new ClassPathXmlApplicationContext("com/ervacon/springframework/web/servlet/mvc/webflow/stocks.xml");
+		try {
+			SimpleWebFlow flow=(SimpleWebFlow)appCtx.getBean("searchStockFlow");
+			WebFlowMementoStack mementos=new WebFlowMementoStack();
+			mementos.push(new WebFlowMemento("searchStockFlow"));
+			mementos.getModel().put(WebFlowController.FLOW_ID_MODEL_NAME, "12345678901234567890");
+			flow.start(null, null, mementos);
+			flow.execute(null, null, "criteria", "search", mementos);
+			flow.execute(null, null, "results", "detail", mementos);
+			assertEquals(2, mementos.size());
+			
+			WebFlowMementoStack copy=copy(mementos);
+			assertEquals(mementos.size(), copy.size());
+			assertEquals(mementos.getLastAccessedTime(), copy.getLastAccessedTime());
+			for (int i=0; i<mementos.size(); i++) {
+				WebFlowMemento memento=(WebFlowMemento)mementos.asList().get(i);
+				WebFlowMemento mementoCopy=(WebFlowMemento)copy.asList().get(i);
+				assertEquals(memento.getFlowName(), mementoCopy.getFlowName());
+				assertEquals(memento.getCurrentState(), mementoCopy.getCurrentState());
+				assertEquals(memento.getModel(), mementoCopy.getModel());
+			}
+			
+			//the copy can be used to continue the flow
+			copy.getFlow(appCtx).execute(null, null, copy.getCurrentState(), "back", copy);
+			assertEquals(1, copy.size());
+			assertEquals(2, mementos.size());
+			
+			//the same data using default serialization, as before
+			Stack defaultMementos=new Stack();
+			List stack=mementos.asList();
+			for (int i=0; i<stack.size(); i++) {
+				WebFlowMemento memento=(WebFlowMemento)stack.get(i);
+				defaultMementos.push(new Object[] { memento.getFlowName(), memento.getCurrentState(), new HashMap(memento.getModel()) });
+			}
+			int defaultSize=serialize(new Object[] { defaultMementos, new Long(mementos.getLastAccessedTime()) }).length;
+			int size=serialize(mementos).length;
+			assertTrue("size " + size + " should be less than " + defaultSize, size<defaultSize);
+		}
+		finally {
+			appCtx.close();
+		}
+	}
+	
+	private WebFlowMementoStack createMementos() {
+		WebFlowMementoStack mementos=new WebFlowMementoStack();
+		mementos.push(new WebFlowMemento("testFlow"));
+		mementos.setCurrentState("start");
+		mementos.getModel().put("removed", "value");
+		return mementos;
+	}
+	
+	private WebFlowMementoStack copy(WebFlowMementoStack mementos) throws Exception {
+		return (WebFlowMementoStack)new ObjectInputStream(new ByteArrayInputStream(serialize(mementos))).readObject();
+	}
+	
+	private byte[] serialize(Object object) throws Exception {
+		ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+		ObjectOutputStream out=new ObjectOutputStream(bytes);
+		out.writeObject(object);
+		out.close();
+		return bytes.toByteArray();
+	}
+	
+	private ObjectInputStream delta(WebFlowMementoStack mementos) throws Exception {
+		ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+		ObjectOutputStream out=new ObjectOutputStream(bytes);
+		mementos.writeDelta(out);
+		out.close();
+		return new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+	}
+
+}
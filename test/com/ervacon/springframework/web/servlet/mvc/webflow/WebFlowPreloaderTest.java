@@ -0,0 +1,55 @@
+package com.ervacon.springframework.web.servlet.mvc.webflow;
+
+/*
+ * (c) Copyright Ervacon 2004-2005.
+ * All Rights Reserved.
+ */
+
+import org.springframework.beans.BeansException;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+import junit.framework.TestCase;
+
+/**
+ * <p>Test case for the WebFlowPreloader class.
+ * 
+ * @see com.ervacon.springframework.web.servlet.mvc.webflow.WebFlowPreloader
+ * 
+ * @author Erwin Vervaet
+ */
+public class WebFlowPreloaderTest extends TestCase {
+	
+	private static final String PACKAGE="com/ervacon/springframework/web/servlet/mvc/webflow/";
+	
+	public void testPreload() {
+		ConfigurableApplicationContext appCtx=new ClassPathXmlApplicationContext(new String[] { PACKAGE + "stocks.xml", PACKAGE + "preloader.xml" });
+		try {
+			WebFlowPreloader preloader=(WebFlowPreloader)appCtx.getBean("webFlowPreloader");
+			assertEquals(2, preloader.getLoadTimes().size());
+			assertTrue(preloader.getLoadTimes().containsKey("searchStockFlow"));
+			assertTrue(preloader.getLoadTimes().containsKey("stockDetailFlow"));
+			
+			SimpleWebFlow flow=(SimpleWebFlow)appCtx.getBean("searchStockFlow");
+			assertEquals("Search Stock Flow", flow.getWebFlowDefinition().getName());
+			assertTrue(flow.getSourceChecksum()!=-1);
+			WebFlowMementoStack mementos=new WebFlowMementoStack();
+			mementos.push(new WebFlowMemento("searchStockFlow"));
+			assertEquals("criteria", flow.start(null, null, mementos).getViewName());
+		}
+		finally {
+			appCtx.close();
+		}
+	}
+	
+	public void testPreloadFailure() {
+		try {
+			new ClassPathXmlApplicationContext(new String[] { PACKAGE + "missingResource.xml", PACKAGE + "preloader.xml" });
+			fail("flow with a missing resource should fail context startup");
+		}
+		catch (BeansException e) {
+			//expected
+		}
+	}
+	
+}
@@ -0,0 +1,64 @@
+package com.ervacon.springframework.web.servlet.mvc.webflow;
+
+/*
+ * (c) Copyright Ervacon 2004-2005.
+ * All Rights Reserved.
+ */
+
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+import junit.framework.TestCase;
+
+/**
+ * <p>Test case for the WebFlowRegistry class.
+ * 
+ * @see com.ervacon.springframework.web.servlet.mvc.webflow.WebFlowRegistry
+ * 
+ * @author Erwin Vervaet
+ */
+public class WebFlowRegistryTest extends TestCase {
+	
+	public void testRegistryBean() {
+		ConfigurableApplicationContext appCtx=new ClassPathXmlApplicationContext(new String[] {
+				"com/ervacon/springframework/web/servlet/mvc/webflow/stocks.xml",
+				"com/ervacon/springframework/web/servlet/mvc/webflow/registry.xml" });
+		try {
+			WebFlowRegistry registry=WebFlowRegistry.lookup(appCtx);
+			assertSame(appCtx.getBean("webFlowRegistry"), registry);
+			assertTrue(registry.isRegistered("searchStockFlow"));
+			assertTrue(registry.isRegistered("stockDetailFlow"));
+			assertSame(appCtx.getBean("searchStockFlow"), registry.getFlow("searchStockFlow"));
+			
+			WebFlowMemento memento=new WebFlowMemento("searchStockFlow");
+			assertSame(registry.getFlow("searchStockFlow"), memento.getFlow(registry));
+			
+			//a refresh replaces the registered flows
+			int generation=registry.getGeneration();
+			registry.register("searchStockFlow", new SimpleWebFlow());
+			registry.refresh();
+			assertTrue(generation!=registry.getGeneration());
+			assertSame(appCtx.getBean("searchStockFlow"), memento.getFlow(registry));
+		}
+		finally {
+			appCtx.close();
+		}
+	}
+	
+	public void testPrivateRegistry() {
+		ConfigurableApplicationContext appCtx=
+			new ClassPathXmlApplicationContext("com/ervacon/springframework/web/servlet/mvc/webflow/stocks.xml");
+		try {
+			WebFlowRegistry registry=WebFlowRegistry.lookup(appCtx);
+			assertNotSame(registry, WebFlowRegistry.lookup(appCtx));
+			assertFalse(registry.isRegistered("searchStockFlow"));
+			assertSame(appCtx.getBean("searchStockFlow"), registry.getFlow("searchStockFlow"));
+			assertTrue(registry.isRegistered("searchStockFlow"));
+			assertFalse(registry.isRegistered("stockDetailFlow"));
+		}
+		finally {
+			appCtx.close();
+		}
+	}
+	
+}